@@ -27,17 +27,36 @@ import au.org.democracydevelopers.raireservice.request.GenerateAssertionsRequest
 import au.org.democracydevelopers.raireservice.request.GetAssertionsRequest;
 import au.org.democracydevelopers.raireservice.request.RequestValidationException;
 import au.org.democracydevelopers.raireservice.response.GenerateAssertionsResponse;
+import au.org.democracydevelopers.raireservice.response.GenerationJobResponse;
+import au.org.democracydevelopers.raireservice.service.CancellationToken;
+import au.org.democracydevelopers.raireservice.service.GenerationCancellations;
+import au.org.democracydevelopers.raireservice.service.GenerationJob;
+import au.org.democracydevelopers.raireservice.service.GenerationJobService;
 import au.org.democracydevelopers.raireservice.service.GetAssertionsCsvService;
 import au.org.democracydevelopers.raireservice.service.RaireServiceException;
 import au.org.democracydevelopers.raireservice.service.GenerateAssertionsService;
 import au.org.democracydevelopers.raireservice.service.GetAssertionsJsonService;
 import au.org.democracydevelopers.raireservice.service.RaireServiceException.RaireErrorCode;
+import au.org.democracydevelopers.raireservice.service.ServiceBusyException;
+import au.org.democracydevelopers.raireservice.service.SolveAdmission;
+import jakarta.annotation.PreDestroy;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.atomic.AtomicInteger;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
+import org.springframework.core.task.AsyncTaskExecutor;
+import org.springframework.core.task.support.TaskExecutorAdapter;
 import org.springframework.http.HttpStatus;
 import org.springframework.http.MediaType;
 import org.springframework.http.ResponseEntity;
 import org.springframework.web.bind.annotation.*;
+import org.springframework.web.context.request.async.WebAsyncTask;
+import org.springframework.web.servlet.support.ServletUriComponentsBuilder;
 
 /**
  * This class controls the post request mappings for all requests related
@@ -49,6 +68,12 @@ import org.springframework.web.bind.annotation.*;
  * the assertions for that contest from the database. In the case of success, it returns
  * the assertions as json, in a form appropriate for the assertion explainer. Otherwise, it
  * returns an error.
+ * /generation-jobs takes a generate assertions request and queues it as a job, returning the job's
+ * identifier straight away, and /generation-jobs/{id} reports the job's progress and, once it is
+ * complete, the response /generate-assertions would have returned. /generation-jobs/batch queues
+ * a job for each of a list of requests.
+ * Generation in progress can be cancelled, by job (DELETE /generation-jobs/{id}) or for every
+ * request for a contest (/cancel-generation).
  */
 @RestController
 @RequestMapping("/raire")
@@ -63,6 +88,29 @@ public class AssertionController {
   private final GetAssertionsJsonService getAssertionsService;
   private final GetAssertionsCsvService getAssertionsCSVService;
 
+  private final GenerationJobService generationJobService;
+
+  private final GenerationCancellations generationCancellations;
+
+  private final SolveAdmission solveAdmission;
+
+  /**
+   * No time limit on asynchronous request processing, beyond the time limit in the request.
+   */
+  private static final long NO_TIMEOUT = 0;
+
+  /**
+   * The threads on which /generate-assertions requests run once admitted. When admission is
+   * controlled, there is a thread for every request that may be generating or waiting, so an
+   * admitted request never waits for a thread; otherwise, there is a thread for every request.
+   */
+  private final ExecutorService generationThreads;
+
+  /**
+   * The generation threads, as used for asynchronous request processing.
+   */
+  private final AsyncTaskExecutor generationExecutor;
+
   /**
    * The API endpoint for generating assertions, by contest name, and returning the IRV winner as
    * part of a GenerateAssertionsResponse. The raire-java API will be accessed to generate
@@ -70,17 +118,26 @@ public class AssertionController {
    * database.
    * @param request a ContestRequest, specifying an IRV contest name for which to generate
    *                the assertions.
+   * Generation runs asynchronously with respect to the servlet container, so that if the client
+   * disconnects before it is complete, it is cancelled (and the cancellation is recorded in the
+   * contest's summary). If the service is already generating as many assertions as it can, the
+   * request waits; if too many requests are already waiting, it is refused at once, before it is
+   * handed to another thread, with TOO_MANY_REQUESTS and a Retry-After header (see
+   * SolveAdmission).
    * @return the winner (in the case of success) or an error. The winner, together with the contest,
    * is a GenerateAssertionsResponse.
    * @throws RequestValidationException which is handled by ControllerExceptionHandler.
    * This tests for invalid requests, such as non-existent, null, or non-IRV contest names.
-   * @throws RaireServiceException for other errors that are specific to assertion generation, such
-   * as tied winners or timeouts. These are caught by ControllerExceptionHandler and translated into the
-   * appropriate http error.
+   * @throws ServiceBusyException if too many requests are already generating or waiting, which
+   * is handled by ControllerExceptionHandler.
+   * Errors that are specific to assertion generation, such as tied winners or timeouts, are
+   * thrown by the task as RaireServiceExceptions. These are caught by ControllerExceptionHandler
+   * and translated into the appropriate http error.
    */
   @PostMapping(path = "/generate-assertions", produces = MediaType.APPLICATION_JSON_VALUE)
-  public ResponseEntity<GenerateAssertionsResponse> serve(@RequestBody GenerateAssertionsRequest request)
-      throws RequestValidationException, RaireServiceException
+  public WebAsyncTask<ResponseEntity<GenerateAssertionsResponse>> serve(
+      @RequestBody GenerateAssertionsRequest request)
+      throws RequestValidationException, ServiceBusyException
   {
     final String prefix = "[endpoint:generate-assertions]";
     logger.debug(String.format("%s Assertion generation request received for contest: %s.",
@@ -91,9 +148,54 @@ public class AssertionController {
     request.Validate(contestRepository);
     logger.debug(String.format("%s Assertion generation request successfully validated.",prefix));
 
+    // Reserve a permit, or a place in the queue for one, here, so that a request the service
+    // has no room for is refused straight away.
+    final SolveAdmission.Reservation reservation = solveAdmission.reserve(request.contestName);
+
+    // Generate assertions on a task, which is cancelled if the request ends first (which happens
+    // only if the connection fails). The reservation is given up if the task never uses it.
+    final CancellationToken token = new CancellationToken();
+    final WebAsyncTask<ResponseEntity<GenerateAssertionsResponse>> task =
+        new WebAsyncTask<>(NO_TIMEOUT, generationExecutor,
+            () -> generate(request, token, reservation));
+    task.onCompletion(() -> {
+      token.cancel("the client disconnected");
+      reservation.close();
+    });
+    return task;
+  }
+
+  /**
+   * Generate and store assertions for a validated request, returning the response for
+   * /generate-assertions.
+   * @param request a validated GenerateAssertionsRequest.
+   * @param token for cancelling generation.
+   * @param reservation the request's place in admission, to be turned into a permit.
+   * @return the winner (in the case of success) or an error.
+   * @throws RaireServiceException for errors that are specific to assertion generation, including
+   * cancellation.
+   */
+  private ResponseEntity<GenerateAssertionsResponse> generate(GenerateAssertionsRequest request,
+      CancellationToken token, SolveAdmission.Reservation reservation)
+      throws RaireServiceException {
+    final String prefix = "[endpoint:generate-assertions]";
+
     // Call raire-java to generate assertions.
     logger.debug(String.format("%s Calling raire-java with assertion generation request.",prefix));
-    RaireResultOrError solution = generateAssertionsService.generateAssertions(request);
+    // Wait for admission, if the request's reservation is a place in the queue.
+    final RaireResultOrError solution;
+    try (SolveAdmission.Reservation ignored = reservation;
+        SolveAdmission.Permit permit = reservation.permit(token)) {
+      try {
+        solution = generateAssertionsService.generateAssertions(request, phase -> {}, token,
+            permit);
+      } catch (RaireServiceException ex) {
+        if (ex.errorCode == RaireErrorCode.CANCELLED) {
+          generateAssertionsService.persistCancellation(request, ex.getMessage());
+        }
+        throw ex;
+      }
+    }
 
     // Save the result (whether error or success) to the database.
     generateAssertionsService.persistAssertionsOrErrors(solution, request);
@@ -135,6 +237,135 @@ public class AssertionController {
   }
 
 
+  /**
+   * The API endpoint for generating assertions asynchronously. The request is validated as for
+   * /generate-assertions, then queued as a job, which generates and stores assertions just as
+   * /generate-assertions does. The job's status can be requested from /generation-jobs/{id}.
+   * @param request a GenerateAssertionsRequest, specifying an IRV contest name for which to
+   *                generate the assertions.
+   * @return the queued job, with status ACCEPTED and the job's URL in the Location header.
+   * @throws RequestValidationException for invalid requests, as for /generate-assertions.
+   * @throws ServiceBusyException if the job queue is full, returned as TOO_MANY_REQUESTS with a
+   * Retry-After header.
+   * These exceptions are handled by ControllerExceptionHandler.
+   */
+  @PostMapping(path = "/generation-jobs", produces = MediaType.APPLICATION_JSON_VALUE)
+  public ResponseEntity<GenerationJobResponse> submitJob(
+      @RequestBody GenerateAssertionsRequest request)
+      throws RequestValidationException, ServiceBusyException {
+    final String prefix = "[endpoint:generation-jobs]";
+    logger.debug(String.format("%s Assertion generation job received for contest: %s.",
+        prefix, request.contestName));
+
+    request.Validate(contestRepository);
+    logger.debug(String.format("%s Assertion generation request successfully validated.",prefix));
+
+    final GenerationJob job = generationJobService.submit(request);
+    return ResponseEntity.accepted()
+        .location(ServletUriComponentsBuilder.fromCurrentRequest().path("/{id}")
+            .buildAndExpand(job.getId()).toUri())
+        .body(generationJobService.describe(job));
+  }
+
+  /**
+   * The API endpoint for generating assertions for several contests asynchronously, such as every
+   * IRV contest at the start of an audit. Each request is validated as for /generate-assertions,
+   * and the batch is rejected if any request is invalid, or if two requests are for the same
+   * contest. The requests are queued as jobs, ordered against other submissions as one
+   * submission, and within the batch most expensive first, so that the worker threads finish the
+   * whole batch as early as possible; each job stores its assertions as soon as it is complete.
+   * The status of each job can be requested from /generation-jobs/{id}.
+   * @param requests a list of GenerateAssertionsRequests, each specifying an IRV contest name for
+   *                 which to generate the assertions.
+   * @return the queued jobs, in the order of the requests, with status ACCEPTED.
+   * @throws RequestValidationException for an empty batch, a batch with two requests for the same
+   * contest, or a batch with any invalid request.
+   * @throws ServiceBusyException if there is not room in the job queue for the whole batch,
+   * returned as TOO_MANY_REQUESTS with a Retry-After header.
+   * These exceptions are handled by ControllerExceptionHandler.
+   */
+  @PostMapping(path = "/generation-jobs/batch", produces = MediaType.APPLICATION_JSON_VALUE)
+  public ResponseEntity<List<GenerationJobResponse>> submitBatch(
+      @RequestBody List<GenerateAssertionsRequest> requests)
+      throws RequestValidationException, ServiceBusyException {
+    final String prefix = "[endpoint:generation-jobs/batch]";
+    logger.debug(String.format("%s Batch of %d assertion generation requests received.", prefix,
+        requests == null ? 0 : requests.size()));
+
+    if (requests == null || requests.isEmpty()) {
+      final String msg = "No assertion generation requests in batch.";
+      logger.error(String.format("%s %s", prefix, msg));
+      throw new RequestValidationException(msg);
+    }
+
+    final Set<String> contestNames = new HashSet<>();
+    for (GenerateAssertionsRequest request : requests) {
+      if (request == null) {
+        final String msg = "Null assertion generation request in batch.";
+        logger.error(String.format("%s %s", prefix, msg));
+        throw new RequestValidationException(msg);
+      }
+      request.Validate(contestRepository);
+      if (!contestNames.add(request.contestName)) {
+        final String msg = String.format("More than one request in batch for contest %s.",
+            request.contestName);
+        logger.error(String.format("%s %s", prefix, msg));
+        throw new RequestValidationException(msg);
+      }
+    }
+    logger.debug(String.format("%s Batch successfully validated.", prefix));
+
+    final List<GenerationJobResponse> jobs = generationJobService.submitBatch(requests).stream()
+        .map(generationJobService::describe).toList();
+    return new ResponseEntity<>(jobs, HttpStatus.ACCEPTED);
+  }
+
+  /**
+   * The API endpoint for cancelling an asynchronous assertion generation job. A queued job ends
+   * as soon as it reaches the front of the queue; a running job ends as soon as it next checks
+   * for cancellation, and its cancellation is recorded in the contest's summary.
+   * @param id the job identifier returned by /generation-jobs.
+   * @return the job's status, with status ACCEPTED; or NOT_FOUND if there is no such job.
+   */
+  @DeleteMapping(path = "/generation-jobs/{id}", produces = MediaType.APPLICATION_JSON_VALUE)
+  public ResponseEntity<GenerationJobResponse> cancelJob(@PathVariable String id) {
+    return generationJobService.cancel(id)
+        .map(job -> new ResponseEntity<>(generationJobService.describe(job), HttpStatus.ACCEPTED))
+        .orElseGet(() -> new ResponseEntity<>(HttpStatus.NOT_FOUND));
+  }
+
+  /**
+   * The API endpoint for cancelling all assertion generation in progress for a contest, whether
+   * through /generate-assertions or through jobs, for example when the wrong candidate list was
+   * sent. Cancellation is cooperative: each run of generation ends as soon as it next checks for
+   * cancellation, and its cancellation is recorded in the contest's summary.
+   * @param contestName the name of the contest.
+   * @return the number of runs of generation and unfinished jobs cancelled, each counted once.
+   */
+  @PostMapping(path = "/cancel-generation", produces = MediaType.APPLICATION_JSON_VALUE)
+  public ResponseEntity<Integer> cancelContest(@RequestParam String contestName) {
+    final String prefix = "[endpoint:cancel-generation]";
+    final String reason = "assertion generation for the contest was cancelled by request";
+    final int cancelled = generationJobService.cancelContest(contestName, reason)
+        + generationCancellations.cancel(contestName, reason);
+    logger.debug(String.format("%s Cancelled %d runs of assertion generation for contest %s.",
+        prefix, cancelled, contestName));
+    return new ResponseEntity<>(cancelled, HttpStatus.OK);
+  }
+
+  /**
+   * The API endpoint for the status of an asynchronous assertion generation job.
+   * @param id the job identifier returned by /generation-jobs.
+   * @return the job's status, phase and, once it is complete, its result or error; or NOT_FOUND if
+   * there is no such job, or it finished so long ago that it has been forgotten.
+   */
+  @GetMapping(path = "/generation-jobs/{id}", produces = MediaType.APPLICATION_JSON_VALUE)
+  public ResponseEntity<GenerationJobResponse> serveJob(@PathVariable String id) {
+    return generationJobService.find(id)
+        .map(job -> new ResponseEntity<>(generationJobService.describe(job), HttpStatus.OK))
+        .orElseGet(() -> new ResponseEntity<>(HttpStatus.NOT_FOUND));
+  }
+
   /**
    * The API endpoint for finding and returning assertions, by contest name. This endpoint returns
    * assertions in the form of a JSON Visualiser Report.
@@ -212,13 +443,40 @@ public class AssertionController {
    * @param contestRepository the contestRepository, used for validating requests.
    * @param generateAssertionsService the generateAssertions service.
    * @param getAssertionsService the getAssertions service.
+   * @param generationJobService the service running asynchronous generation jobs.
+   * @param generationCancellations for cancelling generation in progress by contest.
+   * @param solveAdmission for limiting the number of requests generating assertions at once.
    */
   public AssertionController(ContestRepository contestRepository,
       GenerateAssertionsService generateAssertionsService,
-      GetAssertionsJsonService getAssertionsService, GetAssertionsCsvService getAssertionsCSVService) {
+      GetAssertionsJsonService getAssertionsService, GetAssertionsCsvService getAssertionsCSVService,
+      GenerationJobService generationJobService,
+      GenerationCancellations generationCancellations, SolveAdmission solveAdmission) {
     this.contestRepository = contestRepository;
     this.generateAssertionsService = generateAssertionsService;
     this.getAssertionsService = getAssertionsService;
     this.getAssertionsCSVService = getAssertionsCSVService;
+    this.generationJobService = generationJobService;
+    this.generationCancellations = generationCancellations;
+    this.solveAdmission = solveAdmission;
+
+    final AtomicInteger threadCount = new AtomicInteger();
+    final ThreadFactory threads = r -> {
+      final Thread t = new Thread(r, "generate-assertions-" + threadCount.incrementAndGet());
+      t.setDaemon(true);
+      return t;
+    };
+    this.generationThreads = solveAdmission.isEnabled()
+        ? Executors.newFixedThreadPool(solveAdmission.getInteractiveCapacity(), threads)
+        : Executors.newCachedThreadPool(threads);
+    this.generationExecutor = new TaskExecutorAdapter(generationThreads);
+  }
+
+  /**
+   * Stop the generation threads when the application shuts down.
+   */
+  @PreDestroy
+  public void shutdown() {
+    generationThreads.shutdownNow();
   }
 }
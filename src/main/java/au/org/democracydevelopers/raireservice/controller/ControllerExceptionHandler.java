@@ -22,6 +22,7 @@ package au.org.democracydevelopers.raireservice.controller;
 
 import au.org.democracydevelopers.raireservice.request.RequestValidationException;
 import au.org.democracydevelopers.raireservice.service.RaireServiceException;
+import au.org.democracydevelopers.raireservice.service.ServiceBusyException;
 import org.springframework.http.HttpHeaders;
 import org.springframework.http.HttpStatus;
 import org.springframework.http.ResponseEntity;
@@ -62,6 +63,23 @@ public class ControllerExceptionHandler extends ResponseEntityExceptionHandler {
         return new ResponseEntity<>(ex.getMessage(), headers, HttpStatus.INTERNAL_SERVER_ERROR);
     }
 
+    /**
+     * Handle ServiceBusyExceptions, which arise when a generate assertions request is refused
+     * because too many are already in progress, or a generation job or batch is refused because
+     * the job queue is full. This returns TOO_MANY_REQUESTS, with the custom error code and the
+     * estimated time until the request is worth retrying in the Retry-After header.
+     * @param ex the ServiceBusyException.
+     * @return the error message, error code and retry time.
+     */
+    @org.springframework.web.bind.annotation.ExceptionHandler(ServiceBusyException.class)
+    public ResponseEntity<String> handleServiceBusyException(ServiceBusyException ex) {
+        HttpHeaders headers = new HttpHeaders();
+        headers.add(ERROR_CODE_KEY, String.valueOf(ex.errorCode));
+        headers.add(HttpHeaders.RETRY_AFTER, String.valueOf(ex.retryAfterSeconds));
+
+        return new ResponseEntity<>(ex.getMessage(), headers, HttpStatus.TOO_MANY_REQUESTS);
+    }
+
     /**
      * Generic exception handling. This indicates an unexpected error.
      * Exception-handlers are called in order of specificity, so this one will be last.
@@ -0,0 +1,101 @@
+/*
+Copyright 2024 Democracy Developers
+
+The Raire Service is designed to connect colorado-rla and its associated database to
+the raire assertion generation engine (https://github.com/DemocracyDevelopers/raire-java).
+
+This file is part of raire-service.
+
+raire-service is free software: you can redistribute it and/or modify it under the terms
+of the GNU Affero General Public License as published by the Free Software Foundation, either
+version 3 of the License, or (at your option) any later version.
+
+raire-service is distributed in the hope that it will be useful, but WITHOUT ANY WARRANTY;
+without even the implied warranty of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.
+See the GNU Affero General Public License for more details.
+
+You should have received a copy of the GNU Affero General Public License along with
+raire-service. If not, see <https://www.gnu.org/licenses/>.
+*/
+
+package au.org.democracydevelopers.raireservice.persistence.converters;
+
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+import java.util.List;
+
+/**
+ * A fixed dictionary from the UTF-8 encoding of each candidate name for a contest to that
+ * candidate's index in the candidate list. Names are looked up directly from a region of a byte
+ * array (such as a choices entry read from the database as raw bytes), so that no String needs to
+ * be constructed. If a name appears more than once in the candidate list, its last index is used,
+ * as it is by WeightedVoteConsolidator. The dictionary is immutable once constructed, so it may be
+ * shared between threads.
+ */
+public class CandidateByteDictionary {
+
+  /**
+   * Open-addressing hash table of UTF-8 encoded candidate names, with linear probing. Empty slots
+   * are null.
+   */
+  private final byte[][] names;
+
+  /**
+   * The candidate index for the name in the same slot of names.
+   */
+  private final int[] indices;
+
+  /**
+   * Mask for reducing a hash to a table index (table length is a power of two).
+   */
+  private final int mask;
+
+  /**
+   * Construct a dictionary for the given candidate names.
+   * @param candidates the candidate names for the contest, in the order that defines their
+   *                   indices.
+   */
+  public CandidateByteDictionary(List<String> candidates) {
+    // Keep the table at most half full, so that probe sequences stay short.
+    final int size = Integer.highestOneBit(Math.max(2, candidates.size()) * 2) * 2;
+    this.names = new byte[size][];
+    this.indices = new int[size];
+    this.mask = size - 1;
+    for (int c = 0; c < candidates.size(); c++) {
+      if (candidates.get(c) == null) {
+        continue;
+      }
+      final byte[] name = candidates.get(c).getBytes(StandardCharsets.UTF_8);
+      int i = hash(name, 0, name.length) & mask;
+      while (names[i] != null && !Arrays.equals(names[i], name)) {
+        i = (i + 1) & mask;
+      }
+      names[i] = name;
+      indices[i] = c;
+    }
+  }
+
+  /**
+   * Find the candidate whose UTF-8 encoded name equals the given region of a byte array.
+   * @param source the bytes containing the name.
+   * @param start the index of the first byte of the name in source.
+   * @param end the index after the last byte of the name in source.
+   * @return the candidate's index, or -1 if the name is not a candidate.
+   */
+  public int find(byte[] source, int start, int end) {
+    for (int i = hash(source, start, end) & mask; names[i] != null; i = (i + 1) & mask) {
+      if (Arrays.equals(names[i], 0, names[i].length, source, start, end)) {
+        return indices[i];
+      }
+    }
+    return -1;
+  }
+
+  private static int hash(byte[] source, int start, int end) {
+    int hash = 0;
+    for (int j = start; j < end; j++) {
+      hash = 31 * hash + source[j];
+    }
+    return hash;
+  }
+}
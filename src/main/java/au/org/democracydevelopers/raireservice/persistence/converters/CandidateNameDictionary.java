@@ -0,0 +1,100 @@
+/*
+Copyright 2024 Democracy Developers
+
+The Raire Service is designed to connect colorado-rla and its associated database to
+the raire assertion generation engine (https://github.com/DemocracyDevelopers/raire-java).
+
+This file is part of raire-service.
+
+raire-service is free software: you can redistribute it and/or modify it under the terms
+of the GNU Affero General Public License as published by the Free Software Foundation, either
+version 3 of the License, or (at your option) any later version.
+
+raire-service is distributed in the hope that it will be useful, but WITHOUT ANY WARRANTY;
+without even the implied warranty of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.
+See the GNU Affero General Public License for more details.
+
+You should have received a copy of the GNU Affero General Public License along with
+raire-service. If not, see <https://www.gnu.org/licenses/>.
+*/
+
+package au.org.democracydevelopers.raireservice.persistence.converters;
+
+import java.util.List;
+
+/**
+ * A fixed dictionary of candidate names for one contest, used to give every ballot that names
+ * the same candidate the same String instance. Names can be looked up directly from a region of
+ * a larger String (such as a JSON choices entry), so that no substring needs to be allocated when
+ * the name is found. The dictionary is immutable once constructed, so it may be shared between
+ * threads.
+ */
+public class CandidateNameDictionary {
+
+  /**
+   * Open-addressing hash table of candidate names, with linear probing. Empty slots are null.
+   * The hash of a name is String.hashCode(), computed directly over the region being looked up.
+   */
+  private final String[] table;
+
+  /**
+   * Mask for reducing a hash to a table index (table length is a power of two).
+   */
+  private final int mask;
+
+  /**
+   * Construct a dictionary containing the given candidate names.
+   * @param candidates the candidate names for the contest.
+   */
+  public CandidateNameDictionary(List<String> candidates) {
+    // Keep the table at most half full, so that probe sequences stay short.
+    final int size = Integer.highestOneBit(Math.max(2, candidates.size()) * 2) * 2;
+    this.table = new String[size];
+    this.mask = size - 1;
+    for (String candidate : candidates) {
+      if (candidate != null && find(candidate, 0, candidate.length()) == null) {
+        int i = candidate.hashCode() & mask;
+        while (table[i] != null) {
+          i = (i + 1) & mask;
+        }
+        table[i] = candidate;
+      }
+    }
+  }
+
+  /**
+   * Find the candidate name equal to the given region of a String.
+   * @param source the String containing the name.
+   * @param start the index of the first character of the name in source.
+   * @param end the index after the last character of the name in source.
+   * @return the dictionary's instance of the name, or null if it is not a candidate.
+   */
+  public String find(String source, int start, int end) {
+    int hash = 0;
+    for (int j = start; j < end; j++) {
+      hash = 31 * hash + source.charAt(j);
+    }
+    final int length = end - start;
+    for (int i = hash & mask; table[i] != null; i = (i + 1) & mask) {
+      final String candidate = table[i];
+      if (candidate.length() == length && source.regionMatches(start, candidate, 0, length)) {
+        return candidate;
+      }
+    }
+    return null;
+  }
+
+  /**
+   * Return the dictionary's instance of the given name, if it is a candidate, or the name itself
+   * if it is not.
+   * @param name the name to look up.
+   * @return an equal String, which is shared with other lookups if the name is a candidate.
+   */
+  public String canonical(String name) {
+    if (name == null) {
+      return null;
+    }
+    final String found = find(name, 0, name.length());
+    return found == null ? name : found;
+  }
+}
@@ -0,0 +1,252 @@
+/*
+Copyright 2024 Democracy Developers
+
+The Raire Service is designed to connect colorado-rla and its associated database to
+the raire assertion generation engine (https://github.com/DemocracyDevelopers/raire-java).
+
+This file is part of raire-service.
+
+raire-service is free software: you can redistribute it and/or modify it under the terms
+of the GNU Affero General Public License as published by the Free Software Foundation, either
+version 3 of the License, or (at your option) any later version.
+
+raire-service is distributed in the hope that it will be useful, but WITHOUT ANY WARRANTY;
+without even the implied warranty of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.
+See the GNU Affero General Public License for more details.
+
+You should have received a copy of the GNU Affero General Public License along with
+raire-service. If not, see <https://www.gnu.org/licenses/>.
+*/
+
+package au.org.democracydevelopers.raireservice.persistence.converters;
+
+/**
+ * Decodes a choices entry, given as the raw UTF-8 bytes of its JSON representation, directly into
+ * candidate indices, without constructing any Strings. The supported format is the same as for
+ * JsonStringArrayParser: a single array of strings, with whitespace allowed between tokens and
+ * any of the JSON escapes within strings. Anything else, including a name that is not in the
+ * candidate dictionary, is not decoded; the caller is expected to fall back to converting the
+ * entry with StringArrayConverter, which will either accept it or produce the appropriate error.
+ * A decoder reuses its buffers from one entry to the next, so it is not thread safe.
+ */
+public class ChoicesByteDecoder {
+
+  private final CandidateByteDictionary dictionary;
+
+  /**
+   * The candidate indices of the most recently decoded entry.
+   */
+  private int[] preferences = new int[16];
+
+  /**
+   * Space for decoding names that contain escapes.
+   */
+  private byte[] scratch = new byte[64];
+
+  /**
+   * Construct a decoder for a contest.
+   * @param dictionary the contest's candidates.
+   */
+  public ChoicesByteDecoder(CandidateByteDictionary dictionary) {
+    this.dictionary = dictionary;
+  }
+
+  /**
+   * Decode a choices entry.
+   * @param json the UTF-8 bytes of the entry's JSON representation.
+   * @return the number of preferences in the entry, which are available (as candidate indices)
+   * from preferences(), or -1 if the entry could not be decoded.
+   */
+  public int decode(final byte[] json) {
+    final int length = json.length;
+    int pos = skipWhitespace(json, 0);
+    if (pos == length || json[pos] != '[') {
+      return -1;
+    }
+    pos = skipWhitespace(json, pos + 1);
+    if (pos < length && json[pos] == ']') {
+      return skipWhitespace(json, pos + 1) == length ? 0 : -1;
+    }
+
+    int count = 0;
+    while (true) {
+      if (pos == length || json[pos] != '"') {
+        return -1;
+      }
+
+      // Find the end of the string, noting whether it contains any escapes. Bytes of multi-byte
+      // UTF-8 sequences are all negative, so never match a quote, backslash or control character.
+      final int start = pos + 1;
+      int end = start;
+      boolean escaped = false;
+      while (end < length) {
+        final byte b = json[end];
+        if (b == '"') {
+          break;
+        } else if (b == '\\') {
+          escaped = true;
+          end += 2;
+        } else if (b >= 0 && b < 0x20) {
+          return -1;
+        } else {
+          end++;
+        }
+      }
+      if (end >= length) {
+        return -1;
+      }
+
+      final int index;
+      if (escaped) {
+        final int unescapedLength = unescape(json, start, end);
+        index = unescapedLength < 0 ? -1 : dictionary.find(scratch, 0, unescapedLength);
+      } else {
+        index = dictionary.find(json, start, end);
+      }
+      if (index < 0) {
+        return -1;
+      }
+      if (count == preferences.length) {
+        final int[] larger = new int[count * 2];
+        System.arraycopy(preferences, 0, larger, 0, count);
+        preferences = larger;
+      }
+      preferences[count++] = index;
+
+      pos = skipWhitespace(json, end + 1);
+      if (pos == length) {
+        return -1;
+      }
+      if (json[pos] == ']') {
+        return skipWhitespace(json, pos + 1) == length ? count : -1;
+      } else if (json[pos] != ',') {
+        return -1;
+      }
+      pos = skipWhitespace(json, pos + 1);
+    }
+  }
+
+  /**
+   * @return the candidate indices of the most recently decoded entry, most preferred first. Only
+   * the number of elements returned by decode are meaningful; the array is reused.
+   */
+  public int[] preferences() {
+    return preferences;
+  }
+
+  /**
+   * Decode the body of a JSON string containing escapes into scratch, as UTF-8.
+   * @param json the JSON bytes.
+   * @param start the index of the first byte after the opening quote.
+   * @param end the index of the closing quote.
+   * @return the number of bytes written to scratch, or -1 if an escape is not valid JSON or
+   * encodes an unpaired surrogate.
+   */
+  private int unescape(final byte[] json, final int start, final int end) {
+    // No escape decodes to more bytes than it occupies, so the output fits in end - start bytes.
+    if (scratch.length < end - start) {
+      scratch = new byte[Math.max(end - start, scratch.length * 2)];
+    }
+    int out = 0;
+    int i = start;
+    while (i < end) {
+      final byte b = json[i++];
+      if (b != '\\') {
+        scratch[out++] = b;
+        continue;
+      }
+      switch (json[i++]) {
+        case '"' -> scratch[out++] = '"';
+        case '\\' -> scratch[out++] = '\\';
+        case '/' -> scratch[out++] = '/';
+        case 'b' -> scratch[out++] = '\b';
+        case 'f' -> scratch[out++] = '\f';
+        case 'n' -> scratch[out++] = '\n';
+        case 'r' -> scratch[out++] = '\r';
+        case 't' -> scratch[out++] = '\t';
+        case 'u' -> {
+          int code = hex4(json, i, end);
+          if (code < 0) {
+            return -1;
+          }
+          i += 4;
+          if (Character.isHighSurrogate((char) code)) {
+            // A supplementary character must be given as a pair of escaped surrogates.
+            if (i + 6 > end || json[i] != '\\' || json[i + 1] != 'u') {
+              return -1;
+            }
+            final int low = hex4(json, i + 2, end);
+            if (low < 0 || !Character.isLowSurrogate((char) low)) {
+              return -1;
+            }
+            i += 6;
+            code = Character.toCodePoint((char) code, (char) low);
+          } else if (Character.isLowSurrogate((char) code)) {
+            return -1;
+          }
+          out = writeUtf8(code, out);
+        }
+        default -> {
+          return -1;
+        }
+      }
+    }
+    return out;
+  }
+
+  /**
+   * Write a code point to scratch, as UTF-8.
+   * @return the position in scratch after the code point.
+   */
+  private int writeUtf8(int code, int out) {
+    if (code < 0x80) {
+      scratch[out++] = (byte) code;
+    } else if (code < 0x800) {
+      scratch[out++] = (byte) (0xC0 | (code >> 6));
+      scratch[out++] = (byte) (0x80 | (code & 0x3F));
+    } else if (code < 0x10000) {
+      scratch[out++] = (byte) (0xE0 | (code >> 12));
+      scratch[out++] = (byte) (0x80 | ((code >> 6) & 0x3F));
+      scratch[out++] = (byte) (0x80 | (code & 0x3F));
+    } else {
+      scratch[out++] = (byte) (0xF0 | (code >> 18));
+      scratch[out++] = (byte) (0x80 | ((code >> 12) & 0x3F));
+      scratch[out++] = (byte) (0x80 | ((code >> 6) & 0x3F));
+      scratch[out++] = (byte) (0x80 | (code & 0x3F));
+    }
+    return out;
+  }
+
+  /**
+   * @return the value of the four hex digits starting at pos, or -1 if they are not all hex
+   * digits within the string.
+   */
+  private static int hex4(final byte[] json, final int pos, final int end) {
+    if (pos + 4 > end) {
+      return -1;
+    }
+    int code = 0;
+    for (int j = pos; j < pos + 4; j++) {
+      final int digit = Character.digit(json[j], 16);
+      if (digit < 0) {
+        return -1;
+      }
+      code = (code << 4) | digit;
+    }
+    return code;
+  }
+
+  /**
+   * @return the index of the first non-whitespace (in the JSON sense) byte at or after pos.
+   */
+  private static int skipWhitespace(final byte[] json, int pos) {
+    while (pos < json.length) {
+      final byte b = json[pos];
+      if (b != ' ' && b != '\t' && b != '\n' && b != '\r') {
+        break;
+      }
+      pos++;
+    }
+    return pos;
+  }
+}
@@ -0,0 +1,176 @@
+/*
+Copyright 2024 Democracy Developers
+
+The Raire Service is designed to connect colorado-rla and its associated database to
+the raire assertion generation engine (https://github.com/DemocracyDevelopers/raire-java).
+
+This file is part of raire-service.
+
+raire-service is free software: you can redistribute it and/or modify it under the terms
+of the GNU Affero General Public License as published by the Free Software Foundation, either
+version 3 of the License, or (at your option) any later version.
+
+raire-service is distributed in the hope that it will be useful, but WITHOUT ANY WARRANTY;
+without even the implied warranty of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.
+See the GNU Affero General Public License for more details.
+
+You should have received a copy of the GNU Affero General Public License along with
+raire-service. If not, see <https://www.gnu.org/licenses/>.
+*/
+
+package au.org.democracydevelopers.raireservice.persistence.converters;
+
+import java.util.Arrays;
+
+/**
+ * A purpose-built parser for the narrow JSON format in which colorado-rla stores ranked choices:
+ * a single array of strings, such as ["Alice","Bob"]. Whitespace is allowed between tokens, and
+ * strings may contain any of the JSON escapes (\" \\ \/ \b \f \n \r \t and \\uXXXX).
+ * Anything outside this format (including nulls, numbers, nested values, unescaped control
+ * characters and trailing content) is not parsed; the parser returns null, and the caller is
+ * expected to fall back to a general-purpose JSON parser, which will either accept the input or
+ * produce the appropriate error.
+ * Names that appear in the supplied CandidateNameDictionary are returned as the dictionary's
+ * instance, without allocating a new String.
+ */
+public class JsonStringArrayParser {
+
+  /**
+   * The result for an empty list of choices.
+   */
+  private static final String[] EMPTY = new String[0];
+
+  /**
+   * Parse a JSON array of strings.
+   * @param json the JSON text.
+   * @param dictionary names to share instances with, or null to allocate every name.
+   * @return the strings in the array, or null if the text is not in the supported format.
+   */
+  public static String[] parse(final String json, final CandidateNameDictionary dictionary) {
+    final int length = json.length();
+    int pos = skipWhitespace(json, 0);
+    if (pos == length || json.charAt(pos) != '[') {
+      return null;
+    }
+    pos = skipWhitespace(json, pos + 1);
+    if (pos < length && json.charAt(pos) == ']') {
+      return skipWhitespace(json, pos + 1) == length ? EMPTY : null;
+    }
+
+    String[] result = new String[8];
+    int count = 0;
+    while (true) {
+      if (pos == length || json.charAt(pos) != '"') {
+        return null;
+      }
+
+      // Find the end of the string, noting whether it contains any escapes.
+      final int start = pos + 1;
+      int end = start;
+      boolean escaped = false;
+      while (end < length) {
+        final char c = json.charAt(end);
+        if (c == '"') {
+          break;
+        } else if (c == '\\') {
+          escaped = true;
+          end += 2;
+        } else if (c < 0x20) {
+          return null;
+        } else {
+          end++;
+        }
+      }
+      if (end >= length) {
+        return null;
+      }
+
+      final String name;
+      if (escaped) {
+        name = unescape(json, start, end);
+        if (name == null) {
+          return null;
+        }
+      } else {
+        final String found = dictionary == null ? null : dictionary.find(json, start, end);
+        name = found == null ? json.substring(start, end) : found;
+      }
+      if (count == result.length) {
+        result = Arrays.copyOf(result, count * 2);
+      }
+      result[count++] = escaped && dictionary != null ? dictionary.canonical(name) : name;
+
+      pos = skipWhitespace(json, end + 1);
+      if (pos == length) {
+        return null;
+      }
+      final char separator = json.charAt(pos);
+      if (separator == ']') {
+        return skipWhitespace(json, pos + 1) == length ? Arrays.copyOf(result, count) : null;
+      } else if (separator != ',') {
+        return null;
+      }
+      pos = skipWhitespace(json, pos + 1);
+    }
+  }
+
+  /**
+   * Decode a JSON string body containing escapes.
+   * @param json the JSON text.
+   * @param start the index of the first character after the opening quote.
+   * @param end the index of the closing quote.
+   * @return the decoded string, or null if an escape is not valid JSON.
+   */
+  private static String unescape(final String json, final int start, final int end) {
+    final StringBuilder sb = new StringBuilder(end - start);
+    int i = start;
+    while (i < end) {
+      final char c = json.charAt(i++);
+      if (c != '\\') {
+        sb.append(c);
+        continue;
+      }
+      final char e = json.charAt(i++);
+      switch (e) {
+        case '"', '\\', '/' -> sb.append(e);
+        case 'b' -> sb.append('\b');
+        case 'f' -> sb.append('\f');
+        case 'n' -> sb.append('\n');
+        case 'r' -> sb.append('\r');
+        case 't' -> sb.append('\t');
+        case 'u' -> {
+          if (i + 4 > end) {
+            return null;
+          }
+          int code = 0;
+          for (int j = 0; j < 4; j++) {
+            final int digit = Character.digit(json.charAt(i++), 16);
+            if (digit < 0) {
+              return null;
+            }
+            code = (code << 4) | digit;
+          }
+          sb.append((char) code);
+        }
+        default -> {
+          return null;
+        }
+      }
+    }
+    return sb.toString();
+  }
+
+  /**
+   * @return the index of the first non-whitespace (in the JSON sense) character at or after pos.
+   */
+  private static int skipWhitespace(final String json, int pos) {
+    while (pos < json.length()) {
+      final char c = json.charAt(pos);
+      if (c != ' ' && c != '\t' && c != '\n' && c != '\r') {
+        break;
+      }
+      pos++;
+    }
+    return pos;
+  }
+}
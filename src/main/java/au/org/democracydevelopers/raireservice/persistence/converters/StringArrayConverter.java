@@ -37,6 +37,10 @@ import org.slf4j.LoggerFactory;
  * one String for each choice. The counterpart in colorado-rla is a converter between
  * String and List<String>. We convert choices to an array of String for easier
  * interaction with raire-java. We have also replaced the use of GSON with Jackson.
+ * Choices are read with a purpose-built JsonStringArrayParser, falling back to Jackson for any
+ * entry outside the simple array-of-strings format. While a CandidateNameDictionary is in use on
+ * the current thread (see useDictionary), candidate names are shared rather than being allocated
+ * afresh for every row.
  */
 @Converter(autoApply = true)
 public class StringArrayConverter implements AttributeConverter<String[], String> {
@@ -58,6 +62,41 @@ public class StringArrayConverter implements AttributeConverter<String[], String
    */
   private static final ObjectMapper objectMapper = new ObjectMapper();
 
+  /**
+   * The candidate name dictionary in use on each thread, if any. The converter is instantiated by
+   * Hibernate, so the dictionary for the contest being read is supplied through this rather than
+   * through the converter itself.
+   */
+  private static final ThreadLocal<CandidateNameDictionary> dictionary = new ThreadLocal<>();
+
+  /**
+   * A scope during which a CandidateNameDictionary is used, on the current thread, to share
+   * candidate name instances between converted choices. Closing the scope restores whichever
+   * dictionary (if any) was in use before.
+   */
+  public interface DictionaryScope extends AutoCloseable {
+    @Override
+    void close();
+  }
+
+  /**
+   * Use the given dictionary for all choices converted on the current thread, until the returned
+   * scope is closed. Intended for use in a try-with-resources statement.
+   * @param names the candidate names for the contest being read.
+   * @return the scope, which must be closed on the same thread.
+   */
+  public static DictionaryScope useDictionary(final CandidateNameDictionary names) {
+    final CandidateNameDictionary previous = dictionary.get();
+    dictionary.set(names);
+    return () -> {
+      if (previous == null) {
+        dictionary.remove();
+      } else {
+        dictionary.set(previous);
+      }
+    };
+  }
+
   /**
    * Converts the specified array of String to a single String database column entry.
    *
@@ -106,8 +145,19 @@ public class StringArrayConverter implements AttributeConverter<String[], String
       logger.error(msg);
       throw new RuntimeException(msg);
     }
+    final CandidateNameDictionary names = dictionary.get();
+    final String[] parsed = JsonStringArrayParser.parse(arrayAsString, names);
+    if (parsed != null) {
+      return parsed;
+    }
     try {
-      return objectMapper.readValue(arrayAsString, STRING_ARRAY);
+      final String[] result = objectMapper.readValue(arrayAsString, STRING_ARRAY);
+      if (names != null && result != null) {
+        for (int i = 0; i < result.length; i++) {
+          result[i] = names.canonical(result[i]);
+        }
+      }
+      return result;
     } catch (JsonProcessingException e) {
       final String msg = String.format("%s Problem in converting \"%s\" to an array of strings: %s",
           prefix, arrayAsString, e.getMessage());
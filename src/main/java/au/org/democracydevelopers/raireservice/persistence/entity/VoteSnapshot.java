@@ -0,0 +1,198 @@
+/*
+Copyright 2024 Democracy Developers
+
+The Raire Service is designed to connect colorado-rla and its associated database to
+the raire assertion generation engine (https://github.com/DemocracyDevelopers/raire-java).
+
+This file is part of raire-service.
+
+raire-service is free software: you can redistribute it and/or modify it under the terms
+of the GNU Affero General Public License as published by the Free Software Foundation, either
+version 3 of the License, or (at your option) any later version.
+
+raire-service is distributed in the hope that it will be useful, but WITHOUT ANY WARRANTY;
+without even the implied warranty of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.
+See the GNU Affero General Public License for more details.
+
+You should have received a copy of the GNU Affero General Public License along with
+raire-service. If not, see <https://www.gnu.org/licenses/>.
+*/
+
+package au.org.democracydevelopers.raireservice.persistence.entity;
+
+import jakarta.persistence.CollectionTable;
+import jakarta.persistence.Column;
+import jakarta.persistence.ElementCollection;
+import jakarta.persistence.Entity;
+import jakarta.persistence.FetchType;
+import jakarta.persistence.GeneratedValue;
+import jakarta.persistence.GenerationType;
+import jakarta.persistence.Id;
+import jakarta.persistence.JoinColumn;
+import jakarta.persistence.Table;
+import jakarta.persistence.UniqueConstraint;
+import jakarta.persistence.Version;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * The distinct rankings and their counts for one county level contest, as last read from
+ * cvr_contest_info, so that repeated assertion generation for the same contest (for example with
+ * a different time limit or universe size) does not need to read every CVR again. The snapshot
+ * records a fingerprint of the CVRs it was built from: their number, their largest CVR ID, and a
+ * checksum over their IDs and choices. The snapshot may be reused only while the county's CVRs
+ * still have the same fingerprint, so when one county re-uploads its CVRs, only that county's
+ * snapshot needs to be rebuilt. There is at most one snapshot per county level contest.
+ * The CVRs themselves are recorded separately (see VoteSnapshotRepository), so that a snapshot
+ * can be updated with just the CVRs added and removed since it was built.
+ */
+@Entity
+@Table(name = "vote_snapshot",
+    uniqueConstraints = @UniqueConstraint(columnNames = {"contest_id", "county_id"}))
+public class VoteSnapshot {
+
+  /**
+   * ID.
+   */
+  @Id
+  @Column(updatable = false, nullable = false)
+  @GeneratedValue(strategy = GenerationType.IDENTITY)
+  private long id;
+
+  /**
+   * Version. Used for optimistic locking.
+   */
+  @Version
+  @Column(name = "version", nullable = false)
+  private long version;
+
+  /**
+   * Name of the contest.
+   */
+  @Column(name = "contest_name", updatable = false, nullable = false)
+  private String contestName;
+
+  /**
+   * ID of the county level contest.
+   */
+  @Column(name = "contest_id", updatable = false, nullable = false)
+  private long contestId;
+
+  /**
+   * ID of the county.
+   */
+  @Column(name = "county_id", updatable = false, nullable = false)
+  private long countyId;
+
+  /**
+   * The number of CVRs the snapshot was built from.
+   */
+  @Column(name = "ballot_count", nullable = false)
+  private long ballotCount;
+
+  /**
+   * The largest CVR ID among the CVRs the snapshot was built from.
+   */
+  @Column(name = "max_cvr_id", nullable = false)
+  private long maxCvrId;
+
+  /**
+   * A checksum over the IDs and choices of the CVRs the snapshot was built from.
+   */
+  @Column(name = "checksum", nullable = false)
+  private long checksum;
+
+  /**
+   * The distinct rankings, with their counts.
+   */
+  @ElementCollection(fetch = FetchType.EAGER)
+  @CollectionTable(name = "vote_snapshot_ranking", joinColumns = @JoinColumn(name = "snapshot_id"))
+  private List<VoteSnapshotRanking> rankings = new ArrayList<>();
+
+  /**
+   * Default no-args constructor (required for persistence).
+   */
+  public VoteSnapshot() {}
+
+  /**
+   * Construct an empty snapshot for the given county level contest.
+   * @param contestName the name of the contest.
+   * @param contestId the ID of the county level contest.
+   * @param countyId the ID of the county.
+   */
+  public VoteSnapshot(String contestName, long contestId, long countyId) {
+    this.contestName = contestName;
+    this.contestId = contestId;
+    this.countyId = countyId;
+  }
+
+  /**
+   * Replace the content of the snapshot.
+   * @param ballotCount the number of CVRs the rankings were built from.
+   * @param maxCvrId the largest CVR ID among them.
+   * @param checksum the checksum over their IDs and choices.
+   * @param rankings the distinct rankings, with their counts.
+   */
+  public void update(long ballotCount, long maxCvrId, long checksum,
+      List<VoteSnapshotRanking> rankings) {
+    this.ballotCount = ballotCount;
+    this.maxCvrId = maxCvrId;
+    this.checksum = checksum;
+    this.rankings.clear();
+    this.rankings.addAll(rankings);
+  }
+
+  /**
+   * Whether the snapshot was built from CVRs with the given fingerprint.
+   * @param ballotCount the number of CVRs.
+   * @param maxCvrId the largest CVR ID.
+   * @param checksum the checksum over the CVRs' IDs and choices.
+   * @return true if all three match those recorded in the snapshot.
+   */
+  public boolean matches(long ballotCount, long maxCvrId, long checksum) {
+    return this.ballotCount == ballotCount && this.maxCvrId == maxCvrId
+        && this.checksum == checksum;
+  }
+
+  /**
+   * @return the ID of the snapshot.
+   */
+  public long getId() {
+    return id;
+  }
+
+  /**
+   * @return the name of the contest.
+   */
+  public String getContestName() {
+    return contestName;
+  }
+
+  /**
+   * @return the ID of the county level contest.
+   */
+  public long getContestId() {
+    return contestId;
+  }
+
+  /**
+   * @return the ID of the county.
+   */
+  public long getCountyId() {
+    return countyId;
+  }
+
+  /**
+   * @return the number of CVRs the snapshot was built from.
+   */
+  public long getBallotCount() {
+    return ballotCount;
+  }
+
+  /**
+   * @return the distinct rankings, with their counts.
+   */
+  public List<VoteSnapshotRanking> getRankings() {
+    return rankings;
+  }
+}
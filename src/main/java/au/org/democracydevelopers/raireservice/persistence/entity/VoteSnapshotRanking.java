@@ -0,0 +1,93 @@
+/*
+Copyright 2024 Democracy Developers
+
+The Raire Service is designed to connect colorado-rla and its associated database to
+the raire assertion generation engine (https://github.com/DemocracyDevelopers/raire-java).
+
+This file is part of raire-service.
+
+raire-service is free software: you can redistribute it and/or modify it under the terms
+of the GNU Affero General Public License as published by the Free Software Foundation, either
+version 3 of the License, or (at your option) any later version.
+
+raire-service is distributed in the hope that it will be useful, but WITHOUT ANY WARRANTY;
+without even the implied warranty of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.
+See the GNU Affero General Public License for more details.
+
+You should have received a copy of the GNU Affero General Public License along with
+raire-service. If not, see <https://www.gnu.org/licenses/>.
+*/
+
+package au.org.democracydevelopers.raireservice.persistence.entity;
+
+import au.org.democracydevelopers.raireservice.persistence.converters.StringArrayConverter;
+import jakarta.persistence.Column;
+import jakarta.persistence.Convert;
+import jakarta.persistence.Embeddable;
+
+/**
+ * One distinct ranking in a VoteSnapshot, with the number of CVRs having it. The ranking is
+ * stored by candidate name (in the same JSON form as cvr_contest_info.choices) rather than by
+ * candidate index, so that a snapshot can be reused for requests that list the candidates in a
+ * different order. The hash of its choices entry, as recorded for each CVR having it in
+ * vote_snapshot_cvr, identifies the ranking when CVRs are removed.
+ */
+@Embeddable
+public class VoteSnapshotRanking {
+
+  /**
+   * The ranked candidate names, most preferred first.
+   */
+  @Column(name = "choices", nullable = false)
+  @Convert(converter = StringArrayConverter.class)
+  private String[] choices;
+
+  /**
+   * The hash of the choices entry, as computed by the database.
+   */
+  @Column(name = "choices_hash", nullable = false)
+  private long choicesHash;
+
+  /**
+   * The number of CVRs with this ranking.
+   */
+  @Column(name = "ballots", nullable = false)
+  private long ballots;
+
+  /**
+   * Default no-args constructor (required for persistence).
+   */
+  public VoteSnapshotRanking() {}
+
+  /**
+   * @param choices the ranked candidate names, most preferred first.
+   * @param choicesHash the hash of the choices entry, as computed by the database.
+   * @param ballots the number of CVRs with this ranking.
+   */
+  public VoteSnapshotRanking(String[] choices, long choicesHash, long ballots) {
+    this.choices = choices;
+    this.choicesHash = choicesHash;
+    this.ballots = ballots;
+  }
+
+  /**
+   * @return the ranked candidate names, most preferred first.
+   */
+  public String[] getChoices() {
+    return choices;
+  }
+
+  /**
+   * @return the hash of the choices entry, as computed by the database.
+   */
+  public long getChoicesHash() {
+    return choicesHash;
+  }
+
+  /**
+   * @return the number of CVRs with this ranking.
+   */
+  public long getBallots() {
+    return ballots;
+  }
+}
@@ -22,18 +22,30 @@ package au.org.democracydevelopers.raireservice.persistence.repository;
 
 import au.org.democracydevelopers.raireservice.persistence.entity.CVRContestInfoId;
 import au.org.democracydevelopers.raireservice.persistence.entity.CVRContestInfo;
+import jakarta.persistence.QueryHint;
 import java.util.List;
+import java.util.stream.Stream;
+import org.hibernate.jpa.HibernateHints;
 import org.springframework.data.jpa.repository.JpaRepository;
 import org.springframework.data.jpa.repository.Query;
+import org.springframework.data.jpa.repository.QueryHints;
 import org.springframework.data.repository.query.Param;
 import org.springframework.orm.jpa.JpaSystemException;
 import org.springframework.stereotype.Repository;
 
 /**
- * Database retrieval of vote data associated with a specific contests on a CVR.
+ * Database retrieval of vote data associated with a specific contests on a CVR. Methods that work
+ * directly with JDBC are declared in CVRContestInfoRepositoryCustom.
  */
 @Repository
-public interface CVRContestInfoRepository extends JpaRepository<CVRContestInfo, CVRContestInfoId> {
+public interface CVRContestInfoRepository extends JpaRepository<CVRContestInfo, CVRContestInfoId>,
+    CVRContestInfoRepositoryCustom {
+
+  /**
+   * The number of cvr_contest_info rows fetched from the database per round-trip when streaming
+   * ranked choice data. This bounds the number of rows held by the JDBC driver at any one time.
+   */
+  String CVR_FETCH_SIZE = "1000";
 
   /**
    * Retrieve the ranked choice data associated with a specific contest in a specific county
@@ -54,4 +66,277 @@ public interface CVRContestInfoRepository extends JpaRepository<CVRContestInfo,
   List<String[]> getCVRs(@Param("contestId") long contestId, @Param("countyId") long countyId)
       throws JpaSystemException;
 
+  /**
+   * Stream the ranked choice data for the contest with the given name, across all of its county
+   * level contests, in a single statement. The (contest_id, county_id) pairs making up the contest
+   * are found by joining on contest, so the CVRs for every county are located through the
+   * idx_cvrci_uri index without a separate round-trip per county. Each row is returned with its
+   * county ID, so that per-county counts can be kept. Rows are read through a forward-only
+   * database cursor, CVR_FETCH_SIZE rows at a time, rather than being materialised into a list.
+   * The caller must consume (and close) the stream within a transaction. Conversion errors for
+   * malformed choices entries arise as the stream is consumed, rather than when this method is
+   * called.
+   * @param contestName the name of the contest.
+   * @return a Stream of (county ID, ranked choices) pairs, one per CVR.
+   */
+  @Query(value = "select ci.countyId as countyId, ci.choices as choices " +
+      " from CVRContestInfo ci, Contest c " +
+      " where c.name = :contestName and ci.contestId = c.id and ci.countyId = c.countyID")
+  @QueryHints({
+      @QueryHint(name = HibernateHints.HINT_FETCH_SIZE, value = CVR_FETCH_SIZE),
+      @QueryHint(name = HibernateHints.HINT_READ_ONLY, value = "true")
+  })
+  Stream<CountyChoices> streamContestCVRs(@Param("contestName") String contestName);
+
+  /**
+   * The ranked choices on a CVR, with the county to which the CVR belongs.
+   */
+  interface CountyChoices {
+
+    /**
+     * @return the ID of the county.
+     */
+    long getCountyId();
+
+    /**
+     * @return the ranked choices.
+     */
+    String[] getChoices();
+  }
+
+  /**
+   * Stream the ranked choice data for the contest with the given name, as for streamContestCVRs,
+   * but with each choices entry in its raw (JSON) database form, so that it can be decoded
+   * elsewhere (for example, on another thread). As the entries are not converted, a malformed
+   * entry does not cause an error here.
+   * @param contestName the name of the contest.
+   * @return a Stream of (county ID, choices) pairs, one per CVR.
+   */
+  @Query(value = "select ci.county_id as \"countyId\", ci.choices as choices " +
+      " from cvr_contest_info ci " +
+      " join contest c on c.id = ci.contest_id and c.county_id = ci.county_id " +
+      " where c.name = :contestName", nativeQuery = true)
+  @QueryHints({
+      @QueryHint(name = HibernateHints.HINT_FETCH_SIZE, value = CVR_FETCH_SIZE),
+      @QueryHint(name = HibernateHints.HINT_READ_ONLY, value = "true")
+  })
+  Stream<RawCountyChoices> streamContestRawChoices(@Param("contestName") String contestName);
+
+  /**
+   * The choices entry on a CVR in its raw (JSON) database form, with the county to which the CVR
+   * belongs.
+   */
+  interface RawCountyChoices {
+
+    /**
+     * @return the ID of the county.
+     */
+    long getCountyId();
+
+    /**
+     * @return the choices entry, as its JSON representation in the database.
+     */
+    String getChoices();
+  }
+
+  /**
+   * Stream the ranked choice data for the contest with the given name, as for streamContestCVRs,
+   * restricted to the CVRs with IDs in the given range. This allows a contest's CVRs to be read
+   * in disjoint parts, concurrently, on separate connections.
+   * @param contestName the name of the contest.
+   * @param fromCvrId the lowest CVR ID to include.
+   * @param toCvrId the highest CVR ID to include.
+   * @return a Stream of (county ID, ranked choices) pairs, one per CVR in the range.
+   */
+  @Query(value = "select ci.countyId as countyId, ci.choices as choices " +
+      " from CVRContestInfo ci, Contest c " +
+      " where c.name = :contestName and ci.contestId = c.id and ci.countyId = c.countyID " +
+      " and ci.cvrId between :fromCvrId and :toCvrId")
+  @QueryHints({
+      @QueryHint(name = HibernateHints.HINT_FETCH_SIZE, value = CVR_FETCH_SIZE),
+      @QueryHint(name = HibernateHints.HINT_READ_ONLY, value = "true")
+  })
+  Stream<CountyChoices> streamContestCVRsInRange(@Param("contestName") String contestName,
+      @Param("fromCvrId") long fromCvrId, @Param("toCvrId") long toCvrId);
+
+  /**
+   * Find the range of CVR IDs, and the number of CVRs, for the contest with the given name across
+   * all of its county level contests.
+   * @param contestName the name of the contest.
+   * @return the lowest and highest CVR IDs (null if there are no CVRs) and the number of CVRs.
+   */
+  @Query(value = "select min(ci.cvrId) as minCvrId, max(ci.cvrId) as maxCvrId, " +
+      " count(ci) as ballots from CVRContestInfo ci, Contest c " +
+      " where c.name = :contestName and ci.contestId = c.id and ci.countyId = c.countyID")
+  CvrIdRange getCVRIdRange(@Param("contestName") String contestName);
+
+  /**
+   * The range of CVR IDs for a contest, with the number of CVRs in it.
+   */
+  interface CvrIdRange {
+
+    /**
+     * @return the lowest CVR ID, or null if the contest has no CVRs.
+     */
+    Long getMinCvrId();
+
+    /**
+     * @return the highest CVR ID, or null if the contest has no CVRs.
+     */
+    Long getMaxCvrId();
+
+    /**
+     * @return the number of CVRs.
+     */
+    long getBallots();
+  }
+
+  /**
+   * Count the CVRs for the contest with the given name in each of its county level contests. This
+   * is answered from the idx_cvrci_uri index on (county_id, contest_id), and does not read or
+   * convert any choices entries, so it is much cheaper than retrieving the CVRs.
+   * @param contestName the name of the contest.
+   * @return a list of (county ID, ballots) pairs, one per county having at least one CVR.
+   */
+  @Query(value = "select ci.county_id as \"countyId\", count(*) as ballots " +
+      " from cvr_contest_info ci " +
+      " join contest c on c.id = ci.contest_id and c.county_id = ci.county_id " +
+      " where c.name = :contestName group by ci.county_id", nativeQuery = true)
+  List<CountyCount> getCountyCounts(@Param("contestName") String contestName);
+
+  /**
+   * Find the distinct candidate names appearing in the choices of all CVRs for the contest with
+   * the given name, across all of its county level contests. The choices entries are expanded and
+   * the names made distinct by the database, so only one row per name is transferred. Null
+   * entries, and null elements within entries, are ignored; they are reported when the CVRs are
+   * ingested. An entry that is not a JSON array causes a database error.
+   * @param contestName the name of the contest.
+   * @return the distinct names, in no particular order.
+   */
+  @Query(value = "select distinct e.name from cvr_contest_info ci " +
+      " join contest c on c.id = ci.contest_id and c.county_id = ci.county_id " +
+      " cross join lateral jsonb_array_elements_text(cast(ci.choices as jsonb)) as e(name) " +
+      " where c.name = :contestName and e.name is not null", nativeQuery = true)
+  List<String> getDistinctCandidateNames(@Param("contestName") String contestName);
+
+  /**
+   * The number of CVRs for a contest in one county.
+   */
+  interface CountyCount {
+
+    /**
+     * @return the ID of the county.
+     */
+    long getCountyId();
+
+    /**
+     * @return the number of CVRs in the county.
+     */
+    long getBallots();
+  }
+
+  /**
+   * Compute a fingerprint of the CVRs in each county level contest of the contest with the given
+   * name: their number, their largest CVR ID, and a checksum (the sum, modulo 2^63 - 1, of a
+   * 64-bit hash of each CVR's ID, county ID and choices entry). A county's fingerprint changes if
+   * any of its CVRs is added, removed or has its choices changed, except in the unlikely event of
+   * a checksum collision. Fingerprints are computed entirely by the database, so no CVRs are
+   * transferred.
+   * @param contestName the name of the contest.
+   * @return the fingerprint of each county level contest having at least one CVR.
+   */
+  @Query(value = "select ci.county_id as \"countyId\", ci.contest_id as \"contestId\", " +
+      " count(*) as ballots, max(ci.cvr_id) as \"maxCvrId\", " +
+      " cast(coalesce(sum(hashtextextended(cast(ci.cvr_id as text) || ':' || " +
+      "   cast(ci.county_id as text) || ':' || coalesce(ci.choices, 'null'), 0)) " +
+      "   % 9223372036854775807, 0) as bigint) as checksum " +
+      " from cvr_contest_info ci " +
+      " join contest c on c.id = ci.contest_id and c.county_id = ci.county_id " +
+      " where c.name = :contestName group by ci.county_id, ci.contest_id", nativeQuery = true)
+  List<CountyFingerprint> getCountyFingerprints(@Param("contestName") String contestName);
+
+  /**
+   * A fingerprint of the CVRs in one county level contest, used to detect whether they have
+   * changed.
+   */
+  interface CountyFingerprint {
+
+    /**
+     * @return the ID of the county.
+     */
+    long getCountyId();
+
+    /**
+     * @return the ID of the county level contest.
+     */
+    long getContestId();
+
+    /**
+     * @return the number of CVRs.
+     */
+    long getBallots();
+
+    /**
+     * @return the largest CVR ID.
+     */
+    long getMaxCvrId();
+
+    /**
+     * @return the checksum over the CVRs' IDs, county IDs and choices.
+     */
+    long getChecksum();
+  }
+
+  /**
+   * Retrieve the distinct ranked choice entries for the contest with the given name, in each of
+   * its county level contests, together with the number of CVRs having each entry. Counting is
+   * done by the database, so that only one row per county and distinct choices entry is
+   * transferred. The choices are returned in their raw (JSON) database form; they are matched
+   * exactly as stored, so two entries describing the same ranking with different formatting are
+   * returned separately.
+   * @param contestName the name of the contest.
+   * @return a list of (county ID, choices, ballots) triples, one per county and distinct choices
+   * entry.
+   */
+  @Query(value = "select ci.county_id as \"countyId\", ci.choices as choices, " +
+      " count(*) as ballots from cvr_contest_info ci " +
+      " join contest c on c.id = ci.contest_id and c.county_id = ci.county_id " +
+      " where c.name = :contestName group by ci.county_id, ci.choices", nativeQuery = true)
+  List<RankingCount> getRankingCounts(@Param("contestName") String contestName);
+
+  /**
+   * Retrieve the distinct ranked choice entries for one county level contest, with the number of
+   * CVRs having each entry, as for getRankingCounts.
+   * @param contestId the ID of the county level contest.
+   * @param countyId the ID of the county.
+   * @return a list of (county ID, choices, ballots) triples, one per distinct choices entry.
+   */
+  @Query(value = "select ci.county_id as \"countyId\", ci.choices as choices, " +
+      " count(*) as ballots from cvr_contest_info ci " +
+      " where ci.contest_id = :contestId and ci.county_id = :countyId " +
+      " group by ci.county_id, ci.choices", nativeQuery = true)
+  List<RankingCount> getCountyRankingCounts(@Param("contestId") long contestId,
+      @Param("countyId") long countyId);
+
+  /**
+   * A distinct choices entry from cvr_contest_info in one county, with the number of CVRs in
+   * that county that have it.
+   */
+  interface RankingCount {
+
+    /**
+     * @return the ID of the county.
+     */
+    long getCountyId();
+
+    /**
+     * @return the choices entry, as its JSON representation in the database.
+     */
+    String getChoices();
+
+    /**
+     * @return the number of CVRs in the county with this choices entry.
+     */
+    long getBallots();
+  }
 }
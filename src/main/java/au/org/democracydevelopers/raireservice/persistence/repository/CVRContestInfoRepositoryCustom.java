@@ -0,0 +1,103 @@
+/*
+Copyright 2024 Democracy Developers
+
+The Raire Service is designed to connect colorado-rla and its associated database to
+the raire assertion generation engine (https://github.com/DemocracyDevelopers/raire-java).
+
+This file is part of raire-service.
+
+raire-service is free software: you can redistribute it and/or modify it under the terms
+of the GNU Affero General Public License as published by the Free Software Foundation, either
+version 3 of the License, or (at your option) any later version.
+
+raire-service is distributed in the hope that it will be useful, but WITHOUT ANY WARRANTY;
+without even the implied warranty of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.
+See the GNU Affero General Public License for more details.
+
+You should have received a copy of the GNU Affero General Public License along with
+raire-service. If not, see <https://www.gnu.org/licenses/>.
+*/
+
+package au.org.democracydevelopers.raireservice.persistence.repository;
+
+import java.util.List;
+
+/**
+ * Retrieval of vote data that works directly with JDBC, for access that cannot be expressed
+ * through JPA queries. Implemented by CVRContestInfoRepositoryCustomImpl, and made available
+ * through CVRContestInfoRepository.
+ */
+public interface CVRContestInfoRepositoryCustom {
+
+  /**
+   * Read the choices entry of every CVR for the contest with the given name, across all of its
+   * county level contests, as the raw bytes (UTF-8) of its JSON representation, passing each one
+   * to the handler as it is read. No String is constructed for any entry. Rows are read through a
+   * forward-only cursor, so this must be called within a transaction.
+   * @param contestName the name of the contest.
+   * @param handler receives the county ID and choices bytes (null if the entry is null) of each
+   *                CVR.
+   * @throws org.springframework.dao.DataAccessException if an error arose in database access.
+   */
+  void scanContestChoiceBytes(String contestName, ChoiceBytesHandler handler);
+
+  /**
+   * Read the choices entry of every CVR for the contest with the given name, as for
+   * scanContestChoiceBytes, but using Postgres's COPY protocol (COPY ... TO STDOUT) rather than a
+   * query result set. Output is passed to the handler incrementally, as it arrives. This must be
+   * called within a transaction.
+   * @param contestName the name of the contest.
+   * @param handler receives the county ID and choices bytes (null if the entry is null) of each
+   *                CVR.
+   * @throws org.springframework.dao.DataAccessException if an error arose in database access.
+   */
+  void copyContestChoiceBytes(String contestName, ChoiceBytesHandler handler);
+
+  /**
+   * Retrieve the rankings of all CVRs for the contest with the given name, with each candidate
+   * name already mapped (by the database) to its index in the given candidate list. Rankings are
+   * also counted by the database, so one row is returned per county and distinct ranking. A
+   * ranking containing a name that is not in the candidate list is flagged by the query, and
+   * returned with its original choices entry (and no indices) so that the caller can report it.
+   * @param contestName the name of the contest.
+   * @param candidates the candidate names, in the order that defines their indices. If a name
+   *                   appears more than once, its last index is used, as in
+   *                   WeightedVoteConsolidator.
+   * @param handler receives each county's distinct rankings and their counts.
+   * @throws org.springframework.dao.DataAccessException if an error arose in database access,
+   * including a choices entry that is null or is not a JSON array.
+   */
+  void scanContestRankingIndices(String contestName, List<String> candidates,
+      RankingIndicesHandler handler);
+
+  /**
+   * Receives rankings, as candidate indices, from scanContestRankingIndices.
+   */
+  @FunctionalInterface
+  interface RankingIndicesHandler {
+
+    /**
+     * @param countyId the ID of the county to which the CVRs belong.
+     * @param preferences the ranked candidate indices, most preferred first, or null if the
+     *                    ranking contains a name that is not a candidate.
+     * @param invalidChoices the choices entry (as JSON) if the ranking contains a name that is
+     *                       not a candidate, otherwise null.
+     * @param ballots the number of CVRs in the county with this ranking.
+     */
+    void accept(long countyId, int[] preferences, String invalidChoices, long ballots);
+  }
+
+  /**
+   * Receives choices entries, as raw bytes, from scanContestChoiceBytes.
+   */
+  @FunctionalInterface
+  interface ChoiceBytesHandler {
+
+    /**
+     * @param countyId the ID of the county to which the CVR belongs.
+     * @param choices the UTF-8 bytes of the choices entry, or null if the entry is null. The
+     *                array belongs to the handler.
+     */
+    void accept(long countyId, byte[] choices);
+  }
+}
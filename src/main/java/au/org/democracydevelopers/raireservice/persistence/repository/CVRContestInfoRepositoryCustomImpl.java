@@ -0,0 +1,172 @@
+/*
+Copyright 2024 Democracy Developers
+
+The Raire Service is designed to connect colorado-rla and its associated database to
+the raire assertion generation engine (https://github.com/DemocracyDevelopers/raire-java).
+
+This file is part of raire-service.
+
+raire-service is free software: you can redistribute it and/or modify it under the terms
+of the GNU Affero General Public License as published by the Free Software Foundation, either
+version 3 of the License, or (at your option) any later version.
+
+raire-service is distributed in the hope that it will be useful, but WITHOUT ANY WARRANTY;
+without even the implied warranty of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.
+See the GNU Affero General Public License for more details.
+
+You should have received a copy of the GNU Affero General Public License along with
+raire-service. If not, see <https://www.gnu.org/licenses/>.
+*/
+
+package au.org.democracydevelopers.raireservice.persistence.repository;
+
+import static au.org.democracydevelopers.raireservice.persistence.repository.CVRContestInfoRepository.CVR_FETCH_SIZE;
+
+import java.sql.Array;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import javax.sql.DataSource;
+import org.postgresql.PGConnection;
+import org.postgresql.copy.CopyManager;
+import org.postgresql.copy.CopyOut;
+import org.springframework.dao.DataRetrievalFailureException;
+import org.springframework.jdbc.core.ConnectionCallback;
+import org.springframework.jdbc.core.JdbcTemplate;
+import org.springframework.jdbc.core.RowCallbackHandler;
+
+/**
+ * JDBC implementation of CVRContestInfoRepositoryCustom. Queries run on the connection belonging
+ * to the current transaction, if there is one, and database errors are translated into Spring's
+ * DataAccessException hierarchy, as for the JPA repository methods.
+ */
+public class CVRContestInfoRepositoryCustomImpl implements CVRContestInfoRepositoryCustom {
+
+  /**
+   * Query for the county ID and choices of every CVR for a named contest.
+   */
+  private static final String CONTEST_CHOICES = "select ci.county_id, ci.choices " +
+      " from cvr_contest_info ci " +
+      " join contest c on c.id = ci.contest_id and c.county_id = ci.county_id " +
+      " where c.name = ?";
+
+  /**
+   * Query for the (county ID, contest ID) pairs of the county level contests with a given name.
+   */
+  private static final String CONTEST_IDS = "select county_id, id from contest where name = ?";
+
+  /**
+   * Query for the distinct rankings, as candidate indices, of every CVR for a named contest, by
+   * county, with their counts. Each choices entry is expanded into its elements (in order), and
+   * each element is looked up in the candidate list, which is passed (as a text array) in reverse
+   * order; with n candidates, a name first found at (1-based) position p of the reversed list is
+   * at (0-based) index n - p of the original list, and this is its last occurrence there. A name
+   * not in the list has no position, which flags the ranking as invalid; the choices entry is
+   * then returned in place of the indices. Null entries are flagged separately, as errors.
+   * Parameters: reversed candidates, candidate count, reversed candidates, contest name.
+   */
+  private static final String CONTEST_RANKING_INDICES = "select ci.county_id, r.prefs, " +
+      " case when r.invalid then ci.choices end as invalid_choices, " +
+      " ci.choices is null as missing, count(*) as ballots " +
+      " from cvr_contest_info ci " +
+      " join contest c on c.id = ci.contest_id and c.county_id = ci.county_id " +
+      " cross join lateral (select " +
+      "   array_agg(? - array_position(cast(? as text[]), e.name) order by e.ord) as prefs, " +
+      "   coalesce(bool_or(array_position(cast(? as text[]), e.name) is null), false) as invalid " +
+      "   from jsonb_array_elements_text(cast(ci.choices as jsonb)) with ordinality " +
+      "     as e(name, ord)) r " +
+      " where c.name = ? " +
+      " group by ci.county_id, r.prefs, r.invalid, invalid_choices, missing";
+
+  private final JdbcTemplate jdbcTemplate;
+
+  /**
+   * All args constructor.
+   * @param dataSource the application's data source.
+   */
+  public CVRContestInfoRepositoryCustomImpl(DataSource dataSource) {
+    this.jdbcTemplate = new JdbcTemplate(dataSource);
+    this.jdbcTemplate.setFetchSize(Integer.parseInt(CVR_FETCH_SIZE));
+  }
+
+  /**
+   * {@inheritDoc}
+   * The Postgres JDBC driver returns the bytes of a text column exactly as received from the
+   * server (in the client encoding, UTF-8), without decoding them.
+   */
+  @Override
+  public void scanContestChoiceBytes(String contestName, ChoiceBytesHandler handler) {
+    jdbcTemplate.query(CONTEST_CHOICES, ps -> ps.setString(1, contestName),
+        (RowCallbackHandler) rs -> handler.accept(rs.getLong(1), rs.getBytes(2)));
+  }
+
+  /**
+   * {@inheritDoc}
+   * COPY does not accept query parameters, so the contest's (county ID, contest ID) pairs are
+   * found first, with an ordinary parameterised query, and the COPY statement is built from those
+   * numeric IDs alone; the contest name is never part of the COPY statement. The COPY runs on the
+   * connection belonging to the current transaction, through a ConnectionCallback, so that
+   * SQLExceptions are translated into DataAccessExceptions.
+   */
+  @Override
+  public void copyContestChoiceBytes(String contestName, ChoiceBytesHandler handler) {
+    final List<String> pairs = jdbcTemplate.query(CONTEST_IDS,
+        (rs, rowNum) -> String.format("(%d,%d)", rs.getLong(1), rs.getLong(2)), contestName);
+    if (pairs.isEmpty()) {
+      return;
+    }
+    final String copy = "copy (select ci.county_id, ci.choices from cvr_contest_info ci " +
+        " where (ci.county_id, ci.contest_id) in (" + String.join(",", pairs) + ")) to stdout";
+
+    jdbcTemplate.execute((ConnectionCallback<Void>) connection -> {
+      final CopyManager copyManager = connection.unwrap(PGConnection.class).getCopyAPI();
+      final CopyOut copyOut = copyManager.copyOut(copy);
+      try {
+        final CopyTextRows rows = new CopyTextRows(handler);
+        byte[] chunk;
+        while ((chunk = copyOut.readFromCopy()) != null) {
+          rows.accept(chunk);
+        }
+        rows.finish();
+      } finally {
+        if (copyOut.isActive()) {
+          copyOut.cancelCopy();
+        }
+      }
+      return null;
+    });
+  }
+
+  /**
+   * {@inheritDoc}
+   * The mapping from names to indices, and the detection of names that are not candidates, are
+   * done entirely by the database (see CONTEST_RANKING_INDICES).
+   */
+  @Override
+  public void scanContestRankingIndices(String contestName, List<String> candidates,
+      RankingIndicesHandler handler) {
+    final String[] reversed = candidates.toArray(String[]::new);
+    Collections.reverse(Arrays.asList(reversed));
+
+    jdbcTemplate.query(CONTEST_RANKING_INDICES, ps -> {
+      final Array candidateArray = ps.getConnection().createArrayOf("text", reversed);
+      ps.setInt(1, reversed.length);
+      ps.setArray(2, candidateArray);
+      ps.setArray(3, candidateArray);
+      ps.setString(4, contestName);
+    }, (RowCallbackHandler) rs -> {
+      if (rs.getBoolean("missing")) {
+        throw new DataRetrievalFailureException(String.format("A null entry is present in the " +
+            "database in place of a JSON list, for contest %s.", contestName));
+      }
+      final String invalidChoices = rs.getString("invalid_choices");
+      int[] preferences = null;
+      if (invalidChoices == null) {
+        final Array prefs = rs.getArray("prefs");
+        preferences = prefs == null ? new int[0]
+            : Arrays.stream((Integer[]) prefs.getArray()).mapToInt(Integer::intValue).toArray();
+      }
+      handler.accept(rs.getLong("county_id"), preferences, invalidChoices, rs.getLong("ballots"));
+    });
+  }
+}
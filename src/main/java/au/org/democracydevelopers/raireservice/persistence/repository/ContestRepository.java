@@ -69,6 +69,19 @@ public interface ContestRepository extends JpaRepository<Contest, Long> {
   Optional<Contest> findByContestAndCountyID(@Param("contestID") long contestID,
       @Param("countyID") long countyID);
 
+  /**
+   * Find the names of contests that are all IRV (as for isAllIRV) and have no generate
+   * assertions summary, that is, for which assertions have not yet been generated (successfully
+   * or otherwise).
+   * @return the contest names, in alphabetical order.
+   */
+  @Query(value = "select distinct c.name from Contest c " +
+      " where not exists (select o from Contest o where o.name = c.name " +
+      "   and o.description <> 'IRV') " +
+      " and not exists (select s from GenerateAssertionsSummary s " +
+      "   where s.contestName = c.name) order by c.name")
+  List<String> findIRVContestNamesWithoutSummary();
+
   /**
    * Check whether all the contests of the given name have description 'IRV'.
    * Note it does _not_ test for existence - use findFirstByName for that.
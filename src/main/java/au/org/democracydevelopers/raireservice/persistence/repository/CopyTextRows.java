@@ -0,0 +1,173 @@
+/*
+Copyright 2024 Democracy Developers
+
+The Raire Service is designed to connect colorado-rla and its associated database to
+the raire assertion generation engine (https://github.com/DemocracyDevelopers/raire-java).
+
+This file is part of raire-service.
+
+raire-service is free software: you can redistribute it and/or modify it under the terms
+of the GNU Affero General Public License as published by the Free Software Foundation, either
+version 3 of the License, or (at your option) any later version.
+
+raire-service is distributed in the hope that it will be useful, but WITHOUT ANY WARRANTY;
+without even the implied warranty of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.
+See the GNU Affero General Public License for more details.
+
+You should have received a copy of the GNU Affero General Public License along with
+raire-service. If not, see <https://www.gnu.org/licenses/>.
+*/
+
+package au.org.democracydevelopers.raireservice.persistence.repository;
+
+import au.org.democracydevelopers.raireservice.persistence.repository.CVRContestInfoRepositoryCustom.ChoiceBytesHandler;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+
+/**
+ * Splits the output of a Postgres COPY ... TO STDOUT in text format, consisting of rows of
+ * (county ID, choices), into rows, and decodes each row's fields. Output may be supplied in
+ * chunks of any size; a row split between chunks is held until it is complete. In text format,
+ * rows end with a newline, fields are separated by tabs, a null field is \N, and backslash
+ * escapes are used for backslash, control characters, and (optionally) octal or hexadecimal
+ * byte values.
+ * See https://www.postgresql.org/docs/current/sql-copy.html#id-1.9.3.55.9.2
+ */
+class CopyTextRows {
+
+  private final ChoiceBytesHandler handler;
+
+  /**
+   * The incomplete row carried over from previous chunks.
+   */
+  private byte[] pending = new byte[256];
+  private int pendingLength = 0;
+
+  /**
+   * Construct a row splitter.
+   * @param handler receives the county ID and decoded choices of each row.
+   */
+  CopyTextRows(ChoiceBytesHandler handler) {
+    this.handler = handler;
+  }
+
+  /**
+   * Process a chunk of COPY output, passing each row completed by it to the handler.
+   * @param chunk the bytes of the chunk.
+   */
+  void accept(byte[] chunk) {
+    int start = 0;
+    for (int i = 0; i < chunk.length; i++) {
+      if (chunk[i] == '\n') {
+        if (pendingLength == 0) {
+          row(chunk, start, i);
+        } else {
+          append(chunk, start, i);
+          row(pending, 0, pendingLength);
+          pendingLength = 0;
+        }
+        start = i + 1;
+      }
+    }
+    append(chunk, start, chunk.length);
+  }
+
+  /**
+   * Confirm that the output is complete.
+   * @throws IllegalStateException if the output ended part way through a row.
+   */
+  void finish() {
+    if (pendingLength > 0) {
+      throw new IllegalStateException("COPY output ended part way through a row.");
+    }
+  }
+
+  private void append(byte[] chunk, int start, int end) {
+    final int length = end - start;
+    if (pendingLength + length > pending.length) {
+      pending = Arrays.copyOf(pending, Math.max(pending.length * 2, pendingLength + length));
+    }
+    System.arraycopy(chunk, start, pending, pendingLength, length);
+    pendingLength += length;
+  }
+
+  /**
+   * Decode the row in the given region (excluding its newline) and pass it to the handler.
+   */
+  private void row(byte[] source, int start, int end) {
+    int tab = start;
+    while (tab < end && source[tab] != '\t') {
+      tab++;
+    }
+    if (tab == end) {
+      throw new IllegalStateException("COPY output row has one field where two were expected.");
+    }
+    final long countyId = Long.parseLong(new String(source, start, tab - start,
+        StandardCharsets.US_ASCII));
+    handler.accept(countyId, field(source, tab + 1, end));
+  }
+
+  /**
+   * Decode a text format field.
+   * @param source the bytes containing the field.
+   * @param start the index of the first byte of the field.
+   * @param end the index after the last byte of the field.
+   * @return the field's value, or null if the field is null.
+   */
+  static byte[] field(byte[] source, int start, int end) {
+    if (end - start == 2 && source[start] == '\\' && source[start + 1] == 'N') {
+      return null;
+    }
+    int i = start;
+    while (i < end && source[i] != '\\') {
+      i++;
+    }
+    if (i == end) {
+      return Arrays.copyOfRange(source, start, end);
+    }
+
+    // The field contains escapes, each of which decodes to a single byte.
+    final byte[] out = new byte[end - start];
+    int length = i - start;
+    System.arraycopy(source, start, out, 0, length);
+    while (i < end) {
+      final byte b = source[i++];
+      if (b != '\\' || i == end) {
+        out[length++] = b;
+        continue;
+      }
+      final byte e = source[i++];
+      switch (e) {
+        case 'b' -> out[length++] = '\b';
+        case 'f' -> out[length++] = '\f';
+        case 'n' -> out[length++] = '\n';
+        case 'r' -> out[length++] = '\r';
+        case 't' -> out[length++] = '\t';
+        case 'v' -> out[length++] = 0x0B;
+        case 'x' -> {
+          int value = 0;
+          int digits = 0;
+          while (digits < 2 && i < end && Character.digit(source[i], 16) >= 0) {
+            value = (value << 4) | Character.digit(source[i++], 16);
+            digits++;
+          }
+          out[length++] = digits == 0 ? (byte) 'x' : (byte) value;
+        }
+        default -> {
+          if (e >= '0' && e <= '7') {
+            int value = e - '0';
+            for (int digits = 1; digits < 3 && i < end && source[i] >= '0' && source[i] <= '7';
+                digits++) {
+              value = (value << 3) | (source[i++] - '0');
+            }
+            out[length++] = (byte) value;
+          } else {
+            // Any other escaped character stands for itself (including backslash).
+            out[length++] = e;
+          }
+        }
+      }
+    }
+    return Arrays.copyOf(out, length);
+  }
+}
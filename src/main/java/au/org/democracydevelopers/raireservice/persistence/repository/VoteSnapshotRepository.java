@@ -0,0 +1,133 @@
+/*
+Copyright 2024 Democracy Developers
+
+The Raire Service is designed to connect colorado-rla and its associated database to
+the raire assertion generation engine (https://github.com/DemocracyDevelopers/raire-java).
+
+This file is part of raire-service.
+
+raire-service is free software: you can redistribute it and/or modify it under the terms
+of the GNU Affero General Public License as published by the Free Software Foundation, either
+version 3 of the License, or (at your option) any later version.
+
+raire-service is distributed in the hope that it will be useful, but WITHOUT ANY WARRANTY;
+without even the implied warranty of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.
+See the GNU Affero General Public License for more details.
+
+You should have received a copy of the GNU Affero General Public License along with
+raire-service. If not, see <https://www.gnu.org/licenses/>.
+*/
+
+package au.org.democracydevelopers.raireservice.persistence.repository;
+
+import au.org.democracydevelopers.raireservice.persistence.entity.VoteSnapshot;
+import java.util.List;
+import java.util.Optional;
+import org.springframework.data.jpa.repository.JpaRepository;
+import org.springframework.data.jpa.repository.Modifying;
+import org.springframework.data.jpa.repository.Query;
+import org.springframework.data.repository.query.Param;
+import org.springframework.stereotype.Repository;
+
+/**
+ * Database retrieval and storage for snapshots of the rankings in county level contests. Along
+ * with each snapshot, the CVRs (cvr_contest_info rows) it was built from are recorded in the
+ * vote_snapshot_cvr table, each with a 64-bit hash of its choices entry (the same hash function as
+ * CVRContestInfoRepository.getCountyFingerprints uses) rather than a copy of the entry, so that
+ * when the county's CVRs change, the rows added and removed since the snapshot was built can be
+ * found by the database by comparing keys and hashes, and applied to the snapshot's rankings
+ * without reading the unchanged rows. The tables are described in vote_snapshot_schema.sql.
+ */
+@Repository
+public interface VoteSnapshotRepository extends JpaRepository<VoteSnapshot, Long>,
+    VoteSnapshotRepositoryCustom {
+
+  /**
+   * Retrieve the vote snapshots for all county level contests of the contest with the given name.
+   * There is at most one per county level contest.
+   * @param contestName Name of the contest whose snapshots are being retrieved.
+   */
+  @Query(value = "select s from VoteSnapshot s where s.contestName = :contestName")
+  List<VoteSnapshot> findByContestName(@Param("contestName") String contestName);
+
+  /**
+   * Retrieve the vote snapshot for the county level contest with the given ID, if there is one.
+   * @param contestId the ID of the county level contest.
+   */
+  @Query(value = "select s from VoteSnapshot s where s.contestId = :contestId")
+  Optional<VoteSnapshot> findByContestId(@Param("contestId") long contestId);
+
+  /**
+   * Delete the record of the CVRs the given snapshot is built from.
+   * @param snapshotId the ID of the snapshot.
+   * @return the number of CVRs deleted.
+   */
+  @Modifying
+  @Query(value = "delete from vote_snapshot_cvr where snapshot_id = :snapshotId",
+      nativeQuery = true)
+  int deleteCvrs(@Param("snapshotId") long snapshotId);
+
+  /**
+   * Find the differences between the CVRs recorded for the given snapshot and the current CVRs of
+   * its county level contest: rows that have been added, rows that have been removed, and rows
+   * whose choices have changed (which appear twice, as a removal of the old choices and an
+   * addition of the new). Rows are compared by key and choices hash only; the choices entry itself
+   * is returned for added rows, and is null for removed rows, which are identified by their hash.
+   * @param snapshotId the ID of the snapshot.
+   * @param contestId the ID of the county level contest.
+   * @param countyId the ID of the county.
+   * @return the changed rows.
+   */
+  @Query(value = "select ci.cvr_id as \"cvrId\", ci.index as \"cvrIndex\", " +
+      " ci.choices as choices, " +
+      " hashtextextended(coalesce(ci.choices, 'null'), 0) as \"choicesHash\", " +
+      " true as added from cvr_contest_info ci " +
+      " left join vote_snapshot_cvr s on s.snapshot_id = :snapshotId " +
+      "   and s.cvr_id = ci.cvr_id and s.cvr_index = ci.index " +
+      " where ci.contest_id = :contestId and ci.county_id = :countyId " +
+      "   and (s.cvr_id is null " +
+      "     or s.choices_hash <> hashtextextended(coalesce(ci.choices, 'null'), 0)) " +
+      " union all " +
+      " select s.cvr_id, s.cvr_index, null, s.choices_hash, false from vote_snapshot_cvr s " +
+      " left join cvr_contest_info ci on ci.cvr_id = s.cvr_id and ci.index = s.cvr_index " +
+      "   and ci.contest_id = :contestId and ci.county_id = :countyId " +
+      " where s.snapshot_id = :snapshotId " +
+      "   and (ci.cvr_id is null " +
+      "     or s.choices_hash <> hashtextextended(coalesce(ci.choices, 'null'), 0))",
+      nativeQuery = true)
+  List<CvrChange> getCvrChanges(@Param("snapshotId") long snapshotId,
+      @Param("contestId") long contestId, @Param("countyId") long countyId);
+
+  /**
+   * A cvr_contest_info row added to, or removed from, a county level contest since its snapshot
+   * was built.
+   */
+  interface CvrChange {
+
+    /**
+     * @return the ID of the CVR.
+     */
+    long getCvrId();
+
+    /**
+     * @return the index of the contest on the CVR.
+     */
+    int getCvrIndex();
+
+    /**
+     * @return the choices entry, as its JSON representation in the database, for an added row;
+     * null for a removed row.
+     */
+    String getChoices();
+
+    /**
+     * @return the hash of the choices entry.
+     */
+    long getChoicesHash();
+
+    /**
+     * @return true if the row has been added, false if it has been removed.
+     */
+    boolean getAdded();
+  }
+}
@@ -0,0 +1,78 @@
+/*
+Copyright 2024 Democracy Developers
+
+The Raire Service is designed to connect colorado-rla and its associated database to
+the raire assertion generation engine (https://github.com/DemocracyDevelopers/raire-java).
+
+This file is part of raire-service.
+
+raire-service is free software: you can redistribute it and/or modify it under the terms
+of the GNU Affero General Public License as published by the Free Software Foundation, either
+version 3 of the License, or (at your option) any later version.
+
+raire-service is distributed in the hope that it will be useful, but WITHOUT ANY WARRANTY;
+without even the implied warranty of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.
+See the GNU Affero General Public License for more details.
+
+You should have received a copy of the GNU Affero General Public License along with
+raire-service. If not, see <https://www.gnu.org/licenses/>.
+*/
+
+package au.org.democracydevelopers.raireservice.persistence.repository;
+
+import au.org.democracydevelopers.raireservice.persistence.repository.VoteSnapshotRepository.CvrChange;
+import java.util.List;
+
+/**
+ * Storage of vote snapshot data that works directly with JDBC, for batched updates that cannot be
+ * expressed through JPA queries. Implemented by VoteSnapshotRepositoryCustomImpl, and made
+ * available through VoteSnapshotRepository.
+ */
+public interface VoteSnapshotRepositoryCustom {
+
+  /**
+   * Wait for, and take, the lock on the snapshot of the county level contest with the given ID,
+   * for the rest of the current transaction. Snapshots are built, updated and deleted only while
+   * holding this lock, so that concurrent refreshes of the same county level contest (by the
+   * SnapshotWarmer and a request, or by two requests) take turns rather than collide. The lock is
+   * a transaction-level Postgres advisory lock, so it is released when the transaction ends.
+   * @param contestId the ID of the county level contest.
+   * @throws org.springframework.dao.DataAccessException if an error arose in database access.
+   */
+  void lockContest(long contestId);
+
+  /**
+   * Record the current CVRs of a county level contest as those the given snapshot is built from,
+   * each with the hash of its choices entry, and count their distinct choices entries. Both are
+   * done in a single statement, so the counts always agree with the recorded CVRs, even if the
+   * county's CVRs change concurrently. Any CVRs previously recorded for the snapshot should be
+   * deleted first (see VoteSnapshotRepository.deleteCvrs).
+   * @param snapshotId the ID of the snapshot.
+   * @param contestId the ID of the county level contest.
+   * @param countyId the ID of the county.
+   * @return the distinct choices entries of the recorded CVRs, with their hashes and counts.
+   * @throws org.springframework.dao.DataAccessException if an error arose in database access.
+   */
+  List<HashedRankingCount> recordCvrs(long snapshotId, long contestId, long countyId);
+
+  /**
+   * Apply changes to the record of the CVRs a snapshot is built from: every removed row is
+   * deleted, then every added row is inserted, with the choices hash given (rather than that of
+   * the choices currently in cvr_contest_info, which may have changed again since the changes
+   * were found).
+   * This must be called within the transaction in which the snapshot's rankings are updated with
+   * the same changes.
+   * @param snapshotId the ID of the snapshot.
+   * @param changes the changes, as found by VoteSnapshotRepository.getCvrChanges.
+   * @throws org.springframework.dao.DataAccessException if an error arose in database access.
+   */
+  void applyCvrChanges(long snapshotId, List<CvrChange> changes);
+
+  /**
+   * A distinct choices entry among the CVRs recorded for a snapshot.
+   * @param choices the choices entry, as its JSON representation in the database (possibly null).
+   * @param choicesHash the hash of the choices entry, as recorded for each CVR having it.
+   * @param ballots the number of CVRs having the choices entry.
+   */
+  record HashedRankingCount(String choices, long choicesHash, long ballots) {}
+}
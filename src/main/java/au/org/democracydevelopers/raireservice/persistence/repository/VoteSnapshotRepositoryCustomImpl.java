@@ -0,0 +1,128 @@
+/*
+Copyright 2024 Democracy Developers
+
+The Raire Service is designed to connect colorado-rla and its associated database to
+the raire assertion generation engine (https://github.com/DemocracyDevelopers/raire-java).
+
+This file is part of raire-service.
+
+raire-service is free software: you can redistribute it and/or modify it under the terms
+of the GNU Affero General Public License as published by the Free Software Foundation, either
+version 3 of the License, or (at your option) any later version.
+
+raire-service is distributed in the hope that it will be useful, but WITHOUT ANY WARRANTY;
+without even the implied warranty of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.
+See the GNU Affero General Public License for more details.
+
+You should have received a copy of the GNU Affero General Public License along with
+raire-service. If not, see <https://www.gnu.org/licenses/>.
+*/
+
+package au.org.democracydevelopers.raireservice.persistence.repository;
+
+import au.org.democracydevelopers.raireservice.persistence.repository.VoteSnapshotRepository.CvrChange;
+import java.util.List;
+import javax.sql.DataSource;
+import org.springframework.jdbc.core.JdbcTemplate;
+
+/**
+ * JDBC implementation of VoteSnapshotRepositoryCustom. Updates run on the connection belonging to
+ * the current transaction, and database errors are translated into Spring's DataAccessException
+ * hierarchy, as for the JPA repository methods.
+ */
+public class VoteSnapshotRepositoryCustomImpl implements VoteSnapshotRepositoryCustom {
+
+  /**
+   * Statement taking the advisory lock on a county level contest's snapshot. The key is a hash of
+   * a fixed name seeded with the contest ID, so that it is unlikely to coincide with any advisory
+   * lock key used by colorado-rla.
+   * Parameters: contest ID.
+   */
+  private static final String LOCK_CONTEST =
+      "select pg_advisory_xact_lock(hashtextextended('raire.vote_snapshot', ?))";
+
+  /**
+   * Statement recording the CVRs of a county level contest for a snapshot, and counting their
+   * distinct choices entries. The insertion in the data-modifying CTE is carried out even though
+   * the final select does not read from it, and both see the same rows of cvr_contest_info.
+   * Parameters: contest ID, county ID, snapshot ID.
+   */
+  private static final String RECORD_CVRS = "with cvrs as (" +
+      "   select cvr_id, index, choices, " +
+      "     hashtextextended(coalesce(choices, 'null'), 0) as choices_hash " +
+      "   from cvr_contest_info where contest_id = ? and county_id = ?), " +
+      " recorded as (insert into vote_snapshot_cvr " +
+      "   (snapshot_id, cvr_id, cvr_index, choices_hash) " +
+      "   select ?, cvr_id, index, choices_hash from cvrs) " +
+      " select choices, choices_hash, count(*) as ballots from cvrs " +
+      " group by choices, choices_hash";
+
+  /**
+   * Statement deleting one recorded CVR of a snapshot.
+   * Parameters: snapshot ID, CVR ID, contest index.
+   */
+  private static final String DELETE_CVR = "delete from vote_snapshot_cvr " +
+      " where snapshot_id = ? and cvr_id = ? and cvr_index = ?";
+
+  /**
+   * Statement recording one CVR of a snapshot.
+   * Parameters: snapshot ID, CVR ID, contest index, choices hash.
+   */
+  private static final String INSERT_CVR = "insert into vote_snapshot_cvr " +
+      " (snapshot_id, cvr_id, cvr_index, choices_hash) values (?, ?, ?, ?)";
+
+  private final JdbcTemplate jdbcTemplate;
+
+  /**
+   * All args constructor.
+   * @param dataSource the application's data source.
+   */
+  public VoteSnapshotRepositoryCustomImpl(DataSource dataSource) {
+    this.jdbcTemplate = new JdbcTemplate(dataSource);
+  }
+
+  /**
+   * {@inheritDoc}
+   */
+  @Override
+  public void lockContest(long contestId) {
+    // The lock function returns void, so the row is not read.
+    jdbcTemplate.query(LOCK_CONTEST, rs -> {}, contestId);
+  }
+
+  /**
+   * {@inheritDoc}
+   */
+  @Override
+  public List<HashedRankingCount> recordCvrs(long snapshotId, long contestId, long countyId) {
+    return jdbcTemplate.query(RECORD_CVRS, (rs, row) -> new HashedRankingCount(
+        rs.getString("choices"), rs.getLong("choices_hash"), rs.getLong("ballots")),
+        contestId, countyId, snapshotId);
+  }
+
+  /**
+   * {@inheritDoc}
+   * Deletions and insertions are each sent to the database as a single batch.
+   */
+  @Override
+  public void applyCvrChanges(long snapshotId, List<CvrChange> changes) {
+    final List<CvrChange> removed = changes.stream().filter(c -> !c.getAdded()).toList();
+    final List<CvrChange> added = changes.stream().filter(CvrChange::getAdded).toList();
+
+    if (!removed.isEmpty()) {
+      jdbcTemplate.batchUpdate(DELETE_CVR, removed, removed.size(), (ps, c) -> {
+        ps.setLong(1, snapshotId);
+        ps.setLong(2, c.getCvrId());
+        ps.setInt(3, c.getCvrIndex());
+      });
+    }
+    if (!added.isEmpty()) {
+      jdbcTemplate.batchUpdate(INSERT_CVR, added, added.size(), (ps, c) -> {
+        ps.setLong(1, snapshotId);
+        ps.setLong(2, c.getCvrId());
+        ps.setInt(3, c.getCvrIndex());
+        ps.setLong(4, c.getChoicesHash());
+      });
+    }
+  }
+}
@@ -32,7 +32,8 @@ import org.slf4j.LoggerFactory;
  * listing other data:
  * - the candidates (by name),
  * - the total auditable ballots in the universe (used to calculate difficulty in raire),
- * - the time limit allowed to raire.
+ * - the time limit allowed to raire,
+ * - optionally, the number of distinct rankings to hold in memory while consolidating votes.
  * This is used for requesting assertion generation.
  * The only significant method is a verification method for checking that the data items are
  * present and have reasonable values.
@@ -44,6 +45,15 @@ public class GenerateAssertionsRequest extends ContestRequest {
    */
   public final double timeLimitSeconds;
 
+  /**
+   * The number of distinct rankings to hold in memory while consolidating the contest's votes,
+   * beyond which they are written to temporary files and merged (0 to hold them all in memory).
+   * Null (the default) uses the service's configured threshold (raire.ingestion.spill.max-rankings).
+   * A positive value below the service's minimum (raire.ingestion.spill.min-rankings) is raised to
+   * that minimum.
+   */
+  public final Integer maxInMemoryRankings;
+
   /**
    * Class-wide logger.
    */
@@ -56,11 +66,27 @@ public class GenerateAssertionsRequest extends ContestRequest {
    * @param timeLimitSeconds the elapsed time allowed for RAIRE to generate assertions, in seconds.
    * @param candidates the list of candidates by name
    */
-  @ConstructorProperties({"contestName", "totalAuditableBallots", "timeLimitSeconds","candidates"})
   public GenerateAssertionsRequest(String contestName, int totalAuditableBallots, double timeLimitSeconds,
       List<String> candidates) {
+    this(contestName, totalAuditableBallots, timeLimitSeconds, candidates, null);
+  }
+
+  /**
+   * All args constructor, including the optional in-memory ranking threshold.
+   * @param contestName the name of the contest
+   * @param totalAuditableBallots the total auditable ballots in the universe under audit.
+   * @param timeLimitSeconds the elapsed time allowed for RAIRE to generate assertions, in seconds.
+   * @param candidates the list of candidates by name
+   * @param maxInMemoryRankings the number of distinct rankings to hold in memory during vote
+   *                            consolidation (0 for all of them), or null for the service default.
+   */
+  @ConstructorProperties({"contestName", "totalAuditableBallots", "timeLimitSeconds","candidates",
+      "maxInMemoryRankings"})
+  public GenerateAssertionsRequest(String contestName, int totalAuditableBallots, double timeLimitSeconds,
+      List<String> candidates, Integer maxInMemoryRankings) {
     super(contestName, totalAuditableBallots, candidates);
     this.timeLimitSeconds = timeLimitSeconds;
+    this.maxInMemoryRankings = maxInMemoryRankings;
   }
 
   /**
@@ -68,7 +94,8 @@ public class GenerateAssertionsRequest extends ContestRequest {
    * super::Validate() checks that the contest exists and is an IRV contest, that
    * the total ballots has a sensible value, and that the contest has candidates.
    * Note it does _not_ check whether the candidates are present in the CVRs.
-   * This function adds a test that the timeLimitSeconds has a sensible value.
+   * This function adds a test that the timeLimitSeconds has a sensible value, and that
+   * maxInMemoryRankings, if present, is not negative.
    * @param contestRepository the respository for getting Contest objects from the database.
    * @throws RequestValidationException if the request is invalid.
    */
@@ -86,6 +113,13 @@ public class GenerateAssertionsRequest extends ContestRequest {
       throw new RequestValidationException(msg);
     }
 
+    if (maxInMemoryRankings != null && maxInMemoryRankings < 0) {
+      final String msg = String.format("%s Negative in-memory ranking threshold (%d). " +
+          "Throwing a RequestValidationException.", prefix, maxInMemoryRankings);
+      logger.error(msg);
+      throw new RequestValidationException(msg);
+    }
+
     logger.debug(String.format("%s Generate Assertions Request validated.", prefix));
   }
 }
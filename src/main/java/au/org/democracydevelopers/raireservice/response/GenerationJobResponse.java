@@ -0,0 +1,61 @@
+/*
+Copyright 2024 Democracy Developers
+
+The Raire Service is designed to connect colorado-rla and its associated database to
+the raire assertion generation engine (https://github.com/DemocracyDevelopers/raire-java).
+
+This file is part of raire-service.
+
+raire-service is free software: you can redistribute it and/or modify it under the terms
+of the GNU Affero General Public License as published by the Free Software Foundation, either
+version 3 of the License, or (at your option) any later version.
+
+raire-service is distributed in the hope that it will be useful, but WITHOUT ANY WARRANTY;
+without even the implied warranty of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.
+See the GNU Affero General Public License for more details.
+
+You should have received a copy of the GNU Affero General Public License along with
+raire-service. If not, see <https://www.gnu.org/licenses/>.
+*/
+
+package au.org.democracydevelopers.raireservice.response;
+
+import au.org.democracydevelopers.raireservice.service.GenerationJob.Phase;
+import au.org.democracydevelopers.raireservice.service.GenerationJob.Status;
+import au.org.democracydevelopers.raireservice.service.RaireServiceException.RaireErrorCode;
+import java.beans.ConstructorProperties;
+import java.time.Instant;
+
+/**
+ * The state of an asynchronous assertion generation job, returned when the job is submitted and
+ * whenever its status is requested.
+ * @param jobId        The job's identifier, for requesting its status.
+ * @param contestName  The name of the contest.
+ * @param status       Whether the job is queued, running, succeeded or failed.
+ * @param phase        The part of assertion generation the job has reached.
+ * @param submitted    When the job was submitted.
+ * @param finished     When the job ended, or null if it has not.
+ * @param result       For a job that succeeded, the response the generate-assertions endpoint
+ *                     would have returned; otherwise null.
+ * @param errorCode    For a job that failed, the error code the generate-assertions endpoint would
+ *                     have returned in its headers; otherwise null.
+ * @param errorMessage For a job that failed, the error message; otherwise null.
+ * @param predictedSeconds The predicted time the job will take to run, in seconds.
+ * @param queuePosition For a queued job, its position in the queue (1 for the next to run);
+ *                      otherwise null.
+ * @param predictedStart For a queued job, when it is predicted to start running; otherwise null.
+ */
+public record GenerationJobResponse(String jobId, String contestName, Status status, Phase phase,
+    Instant submitted, Instant finished, GenerateAssertionsResponse result,
+    RaireErrorCode errorCode, String errorMessage, double predictedSeconds,
+    Integer queuePosition, Instant predictedStart) {
+
+  /**
+   * All args constructor, for deserialization.
+   */
+  @ConstructorProperties({"jobId", "contestName", "status", "phase", "submitted", "finished",
+      "result", "errorCode", "errorMessage", "predictedSeconds", "queuePosition",
+      "predictedStart"})
+  public GenerationJobResponse {
+  }
+}
@@ -0,0 +1,108 @@
+/*
+Copyright 2024 Democracy Developers
+
+The Raire Service is designed to connect colorado-rla and its associated database to
+the raire assertion generation engine (https://github.com/DemocracyDevelopers/raire-java).
+
+This file is part of raire-service.
+
+raire-service is free software: you can redistribute it and/or modify it under the terms
+of the GNU Affero General Public License as published by the Free Software Foundation, either
+version 3 of the License, or (at your option) any later version.
+
+raire-service is distributed in the hope that it will be useful, but WITHOUT ANY WARRANTY;
+without even the implied warranty of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.
+See the GNU Affero General Public License for more details.
+
+You should have received a copy of the GNU Affero General Public License along with
+raire-service. If not, see <https://www.gnu.org/licenses/>.
+*/
+
+package au.org.democracydevelopers.raireservice.service;
+
+import au.org.democracydevelopers.raireservice.service.RaireServiceException.RaireErrorCode;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * A flag by which a request to cancel one run of assertion generation is passed to the thread
+ * doing the work. Cancellation is cooperative: the work checks the flag between phases, and while
+ * waiting for raire-java to solve. Work that blocks, such as waiting for admission, can register
+ * an action to wake it on cancellation (see onCancel). Once cancelled, a token stays cancelled.
+ */
+public class CancellationToken {
+
+  /**
+   * Why the work was cancelled, or null if it has not been.
+   */
+  private volatile String reason;
+
+  /**
+   * Actions to run when the work is cancelled.
+   */
+  private final List<Runnable> onCancel = new ArrayList<>();
+
+  /**
+   * Cancel the work, running any registered actions. Only the first reason given is kept.
+   * @param reason why the work was cancelled, for reporting.
+   * @return true if this call cancelled the work; false if it was already cancelled.
+   */
+  public synchronized boolean cancel(String reason) {
+    if (this.reason != null) {
+      return false;
+    }
+    this.reason = reason;
+    onCancel.forEach(Runnable::run);
+    onCancel.clear();
+    return true;
+  }
+
+  /**
+   * Register an action to run when the work is cancelled, such as interrupting a blocked thread.
+   * The action is run at once if the work has already been cancelled. It must be quick, as it
+   * runs on the cancelling thread.
+   * @param action the action.
+   */
+  public synchronized void onCancel(Runnable action) {
+    if (reason != null) {
+      action.run();
+    } else {
+      onCancel.add(action);
+    }
+  }
+
+  /**
+   * Remove a registered action. Once this returns, the action will not be run.
+   * @param action an action passed to onCancel.
+   */
+  public synchronized void removeOnCancel(Runnable action) {
+    onCancel.remove(action);
+  }
+
+  /**
+   * @return true if the work has been cancelled.
+   */
+  public boolean isCancelled() {
+    return reason != null;
+  }
+
+  /**
+   * Check for cancellation.
+   * @param contestName the contest for which assertions are being generated, for reporting.
+   * @throws RaireServiceException with error code CANCELLED if the work has been cancelled.
+   */
+  public void throwIfCancelled(String contestName) throws RaireServiceException {
+    if (reason != null) {
+      throw cancelled(contestName);
+    }
+  }
+
+  /**
+   * @param contestName the contest for which assertions were being generated.
+   * @return an exception, with error code CANCELLED, reporting the cancellation.
+   */
+  public RaireServiceException cancelled(String contestName) {
+    return new RaireServiceException(String.format("Assertion generation for contest %s was " +
+        "cancelled: %s.", contestName, reason), RaireErrorCode.CANCELLED);
+  }
+}
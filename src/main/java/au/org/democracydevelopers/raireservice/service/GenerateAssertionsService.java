@@ -21,25 +21,38 @@ raire-service. If not, see <https://www.gnu.org/licenses/>.
 package au.org.democracydevelopers.raireservice.service;
 
 import au.org.democracydevelopers.raire.RaireProblem;
+import au.org.democracydevelopers.raire.RaireSolution;
 import au.org.democracydevelopers.raire.RaireSolution.RaireResultOrError;
 import au.org.democracydevelopers.raire.audittype.BallotComparisonOneOnDilutedMargin;
 import au.org.democracydevelopers.raire.pruning.TrimAlgorithm;
 import au.org.democracydevelopers.raire.util.VoteConsolidator;
 import au.org.democracydevelopers.raireservice.persistence.repository.AssertionRepository;
-import au.org.democracydevelopers.raireservice.persistence.repository.CVRContestInfoRepository;
 import au.org.democracydevelopers.raireservice.persistence.repository.ContestRepository;
 import au.org.democracydevelopers.raireservice.persistence.repository.GenerateAssertionsSummaryRepository;
 import au.org.democracydevelopers.raireservice.persistence.entity.GenerateAssertionsSummary;
 import au.org.democracydevelopers.raireservice.request.ContestRequest;
 import au.org.democracydevelopers.raireservice.request.GenerateAssertionsRequest;
 import au.org.democracydevelopers.raireservice.service.RaireServiceException.RaireErrorCode;
+import au.org.democracydevelopers.raireservice.service.VoteIngestionService.IngestedVotes;
+import jakarta.annotation.PreDestroy;
 import jakarta.transaction.Transactional;
 import java.util.HashMap;
 import java.util.List;
 import java.util.Map;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.Consumer;
 
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.annotation.Value;
 import org.springframework.dao.DataAccessException;
 import org.springframework.stereotype.Service;
 
@@ -54,27 +67,96 @@ public class GenerateAssertionsService {
 
   private final static Logger logger = LoggerFactory.getLogger(GenerateAssertionsService.class);
 
-  private final CVRContestInfoRepository cvrContestInfoRepository;
-
   private final ContestRepository contestRepository;
 
   private final AssertionRepository assertionRepository;
 
   private final GenerateAssertionsSummaryRepository summaryRepository;
 
+  private final VoteIngestionService voteIngestionService;
+
+  private final VoteSnapshotService voteSnapshotService;
+
+  private final InteractiveActivity interactiveActivity;
+
+  private final GenerationCancellations generationCancellations;
+
+  private final GenerationCostModel generationCostModel;
+
+  private final SolveAdmission solveAdmission;
+
+  /**
+   * How often, in milliseconds, a request waiting for raire-java checks whether it has been
+   * cancelled.
+   */
+  private static final long CANCELLATION_POLL_MILLIS = 100;
+
+  /**
+   * The threads on which raire-java solves, so that the requesting thread can stop waiting for a
+   * solve that has been cancelled. When admission is controlled, there are as many threads as
+   * admission permits, and each solve holds its request's permit until it ends, so a solve never
+   * waits for a thread, and abandoned solves count against the limit for as long as they run.
+   */
+  private final ExecutorService solverPool;
+
+  /**
+   * Whether the names in a contest's CVRs are checked against the request's candidates before
+   * they are read.
+   */
+  private final boolean checkCandidateNames;
+
   /**
    * All args constructor.
-   * @param cvrContestInfoRepository for extracting CVR vote data from the database.
    * @param contestRepository for extraction county level contest details (IDs) from the database.
    * @param assertionRepository for saving assertions to the database.
+   * @param summaryRepository for saving generate assertions summaries to the database.
+   * @param voteIngestionService for extracting and consolidating CVR vote data from the database.
+   * @param voteSnapshotService for reusing consolidated vote data from earlier requests.
+   * @param interactiveActivity for telling background work that a request is in progress.
+   * @param generationCancellations for cancelling generation in progress by contest.
+   * @param generationCostModel for recording solve times, to predict those of later requests.
+   * @param solveAdmission for admitting requests made without a permit, and sizing the pool of
+   *                       solver threads to the number of permits.
+   * @param checkCandidateNames whether the names in a contest's CVRs are checked against the
+   *                            request's candidates before they are read
+   *                            (raire.ingestion.check-candidate-names), true by default. The
+   *                            check is made only when CVRs are to be read, not when the votes
+   *                            are taken from the ranking file cache or up to date snapshots.
    */
-  public GenerateAssertionsService(CVRContestInfoRepository cvrContestInfoRepository,
-      ContestRepository contestRepository, AssertionRepository assertionRepository,
-      GenerateAssertionsSummaryRepository summaryRepository) {
-    this.cvrContestInfoRepository = cvrContestInfoRepository;
+  public GenerateAssertionsService(ContestRepository contestRepository,
+      AssertionRepository assertionRepository, GenerateAssertionsSummaryRepository summaryRepository,
+      VoteIngestionService voteIngestionService, VoteSnapshotService voteSnapshotService,
+      InteractiveActivity interactiveActivity, GenerationCancellations generationCancellations,
+      GenerationCostModel generationCostModel, SolveAdmission solveAdmission,
+      @Value("${raire.ingestion.check-candidate-names:true}") boolean checkCandidateNames) {
     this.contestRepository = contestRepository;
     this.assertionRepository = assertionRepository;
     this.summaryRepository = summaryRepository;
+    this.voteIngestionService = voteIngestionService;
+    this.voteSnapshotService = voteSnapshotService;
+    this.interactiveActivity = interactiveActivity;
+    this.generationCancellations = generationCancellations;
+    this.generationCostModel = generationCostModel;
+    this.solveAdmission = solveAdmission;
+    this.checkCandidateNames = checkCandidateNames;
+
+    final AtomicInteger threadCount = new AtomicInteger();
+    final ThreadFactory solverThreads = r -> {
+      final Thread t = new Thread(r, "raire-solver-" + threadCount.incrementAndGet());
+      t.setDaemon(true);
+      return t;
+    };
+    this.solverPool = solveAdmission.isEnabled()
+        ? Executors.newFixedThreadPool(solveAdmission.getMaxConcurrent(), solverThreads)
+        : Executors.newCachedThreadPool(solverThreads);
+  }
+
+  /**
+   * Stop the solver threads when the application shuts down.
+   */
+  @PreDestroy
+  public void shutdown() {
+    solverPool.shutdownNow();
   }
 
   /**
@@ -82,17 +164,52 @@ public class GenerateAssertionsService {
    * data for that contest, consolidates it into raire-java Votes, and accesses the raire-java
    * API to form assertions. A RaireResultOrError is returned containing either the successfully
    * generated assertions or error information detailing reasons why they were not generated.
+   * The request is admitted as an interactive request (see SolveAdmission), so that it counts
+   * against the limit on concurrent generation like any other.
    * @param request Assertions generation request specifying the contest name and candidates.
    * @return A RaireResultOrError containing either the generated assertions or error details
    * indicating why assertion generation was not successful.
    * @throws RaireServiceException if any vote data for a contest was found to be invalid (i.e.,
    * it referred to candidates that were not in the expected list) or an error arose in database
    * access.
+   * @throws ServiceBusyException if too many requests are generating or waiting to accept this
+   * one.
    */
   public RaireResultOrError generateAssertions(GenerateAssertionsRequest request)
       throws RaireServiceException {
+    final CancellationToken token = new CancellationToken();
+    try (SolveAdmission.Permit permit = solveAdmission.admit(request.contestName, token)) {
+      return generateAssertions(request, phase -> {}, token, permit);
+    }
+  }
+
+  /**
+   * As generateAssertions(request), reporting each phase of the work as it starts (for
+   * asynchronous generation jobs, see GenerationJobService), and stopping if cancelled. The work
+   * can be cancelled through the given token, or for every request for the contest through
+   * GenerationCancellations. Cancellation is checked as each phase starts, and while waiting for
+   * raire-java.
+   * @param request Assertions generation request specifying the contest name and candidates.
+   * @param phases told when checking, ingestion and solving start.
+   * @param token for cancelling the work.
+   * @param permit the request's admission permit from SolveAdmission, which the solve retains
+   *               until raire-java returns, even if the work is cancelled before then. This may
+   *               be Permit.none() only when admission is disabled, as the solver threads are
+   *               limited to the number of permits.
+   * @return A RaireResultOrError containing either the generated assertions or error details
+   * indicating why assertion generation was not successful.
+   * @throws RaireServiceException as for generateAssertions(request), and with error code
+   * CANCELLED if the work was cancelled.
+   */
+  public RaireResultOrError generateAssertions(GenerateAssertionsRequest request,
+      Consumer<GenerationJob.Phase> phases, CancellationToken token, SolveAdmission.Permit permit)
+      throws RaireServiceException {
     final String prefix = "[generateAssertions]";
-    try{
+    try(InteractiveActivity.Scope ignored = interactiveActivity.begin();
+        GenerationCancellations.Registration registration =
+            generationCancellations.register(request.contestName, token)){
+      token.throwIfCancelled(request.contestName);
+      phases.accept(GenerationJob.Phase.CHECKING);
       logger.debug(String.format("%s Preparing to generate assertions for contest %s. Request " +
           "parameters: candidate list (%s); total auditable ballots (%d); and time limit (%f)",
           prefix, request.contestName, request.candidates, request.totalAuditableBallots,
@@ -108,39 +225,38 @@ public class GenerateAssertionsService {
         throw new RaireServiceException(msg, RaireErrorCode.INTERNAL_ERROR);
       }
 
-      // Use raire-java to consolidate the votes, collecting all votes with the same ranking
-      // together and representing that collection as a single ranking with an associated number
-      // denoting how many votes with that ranking exist.
-      VoteConsolidator consolidator = new VoteConsolidator(request.candidates.toArray(String[]::new));
-
-      // First extract all county level contests matching the contest name in the request. For
-      // these contests, extract CVR vote data from the database, and add those votes to the
-      // vote consolidator.
-      logger.debug(String.format("%s (Database access) Collecting all vote rankings for contest " +
-          "%s from CVRs in database.", prefix, request.contestName));
-      final List<String[]> votes = contestRepository.findByName(request.contestName).stream().map(
-          c -> cvrContestInfoRepository.getCVRs(c.getContestID(), c.getCountyID())).
-          flatMap(List::stream).toList();
-
-      if(votes.size() > request.totalAuditableBallots) {
-        final String msg = String.format("%s %d votes present for contest %s but a universe size of "
-            + "%d specified in the assertion generation request. Throwing a RaireServiceException.",
-            prefix, votes.size(), request.contestName, request.totalAuditableBallots);
-        logger.error(msg);
-        throw new RaireServiceException(msg, RaireErrorCode.INVALID_TOTAL_AUDITABLE_BALLOTS);
-      }
-
-      if(votes.isEmpty()) {
-        final String msg = String.format("%s No votes present for contest %s.", prefix,
-            request.contestName);
-        logger.error(msg + " Throwing a RaireServiceException.");
-        throw new RaireServiceException(msg, RaireErrorCode.NO_VOTES_PRESENT);
+      // Count the CVRs for the contest before reading any of them, so that a request with an
+      // inconsistent universe size, or for a contest with no votes, fails without the cost of
+      // ingestion. The counts are also used to size the storage used in ingestion.
+      final Map<Long, Long> countyCounts = voteIngestionService.countBallots(request);
+      checkBallotCount(countyCounts.values().stream().mapToLong(Long::longValue).sum(), request);
+
+      // Collect all CVR vote data for the contest, across all county level contests matching the
+      // contest name in the request. Votes with the same ranking are consolidated together and
+      // represented as a single ranking with an associated number denoting how many votes with
+      // that ranking exist. If the CVRs are unchanged since an earlier request for the same
+      // contest, the votes consolidated then are reused.
+      // If enabled, and CVRs are to be read, first check that every name in them is a candidate,
+      // so that a request with a wrong candidate list fails fast. Otherwise invalid names are
+      // reported once the votes have been collected.
+      token.throwIfCancelled(request.contestName);
+      phases.accept(GenerationJob.Phase.INGESTING);
+      final IngestedVotes ingested = voteSnapshotService.ingestVotes(request, countyCounts,
+          () -> {
+            if(checkCandidateNames) {
+              checkCandidateNames(request);
+            }
+          });
+
+      // Check the count again, as CVRs may have been added or removed since they were counted.
+      checkBallotCount(ingested.ballotCount(), request);
+
+      // Report any ranking containing an unexpected candidate name only once the ballot count has
+      // been checked, so that count errors take precedence.
+      if(ingested.invalidCandidateName() != null) {
+        throw ingested.invalidCandidateName();
       }
 
-      logger.debug(String.format("%s Adding all extracted rankings to a consolidator to identify " +
-          "unique rankings and their number.", prefix));
-      votes.forEach(consolidator::addVoteNames);
-
       logger.debug(String.format("%s Votes consolidated.", prefix));
 
       // If the extracted votes are valid, get raire-java to generate assertions.
@@ -156,14 +272,19 @@ public class GenerateAssertionsService {
           prefix, request.candidates, request.contestName, request.candidates.size(),
               request.totalAuditableBallots, request.timeLimitSeconds));
       RaireProblem raireProblem = new RaireProblem(
-          metadata, consolidator.getVotes(), request.candidates.size(), null,
+          metadata, ingested.votes(), request.candidates.size(), null,
           new BallotComparisonOneOnDilutedMargin(request.totalAuditableBallots),
           TrimAlgorithm.MinimizeAssertions, null, request.timeLimitSeconds
       );
 
       // Tell raire-java to generate assertions, returning a RaireSolutionOrError.
       logger.debug(String.format("%s Calling raire-java.", prefix));
-      RaireResultOrError result = raireProblem.solve().solution;
+      token.throwIfCancelled(request.contestName);
+      phases.accept(GenerationJob.Phase.SOLVING);
+      final long solveStart = System.nanoTime();
+      RaireResultOrError result = solve(raireProblem, token, request.contestName, permit);
+      generationCostModel.recordSolve(request.contestName,
+          (System.nanoTime() - solveStart) / 1e9);
 
       // Log fact that raire-java returned; more details about result will be logged in the caller.
       logger.debug(String.format("%s raire-java returned result; passing to controller.", prefix));
@@ -195,6 +316,121 @@ public class GenerateAssertionsService {
     }
   }
 
+  /**
+   * Have raire-java solve a problem on a solver thread, waiting for the solution unless the work is
+   * cancelled. raire-java does not respond to interruption, so a cancelled solve is abandoned,
+   * and its thread continues until the solve ends (at the latest, at the problem's time limit);
+   * but the request it was serving ends at once. The solver thread retains the request's
+   * admission permit until the solve ends, so that the permit is not released to another request
+   * while the abandoned solve is still using a processor.
+   * @param raireProblem the problem to solve.
+   * @param token for cancelling the work.
+   * @param contestName the contest for which assertions are being generated, for reporting.
+   * @param permit the request's admission permit.
+   * @return the solution.
+   * @throws RaireServiceException with error code CANCELLED if the work was cancelled, or if the
+   * waiting thread was interrupted.
+   */
+  private RaireResultOrError solve(RaireProblem raireProblem, CancellationToken token,
+      String contestName, SolveAdmission.Permit permit) throws RaireServiceException {
+    final String prefix = "[solve]";
+    final SolveAdmission.Permit solverPermit = permit.retain();
+    final Future<RaireSolution> solution;
+    try {
+      solution = solverPool.submit(() -> {
+        try (SolveAdmission.Permit ignored = solverPermit) {
+          return raireProblem.solve();
+        }
+      });
+    } catch (RejectedExecutionException e) {
+      solverPermit.close();
+      throw e;
+    }
+    // The solve is never cancelled through its future, as a solve cancelled before it started
+    // would never release its permit, and raire-java does not respond to interruption anyway.
+    try {
+      while (true) {
+        try {
+          return solution.get(CANCELLATION_POLL_MILLIS, TimeUnit.MILLISECONDS).solution;
+        } catch (TimeoutException e) {
+          if (token.isCancelled()) {
+            logger.debug(String.format("%s Abandoned the solve for contest %s.", prefix,
+                contestName));
+            throw token.cancelled(contestName);
+          }
+        }
+      }
+    } catch (InterruptedException e) {
+      Thread.currentThread().interrupt();
+      token.cancel("the request was interrupted");
+      throw token.cancelled(contestName);
+    } catch (ExecutionException e) {
+      if (e.getCause() instanceof RuntimeException re) {
+        throw re;
+      }
+      throw new RaireServiceException(String.format("%s raire-java failed for contest %s. %s",
+          prefix, contestName, e.getCause()), RaireErrorCode.INTERNAL_ERROR);
+    }
+  }
+
+  /**
+   * Check that every name in the CVRs for the contest is in the request's candidate list, using
+   * the distinct names computed by the database. If the check itself fails (for example because a
+   * choices entry is not valid JSON), it is skipped, and the problem is left to be reported by
+   * ingestion, as it would be without the check.
+   * @param request Assertions generation request specifying the contest name and candidates.
+   * @throws RaireServiceException with error code WRONG_CANDIDATE_NAMES, listing the names that
+   * are not candidates, if there are any.
+   */
+  private void checkCandidateNames(GenerateAssertionsRequest request)
+      throws RaireServiceException {
+    final String prefix = "[checkCandidateNames]";
+    final List<String> nonCandidates;
+    try {
+      nonCandidates = voteIngestionService.findNonCandidateNames(request);
+    } catch (DataAccessException ex) {
+      logger.warn(String.format("%s Could not check the candidate names in the CVRs for contest " +
+          "%s; leaving them to be checked on ingestion. %s", prefix, request.contestName,
+          ex.getMessage()));
+      return;
+    }
+
+    if(!nonCandidates.isEmpty()) {
+      final String msg = String.format("%s Invalid vote sent to RAIRE for contest %s. Each of " +
+          "the names %s in its CVRs was not on the list of candidates: %s.", prefix,
+          request.contestName, nonCandidates, request.candidates);
+      logger.error(msg);
+      throw new RaireServiceException(msg, RaireErrorCode.WRONG_CANDIDATE_NAMES);
+    }
+  }
+
+  /**
+   * Check the number of ballots (CVRs) found for the contest against the request.
+   * @param ballotCount the number of ballots found.
+   * @param request Assertions generation request specifying the contest name and universe size.
+   * @throws RaireServiceException with error code INVALID_TOTAL_AUDITABLE_BALLOTS if there are
+   * more ballots than the universe size given in the request, or NO_VOTES_PRESENT if there are no
+   * ballots.
+   */
+  private void checkBallotCount(long ballotCount, GenerateAssertionsRequest request)
+      throws RaireServiceException {
+    final String prefix = "[checkBallotCount]";
+    if(ballotCount > request.totalAuditableBallots) {
+      final String msg = String.format("%s %d votes present for contest %s but a universe size of "
+          + "%d specified in the assertion generation request. Throwing a RaireServiceException.",
+          prefix, ballotCount, request.contestName, request.totalAuditableBallots);
+      logger.error(msg);
+      throw new RaireServiceException(msg, RaireErrorCode.INVALID_TOTAL_AUDITABLE_BALLOTS);
+    }
+
+    if(ballotCount == 0) {
+      final String msg = String.format("%s No votes present for contest %s.", prefix,
+          request.contestName);
+      logger.error(msg + " Throwing a RaireServiceException.");
+      throw new RaireServiceException(msg, RaireErrorCode.NO_VOTES_PRESENT);
+    }
+  }
+
   /**
    * Given a raire result or error, persist it.
    * If the result contains successfully generated assertions stored within a RaireResult, persist
@@ -270,4 +506,26 @@ public class GenerateAssertionsService {
 
     summaryRepository.save(summary);
   }
+
+  /**
+   * Record that assertion generation for a contest was cancelled, replacing its summary with one
+   * reporting the CANCELLED error. As when generation fails, previously-stored assertions are
+   * deleted, so that they cannot be mistaken for the result of the cancelled request.
+   * @param request Assertions generation request containing contest information.
+   * @param message the cancellation message.
+   * @throws RaireServiceException if the summary cannot be made, which causes the transaction to
+   * roll back.
+   */
+  @Transactional(rollbackOn = {RuntimeException.class, DataAccessException.class, RaireServiceException.class})
+  public void persistCancellation(final ContestRequest request, final String message)
+      throws RaireServiceException {
+    final String prefix = "[persistCancellation]";
+    logger.debug(String.format("%s Assertion generation was cancelled for contest %s. " +
+        "Replacing generate assertions summary and deleting any prior assertions.", prefix,
+        request.contestName));
+    summaryRepository.deleteByContestName(request.contestName);
+    assertionRepository.deleteByContestName(request.contestName);
+    summaryRepository.save(new GenerateAssertionsSummary(request.contestName,
+        RaireErrorCode.CANCELLED.toString(), message));
+  }
 }
@@ -0,0 +1,88 @@
+/*
+Copyright 2024 Democracy Developers
+
+The Raire Service is designed to connect colorado-rla and its associated database to
+the raire assertion generation engine (https://github.com/DemocracyDevelopers/raire-java).
+
+This file is part of raire-service.
+
+raire-service is free software: you can redistribute it and/or modify it under the terms
+of the GNU Affero General Public License as published by the Free Software Foundation, either
+version 3 of the License, or (at your option) any later version.
+
+raire-service is distributed in the hope that it will be useful, but WITHOUT ANY WARRANTY;
+without even the implied warranty of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.
+See the GNU Affero General Public License for more details.
+
+You should have received a copy of the GNU Affero General Public License along with
+raire-service. If not, see <https://www.gnu.org/licenses/>.
+*/
+
+package au.org.democracydevelopers.raireservice.service;
+
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.stereotype.Component;
+
+/**
+ * The cancellation tokens of assertion generation in progress, by contest name, so that every
+ * run of generation for a contest can be cancelled at once (for example, when an operator sees
+ * that the wrong candidate list was sent).
+ */
+@Component
+public class GenerationCancellations {
+
+  private final static Logger logger = LoggerFactory.getLogger(GenerationCancellations.class);
+
+  /**
+   * The tokens of generation in progress, by contest name.
+   */
+  private final Map<String, Set<CancellationToken>> tokens = new ConcurrentHashMap<>();
+
+  /**
+   * The period during which a run of generation can be cancelled by contest, ended when closed.
+   */
+  @FunctionalInterface
+  public interface Registration extends AutoCloseable {
+
+    @Override
+    void close();
+  }
+
+  /**
+   * Make a run of generation cancellable by contest name.
+   * @param contestName the contest for which assertions are being generated.
+   * @param token the run's cancellation token.
+   * @return a registration to be closed when the run is complete.
+   */
+  public Registration register(String contestName, CancellationToken token) {
+    tokens.computeIfAbsent(contestName, name -> ConcurrentHashMap.newKeySet()).add(token);
+    return () -> tokens.computeIfPresent(contestName, (name, set) -> {
+      set.remove(token);
+      return set.isEmpty() ? null : set;
+    });
+  }
+
+  /**
+   * Cancel every run of generation in progress for a contest.
+   * @param contestName the name of the contest.
+   * @param reason why generation is being cancelled, for reporting.
+   * @return the number of runs cancelled by this call, not counting any that had already been
+   * cancelled (such as generation jobs, cancelled through GenerationJobService).
+   */
+  public int cancel(String contestName, String reason) {
+    final String prefix = "[cancel]";
+    int cancelled = 0;
+    for (CancellationToken token : tokens.getOrDefault(contestName, Set.of())) {
+      if (token.cancel(reason)) {
+        cancelled++;
+      }
+    }
+    logger.debug(String.format("%s Cancelled %d runs of assertion generation for contest %s: %s.",
+        prefix, cancelled, contestName, reason));
+    return cancelled;
+  }
+}
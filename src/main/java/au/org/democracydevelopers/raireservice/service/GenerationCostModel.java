@@ -0,0 +1,119 @@
+/*
+Copyright 2024 Democracy Developers
+
+The Raire Service is designed to connect colorado-rla and its associated database to
+the raire assertion generation engine (https://github.com/DemocracyDevelopers/raire-java).
+
+This file is part of raire-service.
+
+raire-service is free software: you can redistribute it and/or modify it under the terms
+of the GNU Affero General Public License as published by the Free Software Foundation, either
+version 3 of the License, or (at your option) any later version.
+
+raire-service is distributed in the hope that it will be useful, but WITHOUT ANY WARRANTY;
+without even the implied warranty of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.
+See the GNU Affero General Public License for more details.
+
+You should have received a copy of the GNU Affero General Public License along with
+raire-service. If not, see <https://www.gnu.org/licenses/>.
+*/
+
+package au.org.democracydevelopers.raireservice.service;
+
+import au.org.democracydevelopers.raireservice.request.GenerateAssertionsRequest;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.dao.DataAccessException;
+import org.springframework.stereotype.Component;
+
+/**
+ * Predicts how long assertion generation will take for a contest, for ordering the queue of
+ * generation jobs (see GenerationJobService). The prediction is the sum of
+ * - the time to read and consolidate the contest's CVRs, in proportion to its number of ballots
+ *   (a cheap count, answered from an index), and
+ * - the time raire-java takes to solve: the time of the most recent solve for the contest, if
+ *   there has been one since the service started, or otherwise a rough estimate that grows
+ *   exponentially with the number of candidates, as raire-java's search does.
+ * Only the solve part is capped, at the request's time limit, because raire-java gives up when it
+ * is reached; the ingestion part is not bounded by the time limit.
+ * Solve times are held in memory only, so they are lost when the service restarts and predictions
+ * fall back to the estimate until each contest has been solved again. (The
+ * generate_assertions_summary table, whose schema is shared with colorado-rla, does not record
+ * them.)
+ */
+@Component
+public class GenerationCostModel {
+
+  private final static Logger logger = LoggerFactory.getLogger(GenerationCostModel.class);
+
+  /**
+   * The estimated solve time for a contest with no candidates, in seconds, doubled for each
+   * candidate.
+   */
+  private static final double BASE_SOLVE_SECONDS = 1e-4;
+
+  private final VoteIngestionService voteIngestionService;
+
+  /**
+   * The estimated time to ingest each ballot, in seconds.
+   */
+  private final double secondsPerBallot;
+
+  /**
+   * The time taken by the most recent solve for each contest, in seconds, by contest name. Not
+   * persisted: it is empty when the service starts.
+   */
+  private final Map<String, Double> solveSeconds = new ConcurrentHashMap<>();
+
+  /**
+   * All args constructor.
+   * @param voteIngestionService for counting ballots.
+   * @param secondsPerBallot the estimated time to ingest each ballot, in seconds
+   *                         (raire.jobs.seconds-per-ballot), 10 microseconds by default.
+   */
+  public GenerationCostModel(VoteIngestionService voteIngestionService,
+      @Value("${raire.jobs.seconds-per-ballot:0.00001}") double secondsPerBallot) {
+    this.voteIngestionService = voteIngestionService;
+    this.secondsPerBallot = secondsPerBallot;
+  }
+
+  /**
+   * Record the time taken by raire-java to solve a contest, for future predictions.
+   * @param contestName the name of the contest.
+   * @param seconds the time taken, in seconds.
+   */
+  public void recordSolve(String contestName, double seconds) {
+    solveSeconds.put(contestName, seconds);
+  }
+
+  /**
+   * Predict how long assertion generation will take for a request. Contests whose ballots cannot
+   * be counted are predicted to take no time (they are likely to fail quickly).
+   * @param request an assertion generation request.
+   * @return the predicted time, in seconds.
+   */
+  public double predictSeconds(GenerateAssertionsRequest request) {
+    final String prefix = "[predictSeconds]";
+    final long ballots;
+    try {
+      ballots = voteIngestionService.countBallots(request).values().stream()
+          .mapToLong(Long::longValue).sum();
+    } catch (DataAccessException e) {
+      logger.warn(String.format("%s Could not count the ballots for contest %s. %s", prefix,
+          request.contestName, e.getMessage()));
+      return 0;
+    }
+
+    final Double previous = solveSeconds.get(request.contestName);
+    final double solve = Math.min(request.timeLimitSeconds, previous != null ? previous
+        : BASE_SOLVE_SECONDS * Math.pow(2, request.candidates.size()));
+    final double predicted = ballots * secondsPerBallot + solve;
+    logger.debug(String.format("%s Predicted %.3fs for contest %s: %d ballots, %d candidates, " +
+        "%s.", prefix, predicted, request.contestName, ballots, request.candidates.size(),
+        previous != null ? String.format("previous solve %.3fs", previous) : "no previous solve"));
+    return predicted;
+  }
+}
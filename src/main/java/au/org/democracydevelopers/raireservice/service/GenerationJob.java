@@ -0,0 +1,302 @@
+/*
+Copyright 2024 Democracy Developers
+
+The Raire Service is designed to connect colorado-rla and its associated database to
+the raire assertion generation engine (https://github.com/DemocracyDevelopers/raire-java).
+
+This file is part of raire-service.
+
+raire-service is free software: you can redistribute it and/or modify it under the terms
+of the GNU Affero General Public License as published by the Free Software Foundation, either
+version 3 of the License, or (at your option) any later version.
+
+raire-service is distributed in the hope that it will be useful, but WITHOUT ANY WARRANTY;
+without even the implied warranty of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.
+See the GNU Affero General Public License for more details.
+
+You should have received a copy of the GNU Affero General Public License along with
+raire-service. If not, see <https://www.gnu.org/licenses/>.
+*/
+
+package au.org.democracydevelopers.raireservice.service;
+
+import au.org.democracydevelopers.raireservice.request.GenerateAssertionsRequest;
+import au.org.democracydevelopers.raireservice.response.GenerateAssertionsResponse;
+import au.org.democracydevelopers.raireservice.response.GenerationJobResponse;
+import au.org.democracydevelopers.raireservice.service.RaireServiceException.RaireErrorCode;
+import java.time.Instant;
+import java.util.UUID;
+
+/**
+ * An assertion generation request submitted for asynchronous processing by GenerationJobService.
+ * The job's state is updated by the thread running it and read by the threads serving status
+ * requests, so every access is synchronized.
+ */
+public class GenerationJob {
+
+  /**
+   * The overall state of a job.
+   */
+  public enum Status {
+    /**
+     * Waiting for a worker thread.
+     */
+    QUEUED,
+
+    /**
+     * Being run.
+     */
+    RUNNING,
+
+    /**
+     * Complete, with a GenerateAssertionsResponse. Note that this does not mean that assertions
+     * were generated: the response may report a raire-java error, just as the synchronous
+     * endpoint does.
+     */
+    SUCCEEDED,
+
+    /**
+     * Ended with an error, reported with its RaireErrorCode, as the synchronous endpoint would
+     * report it in the response headers.
+     */
+    FAILED,
+
+    /**
+     * Cancelled before it was complete, reported with the RaireErrorCode CANCELLED.
+     */
+    CANCELLED
+  }
+
+  /**
+   * The part of the assertion generation pipeline a job has reached.
+   */
+  public enum Phase {
+    QUEUED,
+
+    /**
+     * Waiting for admission, while the service is generating as many assertions as it can (see
+     * SolveAdmission).
+     */
+    WAITING,
+
+    /**
+     * Checking the contest, the ballot count and the candidate names.
+     */
+    CHECKING,
+
+    /**
+     * Reading and consolidating CVRs.
+     */
+    INGESTING,
+
+    /**
+     * Waiting for raire-java to generate assertions.
+     */
+    SOLVING,
+
+    /**
+     * Saving the assertions or error to the database.
+     */
+    PERSISTING,
+
+    DONE
+  }
+
+  /**
+   * The job's unique identifier.
+   */
+  private final String id;
+
+  /**
+   * The request being processed.
+   */
+  private final GenerateAssertionsRequest request;
+
+  /**
+   * When the job was submitted.
+   */
+  private final Instant submitted;
+
+  /**
+   * The predicted time the job will take to run, in seconds (see GenerationCostModel).
+   */
+  private final double predictedSeconds;
+
+  /**
+   * For cancelling the job.
+   */
+  private final CancellationToken token = new CancellationToken();
+
+  private Status status = Status.QUEUED;
+
+  private Phase phase = Phase.QUEUED;
+
+  /**
+   * When the job started running, or null if it has not.
+   */
+  private Instant started;
+
+  /**
+   * When the job ended, or null if it has not.
+   */
+  private Instant finished;
+
+  /**
+   * The result of a job that succeeded.
+   */
+  private GenerateAssertionsResponse result;
+
+  /**
+   * The error code and message of a job that failed.
+   */
+  private RaireErrorCode errorCode;
+  private String errorMessage;
+
+  /**
+   * Construct a queued job, with a new random identifier.
+   * @param request the (validated) request to process.
+   * @param predictedSeconds the predicted time the job will take to run, in seconds.
+   */
+  public GenerationJob(GenerateAssertionsRequest request, double predictedSeconds) {
+    this.id = UUID.randomUUID().toString();
+    this.request = request;
+    this.submitted = Instant.now();
+    this.predictedSeconds = predictedSeconds;
+  }
+
+  /**
+   * @return the job's unique identifier.
+   */
+  public String getId() {
+    return id;
+  }
+
+  /**
+   * @return the request being processed.
+   */
+  public GenerateAssertionsRequest getRequest() {
+    return request;
+  }
+
+  /**
+   * @return when the job was submitted.
+   */
+  public Instant getSubmitted() {
+    return submitted;
+  }
+
+  /**
+   * @return the predicted time the job will take to run, in seconds.
+   */
+  public double getPredictedSeconds() {
+    return predictedSeconds;
+  }
+
+  /**
+   * @return when the job started running, or null if it has not.
+   */
+  public synchronized Instant getStarted() {
+    return started;
+  }
+
+  /**
+   * @return the token by which the job is cancelled.
+   */
+  public CancellationToken getToken() {
+    return token;
+  }
+
+  /**
+   * Cancel the job. A queued job ends as soon as a worker thread takes it; a running job ends
+   * when it next checks for cancellation. A job that has ended is not affected.
+   * @param reason why the job is being cancelled, for reporting.
+   * @return true if this call cancelled the job; false if it was already cancelled.
+   */
+  public boolean cancel(String reason) {
+    return token.cancel(reason);
+  }
+
+  /**
+   * @return the job's status.
+   */
+  public synchronized Status getStatus() {
+    return status;
+  }
+
+  /**
+   * @return the phase the job has reached.
+   */
+  public synchronized Phase getPhase() {
+    return phase;
+  }
+
+  /**
+   * @return true if the job has not yet ended.
+   */
+  public synchronized boolean isUnfinished() {
+    return finished == null;
+  }
+
+  /**
+   * Record that a worker thread has started the job.
+   */
+  public synchronized void start() {
+    status = Status.RUNNING;
+    started = Instant.now();
+  }
+
+  /**
+   * Record the phase the job has reached.
+   * @param phase the phase now starting.
+   */
+  public synchronized void setPhase(Phase phase) {
+    this.phase = phase;
+  }
+
+  /**
+   * Record the successful completion of the job.
+   * @param result the response the synchronous endpoint would have returned.
+   */
+  public synchronized void succeed(GenerateAssertionsResponse result) {
+    this.result = result;
+    end(Status.SUCCEEDED);
+  }
+
+  /**
+   * Record the failure of the job.
+   * @param errorCode the error code, as the synchronous endpoint would have reported it.
+   * @param errorMessage the error message.
+   */
+  public synchronized void fail(RaireErrorCode errorCode, String errorMessage) {
+    this.errorCode = errorCode;
+    this.errorMessage = errorMessage;
+    end(errorCode == RaireErrorCode.CANCELLED ? Status.CANCELLED : Status.FAILED);
+  }
+
+  /**
+   * @param cutoff the earliest end time to be retained.
+   * @return true if the job ended before the cutoff.
+   */
+  public synchronized boolean endedBefore(Instant cutoff) {
+    return finished != null && finished.isBefore(cutoff);
+  }
+
+  /**
+   * @param queuePosition the job's position in the queue (1 for the next to run), or null if it
+   *                      is not queued.
+   * @param predictedStart when the job is predicted to start running, or null if it is not
+   *                       queued.
+   * @return the job's current state, for return to the client.
+   */
+  public synchronized GenerationJobResponse toResponse(Integer queuePosition,
+      Instant predictedStart) {
+    return new GenerationJobResponse(id, request.contestName, status, phase, submitted, finished,
+        result, errorCode, errorMessage, predictedSeconds, queuePosition, predictedStart);
+  }
+
+  private void end(Status status) {
+    this.status = status;
+    this.phase = Phase.DONE;
+    this.finished = Instant.now();
+  }
+}
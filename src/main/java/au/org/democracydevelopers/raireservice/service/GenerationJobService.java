@@ -0,0 +1,536 @@
+/*
+Copyright 2024 Democracy Developers
+
+The Raire Service is designed to connect colorado-rla and its associated database to
+the raire assertion generation engine (https://github.com/DemocracyDevelopers/raire-java).
+
+This file is part of raire-service.
+
+raire-service is free software: you can redistribute it and/or modify it under the terms
+of the GNU Affero General Public License as published by the Free Software Foundation, either
+version 3 of the License, or (at your option) any later version.
+
+raire-service is distributed in the hope that it will be useful, but WITHOUT ANY WARRANTY;
+without even the implied warranty of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.
+See the GNU Affero General Public License for more details.
+
+You should have received a copy of the GNU Affero General Public License along with
+raire-service. If not, see <https://www.gnu.org/licenses/>.
+*/
+
+package au.org.democracydevelopers.raireservice.service;
+
+import au.org.democracydevelopers.raire.RaireSolution.RaireResultOrError;
+import au.org.democracydevelopers.raireservice.request.GenerateAssertionsRequest;
+import au.org.democracydevelopers.raireservice.response.GenerateAssertionsResponse;
+import au.org.democracydevelopers.raireservice.response.GenerationJobResponse;
+import au.org.democracydevelopers.raireservice.service.GenerationJob.Phase;
+import au.org.democracydevelopers.raireservice.service.RaireServiceException.RaireErrorCode;
+import io.micrometer.core.instrument.Gauge;
+import io.micrometer.core.instrument.MeterRegistry;
+import jakarta.annotation.PreDestroy;
+import java.time.Duration;
+import java.time.Instant;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Map;
+import java.util.Optional;
+import java.util.PriorityQueue;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.PriorityBlockingQueue;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.stereotype.Service;
+
+/**
+ * Runs assertion generation requests as asynchronous jobs, so that clients need not hold a
+ * connection open while CVRs are read and raire-java searches for assertions. Each job runs the
+ * same pipeline as the synchronous generate-assertions endpoint (generateAssertions followed by
+ * persistAssertionsOrErrors) on a bounded pool of worker threads, and records the response that
+ * endpoint would have returned. Finished jobs are kept, for clients to collect their results, for
+ * a configurable time.
+ * Queued jobs are run shortest-expected-first, so that small contests are not held up behind a
+ * large one, using the time each job is predicted to take (see GenerationCostModel). So that large
+ * contests cannot be starved by a stream of small ones, jobs age: a job's priority is its
+ * submission time plus its predicted time multiplied by the aging weight, lowest first. A job
+ * predicted to take t seconds therefore cannot be overtaken by any job submitted more than
+ * weight * t seconds after it. A batch of jobs is ordered as one submission: every job in it has
+ * the batch's submission time and the batch's total predicted time in its priority, and within the
+ * batch, jobs run longest-predicted-first, so that the last workers to finish on the batch are not
+ * left with one long contest (the longest processing time rule, which keeps the time until the
+ * whole batch is complete short). Each job's queue position and predicted start time are reported
+ * with its status, and the numbers of queued and running jobs, and the predicted time for the queue
+ * to drain, in the raire.jobs.queued, raire.jobs.running and raire.jobs.drain (seconds) metrics.
+ * Jobs can be cancelled, individually or by contest. Cancellation of a running job is
+ * cooperative; see GenerateAssertionsService.generateAssertions.
+ */
+@Service
+public class GenerationJobService {
+
+  private final static Logger logger = LoggerFactory.getLogger(GenerationJobService.class);
+
+  private final GenerateAssertionsService generateAssertionsService;
+
+  private final GenerationCostModel generationCostModel;
+
+  private final SolveAdmission solveAdmission;
+
+  /**
+   * The worker threads.
+   */
+  private final ThreadPoolExecutor executor;
+
+  /**
+   * The jobs waiting for a worker thread, in priority order.
+   */
+  private final PriorityBlockingQueue<Runnable> queue = new PriorityBlockingQueue<>();
+
+  /**
+   * The number of worker threads.
+   */
+  private final int threads;
+
+  /**
+   * The number of jobs that may wait for a worker thread.
+   */
+  private final int queueCapacity;
+
+  /**
+   * Seconds of waiting per second of predicted time, in a job's priority.
+   */
+  private final double agingWeight;
+
+  /**
+   * The time from which job priorities are measured.
+   */
+  private final Instant epoch = Instant.now();
+
+  /**
+   * Breaks ties between jobs of equal priority, in order of submission.
+   */
+  private final AtomicLong sequence = new AtomicLong();
+
+  /**
+   * Jobs by identifier, including finished jobs that have not yet expired.
+   */
+  private final Map<String, GenerationJob> jobs = new ConcurrentHashMap<>();
+
+  /**
+   * How long finished jobs are kept.
+   */
+  private final Duration retention;
+
+  /**
+   * All args constructor.
+   * @param generateAssertionsService for generating and persisting assertions.
+   * @param generationCostModel for predicting how long jobs will take.
+   * @param solveAdmission for limiting the number of requests generating assertions at once.
+   * @param configuredThreads the number of jobs run at once (raire.jobs.threads), or 0 (the
+   *                          default) for one per available processor, since solving is
+   *                          single-threaded and CPU bound.
+   * @param queueCapacity the number of jobs that may wait for a thread
+   *                      (raire.jobs.queue-capacity), 100 by default. Submissions beyond this are
+   *                      refused.
+   * @param retentionMinutes how long finished jobs are kept (raire.jobs.retention-minutes), 60 by
+   *                         default.
+   * @param agingWeight the seconds of waiting per second of predicted time in a job's priority
+   *                    (raire.jobs.aging-weight), 1 by default. Smaller values favour short jobs
+   *                    more strongly; large values approach first come, first served.
+   * @param meterRegistry for reporting queue metrics.
+   */
+  public GenerationJobService(GenerateAssertionsService generateAssertionsService,
+      GenerationCostModel generationCostModel, SolveAdmission solveAdmission,
+      @Value("${raire.jobs.threads:0}") int configuredThreads,
+      @Value("${raire.jobs.queue-capacity:100}") int queueCapacity,
+      @Value("${raire.jobs.retention-minutes:60}") long retentionMinutes,
+      @Value("${raire.jobs.aging-weight:1}") double agingWeight, MeterRegistry meterRegistry) {
+    final String prefix = "[all args constructor]";
+    this.generateAssertionsService = generateAssertionsService;
+    this.generationCostModel = generationCostModel;
+    this.solveAdmission = solveAdmission;
+    this.retention = Duration.ofMinutes(retentionMinutes);
+    this.queueCapacity = Math.max(1, queueCapacity);
+    this.agingWeight = agingWeight;
+
+    this.threads = configuredThreads > 0 ? configuredThreads
+        : Runtime.getRuntime().availableProcessors();
+    final AtomicInteger threadCount = new AtomicInteger();
+    this.executor = new ThreadPoolExecutor(threads, threads, 0, TimeUnit.MILLISECONDS, queue,
+        r -> {
+          final Thread t = new Thread(r, "generation-job-" + threadCount.incrementAndGet());
+          t.setDaemon(true);
+          return t;
+        });
+    // Start every worker now, so that every job passes through the queue in priority order.
+    executor.prestartAllCoreThreads();
+
+    Gauge.builder("raire.jobs.queued", queue::size)
+        .description("Assertion generation jobs waiting for a worker")
+        .register(meterRegistry);
+    Gauge.builder("raire.jobs.running", executor::getActiveCount)
+        .description("Assertion generation jobs running")
+        .register(meterRegistry);
+    Gauge.builder("raire.jobs.drain", () -> schedule(null).drainSeconds())
+        .description("Predicted time until every queued assertion generation job has finished")
+        .baseUnit("seconds")
+        .register(meterRegistry);
+    logger.debug(String.format("%s Running assertion generation jobs on %d threads, with up to " +
+        "%d queued.", prefix, threads, queueCapacity));
+  }
+
+  /**
+   * Stop the worker threads when the application shuts down. Running jobs are interrupted.
+   */
+  @PreDestroy
+  public void shutdown() {
+    executor.shutdownNow();
+  }
+
+  /**
+   * Queue a job to generate and persist assertions.
+   * @param request an assertion generation request, which must already have been validated.
+   * @return the queued job.
+   * @throws ServiceBusyException if the queue is full.
+   */
+  public GenerationJob submit(GenerateAssertionsRequest request) throws ServiceBusyException {
+    final String prefix = "[submit]";
+    removeExpired();
+
+    final GenerationJob job = new GenerationJob(request,
+        generationCostModel.predictSeconds(request));
+    if (!enqueue(job, job.getSubmitted(), job.getPredictedSeconds())) {
+      throw queueFull(String.format("%s Too many assertion generation jobs are queued to " +
+          "accept one for contest %s.", prefix, request.contestName));
+    }
+
+    logger.debug(String.format("%s Job %s queued for contest %s.", prefix, job.getId(),
+        request.contestName));
+    return job;
+  }
+
+  /**
+   * Queue a batch of jobs, as one submission with the batch's total predicted time, to be run
+   * longest-predicted-first. Each job persists its assertions or error as soon as it is complete.
+   * @param requests assertion generation requests, which must already have been validated.
+   * @return the queued jobs, in the order of the requests.
+   * @throws ServiceBusyException if there is not room in the queue for the whole batch, in which
+   * case none of it is queued.
+   */
+  public List<GenerationJob> submitBatch(List<GenerateAssertionsRequest> requests)
+      throws ServiceBusyException {
+    final String prefix = "[submitBatch]";
+    removeExpired();
+
+    if (requests.size() > queueCapacity - queue.size()) {
+      throw queueFull(String.format("%s Too many assertion generation jobs are queued to " +
+          "accept a batch of %d.", prefix, requests.size()));
+    }
+
+    final List<GenerationJob> batch = new ArrayList<>();
+    for (GenerateAssertionsRequest request : requests) {
+      batch.add(new GenerationJob(request, generationCostModel.predictSeconds(request)));
+    }
+    final Instant submitted = Instant.now();
+    final double batchSeconds = batch.stream().mapToDouble(GenerationJob::getPredictedSeconds)
+        .sum();
+
+    for (GenerationJob job : batch) {
+      logger.debug(String.format("%s Queueing job %s for contest %s, predicted to take %.3fs.",
+          prefix, job.getId(), job.getRequest().contestName, job.getPredictedSeconds()));
+      // Room was checked above, but other jobs may have been submitted since.
+      if (!enqueue(job, submitted, batchSeconds)) {
+        job.fail(RaireErrorCode.SERVICE_BUSY, String.format("%s Too many assertion generation " +
+            "jobs were queued to accept the job for contest %s.", prefix,
+            job.getRequest().contestName));
+        jobs.put(job.getId(), job);
+      }
+    }
+    return batch;
+  }
+
+  /**
+   * The exception refusing a submission because the queue is full, with the predicted time until
+   * the queue has drained as the time after which the submission is worth retrying.
+   * @param message why the submission was refused, including the method's log prefix.
+   * @return the exception, to be thrown.
+   */
+  private ServiceBusyException queueFull(String message) {
+    final long retryAfter = Math.max(1, (long) Math.ceil(schedule(null).drainSeconds()));
+    final String msg = String.format("%s Try again in %d seconds.", message, retryAfter);
+    logger.warn(msg);
+    return new ServiceBusyException(msg, retryAfter);
+  }
+
+  /**
+   * Cancel a job. A queued job is taken out of the queue, and fails at once.
+   * @param id a job identifier.
+   * @return the job, if it exists and has not expired.
+   */
+  public Optional<GenerationJob> cancel(String id) {
+    final String prefix = "[cancel]";
+    final Optional<GenerationJob> job = find(id);
+    job.ifPresent(j -> {
+      logger.debug(String.format("%s Cancelling job %s.", prefix, id));
+      j.cancel("the job was cancelled by request");
+      dequeue(j);
+    });
+    return job;
+  }
+
+  /**
+   * Cancel every unfinished job for a contest. Queued jobs are taken out of the queue, and fail
+   * at once. Jobs that are already persisting their outcome are left to finish, as they can no
+   * longer be cancelled.
+   * @param contestName the name of the contest.
+   * @param reason why the jobs are being cancelled, for reporting.
+   * @return the number of jobs cancelled by this call, whether queued, waiting for admission or
+   * generating assertions. Jobs that had already been cancelled are not counted again, so the
+   * running jobs counted here are not counted by GenerationCancellations.cancel.
+   */
+  public int cancelContest(String contestName, String reason) {
+    int cancelled = 0;
+    for (GenerationJob job : jobs.values()) {
+      if (job.getRequest().contestName.equals(contestName) && job.isUnfinished()
+          && job.getPhase() != Phase.PERSISTING && job.cancel(reason)) {
+        cancelled++;
+        dequeue(job);
+      }
+    }
+    return cancelled;
+  }
+
+  /**
+   * @param id a job identifier.
+   * @return the job, if it exists and has not expired.
+   */
+  public Optional<GenerationJob> find(String id) {
+    removeExpired();
+    return Optional.ofNullable(jobs.get(id));
+  }
+
+  /**
+   * Describe a job's state, including, if it is queued, its position in the queue and predicted
+   * start time.
+   * @param job a job.
+   * @return the job's state, for return to the client.
+   */
+  public GenerationJobResponse describe(GenerationJob job) {
+    final Schedule schedule = schedule(job);
+    return schedule.position() == null ? job.toResponse(null, null)
+        : job.toResponse(schedule.position(), Instant.now().plusMillis(
+            (long) (schedule.startSeconds() * 1000)));
+  }
+
+  /**
+   * Add a job to the queue, and record it so that its status can be requested.
+   * @param job the job.
+   * @param submitted when the job's submission (the job itself, or its batch) was made.
+   * @param submissionSeconds the predicted time of the job's submission, in seconds.
+   * @return true if the job was queued; false if the queue is full.
+   */
+  private synchronized boolean enqueue(GenerationJob job, Instant submitted,
+      double submissionSeconds) {
+    if (queue.size() >= queueCapacity) {
+      return false;
+    }
+    jobs.put(job.getId(), job);
+    try {
+      executor.execute(new QueuedJob(job, submitted, submissionSeconds));
+      return true;
+    } catch (RejectedExecutionException e) {
+      jobs.remove(job.getId());
+      return false;
+    }
+  }
+
+  /**
+   * Take a cancelled job out of the queue, if it is still there, so that it no longer counts
+   * against the queue capacity or in the predicted schedule, and fail it as it would have failed
+   * on reaching a worker. A job that a worker has already taken is left to stop itself.
+   * @param job a cancelled job.
+   */
+  private void dequeue(GenerationJob job) {
+    final String prefix = "[dequeue]";
+    if (queue.removeIf(r -> r instanceof QueuedJob queued && queued.job == job)) {
+      logger.debug(String.format("%s Job %s was cancelled while queued.", prefix, job.getId()));
+      job.fail(RaireErrorCode.CANCELLED, job.getToken().cancelled(job.getRequest().contestName)
+          .getMessage());
+    }
+  }
+
+  /**
+   * A job in the queue, ordered by priority: its submission's time, in seconds since the service
+   * started, plus its submission's predicted time multiplied by the aging weight. As every queued
+   * job ages at the same rate, this order does not change while the jobs wait. Jobs of equal
+   * priority (those in the same batch) run longest-predicted-first, then in order of submission.
+   */
+  private final class QueuedJob implements Runnable, Comparable<QueuedJob> {
+
+    private final GenerationJob job;
+    private final double priority;
+    private final long order = sequence.getAndIncrement();
+
+    private QueuedJob(GenerationJob job, Instant submitted, double submissionSeconds) {
+      this.job = job;
+      this.priority = Duration.between(epoch, submitted).toMillis() / 1000.0
+          + agingWeight * submissionSeconds;
+    }
+
+    @Override
+    public void run() {
+      GenerationJobService.this.run(job);
+    }
+
+    @Override
+    public int compareTo(QueuedJob other) {
+      final int byPriority = Double.compare(priority, other.priority);
+      if (byPriority != 0) {
+        return byPriority;
+      }
+      final int longestFirst = Double.compare(other.job.getPredictedSeconds(),
+          job.getPredictedSeconds());
+      return longestFirst != 0 ? longestFirst : Long.compare(order, other.order);
+    }
+  }
+
+  /**
+   * The predicted schedule of the queue.
+   * @param position the position in the queue of the job asked about (1 for the next to run),
+   *                 or null if it is not queued.
+   * @param startSeconds the predicted time until the job asked about starts, in seconds.
+   * @param drainSeconds the predicted time until every queued job has finished, in seconds.
+   */
+  private record Schedule(Integer position, double startSeconds, double drainSeconds) {}
+
+  /**
+   * Predict the schedule of the queue, by simulating the worker threads taking queued jobs in
+   * priority order, with every job taking its predicted time. Running jobs are predicted to take
+   * the rest of their predicted time (or no more, if they have already taken longer).
+   * @param target a job whose position and start time are wanted, or null.
+   * @return the predicted schedule.
+   */
+  private Schedule schedule(GenerationJob target) {
+    final Instant now = Instant.now();
+    final PriorityQueue<Double> workersFree = new PriorityQueue<>();
+    for (GenerationJob job : jobs.values()) {
+      final Instant started = job.getStarted();
+      if (started != null && job.isUnfinished()) {
+        workersFree.add(Math.max(0, job.getPredictedSeconds()
+            - Duration.between(started, now).toMillis() / 1000.0));
+      }
+    }
+    while (workersFree.size() < threads) {
+      workersFree.add(0.0);
+    }
+
+    final QueuedJob[] queued = queue.toArray(new QueuedJob[0]);
+    Arrays.sort(queued);
+    Integer position = null;
+    double startSeconds = 0;
+    for (int i = 0; i < queued.length; i++) {
+      final double start = workersFree.poll();
+      if (queued[i].job == target) {
+        position = i + 1;
+        startSeconds = start;
+      }
+      workersFree.add(start + queued[i].job.getPredictedSeconds());
+    }
+
+    double drainSeconds = 0;
+    for (double free : workersFree) {
+      drainSeconds = Math.max(drainSeconds, free);
+    }
+    return new Schedule(position, startSeconds, drainSeconds);
+  }
+
+  /**
+   * Run a job, recording its progress and outcome. The outcome is interpreted as in
+   * AssertionController.serve.
+   * @param job the job to run.
+   */
+  private void run(GenerationJob job) {
+    final String prefix = "[run]";
+    final GenerateAssertionsRequest request = job.getRequest();
+    if (job.getToken().isCancelled()) {
+      logger.debug(String.format("%s Job %s was cancelled before it started.", prefix,
+          job.getId()));
+      job.fail(RaireErrorCode.CANCELLED, job.getToken().cancelled(request.contestName)
+          .getMessage());
+      return;
+    }
+    job.start();
+    logger.debug(String.format("%s Job %s started for contest %s.", prefix, job.getId(),
+        request.contestName));
+
+    try {
+      job.setPhase(Phase.WAITING);
+      final RaireResultOrError solution;
+      try (SolveAdmission.Permit permit = solveAdmission.admitJob(request.contestName,
+          job.getToken())) {
+        solution = generateAssertionsService.generateAssertions(request, job::setPhase,
+            job.getToken(), permit);
+      }
+
+      job.setPhase(Phase.PERSISTING);
+      generateAssertionsService.persistAssertionsOrErrors(solution, request);
+
+      if (solution.Ok != null) {
+        job.succeed(new GenerateAssertionsResponse(request.contestName,
+            solution.Ok.warning_trim_timed_out));
+      } else if (solution.Err != null) {
+        logger.error(String.format("%s Assertion generation failed for job %s. Error from " +
+            "raire-java: %s", prefix, job.getId(), solution.Err));
+        job.succeed(new GenerateAssertionsResponse(request.contestName, solution.Err));
+      } else {
+        final String msg = "An error occurred in raire-java, yet no error information was returned.";
+        logger.error(String.format("%s %s", prefix, msg));
+        job.fail(RaireErrorCode.INTERNAL_ERROR, msg);
+      }
+    } catch (RaireServiceException e) {
+      // Record the cancellation of a job that had started, whether it was generating assertions
+      // or still waiting for admission, as the synchronous endpoint does.
+      if (e.errorCode == RaireErrorCode.CANCELLED) {
+        persistCancellation(request, e.getMessage());
+      }
+      job.fail(e.errorCode, e.getMessage());
+    } catch (RuntimeException e) {
+      logger.error(String.format("%s Job %s failed unexpectedly. %s", prefix, job.getId(),
+          e.getMessage()));
+      job.fail(RaireErrorCode.INTERNAL_ERROR, e.getMessage());
+    }
+
+    logger.debug(String.format("%s Job %s for contest %s is complete.", prefix, job.getId(),
+        request.contestName));
+  }
+
+  /**
+   * Record the cancellation of generation for a contest in its summary, logging (rather than
+   * reporting) any failure to do so, since the job's outcome is already known.
+   * @param request the request that was cancelled.
+   * @param message the cancellation message.
+   */
+  private void persistCancellation(GenerateAssertionsRequest request, String message) {
+    final String prefix = "[persistCancellation]";
+    try {
+      generateAssertionsService.persistCancellation(request, message);
+    } catch (RaireServiceException | RuntimeException e) {
+      logger.error(String.format("%s Could not record the cancellation of assertion generation " +
+          "for contest %s. %s", prefix, request.contestName, e.getMessage()));
+    }
+  }
+
+  /**
+   * Forget finished jobs that have been kept for longer than the retention time.
+   */
+  private void removeExpired() {
+    final Instant cutoff = Instant.now().minus(retention);
+    jobs.values().removeIf(job -> job.endedBefore(cutoff));
+  }
+}
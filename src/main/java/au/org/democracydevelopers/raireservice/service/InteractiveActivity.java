@@ -0,0 +1,74 @@
+/*
+Copyright 2024 Democracy Developers
+
+The Raire Service is designed to connect colorado-rla and its associated database to
+the raire assertion generation engine (https://github.com/DemocracyDevelopers/raire-java).
+
+This file is part of raire-service.
+
+raire-service is free software: you can redistribute it and/or modify it under the terms
+of the GNU Affero General Public License as published by the Free Software Foundation, either
+version 3 of the License, or (at your option) any later version.
+
+raire-service is distributed in the hope that it will be useful, but WITHOUT ANY WARRANTY;
+without even the implied warranty of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.
+See the GNU Affero General Public License for more details.
+
+You should have received a copy of the GNU Affero General Public License along with
+raire-service. If not, see <https://www.gnu.org/licenses/>.
+*/
+
+package au.org.democracydevelopers.raireservice.service;
+
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import org.springframework.stereotype.Component;
+
+/**
+ * Tracks assertion generation requests made by clients, so that background work (see
+ * SnapshotWarmer) can keep out of their way: it runs only while no request is in progress and
+ * none has started for a while.
+ */
+@Component
+public class InteractiveActivity {
+
+  /**
+   * The number of requests in progress.
+   */
+  private final AtomicInteger active = new AtomicInteger();
+
+  /**
+   * When the most recent request started, from System.nanoTime(), or 0 if none has.
+   */
+  private final AtomicLong lastStarted = new AtomicLong();
+
+  /**
+   * The scope of one request, ended when closed.
+   */
+  @FunctionalInterface
+  public interface Scope extends AutoCloseable {
+
+    @Override
+    void close();
+  }
+
+  /**
+   * Record the start of a request.
+   * @return a scope to be closed when the request is complete.
+   */
+  public Scope begin() {
+    active.incrementAndGet();
+    lastStarted.set(System.nanoTime());
+    return active::decrementAndGet;
+  }
+
+  /**
+   * @param quietMillis how long since the most recent request started, in milliseconds.
+   * @return true if no request is in progress, and none has started within the given time.
+   */
+  public boolean isQuiet(long quietMillis) {
+    final long last = lastStarted.get();
+    return active.get() == 0
+        && (last == 0 || System.nanoTime() - last >= quietMillis * 1_000_000L);
+  }
+}
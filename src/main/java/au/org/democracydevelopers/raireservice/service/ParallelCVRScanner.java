@@ -0,0 +1,282 @@
+/*
+Copyright 2024 Democracy Developers
+
+The Raire Service is designed to connect colorado-rla and its associated database to
+the raire assertion generation engine (https://github.com/DemocracyDevelopers/raire-java).
+
+This file is part of raire-service.
+
+raire-service is free software: you can redistribute it and/or modify it under the terms
+of the GNU Affero General Public License as published by the Free Software Foundation, either
+version 3 of the License, or (at your option) any later version.
+
+raire-service is distributed in the hope that it will be useful, but WITHOUT ANY WARRANTY;
+without even the implied warranty of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.
+See the GNU Affero General Public License for more details.
+
+You should have received a copy of the GNU Affero General Public License along with
+raire-service. If not, see <https://www.gnu.org/licenses/>.
+*/
+
+package au.org.democracydevelopers.raireservice.service;
+
+import au.org.democracydevelopers.raireservice.persistence.converters.CandidateNameDictionary;
+import au.org.democracydevelopers.raireservice.persistence.converters.StringArrayConverter;
+import au.org.democracydevelopers.raireservice.persistence.converters.StringArrayConverter.DictionaryScope;
+import au.org.democracydevelopers.raireservice.persistence.repository.CVRContestInfoRepository;
+import au.org.democracydevelopers.raireservice.persistence.repository.CVRContestInfoRepository.CountyChoices;
+import au.org.democracydevelopers.raireservice.persistence.repository.CVRContestInfoRepository.CvrIdRange;
+import com.zaxxer.hikari.HikariDataSource;
+import jakarta.annotation.PreDestroy;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.List;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.stream.Stream;
+import javax.sql.DataSource;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.stereotype.Component;
+import org.springframework.transaction.PlatformTransactionManager;
+import org.springframework.transaction.support.TransactionTemplate;
+
+/**
+ * Reads the CVRs for a contest concurrently, on several pooled database connections, for the
+ * PARALLEL_SCAN ingestion mode. The contest's range of CVR IDs is split into a number of
+ * contiguous parts, which a fixed set of workers take in turn. Each worker reads its parts in its
+ * own read-only transaction (and so on its own connection), consolidating into its own
+ * RankingSink, and the sinks are combined once all parts have been read.
+ * The number of workers is configured by raire.ingestion.parallel.workers, but is bounded by the
+ * size of the connection pool, less raire.ingestion.parallel.reserved-connections (which are left
+ * for web requests) and the connection held by the caller's own transaction. Parallel scanning
+ * can be switched off with raire.ingestion.parallel.enabled, and is not used for contests with
+ * fewer than raire.ingestion.parallel.min-ballots CVRs; in those cases the caller should read the
+ * CVRs on its own connection instead.
+ */
+@Component
+public class ParallelCVRScanner {
+
+  private final static Logger logger = LoggerFactory.getLogger(ParallelCVRScanner.class);
+
+  /**
+   * The number of parts into which the CVR ID range is split, per worker. Having more parts than
+   * workers evens out the load when CVR IDs are not spread evenly over the range.
+   */
+  private static final int PARTS_PER_WORKER = 4;
+
+  private final CVRContestInfoRepository cvrContestInfoRepository;
+
+  private final TransactionTemplate readOnlyTransaction;
+
+  private final boolean enabled;
+
+  private final int workers;
+
+  private final long minBallots;
+
+  /**
+   * Threads on which the workers run. Null if parallel scanning is not in use.
+   */
+  private final ExecutorService executor;
+
+  /**
+   * All args constructor.
+   * @param cvrContestInfoRepository for extracting CVR vote data from the database.
+   * @param transactionManager for running each worker in its own transaction.
+   * @param dataSource the connection pool, used to bound the number of workers.
+   * @param enabled whether parallel scanning is used at all (raire.ingestion.parallel.enabled).
+   * @param configuredWorkers the number of workers to use (raire.ingestion.parallel.workers).
+   * @param reservedConnections the number of pooled connections never used by workers
+   *                            (raire.ingestion.parallel.reserved-connections).
+   * @param minBallots the number of CVRs a contest must have for parallel scanning to be used
+   *                   (raire.ingestion.parallel.min-ballots).
+   */
+  public ParallelCVRScanner(CVRContestInfoRepository cvrContestInfoRepository,
+      PlatformTransactionManager transactionManager, DataSource dataSource,
+      @Value("${raire.ingestion.parallel.enabled:true}") boolean enabled,
+      @Value("${raire.ingestion.parallel.workers:4}") int configuredWorkers,
+      @Value("${raire.ingestion.parallel.reserved-connections:2}") int reservedConnections,
+      @Value("${raire.ingestion.parallel.min-ballots:100000}") long minBallots) {
+    final String prefix = "[all args constructor]";
+    this.cvrContestInfoRepository = cvrContestInfoRepository;
+    this.readOnlyTransaction = new TransactionTemplate(transactionManager);
+    this.readOnlyTransaction.setReadOnly(true);
+    this.minBallots = minBallots;
+
+    // One pooled connection is held by the caller's transaction while the workers run.
+    int bound = configuredWorkers;
+    if (dataSource instanceof HikariDataSource hikari) {
+      bound = Math.min(bound, hikari.getMaximumPoolSize() - reservedConnections - 1);
+    }
+    this.workers = Math.max(bound, 1);
+    this.enabled = enabled && workers > 1;
+    logger.debug(String.format("%s Parallel CVR scanning %s, with %d workers (%d configured).",
+        prefix, this.enabled ? "enabled" : "disabled", workers, configuredWorkers));
+
+    this.executor = this.enabled ? Executors.newFixedThreadPool(workers, workerThreads()) : null;
+  }
+
+  /**
+   * Shut down the worker threads when the application stops.
+   */
+  @PreDestroy
+  public void shutdown() {
+    if (executor != null) {
+      executor.shutdownNow();
+    }
+  }
+
+  /**
+   * Read all CVRs for the named contest in parallel, adding them to the given sink, if parallel
+   * scanning is enabled and the contest is large enough to benefit from it.
+   * @param contestName the name of the contest.
+   * @param candidates the candidate names for the contest.
+   * @param sink the destination for the rankings read.
+   * @return true if the CVRs were read, false if the caller should read them itself.
+   * @throws org.springframework.dao.DataAccessException if an error arose in database access.
+   */
+  boolean scan(String contestName, List<String> candidates, RankingSink sink) {
+    final String prefix = "[scan]";
+    if (!enabled) {
+      return false;
+    }
+    final CvrIdRange range = cvrContestInfoRepository.getCVRIdRange(contestName);
+    if (range.getMinCvrId() == null || range.getBallots() < minBallots) {
+      logger.debug(String.format("%s Contest %s has %d CVRs; not scanning in parallel.", prefix,
+          contestName, range.getBallots()));
+      return false;
+    }
+
+    final List<long[]> parts = split(range.getMinCvrId(), range.getMaxCvrId(),
+        workers * PARTS_PER_WORKER);
+    logger.debug(String.format("%s Scanning %d CVRs for contest %s (IDs %d to %d) in %d parts " +
+        "with %d workers.", prefix, range.getBallots(), contestName, range.getMinCvrId(),
+        range.getMaxCvrId(), parts.size(), workers));
+
+    final CandidateNameDictionary names = new CandidateNameDictionary(candidates);
+    final AtomicInteger nextPart = new AtomicInteger(0);
+    final List<RankingSink> partSinks = new ArrayList<>();
+    final List<Future<RankingSink>> results = new ArrayList<>();
+    final CountDownLatch finished = new CountDownLatch(workers);
+    for (int w = 0; w < workers; w++) {
+      final RankingSink partSink = sink.newPart();
+      partSinks.add(partSink);
+      results.add(executor.submit(() -> {
+        try {
+          return readParts(contestName, parts, nextPart, partSink, names);
+        } finally {
+          finished.countDown();
+        }
+      }));
+    }
+
+    try {
+      for (Future<RankingSink> result : results) {
+        sink.addAll(result.get());
+      }
+    } catch (InterruptedException e) {
+      results.forEach(r -> r.cancel(true));
+      Thread.currentThread().interrupt();
+      throw new IllegalStateException("Interrupted while scanning CVRs for " + contestName, e);
+    } catch (ExecutionException e) {
+      results.forEach(r -> r.cancel(true));
+      if (e.getCause() instanceof RuntimeException re) {
+        throw re;
+      }
+      throw new IllegalStateException("Error scanning CVRs for " + contestName, e.getCause());
+    } finally {
+      // A cancelled worker may still be using its sink, so wait for every worker to finish before
+      // closing the sinks, whether or not reading succeeded. This releases any storage they hold
+      // outside the Java heap, and deletes their temporary files.
+      awaitUninterruptibly(finished);
+      partSinks.forEach(RankingSink::close);
+    }
+    return true;
+  }
+
+  /**
+   * Wait for the workers to finish, even if the calling thread is interrupted (in which case its
+   * interrupt status is restored afterwards). Workers that have been cancelled stop at the next
+   * CVR they read.
+   */
+  private static void awaitUninterruptibly(CountDownLatch finished) {
+    boolean interrupted = false;
+    while (true) {
+      try {
+        finished.await();
+        break;
+      } catch (InterruptedException e) {
+        interrupted = true;
+      }
+    }
+    if (interrupted) {
+      Thread.currentThread().interrupt();
+    }
+  }
+
+  /**
+   * The body of a worker: take parts in turn until none are left, reading each one's CVRs into
+   * the worker's sink, all within one read-only transaction. A worker that is cancelled (by
+   * interruption) stops at the next CVR.
+   */
+  private RankingSink readParts(String contestName, List<long[]> parts, AtomicInteger nextPart,
+      RankingSink sink, CandidateNameDictionary names) {
+    readOnlyTransaction.executeWithoutResult(status -> {
+      try (DictionaryScope ignored = StringArrayConverter.useDictionary(names)) {
+        for (int p = nextPart.getAndIncrement(); p < parts.size(); p = nextPart.getAndIncrement()) {
+          final long[] part = parts.get(p);
+          try (Stream<CountyChoices> rankings = cvrContestInfoRepository.streamContestCVRsInRange(
+              contestName, part[0], part[1])) {
+            final Iterator<CountyChoices> it = rankings.iterator();
+            while (it.hasNext()) {
+              if (Thread.currentThread().isInterrupted()) {
+                throw new CancellationException("CVR scan for " + contestName + " cancelled.");
+              }
+              final CountyChoices cc = it.next();
+              sink.add(cc.getCountyId(), cc.getChoices(), 1);
+            }
+          }
+        }
+      }
+    });
+    return sink;
+  }
+
+  /**
+   * Split the inclusive range [min, max] into at most the given number of contiguous, disjoint,
+   * inclusive parts that together cover it.
+   * @return the parts, as {from, to} pairs, in ascending order.
+   */
+  static List<long[]> split(long min, long max, int count) {
+    final long size = Math.max(1, (max - min) / count + 1);
+    final List<long[]> parts = new ArrayList<>();
+    for (long from = min; from <= max; from += size) {
+      parts.add(new long[]{from, Math.min(max, from + size - 1)});
+      if (from > Long.MAX_VALUE - size) {
+        break;
+      }
+    }
+    return parts;
+  }
+
+  /**
+   * Worker threads are named after their purpose, and are daemons so that they never hold up
+   * shutdown.
+   */
+  private static ThreadFactory workerThreads() {
+    final AtomicInteger n = new AtomicInteger(0);
+    return r -> {
+      final Thread t = new Thread(r, "cvr-scan-" + n.incrementAndGet());
+      t.setDaemon(true);
+      return t;
+    };
+  }
+}
@@ -0,0 +1,195 @@
+/*
+Copyright 2024 Democracy Developers
+
+The Raire Service is designed to connect colorado-rla and its associated database to
+the raire assertion generation engine (https://github.com/DemocracyDevelopers/raire-java).
+
+This file is part of raire-service.
+
+raire-service is free software: you can redistribute it and/or modify it under the terms
+of the GNU Affero General Public License as published by the Free Software Foundation, either
+version 3 of the License, or (at your option) any later version.
+
+raire-service is distributed in the hope that it will be useful, but WITHOUT ANY WARRANTY;
+without even the implied warranty of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.
+See the GNU Affero General Public License for more details.
+
+You should have received a copy of the GNU Affero General Public License along with
+raire-service. If not, see <https://www.gnu.org/licenses/>.
+*/
+
+package au.org.democracydevelopers.raireservice.service;
+
+import jakarta.annotation.PreDestroy;
+import java.util.List;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveTask;
+import java.util.function.BiConsumer;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.stereotype.Component;
+
+/**
+ * Consolidates rankings that are already in memory on several threads of a ForkJoinPool. The
+ * list of rankings is split recursively into ranges; each range is counted into its own sink
+ * (and so its own count map), and the sinks are combined pairwise as the recursion unwinds, so
+ * that the maps are merged in a tree rather than one at a time.
+ * The result is the same, whatever the number of threads or the way the list was split: the
+ * consolidated votes are always produced in canonical order (see WeightedVoteConsolidator), and as
+ * each range's sink is combined into the sink for the ranges before it, the invalid candidate
+ * name reported (if any) is the first in the list, as it would be if the rankings were added on a
+ * single thread.
+ * Lists shorter than the configured minimum, for which the overhead of splitting outweighs the
+ * benefit, are consolidated on the caller's thread.
+ */
+@Component
+public class ParallelConsolidator {
+
+  private final static Logger logger = LoggerFactory.getLogger(ParallelConsolidator.class);
+
+  /**
+   * The number of ranges into which a list is split, per thread. Having more ranges than threads
+   * lets idle threads steal work from busy ones.
+   */
+  private static final int RANGES_PER_THREAD = 4;
+
+  /**
+   * The smallest range that is counted into its own sink.
+   */
+  private static final int MIN_RANGE = 1024;
+
+  private final int parallelism;
+
+  private final int minRankings;
+
+  /**
+   * Threads on which ranges are counted. Null if parallel consolidation is not in use.
+   */
+  private final ForkJoinPool pool;
+
+  /**
+   * All args constructor.
+   * @param enabled whether parallel consolidation is used at all
+   *                (raire.ingestion.consolidation.enabled).
+   * @param configuredParallelism the number of threads to use, or 0 for one per available
+   *                              processor (raire.ingestion.consolidation.parallelism).
+   * @param minRankings the number of rankings a list must have to be consolidated in parallel
+   *                    (raire.ingestion.consolidation.min-rankings).
+   */
+  public ParallelConsolidator(
+      @Value("${raire.ingestion.consolidation.enabled:true}") boolean enabled,
+      @Value("${raire.ingestion.consolidation.parallelism:0}") int configuredParallelism,
+      @Value("${raire.ingestion.consolidation.min-rankings:100000}") int minRankings) {
+    final String prefix = "[all args constructor]";
+    this.parallelism = configuredParallelism > 0 ? configuredParallelism
+        : Runtime.getRuntime().availableProcessors();
+    this.minRankings = minRankings;
+    final boolean inUse = enabled && parallelism > 1;
+    logger.debug(String.format("%s Parallel consolidation %s, with %d threads.", prefix,
+        inUse ? "enabled" : "disabled", parallelism));
+
+    this.pool = inUse ? new ForkJoinPool(parallelism) : null;
+  }
+
+  /**
+   * Shut down the threads when the application stops.
+   */
+  @PreDestroy
+  public void shutdown() {
+    if (pool != null) {
+      pool.shutdownNow();
+    }
+  }
+
+  /**
+   * Add every item in the list to the sink, in parallel if the list is long enough, giving the
+   * same result as adding them in order on the caller's thread.
+   * @param items the rankings (or other entries from which rankings are derived) to add.
+   * @param adder adds one item to a sink. It is called concurrently, each time with a sink used
+   *              only by the calling thread.
+   * @param sink the destination for the rankings.
+   * @param <T> the type of the items.
+   */
+  <T> void consolidate(List<T> items, BiConsumer<RankingSink, T> adder, RankingSink sink) {
+    final String prefix = "[consolidate]";
+    if (pool == null || items.size() < minRankings) {
+      items.forEach(item -> adder.accept(sink, item));
+      return;
+    }
+
+    final int range = Math.max(MIN_RANGE, items.size() / (parallelism * RANGES_PER_THREAD) + 1);
+    logger.debug(String.format("%s Consolidating %d rankings on %d threads, in ranges of at " +
+        "most %d.", prefix, items.size(), parallelism, range));
+    try (RankingSink combined = pool.invoke(
+        new ConsolidationTask<>(items, 0, items.size(), range, adder, sink))) {
+      sink.addAll(combined);
+    }
+  }
+
+  /**
+   * Counts a range of the list into a new sink, splitting it in two (and combining the halves'
+   * sinks) if it is longer than the given range size.
+   */
+  private static class ConsolidationTask<T> extends RecursiveTask<RankingSink> {
+
+    private final List<T> items;
+    private final int from;
+    private final int to;
+    private final int range;
+    private final BiConsumer<RankingSink, T> adder;
+    private final RankingSink template;
+
+    ConsolidationTask(List<T> items, int from, int to, int range,
+        BiConsumer<RankingSink, T> adder, RankingSink template) {
+      this.items = items;
+      this.from = from;
+      this.to = to;
+      this.range = range;
+      this.adder = adder;
+      this.template = template;
+    }
+
+    @Override
+    protected RankingSink compute() {
+      if (to - from <= range) {
+        final RankingSink part = template.newPart();
+        try {
+          for (int i = from; i < to; i++) {
+            adder.accept(part, items.get(i));
+          }
+          return part;
+        } catch (RuntimeException e) {
+          part.close();
+          throw e;
+        }
+      }
+
+      final int mid = (from + to) >>> 1;
+      final ConsolidationTask<T> second = new ConsolidationTask<>(items, mid, to, range, adder,
+          template);
+      second.fork();
+      final RankingSink first;
+      try {
+        first = new ConsolidationTask<>(items, from, mid, range, adder, template).compute();
+      } catch (RuntimeException e) {
+        try {
+          second.join().close();
+        } catch (RuntimeException ignored) {
+          // The first failure is the one reported.
+        }
+        throw e;
+      }
+
+      // The second half's sink is combined into the first's, so that the first invalid
+      // candidate name in list order is kept.
+      try (RankingSink rest = second.join()) {
+        first.addAll(rest);
+        return first;
+      } catch (RuntimeException e) {
+        first.close();
+        throw e;
+      }
+    }
+  }
+}
@@ -0,0 +1,363 @@
+/*
+Copyright 2024 Democracy Developers
+
+The Raire Service is designed to connect colorado-rla and its associated database to
+the raire assertion generation engine (https://github.com/DemocracyDevelopers/raire-java).
+
+This file is part of raire-service.
+
+raire-service is free software: you can redistribute it and/or modify it under the terms
+of the GNU Affero General Public License as published by the Free Software Foundation, either
+version 3 of the License, or (at your option) any later version.
+
+raire-service is distributed in the hope that it will be useful, but WITHOUT ANY WARRANTY;
+without even the implied warranty of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.
+See the GNU Affero General Public License for more details.
+
+You should have received a copy of the GNU Affero General Public License along with
+raire-service. If not, see <https://www.gnu.org/licenses/>.
+*/
+
+package au.org.democracydevelopers.raireservice.service;
+
+import au.org.democracydevelopers.raireservice.persistence.converters.CandidateNameDictionary;
+import au.org.democracydevelopers.raireservice.persistence.converters.StringArrayConverter;
+import au.org.democracydevelopers.raireservice.persistence.converters.StringArrayConverter.DictionaryScope;
+import au.org.democracydevelopers.raireservice.persistence.repository.CVRContestInfoRepository;
+import au.org.democracydevelopers.raireservice.persistence.repository.CVRContestInfoRepository.RawCountyChoices;
+import io.micrometer.core.instrument.Counter;
+import io.micrometer.core.instrument.MeterRegistry;
+import io.micrometer.core.instrument.Timer;
+import jakarta.annotation.PreDestroy;
+import java.util.Iterator;
+import java.util.List;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.stream.Stream;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.stereotype.Component;
+
+/**
+ * Reads the CVRs for a contest through a three-stage pipeline, for the PIPELINED ingestion mode:
+ * - fetch, on the caller's thread (which owns the transaction and database cursor), reads raw
+ *   choices entries in batches;
+ * - parse, on its own thread, decodes each batch's entries into rankings;
+ * - consolidate, on its own thread, adds each batch's rankings to the RankingSink.
+ * Stages hand batches to one another through bounded queues, so a fast stage blocks (rather than
+ * buffering without limit) when the stage after it falls behind. If any stage fails, the others
+ * stop, and the failure is raised to the caller.
+ * For each stage, the number of rows processed (raire.ingestion.pipeline.rows) and the time spent
+ * blocked on the queues (raire.ingestion.pipeline.blocked) are recorded as metrics, tagged with
+ * the stage name. The bottleneck stage is the one that spends the least time blocked.
+ */
+@Component
+public class PipelinedCVRReader {
+
+  private final static Logger logger = LoggerFactory.getLogger(PipelinedCVRReader.class);
+
+  /**
+   * Stage names, used as metric tags.
+   */
+  private static final String FETCH = "fetch";
+  private static final String PARSE = "parse";
+  private static final String CONSOLIDATE = "consolidate";
+
+  /**
+   * How often a stage blocked on a queue checks whether another stage has failed.
+   */
+  private static final long POLL_MILLIS = 100;
+
+  private final CVRContestInfoRepository cvrContestInfoRepository;
+
+  private final int batchSize;
+
+  private final int queueCapacity;
+
+  private final Counter fetchedRows;
+  private final Counter parsedRows;
+  private final Counter consolidatedRows;
+
+  private final Timer fetchBlocked;
+  private final Timer parseBlocked;
+  private final Timer consolidateBlocked;
+
+  /**
+   * Threads on which the parse and consolidate stages run.
+   */
+  private final ExecutorService executor = Executors.newCachedThreadPool(stageThreads());
+
+  /**
+   * A batch of CVRs, as raw choices entries or as parsed rankings, with their counties.
+   * A batch with no entries marks the end of the data.
+   */
+  private record Batch<T>(long[] counties, T[] entries, int size) {}
+
+  /**
+   * All args constructor.
+   * @param cvrContestInfoRepository for extracting CVR vote data from the database.
+   * @param meterRegistry for recording the throughput of each stage.
+   * @param batchSize the number of CVRs per batch (raire.ingestion.pipeline.batch-size).
+   * @param queueCapacity the number of batches each queue can hold
+   *                      (raire.ingestion.pipeline.queue-capacity).
+   */
+  public PipelinedCVRReader(CVRContestInfoRepository cvrContestInfoRepository,
+      MeterRegistry meterRegistry,
+      @Value("${raire.ingestion.pipeline.batch-size:1000}") int batchSize,
+      @Value("${raire.ingestion.pipeline.queue-capacity:8}") int queueCapacity) {
+    this.cvrContestInfoRepository = cvrContestInfoRepository;
+    this.batchSize = Math.max(1, batchSize);
+    this.queueCapacity = Math.max(1, queueCapacity);
+
+    fetchedRows = rowCounter(meterRegistry, FETCH);
+    parsedRows = rowCounter(meterRegistry, PARSE);
+    consolidatedRows = rowCounter(meterRegistry, CONSOLIDATE);
+    fetchBlocked = blockedTimer(meterRegistry, FETCH);
+    parseBlocked = blockedTimer(meterRegistry, PARSE);
+    consolidateBlocked = blockedTimer(meterRegistry, CONSOLIDATE);
+  }
+
+  /**
+   * Shut down the stage threads when the application stops.
+   */
+  @PreDestroy
+  public void shutdown() {
+    executor.shutdownNow();
+  }
+
+  /**
+   * Read all CVRs for the named contest through the pipeline, adding them to the given sink. This
+   * must be called within a transaction, as the fetch stage reads through a database cursor.
+   * @param contestName the name of the contest.
+   * @param candidates the candidate names for the contest.
+   * @param sink the destination for the rankings read.
+   * @throws org.springframework.dao.DataAccessException if an error arose in database access.
+   * @throws RuntimeException if a choices entry could not be parsed.
+   */
+  void read(String contestName, List<String> candidates, RankingSink sink) {
+    final String prefix = "[read]";
+    logger.debug(String.format("%s Reading CVRs for contest %s through a pipeline with batches " +
+        "of %d and queues of %d batches.", prefix, contestName, batchSize, queueCapacity));
+
+    final Pipeline pipeline = new Pipeline();
+    final CandidateNameDictionary names = new CandidateNameDictionary(candidates);
+    final Future<?> parse = executor.submit(() -> pipeline.run(() -> parseStage(pipeline, names)));
+    final Future<?> consolidate = executor.submit(() ->
+        pipeline.run(() -> consolidateStage(pipeline, sink)));
+
+    pipeline.run(() -> fetchStage(pipeline, contestName));
+    await(parse);
+    await(consolidate);
+    pipeline.rethrowFailure();
+
+    logger.debug(String.format("%s Pipeline complete for contest %s.", prefix, contestName));
+  }
+
+  /**
+   * Read raw choices entries from the database in batches, passing each batch to the parse stage.
+   */
+  private void fetchStage(Pipeline pipeline, String contestName) {
+    try (Stream<RawCountyChoices> rows =
+        cvrContestInfoRepository.streamContestRawChoices(contestName)) {
+      final Iterator<RawCountyChoices> it = rows.iterator();
+      while (it.hasNext()) {
+        final long[] counties = new long[batchSize];
+        final String[] choices = new String[batchSize];
+        int size = 0;
+        while (size < batchSize && it.hasNext()) {
+          final RawCountyChoices row = it.next();
+          counties[size] = row.getCountyId();
+          choices[size++] = row.getChoices();
+        }
+        pipeline.put(pipeline.raw, new Batch<>(counties, choices, size), fetchBlocked);
+        fetchedRows.increment(size);
+      }
+    }
+    pipeline.put(pipeline.raw, new Batch<>(null, new String[0], 0), fetchBlocked);
+  }
+
+  /**
+   * Decode each batch of raw choices entries into rankings, passing the parsed batch to the
+   * consolidate stage.
+   */
+  private void parseStage(Pipeline pipeline, CandidateNameDictionary names) {
+    final StringArrayConverter converter = new StringArrayConverter();
+    try (DictionaryScope ignored = StringArrayConverter.useDictionary(names)) {
+      while (true) {
+        final Batch<String> batch = pipeline.take(pipeline.raw, parseBlocked);
+        final String[][] rankings = new String[batch.size()][];
+        for (int i = 0; i < batch.size(); i++) {
+          final String choices = batch.entries()[i];
+          if (choices == null) {
+            throw new RuntimeException("A null entry is present in the database in place of a " +
+                "JSON list.");
+          }
+          rankings[i] = converter.convertToEntityAttribute(choices);
+        }
+        pipeline.put(pipeline.parsed, new Batch<>(batch.counties(), rankings, batch.size()),
+            parseBlocked);
+        parsedRows.increment(batch.size());
+        if (batch.size() == 0) {
+          return;
+        }
+      }
+    }
+  }
+
+  /**
+   * Add each batch of parsed rankings to the sink.
+   */
+  private void consolidateStage(Pipeline pipeline, RankingSink sink) {
+    while (true) {
+      final Batch<String[]> batch = pipeline.take(pipeline.parsed, consolidateBlocked);
+      if (batch.size() == 0) {
+        return;
+      }
+      for (int i = 0; i < batch.size(); i++) {
+        sink.add(batch.counties()[i], batch.entries()[i], 1);
+      }
+      consolidatedRows.increment(batch.size());
+    }
+  }
+
+  /**
+   * Wait for a stage to finish. Failures are recorded by the stage itself, in the pipeline.
+   */
+  private static void await(Future<?> stage) {
+    try {
+      stage.get();
+    } catch (InterruptedException e) {
+      stage.cancel(true);
+      Thread.currentThread().interrupt();
+      throw new IllegalStateException("Interrupted while waiting for CVR pipeline stage.", e);
+    } catch (ExecutionException e) {
+      // Not reached: stages record their own failures rather than throwing.
+      throw new IllegalStateException("CVR pipeline stage failed.", e.getCause());
+    }
+  }
+
+  /**
+   * The queues and shared failure state for one run of the pipeline.
+   */
+  private class Pipeline {
+
+    private final BlockingQueue<Batch<String>> raw = new ArrayBlockingQueue<>(queueCapacity);
+
+    private final BlockingQueue<Batch<String[]>> parsed = new ArrayBlockingQueue<>(queueCapacity);
+
+    /**
+     * The first failure in any stage, or null if none has failed.
+     */
+    private volatile RuntimeException failure = null;
+
+    /**
+     * Run a stage, recording its failure (if any) so that the other stages stop.
+     */
+    void run(Runnable stage) {
+      try {
+        stage.run();
+      } catch (Aborted e) {
+        // Another stage failed; its failure has already been recorded.
+      } catch (RuntimeException e) {
+        synchronized (this) {
+          if (failure == null) {
+            failure = e;
+          }
+        }
+      }
+    }
+
+    /**
+     * Hand a batch to the next stage, blocking while its queue is full.
+     */
+    <T> void put(BlockingQueue<Batch<T>> queue, Batch<T> batch, Timer blocked) {
+      final long start = System.nanoTime();
+      try {
+        while (!queue.offer(batch, POLL_MILLIS, TimeUnit.MILLISECONDS)) {
+          checkNotFailed();
+        }
+      } catch (InterruptedException e) {
+        Thread.currentThread().interrupt();
+        throw new IllegalStateException("Interrupted in CVR pipeline.", e);
+      } finally {
+        blocked.record(System.nanoTime() - start, TimeUnit.NANOSECONDS);
+      }
+    }
+
+    /**
+     * Take a batch from the previous stage, blocking while its queue is empty.
+     */
+    <T> Batch<T> take(BlockingQueue<Batch<T>> queue, Timer blocked) {
+      final long start = System.nanoTime();
+      try {
+        Batch<T> batch;
+        while ((batch = queue.poll(POLL_MILLIS, TimeUnit.MILLISECONDS)) == null) {
+          checkNotFailed();
+        }
+        return batch;
+      } catch (InterruptedException e) {
+        Thread.currentThread().interrupt();
+        throw new IllegalStateException("Interrupted in CVR pipeline.", e);
+      } finally {
+        blocked.record(System.nanoTime() - start, TimeUnit.NANOSECONDS);
+      }
+    }
+
+    private void checkNotFailed() {
+      if (failure != null) {
+        throw new Aborted();
+      }
+    }
+
+    /**
+     * Raise the first failure in any stage, if there was one.
+     */
+    void rethrowFailure() {
+      if (failure != null) {
+        throw failure;
+      }
+    }
+  }
+
+  /**
+   * Raised in a stage to stop it because another stage has failed.
+   */
+  private static class Aborted extends RuntimeException {
+    Aborted() {
+      super(null, null, false, false);
+    }
+  }
+
+  private static Counter rowCounter(MeterRegistry registry, String stage) {
+    return Counter.builder("raire.ingestion.pipeline.rows")
+        .description("CVRs processed by each stage of the ingestion pipeline.")
+        .tag("stage", stage).register(registry);
+  }
+
+  private static Timer blockedTimer(MeterRegistry registry, String stage) {
+    return Timer.builder("raire.ingestion.pipeline.blocked")
+        .description("Time each stage of the ingestion pipeline spent waiting on its queues.")
+        .tag("stage", stage).register(registry);
+  }
+
+  /**
+   * Stage threads are named after their purpose, and are daemons so that they never hold up
+   * shutdown.
+   */
+  private static ThreadFactory stageThreads() {
+    final AtomicInteger n = new AtomicInteger(0);
+    return r -> {
+      final Thread t = new Thread(r, "cvr-pipeline-" + n.incrementAndGet());
+      t.setDaemon(true);
+      return t;
+    };
+  }
+}
@@ -161,6 +161,19 @@ public class RaireServiceException extends Exception {
      */
     NO_VOTES_PRESENT,
 
+    /**
+     * Assertion generation was cancelled, by request or because the client disconnected, before
+     * it was complete. It may be retried.
+     */
+    CANCELLED,
+
+    /**
+     * The service is already generating as many assertions as it can, and has too many requests
+     * waiting, or its job queue is full, to accept the request. It may be retried after the time
+     * given in the Retry-After header.
+     */
+    SERVICE_BUSY,
+
     // Internal errors (that the user can do nothing about)
 
     /**
@@ -0,0 +1,488 @@
+/*
+Copyright 2024 Democracy Developers
+
+The Raire Service is designed to connect colorado-rla and its associated database to
+the raire assertion generation engine (https://github.com/DemocracyDevelopers/raire-java).
+
+This file is part of raire-service.
+
+raire-service is free software: you can redistribute it and/or modify it under the terms
+of the GNU Affero General Public License as published by the Free Software Foundation, either
+version 3 of the License, or (at your option) any later version.
+
+raire-service is distributed in the hope that it will be useful, but WITHOUT ANY WARRANTY;
+without even the implied warranty of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.
+See the GNU Affero General Public License for more details.
+
+You should have received a copy of the GNU Affero General Public License along with
+raire-service. If not, see <https://www.gnu.org/licenses/>.
+*/
+
+package au.org.democracydevelopers.raireservice.service;
+
+import au.org.democracydevelopers.raire.irv.Vote;
+import au.org.democracydevelopers.raire.util.VoteConsolidator.InvalidCandidateName;
+import au.org.democracydevelopers.raireservice.persistence.repository.CVRContestInfoRepository.CountyFingerprint;
+import au.org.democracydevelopers.raireservice.service.VoteIngestionService.IngestedVotes;
+import au.org.democracydevelopers.raireservice.util.WeightedVoteConsolidator;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.nio.file.attribute.FileTime;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HexFormat;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Optional;
+import java.util.TreeMap;
+import java.util.stream.Stream;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.stereotype.Component;
+
+/**
+ * A cache, in files on local disk, of the consolidated votes for IRV contests, so that a repeated
+ * assertion generation request can get its votes without reading CVRs from the database. Each
+ * contest's votes are stored in a compact binary file, read through FileChannel.map, holding:
+ * - a header: a magic number and the fingerprint of the CVRs the votes came from,
+ * - the candidate dictionary: the candidate names, in the order used for indices below,
+ * - the ballot count, and the number of ballots in each county,
+ * - the packed rankings: for each, its count, its length and its candidate indices.
+ * Files are named by a hash of the contest name. A file whose fingerprint no longer matches the
+ * contest's CVRs is deleted when it is next looked up. The total size of the files is capped at
+ * raire.cache.max-bytes; when a new file would exceed it, the least recently used files are
+ * deleted. Recency is tracked in memory, and initialised from the files' modification times, so
+ * the cache survives restarts. The cache is used only when raire.cache.enabled is set.
+ * The cache's lock is held only while its index of files is looked up or updated. Files are
+ * decoded and encoded outside it, so requests for different contests proceed concurrently. A
+ * file being read is pinned: if it is evicted or found to be out of date meanwhile, it is
+ * deleted only once its last reader has finished with it.
+ */
+@Component
+public class RankingFileCache {
+
+  private final static Logger logger = LoggerFactory.getLogger(RankingFileCache.class);
+
+  /**
+   * The first four bytes of every cache file ("RRC" and a format version).
+   */
+  private static final int MAGIC = 0x52524301;
+
+  /**
+   * The suffix of cache file names.
+   */
+  private static final String SUFFIX = ".rrc";
+
+  /**
+   * A fingerprint of all the CVRs for a contest, combining those of its county level contests.
+   * @param ballots the number of CVRs.
+   * @param maxCvrId the largest CVR ID.
+   * @param checksum the sum (modulo 2^63 - 1) of the county level contests' checksums.
+   */
+  public record Fingerprint(long ballots, long maxCvrId, long checksum) {
+
+    /**
+     * Combine the fingerprints of a contest's county level contests.
+     * @param counties the fingerprints of each county level contest having CVRs.
+     * @return the fingerprint of the contest.
+     */
+    public static Fingerprint of(List<CountyFingerprint> counties) {
+      long ballots = 0;
+      long maxCvrId = 0;
+      long checksum = 0;
+      for (CountyFingerprint county : counties) {
+        ballots += county.getBallots();
+        maxCvrId = Math.max(maxCvrId, county.getMaxCvrId());
+        checksum = Math.floorMod(checksum + county.getChecksum(), Long.MAX_VALUE);
+      }
+      return new Fingerprint(ballots, maxCvrId, checksum);
+    }
+  }
+
+  private final boolean enabled;
+
+  private final Path directory;
+
+  private final long maxBytes;
+
+  /**
+   * A cache file, with the number of requests currently reading it.
+   */
+  private static final class Entry {
+
+    /**
+     * The size of the file, in bytes.
+     */
+    private final long size;
+
+    /**
+     * The number of requests reading the file. Guarded by the cache's lock.
+     */
+    private int readers = 0;
+
+    /**
+     * Whether the file has been removed from the cache while it was being read, and so should be
+     * deleted by its last reader. Guarded by the cache's lock.
+     */
+    private boolean removed = false;
+
+    private Entry(long size) {
+      this.size = size;
+    }
+  }
+
+  /**
+   * Each cache file, in order of use (least recently used first).
+   */
+  private final LinkedHashMap<Path, Entry> files = new LinkedHashMap<>(16, 0.75f, true);
+
+  /**
+   * The total size of the cache files.
+   */
+  private long totalBytes = 0;
+
+  /**
+   * All args constructor.
+   * @param enabled whether the cache is used (raire.cache.enabled).
+   * @param directory the directory holding the cache files (raire.cache.directory), created if
+   *                  it does not exist.
+   * @param maxBytes the largest total size of the cache files (raire.cache.max-bytes).
+   */
+  public RankingFileCache(@Value("${raire.cache.enabled:false}") boolean enabled,
+      @Value("${raire.cache.directory:${java.io.tmpdir}/raire-ranking-cache}") String directory,
+      @Value("${raire.cache.max-bytes:268435456}") long maxBytes) {
+    final String prefix = "[all args constructor]";
+    this.directory = Path.of(directory);
+    this.maxBytes = maxBytes;
+
+    boolean usable = enabled;
+    if (enabled) {
+      try {
+        Files.createDirectories(this.directory);
+        loadIndex();
+      } catch (IOException e) {
+        logger.error(String.format("%s The ranking cache directory %s could not be used, so " +
+            "the ranking cache is disabled. %s", prefix, directory, e.getMessage()));
+        usable = false;
+      }
+    }
+    this.enabled = usable;
+    logger.debug(String.format("%s Ranking cache enabled: %b; directory %s; %d files using %d " +
+        "of %d bytes.", prefix, this.enabled, directory, files.size(), totalBytes, maxBytes));
+  }
+
+  /**
+   * @return whether the cache is in use.
+   */
+  public boolean isEnabled() {
+    return enabled;
+  }
+
+  /**
+   * Read the votes for a contest from the cache, if they are present and were built from CVRs
+   * with the given fingerprint. The cached candidate indices are mapped onto the given candidate
+   * list, so the cache serves requests listing the candidates in any order. If the cached votes
+   * name a candidate that is not in the list, this is reported as ingestion would report it.
+   * A cache file with a different fingerprint is deleted.
+   * @param contestName the name of the contest.
+   * @param fingerprint the fingerprint of the contest's CVRs.
+   * @param candidates the candidate names, in the order that defines their indices.
+   * @return the cached votes, or empty if there are none for this fingerprint.
+   */
+  public Optional<IngestedVotes> read(String contestName, Fingerprint fingerprint,
+      List<String> candidates) {
+    final String prefix = "[read]";
+    if (!enabled) {
+      return Optional.empty();
+    }
+    final Path file = fileFor(contestName);
+    final Entry entry;
+    synchronized (this) {
+      // Looking the file up with get (not containsKey) marks it as the most recently used.
+      entry = files.get(file);
+      if (entry == null) {
+        return Optional.empty();
+      }
+      entry.readers++;
+    }
+
+    boolean discard = true;
+    try (FileChannel channel = FileChannel.open(file, StandardOpenOption.READ)) {
+      final MappedByteBuffer buffer = channel.map(FileChannel.MapMode.READ_ONLY, 0,
+          channel.size());
+      if (buffer.getInt() != MAGIC) {
+        throw new IOException("not a ranking cache file");
+      }
+      final Fingerprint cached = new Fingerprint(buffer.getLong(), buffer.getLong(),
+          buffer.getLong());
+      if (!cached.equals(fingerprint)) {
+        logger.debug(String.format("%s The cached rankings for contest %s are out of date. " +
+            "Deleting them.", prefix, contestName));
+        return Optional.empty();
+      }
+
+      final IngestedVotes votes = decode(buffer, candidates);
+      Files.setLastModifiedTime(file, FileTime.fromMillis(System.currentTimeMillis()));
+      discard = false;
+      logger.debug(String.format("%s Read %d rankings for contest %s (%d ballots) from the " +
+          "ranking cache.", prefix, votes.votes().length, contestName, votes.ballotCount()));
+      return Optional.of(votes);
+    } catch (IOException | RuntimeException e) {
+      logger.warn(String.format("%s The cached rankings for contest %s could not be read, and " +
+          "will be discarded. %s", prefix, contestName, e.getMessage()));
+      return Optional.empty();
+    } finally {
+      release(file, entry, discard);
+    }
+  }
+
+  /**
+   * Unpin a file after reading it, removing it from the cache if it was found to be out of date
+   * or unreadable (unless it has since been replaced), and deleting it if it was removed while
+   * being read and this was its last reader.
+   * @param file the cache file.
+   * @param entry the entry for the file when it was pinned.
+   * @param discard whether the file should be removed from the cache.
+   */
+  private synchronized void release(Path file, Entry entry, boolean discard) {
+    entry.readers--;
+    if (discard && files.get(file) == entry) {
+      remove(file);
+    } else if (entry.removed && entry.readers == 0 && !files.containsKey(file)) {
+      delete(file);
+    }
+  }
+
+  /**
+   * Store the votes for a contest in the cache, replacing any already cached, and evict the least
+   * recently used files if the cache has grown beyond its size limit. Votes including an invalid
+   * candidate name are not cached. Failure to write is logged, and otherwise ignored.
+   * @param contestName the name of the contest.
+   * @param fingerprint the fingerprint of the CVRs the votes were consolidated from.
+   * @param candidates the candidate names, in the order used by the votes' indices.
+   * @param votes the consolidated votes.
+   */
+  public void write(String contestName, Fingerprint fingerprint,
+      List<String> candidates, IngestedVotes votes) {
+    final String prefix = "[write]";
+    if (!enabled || votes.invalidCandidateName() != null) {
+      return;
+    }
+
+    final ByteBuffer buffer = encode(fingerprint, candidates, votes);
+    final Path file = fileFor(contestName);
+    if (buffer.remaining() > maxBytes) {
+      logger.debug(String.format("%s The rankings for contest %s (%d bytes) are larger than the " +
+          "ranking cache, and are not cached.", prefix, contestName, buffer.remaining()));
+      return;
+    }
+    try {
+      final Path temp = Files.createTempFile(directory, "write", ".tmp");
+      try (FileChannel channel = FileChannel.open(temp, StandardOpenOption.WRITE)) {
+        while (buffer.hasRemaining()) {
+          channel.write(buffer);
+        }
+      }
+      synchronized (this) {
+        // Readers of a file being replaced keep their mapping of the file they opened.
+        Files.move(temp, file, StandardCopyOption.REPLACE_EXISTING,
+            StandardCopyOption.ATOMIC_MOVE);
+        final Entry replaced = files.put(file, new Entry(buffer.limit()));
+        totalBytes += buffer.limit() - (replaced == null ? 0 : replaced.size);
+        evict();
+        logger.debug(String.format("%s Cached %d rankings for contest %s in %d bytes. The " +
+            "cache holds %d files using %d bytes.", prefix, votes.votes().length, contestName,
+            buffer.limit(), files.size(), totalBytes));
+      }
+    } catch (IOException e) {
+      logger.warn(String.format("%s The rankings for contest %s could not be cached. %s", prefix,
+          contestName, e.getMessage()));
+    }
+  }
+
+  /**
+   * Encode votes in the cache file format.
+   */
+  private static ByteBuffer encode(Fingerprint fingerprint, List<String> candidates,
+      IngestedVotes votes) {
+    final List<byte[]> names = candidates.stream()
+        .map(c -> c.getBytes(StandardCharsets.UTF_8)).toList();
+    int size = Integer.BYTES + 3 * Long.BYTES + Integer.BYTES + Long.BYTES + Integer.BYTES
+        + votes.countyBallotCounts().size() * 2 * Long.BYTES + Integer.BYTES;
+    for (byte[] name : names) {
+      size += Integer.BYTES + name.length;
+    }
+    for (Vote vote : votes.votes()) {
+      size += 2 * Integer.BYTES + vote.prefs.length * Integer.BYTES;
+    }
+
+    final ByteBuffer buffer = ByteBuffer.allocate(size);
+    buffer.putInt(MAGIC);
+    buffer.putLong(fingerprint.ballots()).putLong(fingerprint.maxCvrId())
+        .putLong(fingerprint.checksum());
+    buffer.putInt(names.size());
+    for (byte[] name : names) {
+      buffer.putInt(name.length).put(name);
+    }
+    buffer.putLong(votes.ballotCount());
+    buffer.putInt(votes.countyBallotCounts().size());
+    votes.countyBallotCounts().forEach((county, ballots) -> buffer.putLong(county).putLong(ballots));
+    buffer.putInt(votes.votes().length);
+    for (Vote vote : votes.votes()) {
+      buffer.putInt(vote.n).putInt(vote.prefs.length);
+      for (int pref : vote.prefs) {
+        buffer.putInt(pref);
+      }
+    }
+    return buffer.flip();
+  }
+
+  /**
+   * Decode votes from the cache file format (after the header), mapping the cached candidate
+   * indices onto the given candidate list.
+   */
+  private static IngestedVotes decode(ByteBuffer buffer, List<String> candidates) {
+    final Map<String, Integer> indices = new HashMap<>();
+    for (int i = 0; i < candidates.size(); i++) {
+      indices.put(candidates.get(i), i);
+    }
+
+    // Map each cached candidate to its index in the request, or -1 if it is not a candidate.
+    final int cachedCandidates = buffer.getInt();
+    final String[] names = new String[cachedCandidates];
+    final int[] mapping = new int[cachedCandidates];
+    for (int i = 0; i < cachedCandidates; i++) {
+      final byte[] name = new byte[buffer.getInt()];
+      buffer.get(name);
+      names[i] = new String(name, StandardCharsets.UTF_8);
+      mapping[i] = indices.getOrDefault(names[i], -1);
+    }
+
+    final long ballotCount = buffer.getLong();
+    final Map<Long, Long> countyBallotCounts = new TreeMap<>();
+    for (int i = buffer.getInt(); i > 0; i--) {
+      countyBallotCounts.put(buffer.getLong(), buffer.getLong());
+    }
+
+    final int rankings = buffer.getInt();
+    final WeightedVoteConsolidator consolidator = new WeightedVoteConsolidator(
+        candidates.toArray(String[]::new), rankings);
+    int[] prefs = new int[cachedCandidates];
+    for (int r = 0; r < rankings; r++) {
+      final int count = buffer.getInt();
+      final int length = buffer.getInt();
+      if (prefs.length < length) {
+        prefs = new int[length];
+      }
+      boolean valid = true;
+      for (int i = 0; i < length; i++) {
+        prefs[i] = mapping[buffer.getInt()];
+        valid &= prefs[i] >= 0;
+      }
+      if (!valid) {
+        // Rebuild the ranking by name, so that raire-java's exception names the candidate.
+        final List<String> ranking = new ArrayList<>(length);
+        buffer.position(buffer.position() - length * Integer.BYTES);
+        for (int i = 0; i < length; i++) {
+          ranking.add(names[buffer.getInt()]);
+        }
+        try {
+          consolidator.addVoteNames(ranking.toArray(String[]::new), count);
+        } catch (InvalidCandidateName e) {
+          return new IngestedVotes(ballotCount, new Vote[0], e,
+              Collections.unmodifiableMap(countyBallotCounts));
+        }
+        continue;
+      }
+      consolidator.addVote(prefs, length, count);
+    }
+    return new IngestedVotes(ballotCount, consolidator.getVotes(), null,
+        Collections.unmodifiableMap(countyBallotCounts));
+  }
+
+  /**
+   * Delete the least recently used files until the cache is within its size limit.
+   */
+  private void evict() {
+    final String prefix = "[evict]";
+    while (totalBytes > maxBytes && !files.isEmpty()) {
+      final Path eldest = files.keySet().iterator().next();
+      logger.debug(String.format("%s Evicting %s from the ranking cache.", prefix, eldest));
+      remove(eldest);
+    }
+  }
+
+  /**
+   * Forget a cache file, and delete it, unless it is being read (in which case its last reader
+   * deletes it).
+   */
+  private void remove(Path file) {
+    final Entry entry = files.remove(file);
+    if (entry != null) {
+      totalBytes -= entry.size;
+      if (entry.readers > 0) {
+        entry.removed = true;
+        return;
+      }
+    }
+    delete(file);
+  }
+
+  /**
+   * Delete a cache file.
+   */
+  private void delete(Path file) {
+    final String prefix = "[delete]";
+    try {
+      Files.deleteIfExists(file);
+    } catch (IOException e) {
+      logger.warn(String.format("%s Could not delete ranking cache file %s. %s", prefix, file,
+          e.getMessage()));
+    }
+  }
+
+  /**
+   * Find the files already in the cache directory, in order of their modification times.
+   */
+  private void loadIndex() throws IOException {
+    try (Stream<Path> paths = Files.list(directory)) {
+      final List<Path> existing = paths.filter(p -> p.toString().endsWith(SUFFIX)).toList();
+      final Map<Path, FileTime> times = new HashMap<>();
+      for (Path p : existing) {
+        times.put(p, Files.getLastModifiedTime(p));
+      }
+      for (Path p : existing.stream().sorted((a, b) -> times.get(a).compareTo(times.get(b)))
+          .toList()) {
+        final long size = Files.size(p);
+        files.put(p, new Entry(size));
+        totalBytes += size;
+      }
+    }
+  }
+
+  /**
+   * @return the cache file for the contest with the given name.
+   */
+  private Path fileFor(String contestName) {
+    try {
+      final byte[] hash = MessageDigest.getInstance("SHA-256")
+          .digest(contestName.getBytes(StandardCharsets.UTF_8));
+      return directory.resolve(HexFormat.of().formatHex(hash) + SUFFIX);
+    } catch (NoSuchAlgorithmException e) {
+      // Every Java platform is required to support SHA-256.
+      throw new IllegalStateException(e);
+    }
+  }
+}
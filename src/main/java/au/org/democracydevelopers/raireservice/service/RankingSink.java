@@ -0,0 +1,221 @@
+/*
+Copyright 2024 Democracy Developers
+
+The Raire Service is designed to connect colorado-rla and its associated database to
+the raire assertion generation engine (https://github.com/DemocracyDevelopers/raire-java).
+
+This file is part of raire-service.
+
+raire-service is free software: you can redistribute it and/or modify it under the terms
+of the GNU Affero General Public License as published by the Free Software Foundation, either
+version 3 of the License, or (at your option) any later version.
+
+raire-service is distributed in the hope that it will be useful, but WITHOUT ANY WARRANTY;
+without even the implied warranty of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.
+See the GNU Affero General Public License for more details.
+
+You should have received a copy of the GNU Affero General Public License along with
+raire-service. If not, see <https://www.gnu.org/licenses/>.
+*/
+
+package au.org.democracydevelopers.raireservice.service;
+
+import au.org.democracydevelopers.raire.irv.Vote;
+import au.org.democracydevelopers.raire.util.VoteConsolidator.InvalidCandidateName;
+import au.org.democracydevelopers.raireservice.service.VoteIngestionService.IngestedVotes;
+import au.org.democracydevelopers.raireservice.util.WeightedVoteConsolidator;
+import au.org.democracydevelopers.raireservice.util.WeightedVoteConsolidator.Storage;
+import java.util.Collections;
+import java.util.Map;
+import java.util.TreeMap;
+
+/**
+ * Destination for rankings as they are read from the database. Counts every ranking (in total
+ * and per county), and consolidates rankings until the first invalid candidate name is found.
+ * After that, rankings are only counted, so that the total number of ballots is still available
+ * to the caller. A sink is not thread safe; concurrent readers each use their own sink, and the
+ * sinks are combined with addAll once reading is complete. A sink whose rankings are counted
+ * outside the Java heap, or written to temporary files, must be closed once its result has been
+ * taken.
+ */
+class RankingSink implements AutoCloseable {
+
+  private final String[] candidates;
+
+  private final Storage storage;
+
+  private final WeightedVoteConsolidator consolidator;
+
+  private long ballotCount = 0;
+
+  private InvalidCandidateName invalidCandidateName = null;
+
+  /**
+   * Ballot counts by county ID, not including those for the current county.
+   */
+  private final Map<Long, Long> countyBallotCounts = new TreeMap<>();
+
+  /**
+   * The county of the most recently added ranking, and the number of ballots added for it since
+   * the last ranking from a different county. Rankings arrive grouped (or at least in long runs)
+   * by county, so they are counted here, without boxing, and folded into countyBallotCounts only
+   * when the county changes or the counts are read.
+   */
+  private long currentCounty = 0;
+  private long currentCountyBallots = 0;
+
+  /**
+   * The largest number of distinct rankings for which storage is reserved in advance. Beyond
+   * this, the consolidator grows as needed.
+   */
+  private static final int MAX_PRESIZED_RANKINGS = 1 << 16;
+
+  /**
+   * Construct an empty sink.
+   * @param candidates the candidate names; each ranking must contain only these names.
+   */
+  RankingSink(String[] candidates) {
+    this(candidates, 0);
+  }
+
+  /**
+   * Construct an empty sink, with storage sized for the expected number of ballots. As there can
+   * be no more distinct rankings than ballots, small contests never need to grow their storage.
+   * @param candidates the candidate names; each ranking must contain only these names.
+   * @param expectedBallots the number of ballots expected (0 if not known).
+   */
+  RankingSink(String[] candidates, long expectedBallots) {
+    this(candidates, expectedBallots, Storage.ON_HEAP);
+  }
+
+  /**
+   * Construct an empty sink, as for RankingSink(candidates, expectedBallots), keeping rankings as
+   * configured (outside the Java heap, or partly in temporary files).
+   * @param candidates the candidate names; each ranking must contain only these names.
+   * @param expectedBallots the number of ballots expected (0 if not known).
+   * @param storage where rankings are kept.
+   */
+  RankingSink(String[] candidates, long expectedBallots, Storage storage) {
+    this.candidates = candidates;
+    this.storage = storage;
+    this.consolidator = new WeightedVoteConsolidator(candidates,
+        (int) Math.min(expectedBallots, MAX_PRESIZED_RANKINGS), storage);
+  }
+
+  /**
+   * @return a new, empty sink for the same candidates and storage as this one, for reading part
+   * of the CVRs to be combined into this sink with addAll.
+   */
+  RankingSink newPart() {
+    return new RankingSink(candidates, 0, storage);
+  }
+
+  /**
+   * Add a ranking.
+   * @param countyId the county in which the ballots were cast.
+   * @param ranking the ranked candidate names, most preferred first.
+   * @param count the number of ballots with this ranking.
+   */
+  void add(long countyId, String[] ranking, int count) {
+    ballotCount += count;
+    countBallots(countyId, count);
+    if (invalidCandidateName == null) {
+      try {
+        consolidator.addVoteNames(ranking, count);
+      } catch (InvalidCandidateName ex) {
+        invalidCandidateName = ex;
+      }
+    }
+  }
+
+  /**
+   * Add a ranking that has already been mapped to candidate indices (and so is known to contain
+   * only valid candidates).
+   * @param countyId the county in which the ballots were cast.
+   * @param preferences the ranked candidate indices, most preferred first. Not retained.
+   * @param length the number of preferences in the ranking.
+   * @param count the number of ballots with this ranking.
+   */
+  void addIndices(long countyId, int[] preferences, int length, int count) {
+    ballotCount += count;
+    countBallots(countyId, count);
+    if (invalidCandidateName == null) {
+      consolidator.addVote(preferences, length, count);
+    }
+  }
+
+  /**
+   * Count ballots for a county, folding the counts for the previous county into
+   * countyBallotCounts if the county has changed.
+   * @param countyId the county in which the ballots were cast.
+   * @param count the number of ballots.
+   */
+  private void countBallots(long countyId, int count) {
+    if (countyId != currentCounty) {
+      flushCountyBallots();
+      currentCounty = countyId;
+    }
+    currentCountyBallots += count;
+  }
+
+  /**
+   * Fold the ballots counted for the current county into countyBallotCounts.
+   */
+  private void flushCountyBallots() {
+    if (currentCountyBallots > 0) {
+      countyBallotCounts.merge(currentCounty, currentCountyBallots, Long::sum);
+      currentCountyBallots = 0;
+    }
+  }
+
+  /**
+   * Add everything collected by another sink (for the same candidates) to this one. If both sinks
+   * have found an invalid candidate name, this sink's is kept.
+   * @param other the sink to add.
+   */
+  void addAll(RankingSink other) {
+    ballotCount += other.ballotCount;
+    other.flushCountyBallots();
+    other.countyBallotCounts.forEach((county, n) -> countyBallotCounts.merge(county, n, Long::sum));
+    if (invalidCandidateName == null) {
+      invalidCandidateName = other.invalidCandidateName;
+    }
+    if (invalidCandidateName == null) {
+      consolidator.addAll(other.consolidator);
+    }
+  }
+
+  /**
+   * @return the number of ballots added so far.
+   */
+  long getBallotCount() {
+    return ballotCount;
+  }
+
+  /**
+   * @return the number of ballots added so far, by county ID.
+   */
+  Map<Long, Long> getCountyBallotCounts() {
+    flushCountyBallots();
+    return Collections.unmodifiableMap(countyBallotCounts);
+  }
+
+  /**
+   * @return the ballot count, consolidated votes (none, if an invalid candidate name was found),
+   * the invalid candidate name (if any) and per-county ballot counts.
+   */
+  IngestedVotes result() {
+    return new IngestedVotes(ballotCount,
+        invalidCandidateName == null ? consolidator.getVotes() : new Vote[0],
+        invalidCandidateName, getCountyBallotCounts());
+  }
+
+  /**
+   * Release any storage held outside the Java heap, and delete any temporary files. The sink may
+   * not be used afterwards.
+   */
+  @Override
+  public void close() {
+    consolidator.close();
+  }
+}
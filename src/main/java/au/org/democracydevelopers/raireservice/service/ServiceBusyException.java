@@ -0,0 +1,44 @@
+/*
+Copyright 2024 Democracy Developers
+
+The Raire Service is designed to connect colorado-rla and its associated database to
+the raire assertion generation engine (https://github.com/DemocracyDevelopers/raire-java).
+
+This file is part of raire-service.
+
+raire-service is free software: you can redistribute it and/or modify it under the terms
+of the GNU Affero General Public License as published by the Free Software Foundation, either
+version 3 of the License, or (at your option) any later version.
+
+raire-service is distributed in the hope that it will be useful, but WITHOUT ANY WARRANTY;
+without even the implied warranty of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.
+See the GNU Affero General Public License for more details.
+
+You should have received a copy of the GNU Affero General Public License along with
+raire-service. If not, see <https://www.gnu.org/licenses/>.
+*/
+
+package au.org.democracydevelopers.raireservice.service;
+
+/**
+ * Exception indicating that assertion generation was refused because the service is too busy
+ * (see SolveAdmission) or its job queue is full (see GenerationJobService). It carries an
+ * estimate of when the request is worth retrying, which ControllerExceptionHandler returns in the
+ * Retry-After header of a TOO_MANY_REQUESTS response.
+ */
+public class ServiceBusyException extends RaireServiceException {
+
+  /**
+   * The estimated number of seconds until there is room for the request.
+   */
+  public final long retryAfterSeconds;
+
+  /**
+   * @param message a human-readable message for the exception.
+   * @param retryAfterSeconds the estimated number of seconds until there is room for the request.
+   */
+  public ServiceBusyException(String message, long retryAfterSeconds) {
+    super(message, RaireErrorCode.SERVICE_BUSY);
+    this.retryAfterSeconds = retryAfterSeconds;
+  }
+}
@@ -0,0 +1,187 @@
+/*
+Copyright 2024 Democracy Developers
+
+The Raire Service is designed to connect colorado-rla and its associated database to
+the raire assertion generation engine (https://github.com/DemocracyDevelopers/raire-java).
+
+This file is part of raire-service.
+
+raire-service is free software: you can redistribute it and/or modify it under the terms
+of the GNU Affero General Public License as published by the Free Software Foundation, either
+version 3 of the License, or (at your option) any later version.
+
+raire-service is distributed in the hope that it will be useful, but WITHOUT ANY WARRANTY;
+without even the implied warranty of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.
+See the GNU Affero General Public License for more details.
+
+You should have received a copy of the GNU Affero General Public License along with
+raire-service. If not, see <https://www.gnu.org/licenses/>.
+*/
+
+package au.org.democracydevelopers.raireservice.service;
+
+import au.org.democracydevelopers.raireservice.persistence.repository.ContestRepository;
+import jakarta.annotation.PreDestroy;
+import java.util.List;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.stereotype.Component;
+
+/**
+ * Builds vote snapshots in the background for IRV contests that do not yet have assertions, so
+ * that when colorado-rla asks for their assertions (typically some time after the CVRs are
+ * uploaded), the votes are already consolidated and generation goes straight to raire-java.
+ * Contests are taken to be those whose county level contests are all IRV (as for
+ * ContestRepository.isAllIRV) and that have no generate assertions summary.
+ * The warmer is optional (raire.warmer.enabled), and needs vote snapshots to be enabled. It runs
+ * periodically on a single low-priority thread, and keeps its load on the database down by
+ * refreshing one county level contest at a time, pausing between contests, and warming a limited
+ * number of contests per run. It stops as soon as an assertion generation request starts, and
+ * starts again only once no request has started for a quiet period (see InteractiveActivity).
+ */
+@Component
+public class SnapshotWarmer {
+
+  private final static Logger logger = LoggerFactory.getLogger(SnapshotWarmer.class);
+
+  private final ContestRepository contestRepository;
+
+  private final VoteSnapshotService voteSnapshotService;
+
+  private final InteractiveActivity interactiveActivity;
+
+  private final long pauseMillis;
+
+  private final long quietMillis;
+
+  private final int maxContests;
+
+  /**
+   * The thread on which the warmer runs. Null if the warmer is not in use.
+   */
+  private final ScheduledExecutorService executor;
+
+  /**
+   * All args constructor.
+   * @param contestRepository for finding contests that do not yet have assertions.
+   * @param voteSnapshotService for building the contests' snapshots.
+   * @param interactiveActivity for detecting assertion generation requests.
+   * @param enabled whether the warmer runs (raire.warmer.enabled), false by default.
+   * @param intervalSeconds the time between the end of one run and the start of the next
+   *                        (raire.warmer.interval-seconds).
+   * @param pauseMillis the pause between contests (raire.warmer.pause-millis).
+   * @param quietMillis how long after the most recent request started before the warmer runs
+   *                    (raire.warmer.quiet-millis).
+   * @param maxContests the largest number of contests warmed in one run
+   *                    (raire.warmer.max-contests).
+   */
+  public SnapshotWarmer(ContestRepository contestRepository,
+      VoteSnapshotService voteSnapshotService, InteractiveActivity interactiveActivity,
+      @Value("${raire.warmer.enabled:false}") boolean enabled,
+      @Value("${raire.warmer.interval-seconds:300}") long intervalSeconds,
+      @Value("${raire.warmer.pause-millis:1000}") long pauseMillis,
+      @Value("${raire.warmer.quiet-millis:30000}") long quietMillis,
+      @Value("${raire.warmer.max-contests:10}") int maxContests) {
+    final String prefix = "[all args constructor]";
+    this.contestRepository = contestRepository;
+    this.voteSnapshotService = voteSnapshotService;
+    this.interactiveActivity = interactiveActivity;
+    this.pauseMillis = pauseMillis;
+    this.quietMillis = quietMillis;
+    this.maxContests = maxContests;
+
+    if (enabled && !voteSnapshotService.isEnabled()) {
+      logger.warn(String.format("%s The snapshot warmer is enabled, but vote snapshots are not. " +
+          "The warmer will not run.", prefix));
+    }
+    final boolean inUse = enabled && voteSnapshotService.isEnabled();
+    logger.debug(String.format("%s Snapshot warmer %s, running every %d seconds.", prefix,
+        inUse ? "enabled" : "disabled", intervalSeconds));
+
+    if (inUse) {
+      executor = Executors.newSingleThreadScheduledExecutor(r -> {
+        final Thread t = new Thread(r, "snapshot-warmer");
+        t.setDaemon(true);
+        t.setPriority(Thread.MIN_PRIORITY);
+        return t;
+      });
+      executor.scheduleWithFixedDelay(this::runQuietly, intervalSeconds, intervalSeconds,
+          TimeUnit.SECONDS);
+    } else {
+      executor = null;
+    }
+  }
+
+  /**
+   * Stop the warmer when the application stops.
+   */
+  @PreDestroy
+  public void shutdown() {
+    if (executor != null) {
+      executor.shutdownNow();
+    }
+  }
+
+  /**
+   * Build or update the snapshots of contests that do not yet have assertions, up to the
+   * configured number of contests, stopping if an assertion generation request starts. A contest
+   * whose snapshots cannot be built (for example because of malformed CVRs) is logged and
+   * skipped; the error will be reported when assertions are requested for it.
+   * @return the number of contests for which at least one snapshot was built or updated.
+   */
+  public int warm() {
+    final String prefix = "[warm]";
+    if (!interactiveActivity.isQuiet(quietMillis)) {
+      logger.debug(String.format("%s Assertion generation requests are active; not warming.",
+          prefix));
+      return 0;
+    }
+
+    final List<String> contestNames = contestRepository.findIRVContestNamesWithoutSummary();
+    logger.debug(String.format("%s %d IRV contests have no assertions yet.", prefix,
+        contestNames.size()));
+
+    int warmed = 0;
+    int visited = 0;
+    for (String contestName : contestNames) {
+      if (visited == maxContests || !interactiveActivity.isQuiet(quietMillis)) {
+        break;
+      }
+      visited++;
+      try {
+        if (voteSnapshotService.warm(contestName, () -> !interactiveActivity.isQuiet(quietMillis))
+            > 0) {
+          warmed++;
+          Thread.sleep(pauseMillis);
+        }
+      } catch (InterruptedException e) {
+        Thread.currentThread().interrupt();
+        break;
+      } catch (RuntimeException e) {
+        logger.warn(String.format("%s Could not build vote snapshots for contest %s. %s", prefix,
+            contestName, e.getMessage()));
+      }
+    }
+
+    logger.debug(String.format("%s Built or updated vote snapshots for %d of %d contests " +
+        "examined.", prefix, warmed, visited));
+    return warmed;
+  }
+
+  /**
+   * Run the warmer on its thread, logging (rather than propagating) any error, so that later runs
+   * are not cancelled.
+   */
+  private void runQuietly() {
+    final String prefix = "[runQuietly]";
+    try {
+      warm();
+    } catch (RuntimeException e) {
+      logger.error(String.format("%s Snapshot warming failed. %s", prefix, e.getMessage()));
+    }
+  }
+}
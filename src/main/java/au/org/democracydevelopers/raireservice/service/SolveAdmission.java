@@ -0,0 +1,417 @@
+/*
+Copyright 2024 Democracy Developers
+
+The Raire Service is designed to connect colorado-rla and its associated database to
+the raire assertion generation engine (https://github.com/DemocracyDevelopers/raire-java).
+
+This file is part of raire-service.
+
+raire-service is free software: you can redistribute it and/or modify it under the terms
+of the GNU Affero General Public License as published by the Free Software Foundation, either
+version 3 of the License, or (at your option) any later version.
+
+raire-service is distributed in the hope that it will be useful, but WITHOUT ANY WARRANTY;
+without even the implied warranty of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.
+See the GNU Affero General Public License for more details.
+
+You should have received a copy of the GNU Affero General Public License along with
+raire-service. If not, see <https://www.gnu.org/licenses/>.
+*/
+
+package au.org.democracydevelopers.raireservice.service;
+
+import io.micrometer.core.instrument.Counter;
+import io.micrometer.core.instrument.Gauge;
+import io.micrometer.core.instrument.MeterRegistry;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.stereotype.Component;
+
+/**
+ * Admission control for assertion generation, which is CPU bound: without it, a burst of requests
+ * would all run at once, slowing each other down until every one reached its time limit. At most
+ * a configured number of requests (by default, one per available processor) generate assertions
+ * at once. Interactive requests beyond that wait in a small bounded queue, and any more are
+ * refused with a ServiceBusyException, estimating when to retry from the time the queue is
+ * predicted to take to drain. Interactive requests reserve their place (see reserve) before they
+ * are handed to another thread, so that refusal does not depend on that thread being available.
+ * Generation jobs, which have their own queue (see GenerationJobService), wait for as long as it
+ * takes. A permit may be shared with the thread running raire-java (see Permit.retain), so that
+ * it is held until the solve really ends, even if the request it was serving ended first.
+ * The numbers of requests generating and waiting are reported in the raire.admission.active and
+ * raire.admission.waiting metrics, and refusals in raire.admission.rejected.
+ */
+@Component
+public class SolveAdmission {
+
+  private final static Logger logger = LoggerFactory.getLogger(SolveAdmission.class);
+
+  /**
+   * The assumed time taken to generate assertions, in seconds, until one has been measured.
+   */
+  private static final double INITIAL_ESTIMATE_SECONDS = 5;
+
+  /**
+   * The weight given to each new measurement in the moving average of generation time.
+   */
+  private static final double SMOOTHING = 0.2;
+
+  private final boolean enabled;
+
+  /**
+   * The number of requests that may generate assertions at once.
+   */
+  private final int maxConcurrent;
+
+  /**
+   * The number of interactive requests that may wait for a permit.
+   */
+  private final int maxWaiting;
+
+  /**
+   * Permits to generate assertions, handed out in order of request: the semaphore is fair, a
+   * request takes a free permit at once only if none are waiting (see tryAcquire), and a waiting
+   * request keeps its place until it is admitted or cancelled (see await).
+   */
+  private final Semaphore permits;
+
+  /**
+   * The number of requests waiting for a permit, of each kind.
+   */
+  private final AtomicInteger waitingInteractive = new AtomicInteger();
+  private final AtomicInteger waitingJobs = new AtomicInteger();
+
+  /**
+   * Exponentially weighted moving average of the time for which permits are held, in seconds.
+   */
+  private double averageSeconds = INITIAL_ESTIMATE_SECONDS;
+
+  private final Counter rejected;
+
+  /**
+   * A permit to generate assertions. A permit may have several holders (see retain), and is
+   * released once every holder has closed it.
+   */
+  public static final class Permit implements AutoCloseable {
+
+    private final Runnable release;
+
+    /**
+     * The number of holders that have not yet closed the permit.
+     */
+    private final AtomicInteger holders = new AtomicInteger(1);
+
+    private Permit(Runnable release) {
+      this.release = release;
+    }
+
+    /**
+     * @return a permit that limits nothing, for work not subject to admission control.
+     */
+    public static Permit none() {
+      return new Permit(() -> {});
+    }
+
+    /**
+     * Add a holder, who must close the permit in turn, such as a thread that may outlive the
+     * request the permit was granted to.
+     * @return this permit.
+     */
+    public Permit retain() {
+      holders.incrementAndGet();
+      return this;
+    }
+
+    /**
+     * Close the permit for one holder, releasing it if no holders remain.
+     */
+    @Override
+    public void close() {
+      if (holders.decrementAndGet() == 0) {
+        release.run();
+      }
+    }
+  }
+
+  /**
+   * An interactive request's place in admission: either a permit, already acquired, or a place
+   * in the queue of waiting requests. Closing a reservation that has not been turned into a
+   * permit gives up its place.
+   */
+  public final class Reservation implements AutoCloseable {
+
+    private final String contestName;
+
+    /**
+     * The acquired permit, or null if the reservation is a place in the queue.
+     */
+    private final Permit permit;
+
+    /**
+     * Set once the reservation has been turned into a permit or given up.
+     */
+    private final AtomicBoolean used = new AtomicBoolean();
+
+    private Reservation(String contestName, Permit permit) {
+      this.contestName = contestName;
+      this.permit = permit;
+    }
+
+    /**
+     * Turn the reservation into a permit, waiting for one if the reservation is a place in the
+     * queue. The place is given up whether or not a permit is acquired.
+     * @param token for cancelling the wait.
+     * @return a permit, to be closed when generation is complete.
+     * @throws RaireServiceException with error code CANCELLED if cancelled while waiting, or if
+     * the reservation was given up because the request was cancelled.
+     * @throws IllegalStateException if the reservation has already been used or given up.
+     */
+    public Permit permit(CancellationToken token) throws RaireServiceException {
+      if (!used.compareAndSet(false, true)) {
+        token.throwIfCancelled(contestName);
+        throw new IllegalStateException("Admission reservation for contest " + contestName +
+            " has already been used.");
+      }
+      if (permit != null) {
+        return permit;
+      }
+      try {
+        return await(contestName, token);
+      } finally {
+        waitingInteractive.decrementAndGet();
+      }
+    }
+
+    /**
+     * Give up the reservation, if it has not been turned into a permit.
+     */
+    @Override
+    public void close() {
+      if (used.compareAndSet(false, true)) {
+        if (permit != null) {
+          permit.close();
+        } else {
+          waitingInteractive.decrementAndGet();
+        }
+      }
+    }
+  }
+
+  /**
+   * All args constructor.
+   * @param enabled whether admission is controlled (raire.admission.enabled), true by default.
+   * @param configuredMaxConcurrent the number of requests that may generate assertions at once
+   *                                (raire.admission.max-concurrent), or 0 (the default) for one
+   *                                per available processor.
+   * @param maxWaiting the number of interactive requests that may wait
+   *                   (raire.admission.max-waiting), 4 by default.
+   * @param meterRegistry for reporting admission metrics.
+   */
+  public SolveAdmission(@Value("${raire.admission.enabled:true}") boolean enabled,
+      @Value("${raire.admission.max-concurrent:0}") int configuredMaxConcurrent,
+      @Value("${raire.admission.max-waiting:4}") int maxWaiting, MeterRegistry meterRegistry) {
+    final String prefix = "[all args constructor]";
+    this.enabled = enabled;
+    this.maxConcurrent = configuredMaxConcurrent > 0 ? configuredMaxConcurrent
+        : Runtime.getRuntime().availableProcessors();
+    this.maxWaiting = Math.max(0, maxWaiting);
+    this.permits = new Semaphore(maxConcurrent, true);
+
+    Gauge.builder("raire.admission.active", () -> maxConcurrent - permits.availablePermits())
+        .description("Requests generating assertions")
+        .register(meterRegistry);
+    Gauge.builder("raire.admission.waiting",
+            () -> waitingInteractive.get() + waitingJobs.get())
+        .description("Requests waiting to generate assertions")
+        .register(meterRegistry);
+    rejected = Counter.builder("raire.admission.rejected")
+        .description("Assertion generation requests refused because the service was busy")
+        .register(meterRegistry);
+
+    logger.debug(String.format("%s Admission control %s: at most %d requests generating " +
+        "assertions, with up to %d waiting.", prefix, enabled ? "enabled" : "disabled",
+        maxConcurrent, this.maxWaiting));
+  }
+
+  /**
+   * Admit an interactive request, waiting for a permit if necessary.
+   * @param contestName the contest for which assertions are to be generated, for reporting.
+   * @param token for cancelling the wait.
+   * @return a permit, to be closed when generation is complete.
+   * @throws ServiceBusyException if the queue of waiting requests is full.
+   * @throws RaireServiceException with error code CANCELLED if cancelled while waiting.
+   */
+  public Permit admit(String contestName, CancellationToken token) throws RaireServiceException {
+    try (Reservation reservation = reserve(contestName)) {
+      return reservation.permit(token);
+    }
+  }
+
+  /**
+   * Reserve an interactive request's place without waiting: a permit if one is free, or else a
+   * place in the queue of waiting requests.
+   * @param contestName the contest for which assertions are to be generated, for reporting.
+   * @return the reservation, to be turned into a permit (see Reservation.permit) or closed.
+   * @throws ServiceBusyException if the queue of waiting requests is full.
+   */
+  public Reservation reserve(String contestName) throws ServiceBusyException {
+    final String prefix = "[reserve]";
+    if (!enabled) {
+      return new Reservation(contestName, Permit.none());
+    }
+    if (tryAcquire()) {
+      return new Reservation(contestName, permit());
+    }
+
+    if (waitingInteractive.incrementAndGet() > maxWaiting) {
+      waitingInteractive.decrementAndGet();
+      rejected.increment();
+      final long retryAfter = retryAfterSeconds();
+      final String msg = String.format("%s Too many assertion generation requests are in " +
+          "progress to accept one for contest %s. Try again in %d seconds.", prefix, contestName,
+          retryAfter);
+      logger.warn(msg);
+      throw new ServiceBusyException(msg, retryAfter);
+    }
+    return new Reservation(contestName, null);
+  }
+
+  /**
+   * Admit a generation job, waiting for a permit for as long as it takes.
+   * @param contestName the contest for which assertions are to be generated, for reporting.
+   * @param token for cancelling the wait.
+   * @return a permit, to be closed when generation is complete.
+   * @throws RaireServiceException with error code CANCELLED if cancelled while waiting.
+   */
+  public Permit admitJob(String contestName, CancellationToken token)
+      throws RaireServiceException {
+    if (!enabled) {
+      return Permit.none();
+    }
+    if (tryAcquire()) {
+      return permit();
+    }
+    waitingJobs.incrementAndGet();
+    try {
+      return await(contestName, token);
+    } finally {
+      waitingJobs.decrementAndGet();
+    }
+  }
+
+  /**
+   * @return whether admission is controlled (raire.admission.enabled).
+   */
+  public boolean isEnabled() {
+    return enabled;
+  }
+
+  /**
+   * @return the number of requests that may generate assertions at once.
+   */
+  public int getMaxConcurrent() {
+    return maxConcurrent;
+  }
+
+  /**
+   * @return the number of interactive requests that may be admitted or waiting at once.
+   */
+  public int getInteractiveCapacity() {
+    return maxConcurrent + maxWaiting;
+  }
+
+  /**
+   * The estimated time until a newly queued request would start: the time for the requests ahead
+   * of it to drain through the permits, at the average generation time.
+   * @return the estimate, in whole seconds, at least 1.
+   */
+  public long retryAfterSeconds() {
+    final int ahead = waitingInteractive.get() + waitingJobs.get() + 1;
+    final double seconds;
+    synchronized (this) {
+      seconds = averageSeconds * ahead / maxConcurrent;
+    }
+    return Math.max(1, (long) Math.ceil(seconds));
+  }
+
+  /**
+   * Take a permit if one is free and no request is waiting for one. Unlike the semaphore's
+   * tryAcquire(), which takes a free permit even ahead of waiting requests, this respects the
+   * semaphore's fairness.
+   * @return true if a permit was taken.
+   */
+  private boolean tryAcquire() {
+    try {
+      return permits.tryAcquire(0, TimeUnit.MILLISECONDS);
+    } catch (InterruptedException e) {
+      Thread.currentThread().interrupt();
+      return false;
+    }
+  }
+
+  /**
+   * Wait for a permit, in order of request. The wait is a single blocking acquire, so that the
+   * request keeps its place in the semaphore's queue; cancelling the token interrupts it.
+   */
+  private Permit await(String contestName, CancellationToken token)
+      throws RaireServiceException {
+    final String prefix = "[await]";
+    logger.debug(String.format("%s Request for contest %s is waiting to generate assertions.",
+        prefix, contestName));
+    final Thread waiter = Thread.currentThread();
+    final AtomicBoolean interrupted = new AtomicBoolean();
+    final Runnable interrupt = () -> {
+      interrupted.set(true);
+      waiter.interrupt();
+    };
+
+    boolean acquired = false;
+    token.onCancel(interrupt);
+    try {
+      permits.acquire();
+      acquired = true;
+    } catch (InterruptedException e) {
+      if (!interrupted.get()) {
+        // Interrupted other than by cancellation, such as at shutdown.
+        Thread.currentThread().interrupt();
+        token.cancel("the request was interrupted");
+      }
+    } finally {
+      token.removeOnCancel(interrupt);
+    }
+
+    // Once the action is removed, it cannot interrupt this thread again, so the interrupt it may
+    // have made can safely be cleared. A permit acquired just as the request was cancelled is
+    // given back.
+    if (interrupted.get()) {
+      Thread.interrupted();
+      if (acquired) {
+        permits.release();
+      }
+      throw token.cancelled(contestName);
+    }
+    if (!acquired) {
+      throw token.cancelled(contestName);
+    }
+    return permit();
+  }
+
+  /**
+   * @return a permit, already acquired, that records how long it was held when released.
+   */
+  private Permit permit() {
+    final long start = System.nanoTime();
+    return new Permit(() -> {
+      final double seconds = (System.nanoTime() - start) / 1e9;
+      synchronized (this) {
+        averageSeconds = (1 - SMOOTHING) * averageSeconds + SMOOTHING * seconds;
+      }
+      permits.release();
+    });
+  }
+}
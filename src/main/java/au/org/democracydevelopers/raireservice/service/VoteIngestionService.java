@@ -0,0 +1,506 @@
+/*
+Copyright 2024 Democracy Developers
+
+The Raire Service is designed to connect colorado-rla and its associated database to
+the raire assertion generation engine (https://github.com/DemocracyDevelopers/raire-java).
+
+This file is part of raire-service.
+
+raire-service is free software: you can redistribute it and/or modify it under the terms
+of the GNU Affero General Public License as published by the Free Software Foundation, either
+version 3 of the License, or (at your option) any later version.
+
+raire-service is distributed in the hope that it will be useful, but WITHOUT ANY WARRANTY;
+without even the implied warranty of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.
+See the GNU Affero General Public License for more details.
+
+You should have received a copy of the GNU Affero General Public License along with
+raire-service. If not, see <https://www.gnu.org/licenses/>.
+*/
+
+package au.org.democracydevelopers.raireservice.service;
+
+import au.org.democracydevelopers.raire.irv.Vote;
+import au.org.democracydevelopers.raire.util.VoteConsolidator.InvalidCandidateName;
+import au.org.democracydevelopers.raireservice.persistence.converters.CandidateByteDictionary;
+import au.org.democracydevelopers.raireservice.persistence.converters.CandidateNameDictionary;
+import au.org.democracydevelopers.raireservice.persistence.converters.ChoicesByteDecoder;
+import au.org.democracydevelopers.raireservice.persistence.converters.StringArrayConverter;
+import au.org.democracydevelopers.raireservice.persistence.converters.StringArrayConverter.DictionaryScope;
+import au.org.democracydevelopers.raireservice.persistence.entity.Contest;
+import au.org.democracydevelopers.raireservice.persistence.repository.CVRContestInfoRepository;
+import au.org.democracydevelopers.raireservice.persistence.repository.CVRContestInfoRepository.CountyChoices;
+import au.org.democracydevelopers.raireservice.persistence.repository.CVRContestInfoRepository.RankingCount;
+import au.org.democracydevelopers.raireservice.persistence.repository.CVRContestInfoRepositoryCustom.ChoiceBytesHandler;
+import au.org.democracydevelopers.raireservice.persistence.repository.ContestRepository;
+import au.org.democracydevelopers.raireservice.request.GenerateAssertionsRequest;
+import au.org.democracydevelopers.raireservice.util.OffHeapLongIntHashMap;
+import au.org.democracydevelopers.raireservice.util.WeightedVoteConsolidator.Storage;
+import io.micrometer.core.instrument.Gauge;
+import io.micrometer.core.instrument.MeterRegistry;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Path;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.TreeMap;
+import java.util.function.BiConsumer;
+import java.util.stream.Stream;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.stereotype.Service;
+import org.springframework.transaction.annotation.Transactional;
+
+/**
+ * This class collects the CVR vote data for a contest from the colorado-rla database and
+ * consolidates it into raire-java Votes, ready for assertion generation. How the data is read
+ * from the database is determined by the configured ingestion mode (raire.ingestion.mode):
+ * - LIST reads each county's rankings into memory, then consolidates them, in parallel for
+ *   large counties (see ParallelConsolidator).
+ * - STREAM (the default) reads rankings for all counties in a single query, through a
+ *   forward-only cursor, adding each one to the consolidator as it arrives, so that memory use
+ *   scales with the number of unique rankings rather than the number of ballots.
+ * - GROUPED has the database count the CVRs having each distinct choices entry, so that only one
+ *   row per distinct entry is transferred and parsed. Large numbers of distinct entries are
+ *   parsed and consolidated in parallel.
+ * - PARALLEL_SCAN splits large contests' CVRs by CVR ID and reads the parts concurrently on
+ *   several connections (see ParallelCVRScanner). Where parallel scanning is disabled, or the
+ *   contest is too small to benefit, this falls back to STREAM.
+ * - PIPELINED reads, parses and consolidates rankings on separate threads, with bounded queues
+ *   between them (see PipelinedCVRReader), so that the database connection is not left idle
+ *   while rankings are parsed.
+ * - BYTES reads each choices entry as raw UTF-8 bytes and decodes it directly into candidate
+ *   indices (see ChoicesByteDecoder), so that no String or String[] is created per CVR. Entries
+ *   that cannot be decoded this way are converted as for the other modes.
+ * - COPY decodes choices entries as for BYTES, but reads them with Postgres's COPY protocol
+ *   rather than through a query result set.
+ * - DB_INDEXED has the database map each candidate name to its index in the request's candidate
+ *   list, and count the resulting rankings, so that no names are compared in Java. Rankings
+ *   containing a name that is not a candidate are flagged by the query itself.
+ * All modes consolidate with the same WeightedVoteConsolidator, so they produce identical votes,
+ * and all of them report the number of ballots found in each county.
+ * Vote counts and invalid candidate names are reported back to the caller rather than being
+ * checked here, so that the caller can decide which error takes precedence.
+ */
+@Service
+public class VoteIngestionService {
+
+  private final static Logger logger = LoggerFactory.getLogger(VoteIngestionService.class);
+
+  /**
+   * The ways in which CVR vote data can be read from the database.
+   */
+  public enum IngestionMode {
+
+    /**
+     * Read all rankings for each county level contest into a list, then consolidate them.
+     */
+    LIST,
+
+    /**
+     * Stream rankings for all counties from the database in one query, consolidating each one as
+     * it is read.
+     */
+    STREAM,
+
+    /**
+     * Retrieve each distinct choices entry with its CVR count, as aggregated by the database.
+     */
+    GROUPED,
+
+    /**
+     * Stream rankings in parts, concurrently, on several connections, consolidating each part
+     * separately and combining the results.
+     */
+    PARALLEL_SCAN,
+
+    /**
+     * Stream raw choices entries from the database, parsing and consolidating them on separate
+     * threads.
+     */
+    PIPELINED,
+
+    /**
+     * Stream choices entries as raw bytes, decoding them directly into candidate indices.
+     */
+    BYTES,
+
+    /**
+     * Read choices entries as raw bytes through COPY ... TO STDOUT, decoding them directly into
+     * candidate indices.
+     */
+    COPY,
+
+    /**
+     * Retrieve each distinct ranking as an array of candidate indices, with its CVR count, as
+     * mapped and aggregated by the database.
+     */
+    DB_INDEXED
+  }
+
+  /**
+   * The outcome of collecting the votes for a contest.
+   * @param ballotCount the number of ballots (CVRs) found for the contest.
+   * @param votes the consolidated votes, one per unique ranking, with their counts.
+   * @param invalidCandidateName the first ranking found to contain a name that is not in the
+   *                             request's candidate list, or null if all rankings were valid.
+   * @param countyBallotCounts the number of ballots found in each county, by county ID. Counties
+   *                           with no ballots are absent.
+   */
+  public record IngestedVotes(long ballotCount, Vote[] votes,
+                              InvalidCandidateName invalidCandidateName,
+                              Map<Long, Long> countyBallotCounts) {}
+
+  private final CVRContestInfoRepository cvrContestInfoRepository;
+
+  private final ContestRepository contestRepository;
+
+  private final ParallelCVRScanner parallelScanner;
+
+  private final PipelinedCVRReader pipelinedReader;
+
+  private final ParallelConsolidator parallelConsolidator;
+
+  private final IngestionMode mode;
+
+  /**
+   * Whether rankings are counted outside the Java heap during ingestion.
+   */
+  private final boolean offHeap;
+
+  /**
+   * The number of distinct rankings held in memory during ingestion beyond which they are written
+   * to temporary files (0 to hold them all in memory), unless the request sets its own.
+   */
+  private final int spillThreshold;
+
+  /**
+   * The smallest in-memory ranking threshold a request may set. A smaller (positive) threshold is
+   * raised to this, so that a request cannot have rankings written to very many tiny files.
+   */
+  private final int minSpillThreshold;
+
+  /**
+   * The directory for temporary files of rankings.
+   */
+  private final Path spillDirectory;
+
+  /**
+   * Converter for choices entries retrieved in their raw database form (GROUPED and BYTES modes).
+   */
+  private final StringArrayConverter choicesConverter = new StringArrayConverter();
+
+  /**
+   * All args constructor.
+   * @param cvrContestInfoRepository for extracting CVR vote data from the database.
+   * @param contestRepository for extraction county level contest details (IDs) from the database.
+   * @param parallelScanner for reading CVRs on several connections (PARALLEL_SCAN mode).
+   * @param pipelinedReader for reading, parsing and consolidating CVRs concurrently (PIPELINED
+   *                        mode).
+   * @param parallelConsolidator for consolidating rankings held in memory on several threads
+   *                             (LIST and GROUPED modes).
+   * @param meterRegistry for reporting the storage used outside the Java heap.
+   * @param mode the ingestion mode to use (raire.ingestion.mode), STREAM by default.
+   * @param offHeap whether rankings are counted outside the Java heap during ingestion
+   *                (raire.ingestion.off-heap), false by default.
+   * @param spillThreshold the number of distinct rankings held in memory during ingestion beyond
+   *                       which they are written to temporary files
+   *                       (raire.ingestion.spill.max-rankings), 0 (never) by default.
+   * @param minSpillThreshold the smallest positive in-memory ranking threshold that a request may
+   *                          set (raire.ingestion.spill.min-rankings), 10000 by default.
+   * @param spillDirectory the directory for temporary files of rankings
+   *                       (raire.ingestion.spill.directory), the system temporary directory by
+   *                       default.
+   */
+  public VoteIngestionService(CVRContestInfoRepository cvrContestInfoRepository,
+      ContestRepository contestRepository, ParallelCVRScanner parallelScanner,
+      PipelinedCVRReader pipelinedReader, ParallelConsolidator parallelConsolidator,
+      MeterRegistry meterRegistry,
+      @Value("${raire.ingestion.mode:STREAM}") IngestionMode mode,
+      @Value("${raire.ingestion.off-heap:false}") boolean offHeap,
+      @Value("${raire.ingestion.spill.max-rankings:0}") int spillThreshold,
+      @Value("${raire.ingestion.spill.min-rankings:10000}") int minSpillThreshold,
+      @Value("${raire.ingestion.spill.directory:${java.io.tmpdir}}") Path spillDirectory) {
+    this.cvrContestInfoRepository = cvrContestInfoRepository;
+    this.contestRepository = contestRepository;
+    this.parallelScanner = parallelScanner;
+    this.pipelinedReader = pipelinedReader;
+    this.parallelConsolidator = parallelConsolidator;
+    this.mode = mode;
+    this.offHeap = offHeap;
+    this.spillThreshold = spillThreshold;
+    this.minSpillThreshold = minSpillThreshold;
+    this.spillDirectory = spillDirectory;
+
+    Gauge.builder("raire.ingestion.offheap.bytes", OffHeapLongIntHashMap::allocatedBytes)
+        .description("Bytes held outside the Java heap by live maps counting rankings. Buffers " +
+            "of closed maps that are not yet garbage collected are not included.")
+        .baseUnit("bytes")
+        .register(meterRegistry);
+  }
+
+  /**
+   * Count the CVRs for the contest named in the request, in each of its county level contests,
+   * without reading any vote data. This is cheap compared to ingestion, so it can be used to
+   * reject requests before ingestion starts, and to size ingestion's storage.
+   * @param request Assertions generation request specifying the contest name.
+   * @return the number of CVRs in each county having at least one, by county ID.
+   * @throws org.springframework.dao.DataAccessException if an error arose in database access.
+   */
+  @Transactional(readOnly = true)
+  public Map<Long, Long> countBallots(GenerateAssertionsRequest request) {
+    final String prefix = "[countBallots]";
+    final Map<Long, Long> counts = new TreeMap<>();
+    cvrContestInfoRepository.getCountyCounts(request.contestName)
+        .forEach(cc -> counts.put(cc.getCountyId(), cc.getBallots()));
+    logger.debug(String.format("%s (Database access) Contest %s has CVRs in %d counties. " +
+        "Ballots by county ID: %s.", prefix, request.contestName, counts.size(), counts));
+    return Collections.unmodifiableMap(counts);
+  }
+
+  /**
+   * Find the names appearing in the CVRs for the contest named in the request that are not in the
+   * request's candidate list, without transferring any CVRs: the database computes the distinct
+   * names in the contest's choices entries, and these are compared with the candidate list. This
+   * is cheap compared to ingestion (though it reads every CVR in the database), so it can be used
+   * to reject requests with wrong candidate names before ingestion starts.
+   * @param request Assertions generation request specifying the contest name and candidates.
+   * @return the names that are not candidates, sorted; empty if every name is a candidate.
+   * @throws org.springframework.dao.DataAccessException if an error arose in database access,
+   * including if a choices entry is not a JSON array.
+   */
+  @Transactional(readOnly = true)
+  public List<String> findNonCandidateNames(GenerateAssertionsRequest request) {
+    final String prefix = "[findNonCandidateNames]";
+    final Set<String> candidates = new HashSet<>(request.candidates);
+    final List<String> names = cvrContestInfoRepository.getDistinctCandidateNames(
+        request.contestName);
+    final List<String> nonCandidates = names.stream().filter(n -> !candidates.contains(n))
+        .sorted().toList();
+    logger.debug(String.format("%s (Database access) Contest %s has %d distinct names in its " +
+        "CVRs, of which %d are not candidates: %s.", prefix, request.contestName, names.size(),
+        nonCandidates.size(), nonCandidates));
+    return nonCandidates;
+  }
+
+  /**
+   * Collect all CVR vote data for the contest named in the request, across all of its county
+   * level contests, and consolidate it into raire-java Votes, using the configured ingestion mode.
+   * This runs in a single read-only transaction, which is required for streaming results through
+   * a database cursor.
+   * @param request Assertions generation request specifying the contest name and candidates.
+   * @return the ballot count, consolidated votes and the first invalid candidate name (if any).
+   * @throws org.springframework.dao.DataAccessException if an error arose in database access.
+   */
+  @Transactional(readOnly = true)
+  public IngestedVotes ingestVotes(GenerateAssertionsRequest request) {
+    return ingestVotes(request, mode, Map.of());
+  }
+
+  /**
+   * Collect all CVR vote data for the contest named in the request, as for ingestVotes(request),
+   * given the number of CVRs expected in each county (as returned by countBallots). The expected
+   * counts are used to size storage for consolidation, and are compared with the counts actually
+   * ingested, which may differ if CVRs were added or removed in between.
+   * @param request Assertions generation request specifying the contest name and candidates.
+   * @param expectedCounts the number of CVRs expected in each county, by county ID.
+   * @return the ballot count, consolidated votes and the first invalid candidate name (if any).
+   * @throws org.springframework.dao.DataAccessException if an error arose in database access.
+   */
+  @Transactional(readOnly = true)
+  public IngestedVotes ingestVotes(GenerateAssertionsRequest request,
+      Map<Long, Long> expectedCounts) {
+    return ingestVotes(request, mode, expectedCounts);
+  }
+
+  /**
+   * Collect all CVR vote data for the contest named in the request, as for ingestVotes(request),
+   * using the given ingestion mode.
+   * @param request Assertions generation request specifying the contest name and candidates.
+   * @param mode the ingestion mode to use.
+   * @return the ballot count, consolidated votes and the first invalid candidate name (if any).
+   * @throws org.springframework.dao.DataAccessException if an error arose in database access.
+   */
+  @Transactional(readOnly = true)
+  public IngestedVotes ingestVotes(GenerateAssertionsRequest request, IngestionMode mode) {
+    return ingestVotes(request, mode, Map.of());
+  }
+
+  /**
+   * Collect all CVR vote data for the contest named in the request, using the given ingestion
+   * mode, given the number of CVRs expected in each county (empty if not known).
+   * @param request Assertions generation request specifying the contest name and candidates.
+   * @param mode the ingestion mode to use.
+   * @param expectedCounts the number of CVRs expected in each county, by county ID.
+   * @return the ballot count, consolidated votes and the first invalid candidate name (if any).
+   * @throws org.springframework.dao.DataAccessException if an error arose in database access.
+   */
+  @Transactional(readOnly = true)
+  public IngestedVotes ingestVotes(GenerateAssertionsRequest request, IngestionMode mode,
+      Map<Long, Long> expectedCounts) {
+    final String prefix = "[ingestVotes]";
+    logger.debug(String.format("%s (Database access) Collecting all vote rankings for contest " +
+        "%s from CVRs in database using ingestion mode %s.", prefix, request.contestName, mode));
+
+    final long expectedBallots = expectedCounts.values().stream().mapToLong(Long::longValue).sum();
+    final List<Contest> contests = contestRepository.findByName(request.contestName);
+    final Storage storage = new Storage(offHeap, spillThreshold(request), spillDirectory);
+    try (RankingSink sink = new RankingSink(request.candidates.toArray(String[]::new),
+        expectedBallots, storage)) {
+
+      // Share one String instance per candidate name across all the rankings read for the contest.
+      try (DictionaryScope ignored = StringArrayConverter.useDictionary(
+          new CandidateNameDictionary(request.candidates))) {
+        readRankings(request, mode, contests, sink);
+      }
+
+      logger.debug(String.format("%s %d rankings collected for contest %s from %d of its %d " +
+          "county level contests. Ballots by county ID: %s.", prefix, sink.getBallotCount(),
+          request.contestName, sink.getCountyBallotCounts().size(), contests.size(),
+          sink.getCountyBallotCounts()));
+      if (!expectedCounts.isEmpty() && !expectedCounts.equals(sink.getCountyBallotCounts())) {
+        logger.warn(String.format("%s CVRs for contest %s changed during ingestion. Expected " +
+            "ballots by county ID: %s.", prefix, request.contestName, expectedCounts));
+      }
+      return sink.result();
+    }
+  }
+
+  /**
+   * The in-memory ranking threshold for a request: the request's own, if it sets one, raised to
+   * the configured minimum if it is smaller (but still positive), or the configured threshold.
+   * @param request Assertions generation request, possibly setting maxInMemoryRankings.
+   * @return the number of distinct rankings to hold in memory (0 to hold them all).
+   */
+  private int spillThreshold(GenerateAssertionsRequest request) {
+    final String prefix = "[spillThreshold]";
+    if (request.maxInMemoryRankings == null) {
+      return spillThreshold;
+    }
+    if (request.maxInMemoryRankings > 0 && request.maxInMemoryRankings < minSpillThreshold) {
+      logger.debug(String.format("%s The in-memory ranking threshold %d requested for contest " +
+          "%s is below the minimum; using %d.", prefix, request.maxInMemoryRankings,
+          request.contestName, minSpillThreshold));
+      return minSpillThreshold;
+    }
+    return request.maxInMemoryRankings;
+  }
+
+  /**
+   * Read the rankings for the given county level contests using the given ingestion mode, adding
+   * each to the sink.
+   * @param request Assertions generation request specifying the contest name and candidates.
+   * @param mode the ingestion mode to use.
+   * @param contests the county level contests making up the contest.
+   * @param sink the destination for rankings.
+   */
+  private void readRankings(GenerateAssertionsRequest request, IngestionMode mode,
+      List<Contest> contests, RankingSink sink) {
+    final String prefix = "[readRankings]";
+    switch (mode) {
+      case LIST -> {
+        for (Contest c : contests) {
+          final List<String[]> votes = cvrContestInfoRepository.getCVRs(c.getContestID(),
+              c.getCountyID());
+          logger.debug(String.format("%s %d rankings retrieved for county %d. Adding them to a " +
+              "consolidator to identify unique rankings and their number.", prefix, votes.size(),
+              c.getCountyID()));
+          parallelConsolidator.consolidate(votes, (part, v) -> part.add(c.getCountyID(), v, 1),
+              sink);
+        }
+      }
+
+      case STREAM -> streamRankings(request.contestName, sink);
+
+      case GROUPED -> {
+        final List<RankingCount> rankingCounts =
+            cvrContestInfoRepository.getRankingCounts(request.contestName);
+        logger.debug(String.format("%s %d distinct choices entries retrieved. Adding them to a " +
+            "consolidator to identify unique rankings and their number.", prefix,
+            rankingCounts.size()));
+        parallelConsolidator.consolidate(rankingCounts, (part, rc) -> part.add(rc.getCountyId(),
+            choicesConverter.convertToEntityAttribute(rc.getChoices()),
+            Math.toIntExact(rc.getBallots())), sink);
+      }
+
+      case PARALLEL_SCAN -> {
+        if (!parallelScanner.scan(request.contestName, request.candidates, sink)) {
+          streamRankings(request.contestName, sink);
+        }
+      }
+
+      case PIPELINED -> pipelinedReader.read(request.contestName, request.candidates, sink);
+
+      case BYTES -> decodeRankingBytes(request, sink,
+          cvrContestInfoRepository::scanContestChoiceBytes);
+
+      case COPY -> decodeRankingBytes(request, sink,
+          cvrContestInfoRepository::copyContestChoiceBytes);
+
+      case DB_INDEXED -> cvrContestInfoRepository.scanContestRankingIndices(request.contestName,
+          request.candidates, (countyId, preferences, invalidChoices, ballots) -> {
+            if (invalidChoices == null) {
+              sink.addIndices(countyId, preferences, preferences.length,
+                  Math.toIntExact(ballots));
+            } else {
+              // The query found a name that is not a candidate. Convert the entry by name only
+              // so that the sink records raire-java's exception, naming the offending candidate.
+              logger.debug(String.format("%s Choices entry %s for county %d includes a name " +
+                  "that is not a candidate.", prefix, invalidChoices, countyId));
+              sink.add(countyId, choicesConverter.convertToEntityAttribute(invalidChoices),
+                  Math.toIntExact(ballots));
+            }
+          });
+    }
+  }
+
+  /**
+   * Read the choices entries for all counties of the contest as raw bytes, from the given source,
+   * decoding each directly into candidate indices. An entry that the byte decoder does not accept
+   * (because it is malformed, unusually formatted, or names a non-candidate) is converted with the
+   * StringArrayConverter instead, so that it is either accepted or produces the same error as it
+   * would in the other modes.
+   * @param request Assertions generation request specifying the contest name and candidates.
+   * @param sink the destination for rankings.
+   * @param source reads the choices entries for a named contest, passing each to a handler.
+   */
+  private void decodeRankingBytes(GenerateAssertionsRequest request, RankingSink sink,
+      BiConsumer<String, ChoiceBytesHandler> source) {
+    final ChoicesByteDecoder decoder = new ChoicesByteDecoder(
+        new CandidateByteDictionary(request.candidates));
+    source.accept(request.contestName, (countyId, choices) -> {
+      if (choices == null) {
+        throw new RuntimeException("A null entry is present in the database in place of a " +
+            "JSON list.");
+      }
+      final int length = decoder.decode(choices);
+      if (length >= 0) {
+        sink.addIndices(countyId, decoder.preferences(), length, 1);
+      } else {
+        sink.add(countyId, choicesConverter.convertToEntityAttribute(
+            new String(choices, StandardCharsets.UTF_8)), 1);
+      }
+    });
+  }
+
+  /**
+   * Stream the rankings for all counties of the named contest in one query, adding each to the
+   * sink as it is read.
+   * @param contestName the name of the contest.
+   * @param sink the destination for rankings.
+   */
+  private void streamRankings(String contestName, RankingSink sink) {
+    try (Stream<CountyChoices> rankings =
+        cvrContestInfoRepository.streamContestCVRs(contestName)) {
+      final Iterator<CountyChoices> it = rankings.iterator();
+      while (it.hasNext()) {
+        final CountyChoices cc = it.next();
+        sink.add(cc.getCountyId(), cc.getChoices(), 1);
+      }
+    }
+  }
+}
@@ -0,0 +1,67 @@
+/*
+Copyright 2024 Democracy Developers
+
+The Raire Service is designed to connect colorado-rla and its associated database to
+the raire assertion generation engine (https://github.com/DemocracyDevelopers/raire-java).
+
+This file is part of raire-service.
+
+raire-service is free software: you can redistribute it and/or modify it under the terms
+of the GNU Affero General Public License as published by the Free Software Foundation, either
+version 3 of the License, or (at your option) any later version.
+
+raire-service is distributed in the hope that it will be useful, but WITHOUT ANY WARRANTY;
+without even the implied warranty of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.
+See the GNU Affero General Public License for more details.
+
+You should have received a copy of the GNU Affero General Public License along with
+raire-service. If not, see <https://www.gnu.org/licenses/>.
+*/
+
+package au.org.democracydevelopers.raireservice.service;
+
+import javax.sql.DataSource;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.core.io.ClassPathResource;
+import org.springframework.jdbc.datasource.init.ResourceDatabasePopulator;
+import org.springframework.stereotype.Component;
+
+/**
+ * Creates the tables holding vote snapshots (vote_snapshot, vote_snapshot_ranking and
+ * vote_snapshot_cvr), which are not part of the colorado-rla schema, by running
+ * vote_snapshot_schema.sql when the service starts. The script creates only the tables and
+ * indices that do not already exist. It is run only when vote snapshots are enabled
+ * (raire.snapshot.enabled) and raire.snapshot.create-tables is set; where the service's database
+ * user may not create tables, the script can instead be run by hand before snapshots are enabled.
+ * VoteSnapshotService depends on this component, so the tables exist before it is used.
+ */
+@Component
+public class VoteSnapshotSchema {
+
+  private final static Logger logger = LoggerFactory.getLogger(VoteSnapshotSchema.class);
+
+  /**
+   * The script creating the snapshot tables, on the classpath.
+   */
+  static final String SCRIPT = "vote_snapshot_schema.sql";
+
+  /**
+   * Create the snapshot tables, if snapshots are enabled and tables are to be created.
+   * @param dataSource the application's data source.
+   * @param enabled whether snapshots are used (raire.snapshot.enabled).
+   * @param createTables whether the tables are to be created (raire.snapshot.create-tables).
+   * @throws org.springframework.dao.DataAccessException if the script could not be run.
+   */
+  public VoteSnapshotSchema(DataSource dataSource,
+      @Value("${raire.snapshot.enabled:false}") boolean enabled,
+      @Value("${raire.snapshot.create-tables:true}") boolean createTables) {
+    final String prefix = "[VoteSnapshotSchema]";
+    if (enabled && createTables) {
+      logger.debug(String.format("%s Creating any missing vote snapshot tables from %s.", prefix,
+          SCRIPT));
+      new ResourceDatabasePopulator(new ClassPathResource(SCRIPT)).execute(dataSource);
+    }
+  }
+}
@@ -0,0 +1,527 @@
+/*
+Copyright 2024 Democracy Developers
+
+The Raire Service is designed to connect colorado-rla and its associated database to
+the raire assertion generation engine (https://github.com/DemocracyDevelopers/raire-java).
+
+This file is part of raire-service.
+
+raire-service is free software: you can redistribute it and/or modify it under the terms
+of the GNU Affero General Public License as published by the Free Software Foundation, either
+version 3 of the License, or (at your option) any later version.
+
+raire-service is distributed in the hope that it will be useful, but WITHOUT ANY WARRANTY;
+without even the implied warranty of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.
+See the GNU Affero General Public License for more details.
+
+You should have received a copy of the GNU Affero General Public License along with
+raire-service. If not, see <https://www.gnu.org/licenses/>.
+*/
+
+package au.org.democracydevelopers.raireservice.service;
+
+import au.org.democracydevelopers.raire.irv.Vote;
+import au.org.democracydevelopers.raire.util.VoteConsolidator.InvalidCandidateName;
+import au.org.democracydevelopers.raireservice.persistence.converters.StringArrayConverter;
+import au.org.democracydevelopers.raireservice.persistence.entity.Contest;
+import au.org.democracydevelopers.raireservice.persistence.entity.VoteSnapshot;
+import au.org.democracydevelopers.raireservice.persistence.entity.VoteSnapshotRanking;
+import au.org.democracydevelopers.raireservice.persistence.repository.CVRContestInfoRepository;
+import au.org.democracydevelopers.raireservice.persistence.repository.CVRContestInfoRepository.CountyFingerprint;
+import au.org.democracydevelopers.raireservice.persistence.repository.ContestRepository;
+import au.org.democracydevelopers.raireservice.persistence.repository.VoteSnapshotRepository;
+import au.org.democracydevelopers.raireservice.persistence.repository.VoteSnapshotRepository.CvrChange;
+import au.org.democracydevelopers.raireservice.persistence.repository.VoteSnapshotRepositoryCustom.HashedRankingCount;
+import au.org.democracydevelopers.raireservice.request.GenerateAssertionsRequest;
+import au.org.democracydevelopers.raireservice.service.RankingFileCache.Fingerprint;
+import au.org.democracydevelopers.raireservice.service.VoteIngestionService.IngestedVotes;
+import au.org.democracydevelopers.raireservice.util.WeightedVoteConsolidator;
+import io.micrometer.core.instrument.Counter;
+import io.micrometer.core.instrument.MeterRegistry;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Optional;
+import java.util.TreeMap;
+import java.util.function.BooleanSupplier;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.stereotype.Service;
+import org.springframework.transaction.PlatformTransactionManager;
+import org.springframework.transaction.support.TransactionTemplate;
+
+/**
+ * Reuses the rankings read from a contest's CVRs across repeated assertion generation requests.
+ * colorado-rla may ask for assertions for the same contest several times (for example with a
+ * different time limit or universe size), and each request would otherwise read and consolidate
+ * every CVR again. Instead, the distinct rankings of each county level contest, with their
+ * counts, are stored in a VoteSnapshot, along with a fingerprint of the county's CVRs, which the
+ * database computes without transferring any CVRs. While a county's fingerprint is unchanged,
+ * its snapshot is used in place of its CVRs, so when one county re-uploads its CVRs, only that
+ * county is read again; its new rankings are merged with the other counties' snapshots.
+ * The CVRs each snapshot was built from are recorded alongside it, so that when a county's CVRs
+ * change, only the rows added and removed since then (as found by the database) are read, and
+ * applied to the snapshot's counts. A county whose CVRs have mostly changed (for example because
+ * it has re-uploaded them all) has its snapshot rebuilt instead. Either way, the rankings are
+ * exactly those a full read would give.
+ * Snapshots may also be built in the background, before any request for the contest arrives
+ * (see SnapshotWarmer).
+ * Snapshots are used only when raire.snapshot.enabled is set, as they need the vote_snapshot,
+ * vote_snapshot_ranking and vote_snapshot_cvr tables (see VoteSnapshotSchema). In front of the
+ * snapshots, consolidated votes for the whole contest may also be cached in local files (see
+ * RankingFileCache), keyed by a fingerprint combining those of the county level contests. Lookups
+ * of county snapshots are counted in the raire.snapshot.lookups metric, tagged with their outcome
+ * (hit, miss or stale), snapshot builds in raire.snapshot.builds, and incremental updates of stale
+ * snapshots in raire.snapshot.updates.
+ */
+@Service
+public class VoteSnapshotService {
+
+  private final static Logger logger = LoggerFactory.getLogger(VoteSnapshotService.class);
+
+  private final VoteSnapshotRepository voteSnapshotRepository;
+
+  private final CVRContestInfoRepository cvrContestInfoRepository;
+
+  private final ContestRepository contestRepository;
+
+  private final VoteIngestionService voteIngestionService;
+
+  private final RankingFileCache rankingFileCache;
+
+  private final TransactionTemplate transaction;
+
+  private final boolean enabled;
+
+  /**
+   * Converter for choices entries retrieved in their raw database form.
+   */
+  private final StringArrayConverter choicesConverter = new StringArrayConverter();
+
+  private final Counter hits;
+  private final Counter misses;
+  private final Counter staleSnapshots;
+  private final Counter builds;
+  private final Counter updates;
+
+  /**
+   * All args constructor.
+   * @param voteSnapshotRepository for reading and storing snapshots.
+   * @param cvrContestInfoRepository for fingerprinting and reading counties' CVRs.
+   * @param contestRepository for extraction county level contest details (IDs) from the database.
+   * @param voteIngestionService for ingesting CVRs when snapshots are not enabled.
+   * @param rankingFileCache for caching consolidated votes in local files.
+   * @param transactionManager for storing snapshots.
+   * @param meterRegistry for recording snapshot reuse.
+   * @param schema creates the snapshot tables, if needed, before snapshots are used.
+   * @param enabled whether snapshots are used (raire.snapshot.enabled).
+   */
+  public VoteSnapshotService(VoteSnapshotRepository voteSnapshotRepository,
+      CVRContestInfoRepository cvrContestInfoRepository, ContestRepository contestRepository,
+      VoteIngestionService voteIngestionService, RankingFileCache rankingFileCache,
+      PlatformTransactionManager transactionManager, MeterRegistry meterRegistry,
+      VoteSnapshotSchema schema, @Value("${raire.snapshot.enabled:false}") boolean enabled) {
+    this.voteSnapshotRepository = voteSnapshotRepository;
+    this.cvrContestInfoRepository = cvrContestInfoRepository;
+    this.contestRepository = contestRepository;
+    this.voteIngestionService = voteIngestionService;
+    this.rankingFileCache = rankingFileCache;
+    this.transaction = new TransactionTemplate(transactionManager);
+    this.enabled = enabled;
+
+    hits = lookupCounter(meterRegistry, "hit");
+    misses = lookupCounter(meterRegistry, "miss");
+    staleSnapshots = lookupCounter(meterRegistry, "stale");
+    builds = Counter.builder("raire.snapshot.builds")
+        .description("County vote snapshots built from CVRs")
+        .register(meterRegistry);
+    updates = Counter.builder("raire.snapshot.updates")
+        .description("County vote snapshots updated from added and removed CVRs")
+        .register(meterRegistry);
+  }
+
+  /**
+   * A check made before any CVRs are read, such as that their names are all candidates, so that
+   * it costs nothing when the votes are reused instead.
+   */
+  @FunctionalInterface
+  public interface CvrCheck {
+    void check() throws RaireServiceException;
+  }
+
+  /**
+   * Collect the consolidated votes for the contest named in the request. If the ranking file
+   * cache holds votes built from the contest's current CVRs, they are used. Otherwise, the votes
+   * are collected from the county level contests' snapshots, if enabled (see fromSnapshots), or
+   * by ingesting the CVRs as usual with the VoteIngestionService, and are then added to the
+   * ranking file cache, if it is enabled. The given check is made first if, and only if, any CVRs
+   * are to be read: on a cache miss, unless every county level contest's snapshot is up to date.
+   * @param request Assertions generation request specifying the contest name and candidates.
+   * @param countyCounts the number of CVRs in each county, by county ID, as given by
+   *                     VoteIngestionService.countBallots.
+   * @param beforeReadingCvrs the check to make before reading any CVRs.
+   * @return the ballot count, consolidated votes and the first invalid candidate name (if any).
+   * @throws RaireServiceException if thrown by the check.
+   * @throws org.springframework.dao.DataAccessException if an error arose in database access.
+   */
+  public IngestedVotes ingestVotes(GenerateAssertionsRequest request,
+      Map<Long, Long> countyCounts, CvrCheck beforeReadingCvrs) throws RaireServiceException {
+    if (!enabled && !rankingFileCache.isEnabled()) {
+      beforeReadingCvrs.check();
+      return voteIngestionService.ingestVotes(request, countyCounts);
+    }
+
+    final List<CountyFingerprint> countyFingerprints =
+        cvrContestInfoRepository.getCountyFingerprints(request.contestName);
+    final Fingerprint fingerprint = Fingerprint.of(countyFingerprints);
+    final Optional<IngestedVotes> cached = rankingFileCache.read(request.contestName, fingerprint,
+        request.candidates);
+    if (cached.isPresent()) {
+      return cached.get();
+    }
+
+    final IngestedVotes votes;
+    if (enabled) {
+      votes = fromSnapshots(request, countyFingerprints, countyCounts, beforeReadingCvrs);
+    } else {
+      beforeReadingCvrs.check();
+      votes = voteIngestionService.ingestVotes(request, countyCounts);
+    }
+
+    // The fingerprint was taken before the votes were collected, so if the CVRs changed in
+    // between, the cached votes will not match the CVRs' fingerprint when next looked up.
+    if (votes.ballotCount() == fingerprint.ballots()) {
+      rankingFileCache.write(request.contestName, fingerprint, request.candidates, votes);
+    }
+    return votes;
+  }
+
+  /**
+   * Bring the snapshots of the named contest's county level contests up to date with their CVRs
+   * ahead of any request for the contest, so that the request does not need to read them. Used
+   * by the SnapshotWarmer. Counties are refreshed one at a time, each in its own transaction, and
+   * no more are started once the given condition holds, so the caller can stop promptly.
+   * Consolidated votes are not cached, as they depend on the order of the candidates in a request.
+   * @param contestName the name of the contest.
+   * @param stop checked before each county is refreshed; once true, no more are.
+   * @return the number of county level contests whose snapshots were built or updated.
+   * @throws IllegalStateException if snapshots are not enabled.
+   * @throws org.springframework.dao.DataAccessException if an error arose in database access.
+   */
+  public int warm(String contestName, BooleanSupplier stop) {
+    if (!enabled) {
+      throw new IllegalStateException("Vote snapshots are not enabled.");
+    }
+    return refresh(contestName, cvrContestInfoRepository.getCountyFingerprints(contestName),
+        snapshotsOf(contestName), stop, new ArrayList<>());
+  }
+
+  /**
+   * Collect the consolidated votes for the contest named in the request from its county level
+   * contests' snapshots, refreshed as necessary (see refresh), consolidating the rankings of all
+   * counties together.
+   * @param request Assertions generation request specifying the contest name and candidates.
+   * @param countyFingerprints the fingerprints of the CVRs in each county level contest.
+   * @param countyCounts the number of CVRs in each county, by county ID, as given by
+   *                     VoteIngestionService.countBallots.
+   * @param beforeReadingCvrs the check to make if any snapshot must be refreshed from CVRs.
+   * @return the ballot count, consolidated votes and the first invalid candidate name (if any).
+   * @throws RaireServiceException if thrown by the check.
+   * @throws org.springframework.dao.DataAccessException if an error arose in database access.
+   */
+  private IngestedVotes fromSnapshots(GenerateAssertionsRequest request,
+      List<CountyFingerprint> countyFingerprints, Map<Long, Long> countyCounts,
+      CvrCheck beforeReadingCvrs) throws RaireServiceException {
+    final Map<Long, VoteSnapshot> snapshots = snapshotsOf(request.contestName);
+    final boolean upToDate = countyFingerprints.stream().allMatch(fingerprint -> {
+      final VoteSnapshot snapshot = snapshots.get(fingerprint.getContestId());
+      return snapshot != null && matches(snapshot, fingerprint);
+    });
+    if (!upToDate) {
+      beforeReadingCvrs.check();
+    }
+
+    final List<VoteSnapshot> partials = new ArrayList<>();
+    refresh(request.contestName, countyFingerprints, snapshots, () -> false, partials);
+    return merge(request, partials, countyCounts);
+  }
+
+  /**
+   * @param contestName the name of the contest.
+   * @return the stored snapshots of the contest's county level contests, by contest ID.
+   */
+  private Map<Long, VoteSnapshot> snapshotsOf(String contestName) {
+    final Map<Long, VoteSnapshot> snapshots = new HashMap<>();
+    voteSnapshotRepository.findByContestName(contestName)
+        .forEach(s -> snapshots.put(s.getContestId(), s));
+    return snapshots;
+  }
+
+  /**
+   * Bring the named contest's county level contests' snapshots up to date. Each county level
+   * contest's snapshot is used as it is if the county's CVRs have not changed since it was built.
+   * Otherwise, the snapshot is updated with the CVRs that have changed (see update), or, if there
+   * is no snapshot, one is built from the county's CVRs (with counting done by the database).
+   * Each snapshot is stored in its own transaction, together with the record of its CVRs, while
+   * holding a lock on it, so that concurrent refreshes do not collide.
+   * Snapshots of county level contests that no longer have CVRs are deleted.
+   * A county whose CVRs change while it is being read may have its snapshot stored with the
+   * fingerprint taken before the change; as that no longer matches the county's CVRs, the
+   * snapshot will be refreshed again on the next request.
+   * @param contestName the name of the contest.
+   * @param countyFingerprints the fingerprints of the CVRs in each county level contest.
+   * @param snapshots the stored snapshots of the contest's county level contests, by contest ID
+   *                  (see snapshotsOf). Entries are removed as they are looked at.
+   * @param stop checked before each county is refreshed; once true, no more counties are looked
+   *             at, and obsolete snapshots are left in place.
+   * @param partials receives the up to date snapshot of every county level contest having CVRs.
+   * @return the number of county level contests whose snapshots were built or updated.
+   * @throws org.springframework.dao.DataAccessException if an error arose in database access.
+   */
+  private int refresh(String contestName, List<CountyFingerprint> countyFingerprints,
+      Map<Long, VoteSnapshot> snapshots, BooleanSupplier stop, List<VoteSnapshot> partials) {
+    final String prefix = "[refresh]";
+    final Map<Long, CountyFingerprint> fingerprints = new HashMap<>();
+    countyFingerprints.forEach(f -> fingerprints.put(f.getContestId(), f));
+
+    int refreshed = 0;
+    for (Contest contest : contestRepository.findByName(contestName)) {
+      if (stop.getAsBoolean()) {
+        logger.debug(String.format("%s Stopped refreshing vote snapshots for contest %s after %d " +
+            "county level contests.", prefix, contestName, refreshed));
+        return refreshed;
+      }
+
+      final CountyFingerprint fingerprint = fingerprints.get(contest.getContestID());
+      if (fingerprint == null) {
+        // No CVRs in this county; any snapshot it has is obsolete, and is deleted below.
+        continue;
+      }
+
+      final VoteSnapshot existing = snapshots.remove(contest.getContestID());
+      if (existing != null && matches(existing, fingerprint)) {
+        hits.increment();
+        partials.add(existing);
+        continue;
+      }
+
+      (existing == null ? misses : staleSnapshots).increment();
+      partials.add(transaction.execute(status ->
+          refreshCounty(contestName, contest, fingerprint)));
+      refreshed++;
+    }
+
+    logger.debug(String.format("%s Contest %s: reused vote snapshots for %d of %d county level " +
+        "contests with CVRs, refreshed %d, deleting %d obsolete.", prefix, contestName,
+        partials.size() - refreshed, partials.size(), refreshed, snapshots.size()));
+    if (!snapshots.isEmpty()) {
+      transaction.executeWithoutResult(status -> snapshots.keySet().forEach(contestId -> {
+        voteSnapshotRepository.lockContest(contestId);
+        voteSnapshotRepository.findByContestId(contestId)
+            .ifPresent(voteSnapshotRepository::delete);
+      }));
+    }
+    return refreshed;
+  }
+
+  /**
+   * Bring one county level contest's snapshot up to date, holding the lock on it (see
+   * VoteSnapshotRepository.lockContest) so that concurrent refreshes of the same county level
+   * contest take turns. Once the lock is held, the snapshot is read again, as another refresh may
+   * have built, updated or deleted it in the meantime: if it now matches the fingerprint, it is
+   * used as it is; otherwise it is updated (see update), or built if there is none. This must be
+   * called within a transaction.
+   * @param contestName the name of the contest.
+   * @param contest the county level contest.
+   * @param fingerprint the fingerprint of the county's CVRs.
+   * @return the up to date snapshot.
+   * @throws org.springframework.dao.DataAccessException if an error arose in database access.
+   */
+  private VoteSnapshot refreshCounty(String contestName, Contest contest,
+      CountyFingerprint fingerprint) {
+    final String prefix = "[refreshCounty]";
+    voteSnapshotRepository.lockContest(contest.getContestID());
+    final Optional<VoteSnapshot> current =
+        voteSnapshotRepository.findByContestId(contest.getContestID());
+    if (current.isEmpty()) {
+      return build(new VoteSnapshot(contestName, contest.getContestID(), contest.getCountyID()),
+          fingerprint);
+    }
+    if (matches(current.get(), fingerprint)) {
+      logger.debug(String.format("%s The vote snapshot for county %d of contest %s was " +
+          "refreshed concurrently; using it as it is.", prefix, contest.getCountyID(),
+          contestName));
+      return current.get();
+    }
+    return update(current.get(), fingerprint);
+  }
+
+  /**
+   * Record the current CVRs of a county level contest as those its snapshot is built from, and
+   * read their distinct rankings, with their counts, into the snapshot, which is then stored.
+   * Both the recording of the CVRs and the counting are done by the database, in one statement,
+   * so that the counts always agree with the recorded CVRs. This must be called within a
+   * transaction.
+   * @param snapshot the county level contest's snapshot, to be (re)built.
+   * @param fingerprint the fingerprint of the county's CVRs, taken before they are read.
+   * @return the stored snapshot.
+   * @throws RuntimeException if a choices entry is null or is not a JSON list.
+   */
+  private VoteSnapshot build(VoteSnapshot snapshot, CountyFingerprint fingerprint) {
+    final String prefix = "[build]";
+    // A new snapshot must be stored before its CVRs can be recorded against its ID.
+    final VoteSnapshot stored = voteSnapshotRepository.saveAndFlush(snapshot);
+    voteSnapshotRepository.deleteCvrs(stored.getId());
+    final List<HashedRankingCount> rankingCounts = voteSnapshotRepository.recordCvrs(
+        stored.getId(), stored.getContestId(), stored.getCountyId());
+    final List<VoteSnapshotRanking> rankings = new ArrayList<>(rankingCounts.size());
+    long ballots = 0;
+    for (HashedRankingCount rc : rankingCounts) {
+      rankings.add(new VoteSnapshotRanking(choicesConverter.convertToEntityAttribute(
+          rc.choices()), rc.choicesHash(), rc.ballots()));
+      ballots += rc.ballots();
+    }
+    stored.update(ballots, fingerprint.getMaxCvrId(), fingerprint.getChecksum(), rankings);
+    logger.debug(String.format("%s Built the vote snapshot for county %d of contest %s: %d CVRs " +
+        "with %d distinct choices entries.", prefix, stored.getCountyId(),
+        stored.getContestName(), ballots, rankings.size()));
+    builds.increment();
+    return voteSnapshotRepository.save(stored);
+  }
+
+  /**
+   * Bring a stale snapshot up to date with its county level contest's CVRs, by applying the rows
+   * added and removed since it was built (as found by the database) to its counts, and to its
+   * record of CVRs. Rankings are identified by the hash of their choices entry, so only the
+   * choices of added rows are read. If at least as many rows have changed as the county now has,
+   * reading them is no cheaper than reading the county's rankings afresh, and the snapshot is
+   * rebuilt instead, as it is if the changes are not consistent with the snapshot's counts (which
+   * should not happen).
+   * This must be called within a transaction.
+   * @param snapshot the county level contest's stale snapshot.
+   * @param fingerprint the fingerprint of the county's CVRs, taken before the changes are read.
+   * @return the stored snapshot.
+   * @throws RuntimeException if an added choices entry is null or is not a JSON list.
+   */
+  private VoteSnapshot update(VoteSnapshot snapshot, CountyFingerprint fingerprint) {
+    final String prefix = "[update]";
+    final List<CvrChange> changes = voteSnapshotRepository.getCvrChanges(snapshot.getId(),
+        snapshot.getContestId(), snapshot.getCountyId());
+    if (changes.size() >= fingerprint.getBallots()) {
+      logger.debug(String.format("%s %d CVR rows changed in county %d of contest %s, which now " +
+          "has %d. Rebuilding its vote snapshot.", prefix, changes.size(), snapshot.getCountyId(),
+          snapshot.getContestName(), fingerprint.getBallots()));
+      return build(snapshot, fingerprint);
+    }
+
+    // Adjust the count of each ranking, keeping the rankings in their existing order.
+    final Map<Long, String[]> choices = new HashMap<>();
+    final Map<Long, Long> counts = new LinkedHashMap<>();
+    for (VoteSnapshotRanking ranking : snapshot.getRankings()) {
+      choices.put(ranking.getChoicesHash(), ranking.getChoices());
+      counts.merge(ranking.getChoicesHash(), ranking.getBallots(), Long::sum);
+    }
+    for (CvrChange change : changes) {
+      if (change.getAdded()) {
+        choices.computeIfAbsent(change.getChoicesHash(),
+            h -> choicesConverter.convertToEntityAttribute(change.getChoices()));
+      }
+      counts.merge(change.getChoicesHash(), change.getAdded() ? 1L : -1L, Long::sum);
+    }
+    if (counts.values().stream().anyMatch(n -> n < 0)) {
+      logger.warn(String.format("%s CVR rows removed from county %d of contest %s do not match " +
+          "its vote snapshot. Rebuilding the snapshot.", prefix, snapshot.getCountyId(),
+          snapshot.getContestName()));
+      return build(snapshot, fingerprint);
+    }
+
+    final List<VoteSnapshotRanking> rankings = new ArrayList<>(counts.size());
+    long ballots = 0;
+    for (Map.Entry<Long, Long> entry : counts.entrySet()) {
+      if (entry.getValue() > 0) {
+        rankings.add(new VoteSnapshotRanking(choices.get(entry.getKey()), entry.getKey(),
+            entry.getValue()));
+        ballots += entry.getValue();
+      }
+    }
+    voteSnapshotRepository.applyCvrChanges(snapshot.getId(), changes);
+    snapshot.update(ballots, fingerprint.getMaxCvrId(), fingerprint.getChecksum(), rankings);
+    logger.debug(String.format("%s Updated the vote snapshot for county %d of contest %s with %d " +
+        "changed CVR rows: %d CVRs with %d distinct rankings.", prefix, snapshot.getCountyId(),
+        snapshot.getContestName(), changes.size(), ballots, rankings.size()));
+    updates.increment();
+    return voteSnapshotRepository.save(snapshot);
+  }
+
+  /**
+   * Consolidate the rankings of all county level contests' snapshots, mapping their candidate
+   * names to their indices in the request's candidate list.
+   * @param request Assertions generation request specifying the contest name and candidates.
+   * @param partials the snapshots of every county level contest having CVRs.
+   * @param expectedCounts the number of CVRs expected in each county, by county ID.
+   * @return the ballot count, consolidated votes and the first invalid candidate name (if any).
+   */
+  private IngestedVotes merge(GenerateAssertionsRequest request, List<VoteSnapshot> partials,
+      Map<Long, Long> expectedCounts) {
+    final String prefix = "[merge]";
+    final int rankings = partials.stream().mapToInt(p -> p.getRankings().size()).sum();
+    final WeightedVoteConsolidator consolidator = new WeightedVoteConsolidator(
+        request.candidates.toArray(String[]::new), rankings);
+    final Map<Long, Long> countyBallotCounts = new TreeMap<>();
+    long ballotCount = 0;
+    InvalidCandidateName invalidCandidateName = null;
+
+    for (VoteSnapshot partial : partials) {
+      ballotCount += partial.getBallotCount();
+      countyBallotCounts.merge(partial.getCountyId(), partial.getBallotCount(), Long::sum);
+      for (VoteSnapshotRanking ranking : partial.getRankings()) {
+        if (invalidCandidateName != null) {
+          break;
+        }
+        try {
+          consolidator.addVoteNames(ranking.getChoices(), Math.toIntExact(ranking.getBallots()));
+        } catch (InvalidCandidateName e) {
+          invalidCandidateName = e;
+        }
+      }
+    }
+
+    if (!expectedCounts.isEmpty() && !expectedCounts.equals(countyBallotCounts)) {
+      logger.warn(String.format("%s CVRs for contest %s changed during ingestion. Expected " +
+          "ballots by county ID: %s; found: %s.", prefix, request.contestName, expectedCounts,
+          countyBallotCounts));
+    }
+    final Vote[] votes = invalidCandidateName == null ? consolidator.getVotes() : new Vote[0];
+    return new IngestedVotes(ballotCount, votes, invalidCandidateName,
+        Collections.unmodifiableMap(countyBallotCounts));
+  }
+
+  /**
+   * @return whether vote snapshots are enabled (raire.snapshot.enabled).
+   */
+  public boolean isEnabled() {
+    return enabled;
+  }
+
+  /**
+   * @return whether the snapshot was built from CVRs with the given fingerprint.
+   */
+  private static boolean matches(VoteSnapshot snapshot, CountyFingerprint fingerprint) {
+    return snapshot.matches(fingerprint.getBallots(), fingerprint.getMaxCvrId(),
+        fingerprint.getChecksum());
+  }
+
+  /**
+   * Register the counter for snapshot lookups with the given outcome.
+   */
+  private static Counter lookupCounter(MeterRegistry meterRegistry, String outcome) {
+    return Counter.builder("raire.snapshot.lookups")
+        .description("County vote snapshot lookups, by outcome")
+        .tag("outcome", outcome)
+        .register(meterRegistry);
+  }
+}
@@ -0,0 +1,179 @@
+/*
+Copyright 2024 Democracy Developers
+
+The Raire Service is designed to connect colorado-rla and its associated database to
+the raire assertion generation engine (https://github.com/DemocracyDevelopers/raire-java).
+
+This file is part of raire-service.
+
+raire-service is free software: you can redistribute it and/or modify it under the terms
+of the GNU Affero General Public License as published by the Free Software Foundation, either
+version 3 of the License, or (at your option) any later version.
+
+raire-service is distributed in the hope that it will be useful, but WITHOUT ANY WARRANTY;
+without even the implied warranty of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.
+See the GNU Affero General Public License for more details.
+
+You should have received a copy of the GNU Affero General Public License along with
+raire-service. If not, see <https://www.gnu.org/licenses/>.
+*/
+
+package au.org.democracydevelopers.raireservice.util;
+
+/**
+ * A map from long to int, stored in two primitive arrays with open addressing and linear probing,
+ * so that neither keys nor values are boxed. Only the operations needed for counting are
+ * supported: adding to the value for a key, reading a value, and visiting every entry. The key 0
+ * is used to mark empty slots, so it is stored separately. This class is not thread safe.
+ */
+public class LongIntHashMap implements LongIntMap {
+
+  /**
+   * The maximum proportion of slots that may be occupied before the table is enlarged.
+   */
+  private static final double LOAD_FACTOR = 0.5;
+
+  /**
+   * Keys, with 0 marking an empty slot. The length is always a power of two.
+   */
+  private long[] keys;
+
+  /**
+   * Values, at the same index as their key.
+   */
+  private int[] values;
+
+  /**
+   * The number of non-zero keys in the table.
+   */
+  private int occupied = 0;
+
+  /**
+   * Whether the key 0 is present, and its value.
+   */
+  private boolean hasZeroKey = false;
+  private int zeroValue = 0;
+
+  /**
+   * Construct an empty map.
+   */
+  public LongIntHashMap() {
+    this(16);
+  }
+
+  /**
+   * Construct an empty map with room for the given number of entries before it must grow.
+   * @param expectedSize the number of entries expected.
+   */
+  public LongIntHashMap(int expectedSize) {
+    final int capacity = Integer.highestOneBit(Math.max(8, (int) (expectedSize / LOAD_FACTOR)))
+        * 2;
+    keys = new long[capacity];
+    values = new int[capacity];
+  }
+
+  /**
+   * Add delta to the value for the given key, treating an absent key as having value 0.
+   * @param key the key.
+   * @param delta the amount to add.
+   */
+  @Override
+  public void addTo(long key, int delta) {
+    if (key == 0) {
+      hasZeroKey = true;
+      zeroValue += delta;
+      return;
+    }
+    final int mask = keys.length - 1;
+    int i = slot(key, mask);
+    while (keys[i] != 0) {
+      if (keys[i] == key) {
+        values[i] += delta;
+        return;
+      }
+      i = (i + 1) & mask;
+    }
+    keys[i] = key;
+    values[i] = delta;
+    if (++occupied > keys.length * LOAD_FACTOR) {
+      grow();
+    }
+  }
+
+  /**
+   * @param key the key.
+   * @return the value for the key, or 0 if the key is absent.
+   */
+  @Override
+  public int get(long key) {
+    if (key == 0) {
+      return zeroValue;
+    }
+    final int mask = keys.length - 1;
+    for (int i = slot(key, mask); keys[i] != 0; i = (i + 1) & mask) {
+      if (keys[i] == key) {
+        return values[i];
+      }
+    }
+    return 0;
+  }
+
+  /**
+   * @return the number of keys in the map.
+   */
+  @Override
+  public int size() {
+    return occupied + (hasZeroKey ? 1 : 0);
+  }
+
+  /**
+   * Visit every entry in the map, in no particular order.
+   * @param consumer the visitor.
+   */
+  @Override
+  public void forEach(EntryConsumer consumer) {
+    if (hasZeroKey) {
+      consumer.accept(0, zeroValue);
+    }
+    for (int i = 0; i < keys.length; i++) {
+      if (keys[i] != 0) {
+        consumer.accept(keys[i], values[i]);
+      }
+    }
+  }
+
+  /**
+   * Double the size of the table, re-inserting every entry.
+   */
+  private void grow() {
+    final long[] oldKeys = keys;
+    final int[] oldValues = values;
+    keys = new long[oldKeys.length * 2];
+    values = new int[oldValues.length * 2];
+    final int mask = keys.length - 1;
+    for (int j = 0; j < oldKeys.length; j++) {
+      if (oldKeys[j] != 0) {
+        int i = slot(oldKeys[j], mask);
+        while (keys[i] != 0) {
+          i = (i + 1) & mask;
+        }
+        keys[i] = oldKeys[j];
+        values[i] = oldValues[j];
+      }
+    }
+  }
+
+  /**
+   * The home slot for a key. Packed rankings differ mostly in their low bits, so the key is mixed
+   * (with the MurmurHash3 finaliser) to spread them across the table. Also used by
+   * OffHeapLongIntHashMap.
+   */
+  static int slot(long key, int mask) {
+    key ^= key >>> 33;
+    key *= 0xff51afd7ed558ccdL;
+    key ^= key >>> 33;
+    key *= 0xc4ceb9fe1a85ec53L;
+    key ^= key >>> 33;
+    return (int) key & mask;
+  }
+}
@@ -0,0 +1,61 @@
+/*
+Copyright 2024 Democracy Developers
+
+The Raire Service is designed to connect colorado-rla and its associated database to
+the raire assertion generation engine (https://github.com/DemocracyDevelopers/raire-java).
+
+This file is part of raire-service.
+
+raire-service is free software: you can redistribute it and/or modify it under the terms
+of the GNU Affero General Public License as published by the Free Software Foundation, either
+version 3 of the License, or (at your option) any later version.
+
+raire-service is distributed in the hope that it will be useful, but WITHOUT ANY WARRANTY;
+without even the implied warranty of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.
+See the GNU Affero General Public License for more details.
+
+You should have received a copy of the GNU Affero General Public License along with
+raire-service. If not, see <https://www.gnu.org/licenses/>.
+*/
+
+package au.org.democracydevelopers.raireservice.util;
+
+/**
+ * A map from long to int supporting only the operations needed for counting: adding to the value
+ * for a key, reading a value, and visiting every entry. Implementations store keys and values
+ * without boxing them.
+ */
+public interface LongIntMap {
+
+  /**
+   * Visitor for the entries in a LongIntMap.
+   */
+  @FunctionalInterface
+  interface EntryConsumer {
+    void accept(long key, int value);
+  }
+
+  /**
+   * Add delta to the value for the given key, treating an absent key as having value 0.
+   * @param key the key.
+   * @param delta the amount to add.
+   */
+  void addTo(long key, int delta);
+
+  /**
+   * @param key the key.
+   * @return the value for the key, or 0 if the key is absent.
+   */
+  int get(long key);
+
+  /**
+   * @return the number of keys in the map.
+   */
+  int size();
+
+  /**
+   * Visit every entry in the map, in no particular order.
+   * @param consumer the visitor.
+   */
+  void forEach(EntryConsumer consumer);
+}
@@ -0,0 +1,232 @@
+/*
+Copyright 2024 Democracy Developers
+
+The Raire Service is designed to connect colorado-rla and its associated database to
+the raire assertion generation engine (https://github.com/DemocracyDevelopers/raire-java).
+
+This file is part of raire-service.
+
+raire-service is free software: you can redistribute it and/or modify it under the terms
+of the GNU Affero General Public License as published by the Free Software Foundation, either
+version 3 of the License, or (at your option) any later version.
+
+raire-service is distributed in the hope that it will be useful, but WITHOUT ANY WARRANTY;
+without even the implied warranty of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.
+See the GNU Affero General Public License for more details.
+
+You should have received a copy of the GNU Affero General Public License along with
+raire-service. If not, see <https://www.gnu.org/licenses/>.
+*/
+
+package au.org.democracydevelopers.raireservice.util;
+
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * A map from long to int with the same behaviour as LongIntHashMap (open addressing, linear
+ * probing, with the key 0 stored separately), but with its table held outside the Java heap, in
+ * direct ByteBuffers. This keeps the storage for very large numbers of distinct rankings out of
+ * the heap, so that heap usage does not grow with them. The total size of the tables allocated
+ * by all instances, and not yet closed, is available from allocatedBytes(), for reporting.
+ * Direct buffers are returned to the operating system only when they are garbage collected;
+ * close() drops this map's references to them, so that this can happen as soon as the map is no
+ * longer needed, but until it does they still occupy memory. allocatedBytes() is therefore the
+ * bytes held by live maps, which may be less than the direct memory actually in use.
+ * Direct buffers are limited in total by -XX:MaxDirectMemorySize, which defaults to the maximum
+ * heap size; holding rankings here moves them out of the heap but does not, by itself, allow
+ * more of them.
+ * This class is not thread safe.
+ */
+public class OffHeapLongIntHashMap implements LongIntMap, AutoCloseable {
+
+  /**
+   * The maximum proportion of slots that may be occupied before the table is enlarged.
+   */
+  private static final double LOAD_FACTOR = 0.5;
+
+  /**
+   * The bytes used by each slot: an 8-byte key and a 4-byte value.
+   */
+  private static final int SLOT_BYTES = Long.BYTES + Integer.BYTES;
+
+  /**
+   * The largest number of slots, limited by the largest direct buffer (2^31 - 1 bytes) that can
+   * hold the keys.
+   */
+  private static final int MAX_CAPACITY = 1 << 27;
+
+  /**
+   * The total bytes currently allocated by all open instances.
+   */
+  private static final AtomicLong allocated = new AtomicLong();
+
+  /**
+   * Keys, 8 bytes per slot, with 0 marking an empty slot. The number of slots is always a power
+   * of two.
+   */
+  private ByteBuffer keys;
+
+  /**
+   * Values, 4 bytes per slot, at the same slot as their key.
+   */
+  private ByteBuffer values;
+
+  /**
+   * The number of slots in the table.
+   */
+  private int capacity;
+
+  /**
+   * The number of non-zero keys in the table.
+   */
+  private int occupied = 0;
+
+  /**
+   * Whether the key 0 is present, and its value.
+   */
+  private boolean hasZeroKey = false;
+  private int zeroValue = 0;
+
+  /**
+   * Construct an empty map with room for the given number of entries before it must grow.
+   * @param expectedSize the number of entries expected.
+   */
+  public OffHeapLongIntHashMap(int expectedSize) {
+    allocate(Math.min(MAX_CAPACITY,
+        Integer.highestOneBit(Math.max(8, (int) (expectedSize / LOAD_FACTOR))) * 2));
+  }
+
+  /**
+   * @return the bytes held outside the heap by all live (not yet closed) instances. Buffers of
+   * closed instances that have not yet been garbage collected are not included.
+   */
+  public static long allocatedBytes() {
+    return allocated.get();
+  }
+
+  /**
+   * {@inheritDoc}
+   * @throws IllegalStateException if the map has been closed, or has grown too large.
+   */
+  @Override
+  public void addTo(long key, int delta) {
+    if (key == 0) {
+      hasZeroKey = true;
+      zeroValue += delta;
+      return;
+    }
+    checkOpen();
+    final int mask = capacity - 1;
+    int i = LongIntHashMap.slot(key, mask);
+    long k;
+    while ((k = keys.getLong(i * Long.BYTES)) != 0) {
+      if (k == key) {
+        values.putInt(i * Integer.BYTES, values.getInt(i * Integer.BYTES) + delta);
+        return;
+      }
+      i = (i + 1) & mask;
+    }
+    keys.putLong(i * Long.BYTES, key);
+    values.putInt(i * Integer.BYTES, delta);
+    if (++occupied > capacity * LOAD_FACTOR) {
+      grow();
+    }
+  }
+
+  @Override
+  public int get(long key) {
+    if (key == 0) {
+      return zeroValue;
+    }
+    checkOpen();
+    final int mask = capacity - 1;
+    long k;
+    for (int i = LongIntHashMap.slot(key, mask); (k = keys.getLong(i * Long.BYTES)) != 0;
+        i = (i + 1) & mask) {
+      if (k == key) {
+        return values.getInt(i * Integer.BYTES);
+      }
+    }
+    return 0;
+  }
+
+  @Override
+  public int size() {
+    return occupied + (hasZeroKey ? 1 : 0);
+  }
+
+  @Override
+  public void forEach(EntryConsumer consumer) {
+    if (hasZeroKey) {
+      consumer.accept(0, zeroValue);
+    }
+    checkOpen();
+    for (int i = 0; i < capacity; i++) {
+      final long key = keys.getLong(i * Long.BYTES);
+      if (key != 0) {
+        consumer.accept(key, values.getInt(i * Integer.BYTES));
+      }
+    }
+  }
+
+  /**
+   * Release the table. The map may not be used afterwards. Closing a closed map has no effect.
+   */
+  @Override
+  public void close() {
+    if (keys != null) {
+      allocated.addAndGet(-(long) capacity * SLOT_BYTES);
+      keys = null;
+      values = null;
+    }
+  }
+
+  /**
+   * Allocate an empty table with the given number of slots.
+   */
+  private void allocate(int slots) {
+    keys = ByteBuffer.allocateDirect(slots * Long.BYTES).order(ByteOrder.nativeOrder());
+    values = ByteBuffer.allocateDirect(slots * Integer.BYTES).order(ByteOrder.nativeOrder());
+    capacity = slots;
+    allocated.addAndGet((long) slots * SLOT_BYTES);
+  }
+
+  /**
+   * Double the size of the table, re-inserting every entry.
+   */
+  private void grow() {
+    if (capacity >= MAX_CAPACITY) {
+      throw new IllegalStateException(String.format("Off-heap map cannot hold more than %d " +
+          "entries.", (int) (MAX_CAPACITY * LOAD_FACTOR)));
+    }
+    final ByteBuffer oldKeys = keys;
+    final ByteBuffer oldValues = values;
+    final int oldCapacity = capacity;
+    allocate(oldCapacity * 2);
+    allocated.addAndGet(-(long) oldCapacity * SLOT_BYTES);
+
+    final int mask = capacity - 1;
+    for (int j = 0; j < oldCapacity; j++) {
+      final long key = oldKeys.getLong(j * Long.BYTES);
+      if (key != 0) {
+        int i = LongIntHashMap.slot(key, mask);
+        while (keys.getLong(i * Long.BYTES) != 0) {
+          i = (i + 1) & mask;
+        }
+        keys.putLong(i * Long.BYTES, key);
+        values.putInt(i * Integer.BYTES, oldValues.getInt(j * Integer.BYTES));
+      }
+    }
+  }
+
+  /**
+   * @throws IllegalStateException if the map has been closed.
+   */
+  private void checkOpen() {
+    if (keys == null) {
+      throw new IllegalStateException("Off-heap map used after it was closed.");
+    }
+  }
+}
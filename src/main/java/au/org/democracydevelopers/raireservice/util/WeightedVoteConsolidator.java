@@ -0,0 +1,631 @@
+/*
+Copyright 2024 Democracy Developers
+
+The Raire Service is designed to connect colorado-rla and its associated database to
+the raire assertion generation engine (https://github.com/DemocracyDevelopers/raire-java).
+
+This file is part of raire-service.
+
+raire-service is free software: you can redistribute it and/or modify it under the terms
+of the GNU Affero General Public License as published by the Free Software Foundation, either
+version 3 of the License, or (at your option) any later version.
+
+raire-service is distributed in the hope that it will be useful, but WITHOUT ANY WARRANTY;
+without even the implied warranty of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.
+See the GNU Affero General Public License for more details.
+
+You should have received a copy of the GNU Affero General Public License along with
+raire-service. If not, see <https://www.gnu.org/licenses/>.
+*/
+
+package au.org.democracydevelopers.raireservice.util;
+
+import au.org.democracydevelopers.raire.irv.Vote;
+import au.org.democracydevelopers.raire.util.VoteConsolidator;
+import au.org.democracydevelopers.raire.util.VoteConsolidator.InvalidCandidateName;
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.PriorityQueue;
+
+/**
+ * A service-side equivalent of raire-java's VoteConsolidator, which collects votes with the same
+ * ranking together and represents each collection as a single raire-java Vote with a count.
+ * Unlike raire-java's VoteConsolidator, a ranking may be added with a multiplicity, so that
+ * rankings that have already been counted (for example, by the database) can be consolidated
+ * without being expanded back into individual ballots.
+ * Rankings that refer to a name that is not in the candidate list are rejected with raire-java's
+ * InvalidCandidateName exception, exactly as raire-java's VoteConsolidator would reject them.
+ * Votes are returned in a canonical order (lexicographic by ranking), so the result does not
+ * depend on the order in which rankings were added.
+ * Internally, each ranking is packed into a single long, with a fixed number of bits per
+ * preference (enough to hold a candidate index plus one, so that 0 terminates the ranking), and
+ * counted in a primitive LongIntHashMap. This avoids allocating an int[] and a map entry for every
+ * ranking added. Rankings too long to fit in a long (for example, more than 16 preferences with
+ * 8-15 candidates) are counted separately, keyed by their full list of indices.
+ * For contests with very many distinct rankings, the storage can be configured (see Storage) to
+ * hold the packed rankings outside the Java heap (see OffHeapLongIntHashMap), and to bound the
+ * number of distinct rankings held in memory: when the bound is reached, the rankings held are
+ * written, in canonical order, to a temporary file (a run) and memory is cleared. getVotes then
+ * merges the runs (a k-way merge, in several passes if there are more than MAX_MERGE_FAN_IN),
+ * adding the counts of rankings that appear in more than one.
+ * close() releases off-heap storage and deletes the runs.
+ */
+public class WeightedVoteConsolidator implements AutoCloseable {
+
+  /**
+   * Where a consolidator keeps its rankings.
+   * @param offHeap whether packed rankings are counted outside the Java heap.
+   * @param spillThreshold the number of distinct rankings held in memory at which they are
+   *                       written to a temporary file, or 0 to hold all rankings in memory.
+   * @param spillDirectory the directory for temporary files (used only if spillThreshold is
+   *                       positive).
+   */
+  public record Storage(boolean offHeap, int spillThreshold, Path spillDirectory) {
+
+    /**
+     * All rankings held in memory, on the Java heap.
+     */
+    public static final Storage ON_HEAP = new Storage(false, 0, null);
+  }
+
+  /**
+   * The largest number of runs read at once when merging. Each open run holds a file descriptor
+   * and a read buffer, so a merge of more runs than this is done in several passes.
+   */
+  static final int MAX_MERGE_FAN_IN = 64;
+
+  /**
+   * The candidate names, in the order that defines their indices.
+   */
+  private final String[] candidates;
+
+  /**
+   * Map from candidate name to the index of that candidate in the candidate list.
+   */
+  private final Map<String, Integer> candidateIndex = new HashMap<>();
+
+  /**
+   * The number of bits used for each preference in a packed ranking.
+   */
+  private final int bitsPerPreference;
+
+  /**
+   * The longest ranking that can be packed into a long.
+   */
+  private final int maxPackedLength;
+
+  /**
+   * Map from a packed ranking to the number of ballots with that ranking.
+   */
+  private LongIntMap packedCounts;
+
+  /**
+   * Map from a ranking too long to pack (as candidate indices) to the number of ballots with
+   * that ranking.
+   */
+  private final Map<Ranking, Integer> longCounts = new HashMap<>();
+
+  /**
+   * Where rankings are kept.
+   */
+  private final Storage storage;
+
+  /**
+   * Temporary files, each holding rankings (with counts) in canonical order, written when the
+   * number of distinct rankings in memory reached the spill threshold.
+   */
+  private final List<Path> runs = new ArrayList<>();
+
+  /**
+   * The total number of ballots added.
+   */
+  private long ballotCount = 0;
+
+  /**
+   * Construct a consolidator for the given candidates.
+   * @param candidates the candidate names; each ranking must contain only these names.
+   */
+  public WeightedVoteConsolidator(String[] candidates) {
+    this(candidates, 0);
+  }
+
+  /**
+   * Construct a consolidator for the given candidates, with room for the given number of
+   * distinct rankings before its internal storage must grow.
+   * @param candidates the candidate names; each ranking must contain only these names.
+   * @param expectedRankings the number of distinct rankings expected (0 if not known).
+   */
+  public WeightedVoteConsolidator(String[] candidates, int expectedRankings) {
+    this(candidates, expectedRankings, Storage.ON_HEAP);
+  }
+
+  /**
+   * Construct a consolidator for the given candidates, with room for the given number of
+   * distinct rankings before its internal storage must grow, optionally holding that storage
+   * outside the Java heap.
+   * @param candidates the candidate names; each ranking must contain only these names.
+   * @param expectedRankings the number of distinct rankings expected (0 if not known).
+   * @param offHeap whether packed rankings are counted outside the Java heap.
+   */
+  public WeightedVoteConsolidator(String[] candidates, int expectedRankings, boolean offHeap) {
+    this(candidates, expectedRankings, new Storage(offHeap, 0, null));
+  }
+
+  /**
+   * Construct a consolidator for the given candidates, with room for the given number of
+   * distinct rankings (or the spill threshold, if lower) before its internal storage must grow,
+   * keeping its rankings as configured.
+   * @param candidates the candidate names; each ranking must contain only these names.
+   * @param expectedRankings the number of distinct rankings expected (0 if not known).
+   * @param storage where rankings are kept.
+   */
+  public WeightedVoteConsolidator(String[] candidates, int expectedRankings, Storage storage) {
+    this.candidates = candidates;
+    this.storage = storage;
+    this.packedCounts = newPackedCounts(storage.spillThreshold() > 0
+        ? Math.min(expectedRankings, storage.spillThreshold()) : expectedRankings);
+    for (int i = 0; i < candidates.length; i++) {
+      candidateIndex.put(candidates[i], i);
+    }
+    // Preference values are index + 1, in 1..candidates.length, with 0 marking the end.
+    this.bitsPerPreference = Math.max(1, 32 - Integer.numberOfLeadingZeros(candidates.length));
+    this.maxPackedLength = Long.SIZE / bitsPerPreference;
+  }
+
+  /**
+   * Release any storage held outside the Java heap, and delete any temporary files. The
+   * consolidator may not be used afterwards.
+   */
+  @Override
+  public void close() {
+    if (packedCounts instanceof OffHeapLongIntHashMap offHeapCounts) {
+      offHeapCounts.close();
+    }
+    for (Path run : runs) {
+      try {
+        Files.deleteIfExists(run);
+      } catch (IOException e) {
+        // The file is in a temporary directory; failing to delete it now is not an error.
+      }
+    }
+    runs.clear();
+  }
+
+  /**
+   * Add a ranking, expressed as candidate names, with the given number of ballots.
+   * @param names the ranked candidate names, most preferred first.
+   * @param count the number of ballots with this ranking.
+   * @throws InvalidCandidateName if the ranking contains a name that is not a candidate.
+   */
+  public void addVoteNames(String[] names, int count) throws InvalidCandidateName {
+    if (names.length <= maxPackedLength) {
+      // Pack directly from the names, without building an array of indices.
+      long packed = 0;
+      for (int i = 0; i < names.length; i++) {
+        final Integer index = candidateIndex.get(names[i]);
+        if (index == null) {
+          throw invalidCandidateName(names);
+        }
+        packed |= (long) (index + 1) << (i * bitsPerPreference);
+      }
+      packedCounts.addTo(packed, count);
+      ballotCount += count;
+      spillIfFull();
+      return;
+    }
+
+    final int[] prefs = new int[names.length];
+    for (int i = 0; i < names.length; i++) {
+      final Integer index = candidateIndex.get(names[i]);
+      if (index == null) {
+        throw invalidCandidateName(names);
+      }
+      prefs[i] = index;
+    }
+    addVote(prefs, count);
+  }
+
+  /**
+   * Add a ranking, expressed as candidate indices, with the given number of ballots.
+   * @param prefs the ranked candidate indices, most preferred first.
+   * @param count the number of ballots with this ranking.
+   */
+  public void addVote(int[] prefs, int count) {
+    addVote(prefs, prefs.length, count);
+  }
+
+  /**
+   * Add a ranking, expressed as the first length candidate indices in an array, with the given
+   * number of ballots. The array is not retained, so it may be reused by the caller.
+   * @param prefs the ranked candidate indices, most preferred first.
+   * @param length the number of preferences in the ranking.
+   * @param count the number of ballots with this ranking.
+   */
+  public void addVote(int[] prefs, int length, int count) {
+    if (length <= maxPackedLength && inRange(prefs, length)) {
+      long packed = 0;
+      for (int i = 0; i < length; i++) {
+        packed |= (long) (prefs[i] + 1) << (i * bitsPerPreference);
+      }
+      packedCounts.addTo(packed, count);
+    } else {
+      longCounts.merge(new Ranking(Arrays.copyOf(prefs, length)), count, Integer::sum);
+    }
+    ballotCount += count;
+    spillIfFull();
+  }
+
+  /**
+   * Add all the rankings consolidated by another consolidator to this one, for example to combine
+   * the results of consolidating disjoint sets of ballots in parallel. Any runs the other
+   * consolidator has written become this consolidator's, and will be deleted when this one is
+   * closed.
+   * @param other a consolidator constructed with the same candidates as this one.
+   * @throws IllegalArgumentException if the other consolidator has different candidates.
+   */
+  public void addAll(WeightedVoteConsolidator other) {
+    if (!Arrays.equals(candidates, other.candidates)) {
+      throw new IllegalArgumentException("Cannot combine consolidators with different candidates: "
+          + Arrays.toString(candidates) + " and " + Arrays.toString(other.candidates));
+    }
+    // The packing depends only on the candidates, so packed rankings can be added directly.
+    other.packedCounts.forEach(packedCounts::addTo);
+    other.longCounts.forEach((ranking, n) -> longCounts.merge(ranking, n, Integer::sum));
+    ballotCount += other.ballotCount;
+    runs.addAll(other.runs);
+    other.runs.clear();
+    spillIfFull();
+  }
+
+  /**
+   * @return the total number of ballots added so far.
+   */
+  public long getBallotCount() {
+    return ballotCount;
+  }
+
+  /**
+   * @return the number of distinct rankings added so far and held in memory. If rankings have
+   * been written to temporary files, they are not included.
+   */
+  public int getUniqueRankingCount() {
+    return packedCounts.size() + longCounts.size();
+  }
+
+  /**
+   * @return the number of temporary files to which rankings have been written.
+   */
+  public int getRunCount() {
+    return runs.size();
+  }
+
+  /**
+   * Get the consolidated votes, one per distinct ranking, in canonical order. If rankings have
+   * been written to temporary files, the rankings still in memory are written too, and all the
+   * files are merged.
+   * @return the votes, suitable for passing to raire-java as part of a RaireProblem.
+   * @throws UncheckedIOException if a temporary file could not be written or read.
+   */
+  public Vote[] getVotes() {
+    if (runs.isEmpty()) {
+      return sortedVotes();
+    }
+    if (getUniqueRankingCount() > 0) {
+      spill();
+    }
+    return mergeRuns();
+  }
+
+  /**
+   * @return the rankings held in memory as votes, in canonical order.
+   */
+  private Vote[] sortedVotes() {
+    final List<Map.Entry<Ranking, Integer>> entries = new ArrayList<>(getUniqueRankingCount());
+    packedCounts.forEach((packed, n) -> entries.add(Map.entry(unpack(packed), n)));
+    entries.addAll(longCounts.entrySet());
+    entries.sort(Map.Entry.comparingByKey());
+    return entries.stream().map(e -> new Vote(e.getValue(), e.getKey().prefs()))
+        .toArray(Vote[]::new);
+  }
+
+  /**
+   * Write the rankings held in memory to a run if there are as many as the spill threshold.
+   */
+  private void spillIfFull() {
+    if (storage.spillThreshold() > 0 && getUniqueRankingCount() >= storage.spillThreshold()) {
+      spill();
+    }
+  }
+
+  /**
+   * Write the rankings held in memory, in canonical order, to a new run, and clear them from
+   * memory. A run holds the number of rankings, then for each its count, its length and its
+   * candidate indices.
+   * @throws UncheckedIOException if the run could not be written.
+   */
+  private void spill() {
+    final Vote[] votes = sortedVotes();
+    try (RunWriter writer = new RunWriter(newRun())) {
+      for (Vote vote : votes) {
+        writer.write(vote.n, vote.prefs);
+      }
+    } catch (IOException e) {
+      throw new UncheckedIOException("Could not write rankings to a temporary file.", e);
+    }
+
+    if (packedCounts instanceof OffHeapLongIntHashMap offHeapCounts) {
+      offHeapCounts.close();
+    }
+    packedCounts = newPackedCounts(storage.spillThreshold());
+    longCounts.clear();
+  }
+
+  /**
+   * Merge the runs into a single array of votes in canonical order. At most MAX_MERGE_FAN_IN runs
+   * are read at once: while there are more, the oldest MAX_MERGE_FAN_IN are merged into a new
+   * run, which replaces them.
+   * @throws UncheckedIOException if a run could not be read or written.
+   */
+  private Vote[] mergeRuns() {
+    try {
+      while (runs.size() > MAX_MERGE_FAN_IN) {
+        final List<Path> group = new ArrayList<>(runs.subList(0, MAX_MERGE_FAN_IN));
+        try (RunWriter writer = new RunWriter(newRun())) {
+          merge(group, writer::write);
+        }
+        runs.removeAll(group);
+        for (Path run : group) {
+          Files.deleteIfExists(run);
+        }
+      }
+
+      final List<Vote> votes = new ArrayList<>();
+      merge(runs, (n, prefs) -> votes.add(new Vote(n, prefs)));
+      return votes.toArray(Vote[]::new);
+    } catch (IOException e) {
+      throw new UncheckedIOException("Could not merge rankings in temporary files.", e);
+    }
+  }
+
+  /**
+   * Merge the given runs, passing each distinct ranking, with its total count, to the consumer in
+   * canonical order. As each run is in canonical order, the next ranking is always the first
+   * remaining ranking of one of the runs; rankings that appear in more than one run have their
+   * counts added.
+   * @param inputs the runs to merge.
+   * @param consumer the destination for the merged rankings.
+   * @throws IOException if a run could not be read, or the consumer failed.
+   */
+  private static void merge(List<Path> inputs, RankingConsumer consumer) throws IOException {
+    final PriorityQueue<RunReader> queue = new PriorityQueue<>(
+        (a, b) -> Arrays.compare(a.prefs, b.prefs));
+    final List<RunReader> readers = new ArrayList<>(inputs.size());
+    try {
+      for (Path run : inputs) {
+        final RunReader reader = new RunReader(run);
+        readers.add(reader);
+        if (reader.next()) {
+          queue.add(reader);
+        }
+      }
+
+      while (!queue.isEmpty()) {
+        final RunReader first = queue.poll();
+        final int[] prefs = first.prefs;
+        int n = first.n;
+        if (first.next()) {
+          queue.add(first);
+        }
+        while (!queue.isEmpty() && Arrays.equals(queue.peek().prefs, prefs)) {
+          final RunReader same = queue.poll();
+          n += same.n;
+          if (same.next()) {
+            queue.add(same);
+          }
+        }
+        consumer.accept(n, prefs);
+      }
+    } finally {
+      for (RunReader reader : readers) {
+        reader.close();
+      }
+    }
+  }
+
+  /**
+   * Create a new, empty run in the spill directory. It is recorded as one of this consolidator's
+   * runs straight away, so that it is deleted on close even if writing it fails.
+   * @return the path of the run.
+   * @throws IOException if the file could not be created.
+   */
+  private Path newRun() throws IOException {
+    final Path run = Files.createTempFile(storage.spillDirectory(), "raire-rankings", ".run");
+    runs.add(run);
+    return run;
+  }
+
+  /**
+   * @return an empty map for packed rankings, of the configured kind, sized for the given number
+   * of entries.
+   */
+  private LongIntMap newPackedCounts(int expectedSize) {
+    return storage.offHeap() ? new OffHeapLongIntHashMap(expectedSize)
+        : new LongIntHashMap(expectedSize);
+  }
+
+  /**
+   * @return true if each of the first length indices in prefs is a valid candidate index, and so
+   * can be packed.
+   */
+  private boolean inRange(int[] prefs, int length) {
+    for (int i = 0; i < length; i++) {
+      if (prefs[i] < 0 || prefs[i] >= candidates.length) {
+        return false;
+      }
+    }
+    return true;
+  }
+
+  /**
+   * Recover the candidate indices from a packed ranking.
+   * @param packed a ranking packed by addVote or addVoteNames.
+   * @return the ranking as candidate indices.
+   */
+  private Ranking unpack(long packed) {
+    final long mask = (1L << bitsPerPreference) - 1;
+    int length = 0;
+    while (length < maxPackedLength && ((packed >>> (length * bitsPerPreference)) & mask) != 0) {
+      length++;
+    }
+    final int[] prefs = new int[length];
+    for (int i = 0; i < length; i++) {
+      prefs[i] = (int) ((packed >>> (i * bitsPerPreference)) & mask) - 1;
+    }
+    return new Ranking(prefs);
+  }
+
+  /**
+   * Produce the exception raire-java's VoteConsolidator raises for a ranking containing a name
+   * that is not in the candidate list, so that callers see the same error (and message) whichever
+   * consolidator is used.
+   * @param names a ranking containing at least one name that is not a candidate.
+   * @return the exception raised by raire-java for this ranking.
+   */
+  private InvalidCandidateName invalidCandidateName(String[] names) {
+    try {
+      new VoteConsolidator(candidates).addVoteNames(names);
+    } catch (InvalidCandidateName ex) {
+      return ex;
+    }
+    throw new IllegalStateException("raire-java accepted a ranking with an unknown candidate name: "
+        + Arrays.toString(names));
+  }
+
+  /**
+   * A ranking as an array of candidate indices, with value-based equality and a lexicographic
+   * ordering (a ranking that is a prefix of another comes first).
+   * @param prefs the candidate indices, most preferred first.
+   */
+  private record Ranking(int[] prefs) implements Comparable<Ranking> {
+
+    @Override
+    public boolean equals(Object o) {
+      return o instanceof Ranking other && Arrays.equals(prefs, other.prefs);
+    }
+
+    @Override
+    public int hashCode() {
+      return Arrays.hashCode(prefs);
+    }
+
+    @Override
+    public int compareTo(Ranking other) {
+      return Arrays.compare(prefs, other.prefs);
+    }
+  }
+
+  /**
+   * Destination for rankings, with their counts, as they are merged.
+   */
+  @FunctionalInterface
+  private interface RankingConsumer {
+    void accept(int n, int[] prefs) throws IOException;
+  }
+
+  /**
+   * Sequential writer of a run. The number of rankings, which begins the run, is filled in when
+   * the writer is closed.
+   */
+  private static class RunWriter implements AutoCloseable {
+
+    private final Path run;
+
+    private final DataOutputStream out;
+
+    private int count = 0;
+
+    RunWriter(Path run) throws IOException {
+      this.run = run;
+      out = new DataOutputStream(new BufferedOutputStream(Files.newOutputStream(run)));
+      out.writeInt(0);
+    }
+
+    /**
+     * Write a ranking, which must follow the previous one in canonical order.
+     */
+    void write(int n, int[] prefs) throws IOException {
+      out.writeInt(n);
+      out.writeInt(prefs.length);
+      for (int pref : prefs) {
+        out.writeInt(pref);
+      }
+      count++;
+    }
+
+    @Override
+    public void close() throws IOException {
+      out.close();
+      try (FileChannel channel = FileChannel.open(run, StandardOpenOption.WRITE)) {
+        channel.write(ByteBuffer.allocate(Integer.BYTES).putInt(0, count), 0);
+      }
+    }
+  }
+
+  /**
+   * Sequential reader of a run, holding the ranking (and count) most recently read.
+   */
+  private static class RunReader {
+
+    private final DataInputStream in;
+
+    private int remaining;
+
+    private int n;
+
+    private int[] prefs;
+
+    RunReader(Path run) throws IOException {
+      in = new DataInputStream(new BufferedInputStream(Files.newInputStream(run)));
+      remaining = in.readInt();
+    }
+
+    /**
+     * Read the next ranking.
+     * @return false if there are no more rankings in the run.
+     */
+    boolean next() throws IOException {
+      if (remaining == 0) {
+        return false;
+      }
+      remaining--;
+      n = in.readInt();
+      prefs = new int[in.readInt()];
+      for (int i = 0; i < prefs.length; i++) {
+        prefs[i] = in.readInt();
+      }
+      return true;
+    }
+
+    void close() {
+      try {
+        in.close();
+      } catch (IOException e) {
+        // Nothing more is read from the run.
+      }
+    }
+  }
+}
@@ -0,0 +1,53 @@
+-- Tables holding vote snapshots (see VoteSnapshotService). These are not part of the
+-- colorado-rla schema. They are created, if they do not already exist, when the service starts
+-- with raire.snapshot.enabled and raire.snapshot.create-tables set; otherwise this script should
+-- be run against the colorado-rla database before snapshots are enabled.
+
+-- One snapshot per county level contest, with the fingerprint of the CVRs it was built from.
+create table if not exists vote_snapshot
+(
+    id           bigserial
+        primary key,
+    contest_name varchar(255) not null,
+    contest_id   bigint       not null,
+    county_id    bigint       not null,
+    ballot_count bigint       not null,
+    max_cvr_id   bigint       not null,
+    checksum     bigint       not null,
+    version      bigint       not null,
+    constraint uk_vote_snapshot_contest_county
+        unique (contest_id, county_id)
+);
+
+create index if not exists idx_vote_snapshot_contest_name
+    on vote_snapshot (contest_name);
+
+-- The distinct choices entries of a snapshot's CVRs, keyed by a hash of the entry, with the
+-- number of CVRs having each.
+create table if not exists vote_snapshot_ranking
+(
+    snapshot_id  bigint not null
+        constraint fk_vote_snapshot_ranking_snapshot
+            references vote_snapshot,
+    choices      text   not null,
+    choices_hash bigint not null,
+    ballots      bigint not null
+);
+
+create index if not exists idx_vote_snapshot_ranking_snapshot
+    on vote_snapshot_ranking (snapshot_id);
+
+-- The CVRs (cvr_contest_info rows) a snapshot was built from, with a hash of each one's choices
+-- entry rather than the entry itself. The primary key carries the hash, so that changes can be
+-- found from the index alone.
+create table if not exists vote_snapshot_cvr
+(
+    snapshot_id  bigint  not null
+        constraint fk_vote_snapshot_cvr_snapshot
+            references vote_snapshot
+            on delete cascade,
+    cvr_id       bigint  not null,
+    cvr_index    integer not null,
+    choices_hash bigint  not null,
+    primary key (snapshot_id, cvr_id, cvr_index) include (choices_hash)
+);
@@ -0,0 +1,151 @@
+/*
+Copyright 2024 Democracy Developers
+
+The Raire Service is designed to connect colorado-rla and its associated database to
+the raire assertion generation engine (https://github.com/DemocracyDevelopers/raire-java).
+
+This file is part of raire-service.
+
+raire-service is free software: you can redistribute it and/or modify it under the terms
+of the GNU Affero General Public License as published by the Free Software Foundation, either
+version 3 of the License, or (at your option) any later version.
+
+raire-service is distributed in the hope that it will be useful, but WITHOUT ANY WARRANTY;
+without even the implied warranty of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.
+See the GNU Affero General Public License for more details.
+
+You should have received a copy of the GNU Affero General Public License along with
+raire-service. If not, see <https://www.gnu.org/licenses/>.
+*/
+
+package au.org.democracydevelopers.raireservice.controller;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertNotNull;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+import static org.mockito.ArgumentMatchers.any;
+import static org.mockito.Mockito.when;
+
+import au.org.democracydevelopers.raire.RaireError;
+import au.org.democracydevelopers.raire.RaireSolution.RaireResultOrError;
+import au.org.democracydevelopers.raireservice.request.GenerateAssertionsRequest;
+import au.org.democracydevelopers.raireservice.service.GenerateAssertionsService;
+import au.org.democracydevelopers.raireservice.service.RaireServiceException.RaireErrorCode;
+import au.org.democracydevelopers.raireservice.testUtils;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import java.net.URI;
+import java.net.http.HttpClient;
+import java.net.http.HttpRequest;
+import java.net.http.HttpResponse;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import org.junit.jupiter.api.Test;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.boot.test.autoconfigure.jdbc.AutoConfigureTestDatabase;
+import org.springframework.boot.test.autoconfigure.jdbc.AutoConfigureTestDatabase.Replace;
+import org.springframework.boot.test.context.SpringBootTest;
+import org.springframework.boot.test.web.server.LocalServerPort;
+import org.springframework.http.HttpHeaders;
+import org.springframework.http.HttpStatus;
+import org.springframework.test.annotation.DirtiesContext;
+import org.springframework.test.annotation.DirtiesContext.ClassMode;
+import org.springframework.test.context.ActiveProfiles;
+import org.springframework.test.context.bean.override.mockito.MockitoBean;
+
+/**
+ * Tests of admission control on the generate-assertions endpoint: requests beyond those that may
+ * generate assertions or wait are refused at once with TOO_MANY_REQUESTS, however many requests
+ * arrive together. Assertion generation is replaced by a mock that blocks until released, so that
+ * admitted requests stay in progress. Contests are preloaded into the test database from
+ * src/test/resources/known_testcases_votes.sql, for request validation.
+ */
+@ActiveProfiles("known-testcases")
+@SpringBootTest(webEnvironment = SpringBootTest.WebEnvironment.RANDOM_PORT, properties = {
+    "raire.admission.enabled=true", "raire.admission.max-concurrent=8",
+    "raire.admission.max-waiting=2"})
+@AutoConfigureTestDatabase(replace = Replace.NONE)
+@DirtiesContext(classMode = ClassMode.AFTER_CLASS)
+public class GenerateAssertionsAPIAdmissionTests {
+
+  private static final Logger logger =
+      LoggerFactory.getLogger(GenerateAssertionsAPIAdmissionTests.class);
+  private final static String baseURL = "http://localhost:";
+  private final static String generateAssertionsEndpoint = "/raire/generate-assertions";
+
+  @LocalServerPort
+  private int port;
+
+  @Autowired
+  private ObjectMapper objectMapper;
+
+  @MockitoBean
+  private GenerateAssertionsService generateAssertionsService;
+
+  /**
+   * Of sixteen requests sent together, eight generate assertions and two wait, so six are refused
+   * straight away with TOO_MANY_REQUESTS, the SERVICE_BUSY error code and a Retry-After header,
+   * while the others are still in progress. Once generation is released, the other ten complete.
+   * The number admitted is more than the eight threads Spring MVC uses for asynchronous requests
+   * by default, so this also checks that admitted requests do not wait for those threads.
+   */
+  @Test
+  public void excessConcurrentRequestsAreRefused() throws Exception {
+    testUtils.log(logger, "excessConcurrentRequestsAreRefused");
+    final CountDownLatch release = new CountDownLatch(1);
+    final AtomicInteger generating = new AtomicInteger();
+    when(generateAssertionsService.generateAssertions(any(), any(), any(), any())).thenAnswer(
+        invocation -> {
+          generating.incrementAndGet();
+          assertTrue(release.await(30, TimeUnit.SECONDS));
+          return new RaireResultOrError(new RaireError.TiedWinners(new int[]{0, 1}));
+        });
+
+    final String body = objectMapper.writeValueAsString(new GenerateAssertionsRequest(
+        "Simple Contest", 5, 5, List.of("Alice", "Chuan", "Bob")));
+    final HttpClient client = HttpClient.newBuilder().version(HttpClient.Version.HTTP_1_1)
+        .build();
+    final HttpRequest request = HttpRequest.newBuilder(
+            URI.create(baseURL + port + generateAssertionsEndpoint))
+        .header(HttpHeaders.CONTENT_TYPE, "application/json")
+        .POST(HttpRequest.BodyPublishers.ofString(body))
+        .build();
+
+    final List<CompletableFuture<HttpResponse<String>>> responses = new ArrayList<>();
+    for (int i = 0; i < 16; i++) {
+      responses.add(client.sendAsync(request, HttpResponse.BodyHandlers.ofString()));
+    }
+
+    // The refusals arrive while every admitted request is still blocked.
+    final List<HttpResponse<String>> refused = new ArrayList<>();
+    for (int i = 0; i < 100 && refused.size() < 6; i++) {
+      Thread.sleep(100);
+      refused.clear();
+      responses.stream().filter(CompletableFuture::isDone).map(CompletableFuture::join)
+          .forEach(refused::add);
+    }
+    assertEquals(6, refused.size());
+    for (HttpResponse<String> response : refused) {
+      assertEquals(HttpStatus.TOO_MANY_REQUESTS.value(), response.statusCode());
+      assertEquals(RaireErrorCode.SERVICE_BUSY.toString(),
+          response.headers().firstValue("error_code").orElse(null));
+      assertNotNull(response.headers().firstValue(HttpHeaders.RETRY_AFTER).orElse(null));
+    }
+    assertEquals(8, generating.get());
+
+    release.countDown();
+    int succeeded = 0;
+    for (CompletableFuture<HttpResponse<String>> response : responses) {
+      if (response.get(30, TimeUnit.SECONDS).statusCode() == HttpStatus.OK.value()) {
+        succeeded++;
+      }
+    }
+    assertEquals(10, succeeded);
+    assertEquals(10, generating.get());
+  }
+}
@@ -0,0 +1,171 @@
+/*
+Copyright 2024 Democracy Developers
+
+The Raire Service is designed to connect colorado-rla and its associated database to
+the raire assertion generation engine (https://github.com/DemocracyDevelopers/raire-java).
+
+This file is part of raire-service.
+
+raire-service is free software: you can redistribute it and/or modify it under the terms
+of the GNU Affero General Public License as published by the Free Software Foundation, either
+version 3 of the License, or (at your option) any later version.
+
+raire-service is distributed in the hope that it will be useful, but WITHOUT ANY WARRANTY;
+without even the implied warranty of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.
+See the GNU Affero General Public License for more details.
+
+You should have received a copy of the GNU Affero General Public License along with
+raire-service. If not, see <https://www.gnu.org/licenses/>.
+*/
+
+package au.org.democracydevelopers.raireservice.controller;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertNotNull;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+import static org.mockito.ArgumentMatchers.any;
+import static org.mockito.Mockito.when;
+
+import au.org.democracydevelopers.raire.RaireError;
+import au.org.democracydevelopers.raire.RaireSolution.RaireResultOrError;
+import au.org.democracydevelopers.raireservice.request.GenerateAssertionsRequest;
+import au.org.democracydevelopers.raireservice.response.GenerationJobResponse;
+import au.org.democracydevelopers.raireservice.service.GenerateAssertionsService;
+import au.org.democracydevelopers.raireservice.service.GenerationJob.Status;
+import au.org.democracydevelopers.raireservice.service.RaireServiceException.RaireErrorCode;
+import au.org.democracydevelopers.raireservice.testUtils;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import org.junit.jupiter.api.Test;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.boot.test.autoconfigure.jdbc.AutoConfigureTestDatabase;
+import org.springframework.boot.test.autoconfigure.jdbc.AutoConfigureTestDatabase.Replace;
+import org.springframework.boot.test.context.SpringBootTest;
+import org.springframework.boot.test.web.client.TestRestTemplate;
+import org.springframework.boot.test.web.server.LocalServerPort;
+import org.springframework.http.HttpHeaders;
+import org.springframework.http.HttpStatus;
+import org.springframework.http.ResponseEntity;
+import org.springframework.test.annotation.DirtiesContext;
+import org.springframework.test.annotation.DirtiesContext.ClassMode;
+import org.springframework.test.context.ActiveProfiles;
+import org.springframework.test.context.bean.override.mockito.MockitoBean;
+
+/**
+ * Tests of the asynchronous assertion generation API when the job queue is full: submissions are
+ * refused with TOO_MANY_REQUESTS, as the generate-assertions endpoint refuses excess requests.
+ * The service runs one job at a time with room for one more in the queue, and assertion
+ * generation is replaced by a mock that blocks until released, so that the running job holds its
+ * worker. Contests are preloaded into the test database from
+ * src/test/resources/known_testcases_votes.sql, for request validation.
+ */
+@ActiveProfiles("known-testcases")
+@SpringBootTest(webEnvironment = SpringBootTest.WebEnvironment.RANDOM_PORT, properties = {
+    "raire.jobs.threads=1", "raire.jobs.queue-capacity=1"})
+@AutoConfigureTestDatabase(replace = Replace.NONE)
+@DirtiesContext(classMode = ClassMode.AFTER_CLASS)
+public class GenerationJobAPIQueueTests {
+
+  private static final Logger logger = LoggerFactory.getLogger(GenerationJobAPIQueueTests.class);
+  private final static String baseURL = "http://localhost:";
+  private final static String jobsEndpoint = "/raire/generation-jobs";
+  private final static String batchEndpoint = "/raire/generation-jobs/batch";
+
+  /**
+   * How long to wait for a job to start.
+   */
+  private static final long MAX_WAIT_MILLIS = 30000;
+
+  private static final List<String> aliceChuanBob = List.of("Alice", "Chuan", "Bob");
+
+  @LocalServerPort
+  private int port;
+
+  @Autowired
+  private TestRestTemplate restTemplate;
+
+  @MockitoBean
+  private GenerateAssertionsService generateAssertionsService;
+
+  /**
+   * With one job running and one queued, a further job, and a batch, are refused with
+   * TOO_MANY_REQUESTS, the SERVICE_BUSY error code and a positive Retry-After, rather than as an
+   * internal error. The queued job is unaffected.
+   */
+  @Test
+  public void fullQueueRefusesSubmissions() throws Exception {
+    testUtils.log(logger, "fullQueueRefusesSubmissions");
+    final CountDownLatch release = new CountDownLatch(1);
+    when(generateAssertionsService.generateAssertions(any(), any(), any(), any())).thenAnswer(
+        invocation -> {
+          assertTrue(release.await(MAX_WAIT_MILLIS, TimeUnit.MILLISECONDS));
+          return new RaireResultOrError(new RaireError.TiedWinners(new int[]{0, 1}));
+        });
+    final GenerateAssertionsRequest request = new GenerateAssertionsRequest("Simple Contest", 5,
+        5, aliceChuanBob);
+
+    try {
+      final ResponseEntity<GenerationJobResponse> running = restTemplate.postForEntity(
+          baseURL + port + jobsEndpoint, request, GenerationJobResponse.class);
+      assertEquals(HttpStatus.ACCEPTED, running.getStatusCode());
+      assertNotNull(running.getBody());
+      waitUntilRunning(running.getBody().jobId());
+
+      final ResponseEntity<GenerationJobResponse> queued = restTemplate.postForEntity(
+          baseURL + port + jobsEndpoint, request, GenerationJobResponse.class);
+      assertEquals(HttpStatus.ACCEPTED, queued.getStatusCode());
+      assertNotNull(queued.getBody());
+      assertEquals(Status.QUEUED, queued.getBody().status());
+
+      final ResponseEntity<String> refused = restTemplate.postForEntity(
+          baseURL + port + jobsEndpoint, request, String.class);
+      assertBusy(refused);
+
+      final ResponseEntity<String> refusedBatch = restTemplate.postForEntity(
+          baseURL + port + batchEndpoint, List.of(request), String.class);
+      assertBusy(refusedBatch);
+
+      final ResponseEntity<GenerationJobResponse> stillQueued = restTemplate.getForEntity(
+          baseURL + port + jobsEndpoint + "/" + queued.getBody().jobId(),
+          GenerationJobResponse.class);
+      assertNotNull(stillQueued.getBody());
+      assertEquals(Status.QUEUED, stillQueued.getBody().status());
+    } finally {
+      release.countDown();
+    }
+  }
+
+  /**
+   * Check that a submission was refused because the job queue is full.
+   * @param response the response to the submission.
+   */
+  private void assertBusy(ResponseEntity<String> response) {
+    assertEquals(HttpStatus.TOO_MANY_REQUESTS, response.getStatusCode());
+    assertEquals(RaireErrorCode.SERVICE_BUSY.toString(),
+        response.getHeaders().getFirst("error_code"));
+    final String retryAfter = response.getHeaders().getFirst(HttpHeaders.RETRY_AFTER);
+    assertNotNull(retryAfter);
+    assertTrue(Long.parseLong(retryAfter) >= 1);
+  }
+
+  /**
+   * Poll a job until a worker has taken it from the queue.
+   * @param jobId the job identifier.
+   */
+  private void waitUntilRunning(String jobId) throws InterruptedException {
+    final long deadline = System.currentTimeMillis() + MAX_WAIT_MILLIS;
+    while (System.currentTimeMillis() < deadline) {
+      final ResponseEntity<GenerationJobResponse> response = restTemplate.getForEntity(
+          baseURL + port + jobsEndpoint + "/" + jobId, GenerationJobResponse.class);
+      assertNotNull(response.getBody());
+      if (response.getBody().status() == Status.RUNNING) {
+        return;
+      }
+      Thread.sleep(50);
+    }
+    throw new AssertionError("Job " + jobId + " did not start.");
+  }
+}
@@ -0,0 +1,276 @@
+/*
+Copyright 2024 Democracy Developers
+
+The Raire Service is designed to connect colorado-rla and its associated database to
+the raire assertion generation engine (https://github.com/DemocracyDevelopers/raire-java).
+
+This file is part of raire-service.
+
+raire-service is free software: you can redistribute it and/or modify it under the terms
+of the GNU Affero General Public License as published by the Free Software Foundation, either
+version 3 of the License, or (at your option) any later version.
+
+raire-service is distributed in the hope that it will be useful, but WITHOUT ANY WARRANTY;
+without even the implied warranty of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.
+See the GNU Affero General Public License for more details.
+
+You should have received a copy of the GNU Affero General Public License along with
+raire-service. If not, see <https://www.gnu.org/licenses/>.
+*/
+
+package au.org.democracydevelopers.raireservice.controller;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertNotNull;
+import static org.junit.jupiter.api.Assertions.assertNull;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import au.org.democracydevelopers.raireservice.request.GenerateAssertionsRequest;
+import au.org.democracydevelopers.raireservice.response.GenerationJobResponse;
+import au.org.democracydevelopers.raireservice.service.GenerationJob.Phase;
+import au.org.democracydevelopers.raireservice.service.GenerationJob.Status;
+import au.org.democracydevelopers.raireservice.service.GenerationCostModel;
+import au.org.democracydevelopers.raireservice.service.RaireServiceException.RaireErrorCode;
+import au.org.democracydevelopers.raireservice.testUtils;
+import java.util.List;
+import org.junit.jupiter.api.Test;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.boot.test.autoconfigure.jdbc.AutoConfigureTestDatabase;
+import org.springframework.boot.test.autoconfigure.jdbc.AutoConfigureTestDatabase.Replace;
+import org.springframework.boot.test.context.SpringBootTest;
+import org.springframework.boot.test.web.client.TestRestTemplate;
+import org.springframework.boot.test.web.server.LocalServerPort;
+import org.springframework.http.HttpMethod;
+import org.springframework.http.HttpStatus;
+import org.springframework.http.ResponseEntity;
+import org.springframework.test.annotation.DirtiesContext;
+import org.springframework.test.annotation.DirtiesContext.ClassMode;
+import org.springframework.test.context.ActiveProfiles;
+
+/**
+ * Tests of the asynchronous assertion generation API: submitting a job or a batch of jobs, polling
+ * for their status, and collecting their results or errors. Relevant data is preloaded into the test database from
+ * src/test/resources/known_testcases_votes.sql.
+ */
+@ActiveProfiles("known-testcases")
+@SpringBootTest(webEnvironment = SpringBootTest.WebEnvironment.RANDOM_PORT)
+@AutoConfigureTestDatabase(replace = Replace.NONE)
+@DirtiesContext(classMode = ClassMode.AFTER_CLASS)
+public class GenerationJobAPITests {
+
+  private static final Logger logger = LoggerFactory.getLogger(GenerationJobAPITests.class);
+  private final static String baseURL = "http://localhost:";
+  private final static String jobsEndpoint = "/raire/generation-jobs";
+  private final static String batchEndpoint = "/raire/generation-jobs/batch";
+
+  /**
+   * How long to wait for a job to finish.
+   */
+  private static final long MAX_WAIT_MILLIS = 30000;
+
+  private static final String simpleContest = "Simple Contest";
+  private static final String crossCountySimpleContest = "Cross-county Simple Contest";
+  private static final String guideToRaireExample1 = "Guide To Raire Example 1";
+  private static final String guideToRaireExample2 = "Guide To Raire Example 2";
+
+  private static final List<String> aliceChuanBob = List.of("Alice", "Chuan", "Bob");
+  private static final List<String> aliceBobChuanDiego = List.of("Alice", "Bob", "Chuan", "Diego");
+
+  @LocalServerPort
+  private int port;
+
+  @Autowired
+  private TestRestTemplate restTemplate;
+
+  @Autowired
+  private GenerationCostModel generationCostModel;
+
+  /**
+   * A job for the simple contest is accepted, with a Location header giving its URL, and
+   * eventually succeeds with the response the synchronous endpoint gives.
+   */
+  @Test
+  public void jobSucceeds() throws InterruptedException {
+    testUtils.log(logger, "jobSucceeds");
+    final GenerateAssertionsRequest request = new GenerateAssertionsRequest(simpleContest, 5, 5,
+        aliceChuanBob);
+
+    final ResponseEntity<GenerationJobResponse> submitted = restTemplate.postForEntity(
+        baseURL + port + jobsEndpoint, request, GenerationJobResponse.class);
+    assertEquals(HttpStatus.ACCEPTED, submitted.getStatusCode());
+    assertNotNull(submitted.getBody());
+    assertNotNull(submitted.getHeaders().getLocation());
+    assertTrue(submitted.getHeaders().getLocation().toString()
+        .endsWith(jobsEndpoint + "/" + submitted.getBody().jobId()));
+    assertEquals(simpleContest, submitted.getBody().contestName());
+
+    final GenerationJobResponse job = waitFor(submitted.getBody().jobId());
+    assertEquals(Status.SUCCEEDED, job.status());
+    assertEquals(Phase.DONE, job.phase());
+    assertNotNull(job.finished());
+    assertNotNull(job.result());
+    assertTrue(job.result().succeeded());
+    assertFalse(job.result().retry());
+    assertNull(job.errorCode());
+    assertNull(job.queuePosition());
+    assertNull(job.predictedStart());
+  }
+
+  /**
+   * A job for the simple contest with a universe size smaller than the number of ballots fails,
+   * with the error code the synchronous endpoint gives.
+   */
+  @Test
+  public void jobFails() throws InterruptedException {
+    testUtils.log(logger, "jobFails");
+    final GenerateAssertionsRequest request = new GenerateAssertionsRequest(simpleContest, 1, 5,
+        aliceChuanBob);
+
+    final ResponseEntity<GenerationJobResponse> submitted = restTemplate.postForEntity(
+        baseURL + port + jobsEndpoint, request, GenerationJobResponse.class);
+    assertEquals(HttpStatus.ACCEPTED, submitted.getStatusCode());
+    assertNotNull(submitted.getBody());
+
+    final GenerationJobResponse job = waitFor(submitted.getBody().jobId());
+    assertEquals(Status.FAILED, job.status());
+    assertEquals(RaireErrorCode.INVALID_TOTAL_AUDITABLE_BALLOTS, job.errorCode());
+    assertNotNull(job.errorMessage());
+    assertNull(job.result());
+  }
+
+  /**
+   * An invalid request is rejected straight away, without a job being created.
+   */
+  @Test
+  public void invalidRequestIsRejected() {
+    testUtils.log(logger, "invalidRequestIsRejected");
+    final GenerateAssertionsRequest request = new GenerateAssertionsRequest("Non-Existent Contest",
+        5, 5, aliceChuanBob);
+
+    final ResponseEntity<String> response = restTemplate.postForEntity(
+        baseURL + port + jobsEndpoint, request, String.class);
+    assertEquals(HttpStatus.BAD_REQUEST, response.getStatusCode());
+  }
+
+  /**
+   * A batch of jobs is accepted, with a job for each request in the order of the requests, and
+   * every job succeeds.
+   */
+  @Test
+  public void batchSucceeds() throws InterruptedException {
+    testUtils.log(logger, "batchSucceeds");
+    final List<GenerateAssertionsRequest> requests = List.of(
+        new GenerateAssertionsRequest(simpleContest, 5, 5, aliceChuanBob),
+        new GenerateAssertionsRequest(guideToRaireExample1, 27, 5, aliceBobChuanDiego),
+        new GenerateAssertionsRequest(crossCountySimpleContest, 5, 5, aliceChuanBob));
+
+    final ResponseEntity<GenerationJobResponse[]> submitted = restTemplate.postForEntity(
+        baseURL + port + batchEndpoint, requests, GenerationJobResponse[].class);
+    assertEquals(HttpStatus.ACCEPTED, submitted.getStatusCode());
+    assertNotNull(submitted.getBody());
+    assertEquals(3, submitted.getBody().length);
+
+    for (int i = 0; i < requests.size(); i++) {
+      assertEquals(requests.get(i).contestName, submitted.getBody()[i].contestName());
+      final GenerationJobResponse job = waitFor(submitted.getBody()[i].jobId());
+      assertEquals(Status.SUCCEEDED, job.status());
+      assertTrue(job.result().succeeded());
+    }
+  }
+
+  /**
+   * A batch with two requests for the same contest, or with an invalid request, or with no
+   * requests, is rejected.
+   */
+  @Test
+  public void invalidBatchIsRejected() {
+    testUtils.log(logger, "invalidBatchIsRejected");
+    final String url = baseURL + port + batchEndpoint;
+    final GenerateAssertionsRequest valid = new GenerateAssertionsRequest(simpleContest, 5, 5,
+        aliceChuanBob);
+
+    assertEquals(HttpStatus.BAD_REQUEST, restTemplate.postForEntity(url, List.of(valid, valid),
+        String.class).getStatusCode());
+    assertEquals(HttpStatus.BAD_REQUEST, restTemplate.postForEntity(url, List.of(valid,
+        new GenerateAssertionsRequest("Non-Existent Contest", 5, 5, aliceChuanBob)),
+        String.class).getStatusCode());
+    assertEquals(HttpStatus.BAD_REQUEST, restTemplate.postForEntity(url, List.of(),
+        String.class).getStatusCode());
+  }
+
+  /**
+   * A contest with more ballots and candidates is predicted to take longer. Once a contest has
+   * been solved, its solve time is used in predictions, up to the request's time limit.
+   */
+  @Test
+  public void predictionsUseBallotsCandidatesAndHistory() {
+    testUtils.log(logger, "predictionsUseBallotsCandidatesAndHistory");
+    final GenerateAssertionsRequest small = new GenerateAssertionsRequest(guideToRaireExample2,
+        5, 5, aliceChuanBob);
+    final GenerateAssertionsRequest large = new GenerateAssertionsRequest(guideToRaireExample2,
+        5, 5, aliceBobChuanDiego);
+    assertTrue(generationCostModel.predictSeconds(small) > 0);
+    assertTrue(generationCostModel.predictSeconds(large)
+        > generationCostModel.predictSeconds(small));
+
+    generationCostModel.recordSolve(guideToRaireExample2, 3);
+    final double predicted = generationCostModel.predictSeconds(small);
+    assertTrue(predicted >= 3 && predicted < 4);
+
+    generationCostModel.recordSolve(guideToRaireExample2, 100);
+    assertTrue(generationCostModel.predictSeconds(small) < 6);
+  }
+
+  /**
+   * Requesting the status of an unknown job gives NOT_FOUND.
+   */
+  @Test
+  public void unknownJobIsNotFound() {
+    testUtils.log(logger, "unknownJobIsNotFound");
+    final ResponseEntity<String> response = restTemplate.getForEntity(
+        baseURL + port + jobsEndpoint + "/no-such-job", String.class);
+    assertEquals(HttpStatus.NOT_FOUND, response.getStatusCode());
+  }
+
+  /**
+   * Cancelling an unknown job gives NOT_FOUND, and cancelling generation for a contest with none
+   * in progress cancels nothing.
+   */
+  @Test
+  public void cancellingNothing() {
+    testUtils.log(logger, "cancellingNothing");
+    final ResponseEntity<Void> response = restTemplate.exchange(
+        baseURL + port + jobsEndpoint + "/no-such-job", HttpMethod.DELETE, null, Void.class);
+    assertEquals(HttpStatus.NOT_FOUND, response.getStatusCode());
+
+    final ResponseEntity<Integer> cancelled = restTemplate.postForEntity(
+        baseURL + port + "/raire/cancel-generation?contestName={name}", null, Integer.class,
+        simpleContest);
+    assertEquals(HttpStatus.OK, cancelled.getStatusCode());
+    assertEquals(0, cancelled.getBody());
+  }
+
+  /**
+   * Poll for a job's status until it is complete.
+   * @param jobId the job identifier.
+   * @return the final status of the job.
+   */
+  private GenerationJobResponse waitFor(String jobId) throws InterruptedException {
+    final long deadline = System.currentTimeMillis() + MAX_WAIT_MILLIS;
+    while (true) {
+      final ResponseEntity<GenerationJobResponse> response = restTemplate.getForEntity(
+          baseURL + port + jobsEndpoint + "/" + jobId, GenerationJobResponse.class);
+      assertEquals(HttpStatus.OK, response.getStatusCode());
+      assertNotNull(response.getBody());
+      final Status status = response.getBody().status();
+      if (status == Status.SUCCEEDED || status == Status.FAILED || status == Status.CANCELLED
+          || System.currentTimeMillis() > deadline) {
+        return response.getBody();
+      }
+      Thread.sleep(100);
+    }
+  }
+}
@@ -0,0 +1,144 @@
+/*
+Copyright 2024 Democracy Developers
+
+The Raire Service is designed to connect colorado-rla and its associated database to
+the raire assertion generation engine (https://github.com/DemocracyDevelopers/raire-java).
+
+This file is part of raire-service.
+
+raire-service is free software: you can redistribute it and/or modify it under the terms
+of the GNU Affero General Public License as published by the Free Software Foundation, either
+version 3 of the License, or (at your option) any later version.
+
+raire-service is distributed in the hope that it will be useful, but WITHOUT ANY WARRANTY;
+without even the implied warranty of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.
+See the GNU Affero General Public License for more details.
+
+You should have received a copy of the GNU Affero General Public License along with
+raire-service. If not, see <https://www.gnu.org/licenses/>.
+*/
+
+package au.org.democracydevelopers.raireservice.persistence.converters;
+
+import static org.junit.jupiter.api.Assertions.assertArrayEquals;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+
+import au.org.democracydevelopers.raireservice.testUtils;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+import java.util.List;
+import org.junit.jupiter.api.Test;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Tests for decoding choices entries from raw bytes into candidate indices with the
+ * ChoicesByteDecoder, checked against the String-based JsonStringArrayParser.
+ */
+public class ChoicesByteDecoderTests {
+
+  private static final Logger logger = LoggerFactory.getLogger(ChoicesByteDecoderTests.class);
+
+  private static final List<String> candidates = List.of("Alice", "Bob", "Chuan",
+      "Al (Bob) Jones", "Quote \" and backslash \\", "\u00e9l\u00e8ve", "\u4e2d",
+      "Smile \uD83D\uDE00", "");
+
+  /**
+   * Entries made up of candidate names, in all the forms the decoder accepts.
+   */
+  private static final List<String> candidateEntries = List.of(
+      "[]",
+      " [ ] ",
+      "[\"Alice\"]",
+      "[\"Alice\",\"Bob\",\"Chuan\"]",
+      " [ \"Chuan\" ,\n\t\"Bob\" ] ",
+      "[\"Al (Bob) Jones\",\"Alice\"]",
+      "[\"Quote \\\" and backslash \\\\\"]",
+      "[\"\\u00e9l\\u00E8ve\",\"\\u4e2d\"]",
+      "[\"\u00e9l\u00e8ve\",\"\u4e2d\"]",
+      "[\"Smile \uD83D\uDE00\",\"Smile \\ud83d\\ude00\"]",
+      "[\"\"]",
+      "[\"\\u0041lice\",\"B\\u006F\\u0062\"]"
+  );
+
+  /**
+   * Entries the decoder does not accept: unusual JSON, malformed JSON, invalid escapes and names
+   * that are not candidates.
+   */
+  private static final List<String> rejectedEntries = List.of(
+      "[\"Alice\",null]",
+      "[\"Alice\",1]",
+      "[[\"Alice\"]]",
+      "[\"Alice\"] trailing",
+      "[\"Alice\",]",
+      "[\"Alice\"",
+      "[\"Ali\\qce\"]",
+      "[\"\\u12\"]",
+      "[\"\\ud83d\"]",
+      "[\"\\ude00\"]",
+      "NotAList",
+      "",
+      "[\"Alice\",\"Diego\"]",
+      "[\"alice\"]"
+  );
+
+  /**
+   * The decoder maps each accepted entry to the same candidate indices as parsing it to names and
+   * looking each name up in the candidate list.
+   */
+  @Test
+  void decodedIndicesMatchParsedNames() {
+    testUtils.log(logger, "decodedIndicesMatchParsedNames");
+    final ChoicesByteDecoder decoder = new ChoicesByteDecoder(
+        new CandidateByteDictionary(candidates));
+    for (String entry : candidateEntries) {
+      final int[] expected = Arrays.stream(JsonStringArrayParser.parse(entry, null))
+          .mapToInt(candidates::indexOf).toArray();
+      final int length = decoder.decode(entry.getBytes(StandardCharsets.UTF_8));
+      assertEquals(expected.length, length, entry);
+      assertArrayEquals(expected, Arrays.copyOf(decoder.preferences(), length), entry);
+    }
+  }
+
+  /**
+   * The decoder declines entries outside its format, and entries naming non-candidates.
+   */
+  @Test
+  void unusualEntriesAreRejected() {
+    testUtils.log(logger, "unusualEntriesAreRejected");
+    final ChoicesByteDecoder decoder = new ChoicesByteDecoder(
+        new CandidateByteDictionary(candidates));
+    for (String entry : rejectedEntries) {
+      assertEquals(-1, decoder.decode(entry.getBytes(StandardCharsets.UTF_8)), entry);
+    }
+  }
+
+  /**
+   * Rankings longer than the decoder's initial buffer are decoded in full.
+   */
+  @Test
+  void longRankingsAreDecoded() {
+    testUtils.log(logger, "longRankingsAreDecoded");
+    final ChoicesByteDecoder decoder = new ChoicesByteDecoder(
+        new CandidateByteDictionary(candidates));
+    final String[] names = new String[40];
+    Arrays.setAll(names, i -> "\"" + candidates.get(i % 3) + "\"");
+    final int length = decoder.decode(("[" + String.join(",", names) + "]")
+        .getBytes(StandardCharsets.UTF_8));
+    assertEquals(40, length);
+    assertEquals(2, decoder.preferences()[38]);
+  }
+
+  /**
+   * A name that appears more than once in the candidate list maps to its last index, as it does
+   * in WeightedVoteConsolidator.
+   */
+  @Test
+  void repeatedCandidateUsesLastIndex() {
+    testUtils.log(logger, "repeatedCandidateUsesLastIndex");
+    final CandidateByteDictionary dictionary = new CandidateByteDictionary(
+        List.of("Alice", "Bob", "Alice"));
+    final byte[] alice = "Alice".getBytes(StandardCharsets.UTF_8);
+    assertEquals(2, dictionary.find(alice, 0, alice.length));
+  }
+}
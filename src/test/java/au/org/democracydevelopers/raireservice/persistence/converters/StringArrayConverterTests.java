@@ -0,0 +1,176 @@
+/*
+Copyright 2024 Democracy Developers
+
+The Raire Service is designed to connect colorado-rla and its associated database to
+the raire assertion generation engine (https://github.com/DemocracyDevelopers/raire-java).
+
+This file is part of raire-service.
+
+raire-service is free software: you can redistribute it and/or modify it under the terms
+of the GNU Affero General Public License as published by the Free Software Foundation, either
+version 3 of the License, or (at your option) any later version.
+
+raire-service is distributed in the hope that it will be useful, but WITHOUT ANY WARRANTY;
+without even the implied warranty of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.
+See the GNU Affero General Public License for more details.
+
+You should have received a copy of the GNU Affero General Public License along with
+raire-service. If not, see <https://www.gnu.org/licenses/>.
+*/
+
+package au.org.democracydevelopers.raireservice.persistence.converters;
+
+import static org.junit.jupiter.api.Assertions.assertArrayEquals;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertNotSame;
+import static org.junit.jupiter.api.Assertions.assertNull;
+import static org.junit.jupiter.api.Assertions.assertSame;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+
+import au.org.democracydevelopers.raireservice.persistence.converters.StringArrayConverter.DictionaryScope;
+import au.org.democracydevelopers.raireservice.testUtils;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import java.util.List;
+import org.junit.jupiter.api.Test;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Tests for the conversion of choices entries to arrays of strings, including the fast-path
+ * JsonStringArrayParser, its agreement with Jackson, and sharing of candidate name instances.
+ */
+public class StringArrayConverterTests {
+
+  private static final Logger logger = LoggerFactory.getLogger(StringArrayConverterTests.class);
+
+  private static final ObjectMapper objectMapper = new ObjectMapper();
+
+  private final StringArrayConverter converter = new StringArrayConverter();
+
+  /**
+   * Choices entries that the fast-path parser accepts, covering whitespace, empty lists and the
+   * JSON escapes.
+   */
+  private static final List<String> simpleEntries = List.of(
+      "[]",
+      " [ ] ",
+      "[\"Alice\"]",
+      "[\"Alice\",\"Bob\",\"Chuan\"]",
+      " [ \"Alice\" ,\n\t\"Bob\" ] ",
+      "[\"Al (Bob) Jones\",\"(B)(C)(D)\",\"Charlie C. Chaplin\"]",
+      "[\"\"]",
+      "[\"Quote \\\" and backslash \\\\ and slash \\/\"]",
+      "[\"\\b\\f\\n\\r\\t\"]",
+      "[\"\\u00e9l\\u00E8ve\",\"\\u4e2d\"]",
+      "[\"Jos\u00e9\",\"\u4e2d\u6587\"]"
+  );
+
+  /**
+   * Choices entries that the fast-path parser rejects, which are passed through to Jackson.
+   */
+  private static final List<String> unusualEntries = List.of(
+      "[\"Alice\",null]",
+      "[\"Alice\",1]",
+      "[[\"Alice\"]]",
+      "[\"Alice\"] trailing",
+      "[\"Alice\",]",
+      "[\"Alice\"",
+      "[\"Ali\\qce\"]",
+      "[\"\\u12\"]",
+      "{\"Alice\":\"Bob\"}",
+      "[\"Alice\"\"Bob\"]"
+  );
+
+  /**
+   * The fast-path parser gives the same result as Jackson for simple entries.
+   */
+  @Test
+  void fastPathAgreesWithJackson() throws Exception {
+    testUtils.log(logger, "fastPathAgreesWithJackson");
+    for (String entry : simpleEntries) {
+      final String[] expected = objectMapper.readValue(entry, String[].class);
+      assertArrayEquals(expected, JsonStringArrayParser.parse(entry, null), entry);
+      assertArrayEquals(expected, converter.convertToEntityAttribute(entry), entry);
+    }
+  }
+
+  /**
+   * The fast-path parser declines unusual entries, and the converter gives the same result as
+   * Jackson for them, whether that is a value or an error.
+   */
+  @Test
+  void unusualEntriesFallBackToJackson() {
+    testUtils.log(logger, "unusualEntriesFallBackToJackson");
+    for (String entry : unusualEntries) {
+      assertNull(JsonStringArrayParser.parse(entry, null), entry);
+
+      String[] expected;
+      try {
+        expected = objectMapper.readValue(entry, String[].class);
+      } catch (Exception e) {
+        assertThrows(RuntimeException.class, () -> converter.convertToEntityAttribute(entry),
+            entry);
+        continue;
+      }
+      assertArrayEquals(expected, converter.convertToEntityAttribute(entry), entry);
+    }
+  }
+
+  /**
+   * Blank entries are rejected, as before.
+   */
+  @Test
+  void blankEntryIsRejected() {
+    testUtils.log(logger, "blankEntryIsRejected");
+    assertThrows(RuntimeException.class, () -> converter.convertToEntityAttribute(""));
+    assertThrows(RuntimeException.class, () -> converter.convertToEntityAttribute("  "));
+  }
+
+  /**
+   * While a dictionary is in use, candidate names are returned as the dictionary's instances, both
+   * from the fast path (including escaped names) and from the Jackson fallback. Names that are not
+   * in the dictionary are still returned correctly. Once the scope is closed, names are no longer
+   * shared.
+   */
+  @Test
+  void candidateNamesAreShared() {
+    testUtils.log(logger, "candidateNamesAreShared");
+    final String alice = new String("Alice");
+    final String quoted = new String("Bob \"The Builder\"");
+    final CandidateNameDictionary names = new CandidateNameDictionary(List.of(alice, quoted));
+
+    try (DictionaryScope ignored = StringArrayConverter.useDictionary(names)) {
+      final String[] first = converter.convertToEntityAttribute("[\"Alice\",\"Diego\"]");
+      final String[] second = converter.convertToEntityAttribute(
+          "[\"Bob \\\"The Builder\\\"\", \"Alice\"]");
+      final String[] fallback = converter.convertToEntityAttribute("[\"Alice\",null]");
+
+      assertSame(alice, first[0]);
+      assertEquals("Diego", first[1]);
+      assertSame(quoted, second[0]);
+      assertSame(alice, second[1]);
+      assertSame(alice, fallback[0]);
+      assertNull(fallback[1]);
+    }
+
+    assertNotSame(alice, converter.convertToEntityAttribute("[\"Alice\"]")[0]);
+  }
+
+  /**
+   * Dictionary lookups distinguish names with colliding hash codes, and are not confused by
+   * names that are prefixes of one another.
+   */
+  @Test
+  void dictionaryDistinguishesSimilarNames() {
+    testUtils.log(logger, "dictionaryDistinguishesSimilarNames");
+    // "Aa" and "BB" have the same String hash code.
+    final CandidateNameDictionary names = new CandidateNameDictionary(
+        List.of("Aa", "BB", "Ann", "Anne"));
+    assertEquals("Aa", names.find("[\"Aa\"]", 2, 4));
+    assertEquals("BB", names.find("[\"BB\"]", 2, 4));
+    assertEquals("Ann", names.find("Anne", 0, 3));
+    assertEquals("Anne", names.find("Anne", 0, 4));
+    assertNull(names.find("An", 0, 2));
+    assertEquals("Zed", names.canonical("Zed"));
+  }
+}
@@ -25,9 +25,15 @@ import static org.junit.jupiter.api.Assertions.assertEquals;
 import static org.junit.jupiter.api.Assertions.assertThrows;
 import static org.junit.jupiter.api.Assertions.assertTrue;
 
+import au.org.democracydevelopers.raireservice.persistence.repository.CVRContestInfoRepository.CountyChoices;
+import au.org.democracydevelopers.raireservice.persistence.repository.CVRContestInfoRepository.CountyCount;
+import au.org.democracydevelopers.raireservice.persistence.repository.CVRContestInfoRepository.RankingCount;
 import au.org.democracydevelopers.raireservice.testUtils;
 import java.util.Arrays;
 import java.util.List;
+import java.util.Map;
+import java.util.stream.Collectors;
+import java.util.stream.Stream;
 import org.apache.commons.lang3.StringUtils;
 import org.junit.jupiter.api.Test;
 import org.slf4j.Logger;
@@ -282,4 +288,102 @@ public class CVRContestInfoRepositoryTests {
     assertTrue(StringUtils.containsIgnoreCase(ex.getMessage(),
         "Error attempting to apply AttributeConverter"));
   }
+
+  /**
+   * Test that streaming the CVRs for a multi-county contest by name returns the CVRs from every
+   * county, each tagged with its county.
+   */
+  @Test
+  @Transactional
+  void streamContestCVRsMultiCountyContest() {
+    testUtils.log(logger, "streamContestCVRsMultiCountyContest");
+    final Map<Long, Long> countyCounts;
+    final List<String[]> county10;
+    try(Stream<CountyChoices> retrieved =
+        cvrContestInfoRepository.streamContestCVRs("Multi-County Contest 1")) {
+      final List<CountyChoices> all = retrieved.toList();
+      countyCounts = all.stream().collect(Collectors.groupingBy(CountyChoices::getCountyId,
+          Collectors.counting()));
+      county10 = all.stream().filter(cc -> cc.getCountyId() == 10)
+          .map(CountyChoices::getChoices).toList();
+    }
+    assertEquals(Map.of(8L, 3L, 9L, 3L, 10L, 1L), countyCounts);
+    assertArrayEquals(new String[]{"Harold Holt", "Wendy Squires", "(B)(C)(D)"}, county10.get(0));
+  }
+
+  /**
+   * Test that streaming the CVRs for a contest with no CVRs by name returns an empty stream.
+   */
+  @Test
+  @Transactional
+  void streamContestCVRsExistentContestNoCVRs() {
+    testUtils.log(logger, "streamContestCVRsExistentContestNoCVRs");
+    try(Stream<CountyChoices> retrieved = cvrContestInfoRepository.streamContestCVRs(
+        "No CVR Mayoral")) {
+      assertEquals(0, retrieved.count());
+    }
+  }
+
+  /**
+   * Test that streaming the CVRs for a contest by name, where a matching record has malformed data
+   * for its choice string, fails when the stream is consumed.
+   */
+  @Test
+  @Transactional
+  void streamContestCVRsMalformedChoiceStringFails() {
+    testUtils.log(logger, "streamContestCVRsMalformedChoiceStringFails");
+    try(Stream<CountyChoices> stream = cvrContestInfoRepository.streamContestCVRs(
+        "Malformed Contest 4")) {
+      assertThrows(RuntimeException.class, stream::toList);
+    }
+  }
+
+  /**
+   * Test that ranking counts for a multi-county contest are aggregated across all its counties.
+   */
+  @Test
+  @Transactional
+  void rankingCountsMultiCountyContest() {
+    testUtils.log(logger, "rankingCountsMultiCountyContest");
+    List<RankingCount> retrieved = cvrContestInfoRepository.getRankingCounts("Multi-County Contest 1");
+    assertEquals(7, retrieved.stream().mapToLong(RankingCount::getBallots).sum());
+    assertTrue(retrieved.stream().anyMatch(rc ->
+        rc.getChoices().equals("[\"Harold Holt\",\"Wendy Squires\",\"(B)(C)(D)\"]")
+        && rc.getBallots() == 1 && rc.getCountyId() == 10));
+  }
+
+  /**
+   * Test that ranking counts for a contest with no CVRs are empty.
+   */
+  @Test
+  @Transactional
+  void rankingCountsExistentContestNoCVRs() {
+    testUtils.log(logger, "rankingCountsExistentContestNoCVRs");
+    assertTrue(cvrContestInfoRepository.getRankingCounts("No CVR Mayoral").isEmpty());
+  }
+
+  /**
+   * Test that the per-county CVR counts for a multi-county contest cover every county.
+   */
+  @Test
+  @Transactional
+  void countyCountsMultiCountyContest() {
+    testUtils.log(logger, "countyCountsMultiCountyContest");
+    final List<CountyCount> retrieved = cvrContestInfoRepository.getCountyCounts(
+        "Multi-County Contest 1");
+    assertEquals(Map.of(8L, 3L, 9L, 3L, 10L, 1L), retrieved.stream().collect(
+        Collectors.toMap(CountyCount::getCountyId, CountyCount::getBallots)));
+  }
+
+  /**
+   * Test that there are no per-county CVR counts for a contest with no CVRs, or that does not
+   * exist.
+   */
+  @Test
+  @Transactional
+  void countyCountsNoCVRs() {
+    testUtils.log(logger, "countyCountsNoCVRs");
+    assertTrue(cvrContestInfoRepository.getCountyCounts("No CVR Mayoral").isEmpty());
+    assertTrue(cvrContestInfoRepository.getCountyCounts("Non-Existent Contest").isEmpty());
+  }
 }
@@ -0,0 +1,100 @@
+/*
+Copyright 2024 Democracy Developers
+
+The Raire Service is designed to connect colorado-rla and its associated database to
+the raire assertion generation engine (https://github.com/DemocracyDevelopers/raire-java).
+
+This file is part of raire-service.
+
+raire-service is free software: you can redistribute it and/or modify it under the terms
+of the GNU Affero General Public License as published by the Free Software Foundation, either
+version 3 of the License, or (at your option) any later version.
+
+raire-service is distributed in the hope that it will be useful, but WITHOUT ANY WARRANTY;
+without even the implied warranty of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.
+See the GNU Affero General Public License for more details.
+
+You should have received a copy of the GNU Affero General Public License along with
+raire-service. If not, see <https://www.gnu.org/licenses/>.
+*/
+
+package au.org.democracydevelopers.raireservice.persistence.repository;
+
+import static org.junit.jupiter.api.Assertions.assertArrayEquals;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertNull;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+
+import au.org.democracydevelopers.raireservice.testUtils;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import org.junit.jupiter.api.Test;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Tests for the splitting and decoding of COPY text format output by CopyTextRows.
+ */
+public class CopyTextRowsTests {
+
+  private static final Logger logger = LoggerFactory.getLogger(CopyTextRowsTests.class);
+
+  /**
+   * COPY output for three rows, including a null field and escapes, as Postgres would produce it
+   * for choices entries containing a backslash, a tab and a newline.
+   */
+  private static final String output = "8\t[\"Alice\",\"Bob\"]\n" +
+      "9\t\\N\n" +
+      "10\t[\"A\\\\\\\\B\",\"C\\tD\\nE\"]\n";
+
+  /**
+   * Rows are split and decoded the same way however the output is divided into chunks.
+   */
+  @Test
+  void rowsAreDecodedWhateverTheChunking() {
+    testUtils.log(logger, "rowsAreDecodedWhateverTheChunking");
+    final byte[] bytes = output.getBytes(StandardCharsets.UTF_8);
+    for (int chunkSize = 1; chunkSize <= bytes.length; chunkSize++) {
+      final List<Long> counties = new ArrayList<>();
+      final List<byte[]> choices = new ArrayList<>();
+      final CopyTextRows rows = new CopyTextRows((county, c) -> {
+        counties.add(county);
+        choices.add(c);
+      });
+      for (int start = 0; start < bytes.length; start += chunkSize) {
+        rows.accept(Arrays.copyOfRange(bytes, start, Math.min(bytes.length, start + chunkSize)));
+      }
+      rows.finish();
+
+      assertEquals(List.of(8L, 9L, 10L), counties);
+      assertEquals("[\"Alice\",\"Bob\"]", new String(choices.get(0), StandardCharsets.UTF_8));
+      assertNull(choices.get(1));
+      assertEquals("[\"A\\\\B\",\"C\tD\nE\"]", new String(choices.get(2), StandardCharsets.UTF_8));
+    }
+  }
+
+  /**
+   * Every escape in the text format is decoded, including octal and hexadecimal byte values.
+   */
+  @Test
+  void escapesAreDecoded() {
+    testUtils.log(logger, "escapesAreDecoded");
+    final byte[] field = "a\\b\\f\\n\\r\\t\\v\\\\\\101\\x42\\7z\\xq".getBytes(
+        StandardCharsets.US_ASCII);
+    assertArrayEquals("a\b\f\n\r\t\u000B\\AB\u0007zxq".getBytes(StandardCharsets.US_ASCII),
+        CopyTextRows.field(field, 0, field.length));
+  }
+
+  /**
+   * Output that ends part way through a row is rejected.
+   */
+  @Test
+  void incompleteRowIsRejected() {
+    testUtils.log(logger, "incompleteRowIsRejected");
+    final CopyTextRows rows = new CopyTextRows((county, c) -> {});
+    rows.accept("8\t[\"Alice\"]".getBytes(StandardCharsets.UTF_8));
+    assertThrows(IllegalStateException.class, rows::finish);
+  }
+}
@@ -259,4 +259,21 @@ public class GenerateAssertionsRequestTests {
         () -> validRequest.Validate(contestRepository));
     assertTrue(StringUtils.containsIgnoreCase(ex.getMessage(), "Non-positive time limit"));
   }
+
+  /**
+   * A negative in-memory ranking threshold is invalid; zero (hold all rankings in memory) is valid.
+   */
+  @Test
+  public void negativeMaxInMemoryRankingsIsInvalid() {
+    testUtils.log(logger, "negativeMaxInMemoryRankingsIsInvalid");
+    GenerateAssertionsRequest invalidRequest = new GenerateAssertionsRequest(ballina,
+        100, 100, candidates, -1);
+    Exception ex = assertThrows(RequestValidationException.class,
+        () -> invalidRequest.Validate(contestRepository));
+    assertTrue(StringUtils.containsIgnoreCase(ex.getMessage(), "Negative in-memory ranking"));
+
+    GenerateAssertionsRequest validRequest = new GenerateAssertionsRequest(ballina,
+        100, 100, candidates, 0);
+    assertDoesNotThrow(() -> validRequest.Validate(contestRepository));
+  }
 }
@@ -224,4 +224,26 @@ public class GenerateAssertionsServiceErrorPersistenceTests {
         INTERNAL_ERROR.toString(), "", "Internal error"));
   }
 
+  /**
+   * A cancelled request throws a RaireServiceException with error code CANCELLED, and the
+   * cancellation is stored with its own error code rather than as an internal error.
+   */
+  @Test
+  @Transactional
+  public void testCancellationSummaryStorage() throws RaireServiceException {
+    testUtils.log(logger, "testCancellationSummaryStorage");
+
+    final CancellationToken token = new CancellationToken();
+    token.cancel("testing");
+    final RaireServiceException ex = assertThrows(RaireServiceException.class, () ->
+        generateAssertionsService.generateAssertions(ballinaMayoralRequest, phase -> {}, token,
+            SolveAdmission.Permit.none()));
+    assertEquals(CANCELLED, ex.errorCode);
+
+    generateAssertionsService.persistCancellation(ballinaMayoralRequest, "Cancelled");
+    Optional<GenerateAssertionsSummary> optSummary = summaryRepository.findByContestName(ballinaMayoral);
+    assertTrue(optSummary.isPresent());
+    assertTrue(optSummary.get().equalData(ballinaMayoral, "", CANCELLED.toString(), "",
+        "Cancelled"));
+  }
 }
@@ -0,0 +1,108 @@
+/*
+Copyright 2024 Democracy Developers
+
+The Raire Service is designed to connect colorado-rla and its associated database to
+the raire assertion generation engine (https://github.com/DemocracyDevelopers/raire-java).
+
+This file is part of raire-service.
+
+raire-service is free software: you can redistribute it and/or modify it under the terms
+of the GNU Affero General Public License as published by the Free Software Foundation, either
+version 3 of the License, or (at your option) any later version.
+
+raire-service is distributed in the hope that it will be useful, but WITHOUT ANY WARRANTY;
+without even the implied warranty of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.
+See the GNU Affero General Public License for more details.
+
+You should have received a copy of the GNU Affero General Public License along with
+raire-service. If not, see <https://www.gnu.org/licenses/>.
+*/
+
+package au.org.democracydevelopers.raireservice.service;
+
+import static org.junit.jupiter.api.Assertions.assertDoesNotThrow;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import au.org.democracydevelopers.raireservice.service.RaireServiceException.RaireErrorCode;
+import au.org.democracydevelopers.raireservice.testUtils;
+import org.junit.jupiter.api.Test;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Tests for cancellation tokens, and their cancellation by contest.
+ */
+public class GenerationCancellationsTests {
+
+  private static final Logger logger = LoggerFactory.getLogger(GenerationCancellationsTests.class);
+
+  /**
+   * A token is not cancelled until cancel is called, and keeps the first reason it is given.
+   */
+  @Test
+  void tokenReportsFirstReason() {
+    testUtils.log(logger, "tokenReportsFirstReason");
+    final CancellationToken token = new CancellationToken();
+    assertFalse(token.isCancelled());
+    assertDoesNotThrow(() -> token.throwIfCancelled("Contest"));
+
+    token.cancel("first");
+    token.cancel("second");
+    assertTrue(token.isCancelled());
+    final RaireServiceException ex = assertThrows(RaireServiceException.class,
+        () -> token.throwIfCancelled("Contest"));
+    assertEquals(RaireErrorCode.CANCELLED, ex.errorCode);
+    assertTrue(ex.getMessage().contains("first"));
+    assertFalse(ex.getMessage().contains("second"));
+  }
+
+  /**
+   * Cancelling a contest cancels every token registered for it, and no others. Tokens whose
+   * registration has been closed are not cancelled.
+   */
+  @Test
+  void contestCancelsItsTokens() {
+    testUtils.log(logger, "contestCancelsItsTokens");
+    final GenerationCancellations cancellations = new GenerationCancellations();
+    final CancellationToken a1 = new CancellationToken();
+    final CancellationToken a2 = new CancellationToken();
+    final CancellationToken a3 = new CancellationToken();
+    final CancellationToken b = new CancellationToken();
+
+    try (GenerationCancellations.Registration r1 = cancellations.register("A", a1);
+        GenerationCancellations.Registration r2 = cancellations.register("A", a2);
+        GenerationCancellations.Registration rb = cancellations.register("B", b)) {
+      cancellations.register("A", a3).close();
+      assertEquals(2, cancellations.cancel("A", "testing"));
+    }
+
+    assertTrue(a1.isCancelled());
+    assertTrue(a2.isCancelled());
+    assertFalse(a3.isCancelled());
+    assertFalse(b.isCancelled());
+    assertEquals(0, cancellations.cancel("A", "testing"));
+    assertEquals(0, cancellations.cancel("C", "testing"));
+  }
+
+  /**
+   * A token that was already cancelled, such as a generation job cancelled through
+   * GenerationJobService, is not counted again when its contest is cancelled.
+   */
+  @Test
+  void alreadyCancelledTokensAreNotCounted() {
+    testUtils.log(logger, "alreadyCancelledTokensAreNotCounted");
+    final GenerationCancellations cancellations = new GenerationCancellations();
+    final CancellationToken cancelled = new CancellationToken();
+    final CancellationToken running = new CancellationToken();
+
+    try (GenerationCancellations.Registration r1 = cancellations.register("A", cancelled);
+        GenerationCancellations.Registration r2 = cancellations.register("A", running)) {
+      assertTrue(cancelled.cancel("earlier"));
+      assertEquals(1, cancellations.cancel("A", "testing"));
+    }
+    assertTrue(running.isCancelled());
+  }
+}
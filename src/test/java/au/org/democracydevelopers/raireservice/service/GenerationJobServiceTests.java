@@ -0,0 +1,277 @@
+/*
+Copyright 2024 Democracy Developers
+
+The Raire Service is designed to connect colorado-rla and its associated database to
+the raire assertion generation engine (https://github.com/DemocracyDevelopers/raire-java).
+
+This file is part of raire-service.
+
+raire-service is free software: you can redistribute it and/or modify it under the terms
+of the GNU Affero General Public License as published by the Free Software Foundation, either
+version 3 of the License, or (at your option) any later version.
+
+raire-service is distributed in the hope that it will be useful, but WITHOUT ANY WARRANTY;
+without even the implied warranty of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.
+See the GNU Affero General Public License for more details.
+
+You should have received a copy of the GNU Affero General Public License along with
+raire-service. If not, see <https://www.gnu.org/licenses/>.
+*/
+
+package au.org.democracydevelopers.raireservice.service;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertNotNull;
+import static org.junit.jupiter.api.Assertions.assertNull;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+import static org.mockito.ArgumentMatchers.any;
+import static org.mockito.ArgumentMatchers.anyString;
+import static org.mockito.ArgumentMatchers.argThat;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.verify;
+import static org.mockito.Mockito.when;
+
+import au.org.democracydevelopers.raire.RaireError;
+import au.org.democracydevelopers.raire.RaireSolution.RaireResultOrError;
+import au.org.democracydevelopers.raireservice.request.GenerateAssertionsRequest;
+import au.org.democracydevelopers.raireservice.response.GenerationJobResponse;
+import au.org.democracydevelopers.raireservice.service.RaireServiceException.RaireErrorCode;
+import au.org.democracydevelopers.raireservice.testUtils;
+import io.micrometer.core.instrument.simple.SimpleMeterRegistry;
+import java.time.Instant;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import org.junit.jupiter.api.Test;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Tests for the ordering of the generation job queue: shortest predicted submission first, with
+ * aging, and longest predicted first within a batch; the removal of cancelled jobs; and the
+ * reporting of queue positions and predicted start times. Assertion generation is replaced
+ * by a mock that records the order in which contests are run, and blocks on the first one until
+ * every job has been queued.
+ */
+public class GenerationJobServiceTests {
+
+  private static final Logger logger = LoggerFactory.getLogger(GenerationJobServiceTests.class);
+
+  /**
+   * Predicted times, in seconds, by contest name.
+   */
+  private static final Map<String, Double> predictions = Map.of("Blocker", 1.0, "Big", 100.0,
+      "Small", 0.1, "Medium", 10.0, "Tiny", 0.01);
+
+  /**
+   * Contests are run in the order recorded here.
+   */
+  private final List<String> runOrder = new CopyOnWriteArrayList<>();
+
+  /**
+   * Released to let the first job finish.
+   */
+  private final CountDownLatch release = new CountDownLatch(1);
+
+  private final GenerateAssertionsService generateAssertionsService =
+      mock(GenerateAssertionsService.class);
+
+  /**
+   * With the default aging weight, queued jobs submitted together run shortest first, and report
+   * their queue positions and increasing predicted start times.
+   */
+  @Test
+  void shortestJobsRunFirst() throws Exception {
+    testUtils.log(logger, "shortestJobsRunFirst");
+    final GenerationJobService service = service(1);
+
+    final GenerationJob blocker = service.submit(request("Blocker"));
+    waitUntilRunning(blocker);
+    final GenerationJob big = service.submit(request("Big"));
+    final GenerationJob small = service.submit(request("Small"));
+    final GenerationJob medium = service.submit(request("Medium"));
+
+    final GenerationJobResponse smallStatus = service.describe(small);
+    final GenerationJobResponse mediumStatus = service.describe(medium);
+    final GenerationJobResponse bigStatus = service.describe(big);
+    assertEquals(1, smallStatus.queuePosition());
+    assertEquals(2, mediumStatus.queuePosition());
+    assertEquals(3, bigStatus.queuePosition());
+    assertTrue(smallStatus.predictedStart().isAfter(Instant.now().minusSeconds(1)));
+    assertTrue(mediumStatus.predictedStart().isAfter(smallStatus.predictedStart()));
+    assertTrue(bigStatus.predictedStart().isAfter(mediumStatus.predictedStart()));
+    assertNull(service.describe(blocker).queuePosition());
+
+    release.countDown();
+    waitUntilFinished(service, big);
+    assertEquals(List.of("Blocker", "Small", "Medium", "Big"), runOrder);
+    service.shutdown();
+  }
+
+  /**
+   * With an aging weight of 0, predictions are ignored and jobs run in order of submission, as
+   * a job that has waited is never overtaken.
+   */
+  @Test
+  void agedJobsAreNotOvertaken() throws Exception {
+    testUtils.log(logger, "agedJobsAreNotOvertaken");
+    final GenerationJobService service = service(0);
+
+    final GenerationJob blocker = service.submit(request("Blocker"));
+    waitUntilRunning(blocker);
+    service.submit(request("Big"));
+    Thread.sleep(10);
+    service.submit(request("Small"));
+    Thread.sleep(10);
+    final GenerationJob medium = service.submit(request("Medium"));
+
+    release.countDown();
+    waitUntilFinished(service, medium);
+    assertEquals(List.of("Blocker", "Big", "Small", "Medium"), runOrder);
+    service.shutdown();
+  }
+
+  /**
+   * The jobs of a batch run longest-predicted-first, while a shorter submission made after the
+   * batch runs before the whole batch, which is ordered as one submission of its total predicted
+   * time.
+   */
+  @Test
+  void batchesRunLongestFirstAsOneSubmission() throws Exception {
+    testUtils.log(logger, "batchesRunLongestFirstAsOneSubmission");
+    final GenerationJobService service = service(1);
+
+    final GenerationJob blocker = service.submit(request("Blocker"));
+    waitUntilRunning(blocker);
+    final List<GenerationJob> batch = service.submitBatch(List.of(request("Small"),
+        request("Big"), request("Medium")));
+    final GenerationJob tiny = service.submit(request("Tiny"));
+    assertEquals(1, service.describe(tiny).queuePosition());
+    assertEquals(2, service.describe(batch.get(1)).queuePosition());
+    assertEquals(4, service.describe(batch.get(0)).queuePosition());
+
+    release.countDown();
+    waitUntilFinished(service, batch.get(0));
+    assertEquals(List.of("Blocker", "Tiny", "Big", "Medium", "Small"), runOrder);
+    service.shutdown();
+  }
+
+  /**
+   * A queued job that is cancelled, alone or with the rest of its contest's jobs, leaves the
+   * queue at once, failing with CANCELLED, so that it no longer holds up the queue positions and
+   * predicted start times of the jobs behind it.
+   */
+  @Test
+  void cancelledJobsLeaveTheQueue() throws Exception {
+    testUtils.log(logger, "cancelledJobsLeaveTheQueue");
+    final GenerationJobService service = service(1);
+
+    final GenerationJob blocker = service.submit(request("Blocker"));
+    waitUntilRunning(blocker);
+    final GenerationJob small = service.submit(request("Small"));
+    final GenerationJob medium = service.submit(request("Medium"));
+    final GenerationJob big = service.submit(request("Big"));
+    assertEquals(3, service.describe(big).queuePosition());
+
+    service.cancel(small.getId());
+    assertEquals(GenerationJob.Status.CANCELLED, small.getStatus());
+    assertEquals(RaireErrorCode.CANCELLED, service.describe(small).errorCode());
+    assertNull(service.describe(small).queuePosition());
+    assertEquals(2, service.describe(big).queuePosition());
+
+    assertEquals(1, service.cancelContest("Medium", "the contest was cancelled"));
+    assertEquals(RaireErrorCode.CANCELLED, service.describe(medium).errorCode());
+    assertEquals(1, service.describe(big).queuePosition());
+
+    release.countDown();
+    waitUntilFinished(service, big);
+    assertEquals(List.of("Blocker", "Big"), runOrder);
+    service.shutdown();
+  }
+
+  /**
+   * A job waiting for admission has started running, but is not yet generating assertions.
+   * Cancelling its contest counts it, once, and its cancellation is recorded in the contest's
+   * summary, as for a job that was generating assertions.
+   */
+  @Test
+  void waitingJobIsCountedAndRecordedWhenCancelled() throws Exception {
+    testUtils.log(logger, "waitingJobIsCountedAndRecordedWhenCancelled");
+    final SolveAdmission admission = new SolveAdmission(true, 1, 0, new SimpleMeterRegistry());
+    final GenerationJobService service = service(1, admission);
+
+    try (SolveAdmission.Permit ignored = admission.admit("Other", new CancellationToken())) {
+      final GenerationJob waiting = service.submit(request("Small"));
+      waitUntilRunning(waiting);
+      for (int i = 0; i < 100 && waiting.getPhase() != GenerationJob.Phase.WAITING; i++) {
+        Thread.sleep(50);
+      }
+      assertEquals(GenerationJob.Phase.WAITING, waiting.getPhase());
+
+      assertEquals(1, service.cancelContest("Small", "the contest was cancelled"));
+      assertEquals(0, service.cancelContest("Small", "the contest was cancelled again"));
+      waitUntilFinished(service, waiting);
+      assertEquals(GenerationJob.Status.CANCELLED, waiting.getStatus());
+      verify(generateAssertionsService).persistCancellation(
+          argThat(request -> request.contestName.equals("Small")), anyString());
+    }
+    service.shutdown();
+  }
+
+  /**
+   * Make a job service with one thread, predicted times from the predictions map, assertion
+   * generation that records the run order and waits for release on the first contest, and no
+   * admission control.
+   * @param agingWeight the aging weight.
+   */
+  private GenerationJobService service(double agingWeight) throws RaireServiceException {
+    return service(agingWeight, new SolveAdmission(false, 1, 0, new SimpleMeterRegistry()));
+  }
+
+  /**
+   * As service(agingWeight), with the given admission control.
+   * @param agingWeight the aging weight.
+   * @param admission the admission control.
+   */
+  private GenerationJobService service(double agingWeight, SolveAdmission admission)
+      throws RaireServiceException {
+    final GenerationCostModel costModel = mock(GenerationCostModel.class);
+    when(costModel.predictSeconds(any())).thenAnswer(invocation ->
+        predictions.get(((GenerateAssertionsRequest) invocation.getArgument(0)).contestName));
+
+    when(generateAssertionsService.generateAssertions(any(), any(), any(), any())).thenAnswer(
+        invocation -> {
+          final String contestName =
+              ((GenerateAssertionsRequest) invocation.getArgument(0)).contestName;
+          runOrder.add(contestName);
+          if (contestName.equals("Blocker")) {
+            assertTrue(release.await(10, TimeUnit.SECONDS));
+          }
+          return new RaireResultOrError(new RaireError.TiedWinners(new int[]{0, 1}));
+        });
+
+    return new GenerationJobService(generateAssertionsService, costModel, admission, 1, 10, 60,
+        agingWeight, new SimpleMeterRegistry());
+  }
+
+  private static GenerateAssertionsRequest request(String contestName) {
+    return new GenerateAssertionsRequest(contestName, 100, 5, List.of("Alice", "Bob"));
+  }
+
+  private static void waitUntilRunning(GenerationJob job) throws InterruptedException {
+    for (int i = 0; i < 100 && job.getStatus() == GenerationJob.Status.QUEUED; i++) {
+      Thread.sleep(50);
+    }
+    assertEquals(GenerationJob.Status.RUNNING, job.getStatus());
+  }
+
+  private static void waitUntilFinished(GenerationJobService service, GenerationJob job)
+      throws InterruptedException {
+    for (int i = 0; i < 100 && job.isUnfinished(); i++) {
+      Thread.sleep(50);
+    }
+    assertNotNull(service.describe(job).finished());
+  }
+}
@@ -0,0 +1,126 @@
+/*
+Copyright 2024 Democracy Developers
+
+The Raire Service is designed to connect colorado-rla and its associated database to
+the raire assertion generation engine (https://github.com/DemocracyDevelopers/raire-java).
+
+This file is part of raire-service.
+
+raire-service is free software: you can redistribute it and/or modify it under the terms
+of the GNU Affero General Public License as published by the Free Software Foundation, either
+version 3 of the License, or (at your option) any later version.
+
+raire-service is distributed in the hope that it will be useful, but WITHOUT ANY WARRANTY;
+without even the implied warranty of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.
+See the GNU Affero General Public License for more details.
+
+You should have received a copy of the GNU Affero General Public License along with
+raire-service. If not, see <https://www.gnu.org/licenses/>.
+*/
+
+package au.org.democracydevelopers.raireservice.service;
+
+import static org.junit.jupiter.api.Assertions.assertArrayEquals;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+import static org.mockito.ArgumentMatchers.anyLong;
+import static org.mockito.ArgumentMatchers.eq;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.when;
+
+import au.org.democracydevelopers.raireservice.persistence.repository.CVRContestInfoRepository;
+import au.org.democracydevelopers.raireservice.persistence.repository.CVRContestInfoRepository.CvrIdRange;
+import au.org.democracydevelopers.raireservice.testUtils;
+import au.org.democracydevelopers.raireservice.util.OffHeapLongIntHashMap;
+import au.org.democracydevelopers.raireservice.util.WeightedVoteConsolidator.Storage;
+import java.util.List;
+import java.util.stream.Stream;
+import javax.sql.DataSource;
+import org.junit.jupiter.api.Test;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.transaction.PlatformTransactionManager;
+
+/**
+ * Tests for the division of a contest's CVR ID range into parts by the ParallelCVRScanner, and for
+ * the release of the workers' storage when a scan fails.
+ */
+public class ParallelCVRScannerTests {
+
+  private static final Logger logger = LoggerFactory.getLogger(ParallelCVRScannerTests.class);
+
+  /**
+   * A range is split into no more than the requested number of parts, which are contiguous,
+   * disjoint and cover the whole range.
+   */
+  @Test
+  void partsCoverTheRange() {
+    testUtils.log(logger, "partsCoverTheRange");
+    for (long max : new long[]{100, 101, 107, 1000003}) {
+      for (int count : new int[]{1, 3, 16}) {
+        final List<long[]> parts = ParallelCVRScanner.split(100, max, count);
+        assertTrue(parts.size() <= count);
+        assertEquals(100, parts.get(0)[0]);
+        assertEquals(max, parts.get(parts.size() - 1)[1]);
+        for (int i = 1; i < parts.size(); i++) {
+          assertEquals(parts.get(i - 1)[1] + 1, parts.get(i)[0]);
+        }
+      }
+    }
+  }
+
+  /**
+   * A range with fewer IDs than the requested number of parts is split into one part per ID.
+   */
+  @Test
+  void smallRangeHasOnePartPerId() {
+    testUtils.log(logger, "smallRangeHasOnePartPerId");
+    final List<long[]> parts = ParallelCVRScanner.split(5, 7, 16);
+    assertEquals(3, parts.size());
+    assertArrayEquals(new long[]{5, 5}, parts.get(0));
+    assertArrayEquals(new long[]{7, 7}, parts.get(2));
+  }
+
+  /**
+   * When one worker fails, the others are cancelled, and every worker's sink is closed once it
+   * has finished, including those of workers that were still reading, so that no storage outside
+   * the Java heap is left allocated.
+   */
+  @Test
+  void failedScanReleasesEveryWorkersStorage() {
+    testUtils.log(logger, "failedScanReleasesEveryWorkersStorage");
+    final CvrIdRange range = mock(CvrIdRange.class);
+    when(range.getMinCvrId()).thenReturn(1L);
+    when(range.getMaxCvrId()).thenReturn(1000L);
+    when(range.getBallots()).thenReturn(1000L);
+
+    final CVRContestInfoRepository repository = mock(CVRContestInfoRepository.class);
+    when(repository.getCVRIdRange("Contest")).thenReturn(range);
+    // The worker reading the first part fails at once; the others take a while to respond.
+    when(repository.streamContestCVRsInRange(eq("Contest"), anyLong(), anyLong())).thenAnswer(
+        invocation -> {
+          if ((long) invocation.getArgument(1) == 1L) {
+            throw new IllegalStateException("Database failure");
+          }
+          final long until = System.nanoTime() + 300_000_000L;
+          while (System.nanoTime() < until) {
+            Thread.onSpinWait();
+          }
+          return Stream.of();
+        });
+
+    final ParallelCVRScanner scanner = new ParallelCVRScanner(repository,
+        mock(PlatformTransactionManager.class), mock(DataSource.class), true, 4, 0, 0);
+    final long before = OffHeapLongIntHashMap.allocatedBytes();
+    try (RankingSink sink = new RankingSink(new String[]{"Alice", "Bob"}, 0,
+        new Storage(true, 0, null))) {
+      assertThrows(IllegalStateException.class,
+          () -> scanner.scan("Contest", List.of("Alice", "Bob"), sink));
+      sink.close();
+      assertEquals(before, OffHeapLongIntHashMap.allocatedBytes());
+    } finally {
+      scanner.shutdown();
+    }
+  }
+}
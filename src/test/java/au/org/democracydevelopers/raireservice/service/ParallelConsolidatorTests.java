@@ -0,0 +1,142 @@
+/*
+Copyright 2024 Democracy Developers
+
+The Raire Service is designed to connect colorado-rla and its associated database to
+the raire assertion generation engine (https://github.com/DemocracyDevelopers/raire-java).
+
+This file is part of raire-service.
+
+raire-service is free software: you can redistribute it and/or modify it under the terms
+of the GNU Affero General Public License as published by the Free Software Foundation, either
+version 3 of the License, or (at your option) any later version.
+
+raire-service is distributed in the hope that it will be useful, but WITHOUT ANY WARRANTY;
+without even the implied warranty of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.
+See the GNU Affero General Public License for more details.
+
+You should have received a copy of the GNU Affero General Public License along with
+raire-service. If not, see <https://www.gnu.org/licenses/>.
+*/
+
+package au.org.democracydevelopers.raireservice.service;
+
+import static org.junit.jupiter.api.Assertions.assertArrayEquals;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertNull;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import au.org.democracydevelopers.raire.irv.Vote;
+import au.org.democracydevelopers.raireservice.service.VoteIngestionService.IngestedVotes;
+import au.org.democracydevelopers.raireservice.testUtils;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+import java.util.TreeMap;
+import java.util.function.BiConsumer;
+import java.util.stream.Collectors;
+import org.apache.commons.lang3.StringUtils;
+import org.junit.jupiter.api.Test;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Tests for the ParallelConsolidator: consolidating on several threads gives exactly the same
+ * result as consolidating on one, whatever the number of threads.
+ */
+public class ParallelConsolidatorTests {
+
+  private static final Logger logger = LoggerFactory.getLogger(ParallelConsolidatorTests.class);
+
+  private static final String[] candidates = {"Alice", "Bob", "Chuan", "Diego", "Eve"};
+
+  /**
+   * Adds each ranking to a sink, as a single ballot in county 1 or 2.
+   */
+  private static final BiConsumer<RankingSink, String[]> adder =
+      (sink, ranking) -> sink.add(ranking.length % 2 + 1, ranking, 1);
+
+  /**
+   * Consolidating many rankings on 1, 2, 3 and 8 threads gives votes identical (including in
+   * order) to consolidating them on the caller's thread, with the same per-county counts. The
+   * rankings alternate between counties, so the per-county counts are folded into the sink's map
+   * many times.
+   */
+  @Test
+  void parallelConsolidationIsDeterministic() {
+    testUtils.log(logger, "parallelConsolidationIsDeterministic");
+    final List<String[]> rankings = randomRankings(20000, null);
+    final IngestedVotes expected = consolidate(new ParallelConsolidator(false, 1, 0), rankings);
+    assertNull(expected.invalidCandidateName());
+    final Map<Long, Long> countyCounts = rankings.stream().collect(Collectors.groupingBy(
+        ranking -> (long) (ranking.length % 2 + 1), TreeMap::new, Collectors.counting()));
+    assertEquals(countyCounts, expected.countyBallotCounts());
+
+    for (int threads : new int[]{1, 2, 3, 8}) {
+      final IngestedVotes actual = consolidate(new ParallelConsolidator(true, threads, 0),
+          rankings);
+      assertEquals(expected.ballotCount(), actual.ballotCount());
+      assertEquals(expected.countyBallotCounts(), actual.countyBallotCounts());
+      assertVotesEqual(expected.votes(), actual.votes());
+    }
+  }
+
+  /**
+   * When several rankings name non-candidates, the one reported is the first in the list, as it
+   * would be on a single thread, and every ballot is still counted.
+   */
+  @Test
+  void firstInvalidCandidateNameIsReported() {
+    testUtils.log(logger, "firstInvalidCandidateNameIsReported");
+    final List<String[]> rankings = randomRankings(20000, 12345);
+    rankings.set(17000, new String[]{"Alice", "Zed"});
+
+    final IngestedVotes ingested = consolidate(new ParallelConsolidator(true, 8, 0), rankings);
+    assertEquals(20000, ingested.ballotCount());
+    assertEquals(0, ingested.votes().length);
+    assertTrue(StringUtils.containsIgnoreCase(ingested.invalidCandidateName().getMessage(),
+        "Yolanda"));
+  }
+
+  /**
+   * Generate rankings of random length (including empty) over the candidates, from a fixed seed.
+   * @param count the number of rankings.
+   * @param invalidAt the index at which to place a ranking naming a non-candidate, or null.
+   */
+  private static List<String[]> randomRankings(int count, Integer invalidAt) {
+    final Random random = new Random(2024);
+    final List<String[]> rankings = new ArrayList<>(count);
+    for (int i = 0; i < count; i++) {
+      final String[] ranking = new String[random.nextInt(candidates.length + 1)];
+      for (int j = 0; j < ranking.length; j++) {
+        ranking[j] = candidates[random.nextInt(candidates.length)];
+      }
+      rankings.add(ranking);
+    }
+    if (invalidAt != null) {
+      rankings.set(invalidAt, new String[]{"Bob", "Yolanda"});
+    }
+    return rankings;
+  }
+
+  /**
+   * Consolidate the rankings with the given consolidator, then shut it down.
+   */
+  private static IngestedVotes consolidate(ParallelConsolidator consolidator,
+      List<String[]> rankings) {
+    try (RankingSink sink = new RankingSink(candidates)) {
+      consolidator.consolidate(rankings, adder, sink);
+      return sink.result();
+    } finally {
+      consolidator.shutdown();
+    }
+  }
+
+  private static void assertVotesEqual(Vote[] expected, Vote[] actual) {
+    assertEquals(expected.length, actual.length);
+    for (int i = 0; i < expected.length; i++) {
+      assertArrayEquals(expected[i].prefs, actual[i].prefs);
+      assertEquals(expected[i].n, actual[i].n);
+    }
+  }
+}
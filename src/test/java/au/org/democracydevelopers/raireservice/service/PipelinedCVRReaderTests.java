@@ -0,0 +1,133 @@
+/*
+Copyright 2024 Democracy Developers
+
+The Raire Service is designed to connect colorado-rla and its associated database to
+the raire assertion generation engine (https://github.com/DemocracyDevelopers/raire-java).
+
+This file is part of raire-service.
+
+raire-service is free software: you can redistribute it and/or modify it under the terms
+of the GNU Affero General Public License as published by the Free Software Foundation, either
+version 3 of the License, or (at your option) any later version.
+
+raire-service is distributed in the hope that it will be useful, but WITHOUT ANY WARRANTY;
+without even the implied warranty of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.
+See the GNU Affero General Public License for more details.
+
+You should have received a copy of the GNU Affero General Public License along with
+raire-service. If not, see <https://www.gnu.org/licenses/>.
+*/
+
+package au.org.democracydevelopers.raireservice.service;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertNull;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.when;
+
+import au.org.democracydevelopers.raireservice.persistence.repository.CVRContestInfoRepository;
+import au.org.democracydevelopers.raireservice.persistence.repository.CVRContestInfoRepository.RawCountyChoices;
+import au.org.democracydevelopers.raireservice.service.VoteIngestionService.IngestedVotes;
+import au.org.democracydevelopers.raireservice.testUtils;
+import io.micrometer.core.instrument.simple.SimpleMeterRegistry;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Map;
+import java.util.stream.IntStream;
+import org.junit.jupiter.api.Test;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Tests for the PipelinedCVRReader, with the database replaced by a fixed stream of choices
+ * entries. Small batches and queues are used, so that stages regularly block on one another.
+ */
+public class PipelinedCVRReaderTests {
+
+  private static final Logger logger = LoggerFactory.getLogger(PipelinedCVRReaderTests.class);
+
+  private static final List<String> candidates = List.of("Alice", "Bob", "Chuan");
+
+  private static final String contestName = "Pipelined Contest";
+
+  /**
+   * A choices entry as it would be read from the database.
+   */
+  private record Row(long getCountyId, String getChoices) implements RawCountyChoices {}
+
+  /**
+   * All rows pass through every stage, and are consolidated as they would be on a single thread.
+   * Every stage counts every row.
+   */
+  @Test
+  void allRowsAreConsolidated() {
+    testUtils.log(logger, "allRowsAreConsolidated");
+    final List<RawCountyChoices> rows = new ArrayList<>();
+    IntStream.range(0, 1001).forEach(i -> rows.add(new Row(1 + i % 2,
+        i % 3 == 0 ? "[\"Alice\",\"Bob\"]" : "[\"Chuan\"]")));
+
+    final SimpleMeterRegistry registry = new SimpleMeterRegistry();
+    final PipelinedCVRReader reader = new PipelinedCVRReader(repository(rows), registry, 7, 2);
+    final RankingSink sink = new RankingSink(candidates.toArray(String[]::new));
+    reader.read(contestName, candidates, sink);
+    reader.shutdown();
+
+    final IngestedVotes ingested = sink.result();
+    assertNull(ingested.invalidCandidateName());
+    assertEquals(1001, ingested.ballotCount());
+    assertEquals(Map.of(1L, 501L, 2L, 500L), ingested.countyBallotCounts());
+    assertEquals(2, ingested.votes().length);
+    assertEquals(334, Arrays.stream(ingested.votes()).filter(v -> v.prefs.length == 2)
+        .findFirst().orElseThrow().n);
+
+    for (String stage : List.of("fetch", "parse", "consolidate")) {
+      assertEquals(1001, registry.get("raire.ingestion.pipeline.rows").tag("stage", stage)
+          .counter().count(), stage);
+    }
+  }
+
+  /**
+   * A contest with no CVRs completes with nothing consolidated.
+   */
+  @Test
+  void noRows() {
+    testUtils.log(logger, "noRows");
+    final PipelinedCVRReader reader = new PipelinedCVRReader(repository(List.of()),
+        new SimpleMeterRegistry(), 7, 2);
+    final RankingSink sink = new RankingSink(candidates.toArray(String[]::new));
+    reader.read(contestName, candidates, sink);
+    reader.shutdown();
+    assertEquals(0, sink.getBallotCount());
+  }
+
+  /**
+   * A malformed or null choices entry, anywhere in the data, causes the read to fail rather than
+   * hang, even while the fetch stage is blocked on a full queue.
+   */
+  @Test
+  void malformedEntryFailsTheRead() {
+    testUtils.log(logger, "malformedEntryFailsTheRead");
+    for (String bad : Arrays.asList("NotAList", "", null)) {
+      final List<RawCountyChoices> rows = new ArrayList<>();
+      IntStream.range(0, 500).forEach(i -> rows.add(new Row(1, "[\"Alice\"]")));
+      rows.add(5, new Row(1, bad));
+
+      final PipelinedCVRReader reader = new PipelinedCVRReader(repository(rows),
+          new SimpleMeterRegistry(), 3, 1);
+      final RankingSink sink = new RankingSink(candidates.toArray(String[]::new));
+      assertThrows(RuntimeException.class, () -> reader.read(contestName, candidates, sink));
+      reader.shutdown();
+    }
+  }
+
+  /**
+   * A repository whose raw choices stream for the test contest contains the given rows.
+   */
+  private static CVRContestInfoRepository repository(List<RawCountyChoices> rows) {
+    final CVRContestInfoRepository repository = mock(CVRContestInfoRepository.class);
+    when(repository.streamContestRawChoices(contestName)).thenAnswer(i -> rows.stream());
+    return repository;
+  }
+}
@@ -0,0 +1,206 @@
+/*
+Copyright 2024 Democracy Developers
+
+The Raire Service is designed to connect colorado-rla and its associated database to
+the raire assertion generation engine (https://github.com/DemocracyDevelopers/raire-java).
+
+This file is part of raire-service.
+
+raire-service is free software: you can redistribute it and/or modify it under the terms
+of the GNU Affero General Public License as published by the Free Software Foundation, either
+version 3 of the License, or (at your option) any later version.
+
+raire-service is distributed in the hope that it will be useful, but WITHOUT ANY WARRANTY;
+without even the implied warranty of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.
+See the GNU Affero General Public License for more details.
+
+You should have received a copy of the GNU Affero General Public License along with
+raire-service. If not, see <https://www.gnu.org/licenses/>.
+*/
+
+package au.org.democracydevelopers.raireservice.service;
+
+import static org.junit.jupiter.api.Assertions.assertArrayEquals;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertNotNull;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import au.org.democracydevelopers.raire.irv.Vote;
+import au.org.democracydevelopers.raireservice.service.RankingFileCache.Fingerprint;
+import au.org.democracydevelopers.raireservice.service.VoteIngestionService.IngestedVotes;
+import au.org.democracydevelopers.raireservice.testUtils;
+import java.io.File;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.Optional;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Tests for the RankingFileCache: cached votes are read back for the same fingerprint, under any
+ * candidate order, and are discarded when the fingerprint changes or the cache is full.
+ */
+public class RankingFileCacheTests {
+
+  private static final Logger logger = LoggerFactory.getLogger(RankingFileCacheTests.class);
+
+  private static final List<String> candidates = List.of("Alice", "Bob", "Chuan");
+
+  private static final Fingerprint fingerprint = new Fingerprint(6, 100, 12345);
+
+  /**
+   * Votes for Alice, Bob and Chuan, with six ballots across two counties.
+   */
+  private static final IngestedVotes votes = new IngestedVotes(6,
+      new Vote[]{new Vote(3, new int[]{0, 1}), new Vote(2, new int[]{2}),
+          new Vote(1, new int[]{})}, null, Map.of(1L, 4L, 2L, 2L));
+
+  @TempDir
+  Path directory;
+
+  /**
+   * Votes are read back as written, including when the request lists the candidates in another
+   * order, and by a new cache using the same directory.
+   */
+  @Test
+  void votesAreReadBack() {
+    testUtils.log(logger, "votesAreReadBack");
+    final RankingFileCache cache = new RankingFileCache(true, directory.toString(), 1 << 20);
+    cache.write("Contest", fingerprint, candidates, votes);
+
+    final IngestedVotes read = cache.read("Contest", fingerprint, candidates).orElseThrow();
+    assertEquals(6, read.ballotCount());
+    assertEquals(Map.of(1L, 4L, 2L, 2L), read.countyBallotCounts());
+    assertEquals(3, read.votes().length);
+    assertArrayEquals(new int[]{}, read.votes()[0].prefs);
+    assertArrayEquals(new int[]{0, 1}, read.votes()[1].prefs);
+    assertEquals(3, read.votes()[1].n);
+    assertArrayEquals(new int[]{2}, read.votes()[2].prefs);
+
+    final List<String> reordered = List.of("Chuan", "Alice", "Bob");
+    final IngestedVotes reorderedRead = new RankingFileCache(true, directory.toString(), 1 << 20)
+        .read("Contest", fingerprint, reordered).orElseThrow();
+    assertArrayEquals(new int[]{}, reorderedRead.votes()[0].prefs);
+    assertArrayEquals(new int[]{0}, reorderedRead.votes()[1].prefs);
+    assertEquals(2, reorderedRead.votes()[1].n);
+    assertArrayEquals(new int[]{1, 2}, reorderedRead.votes()[2].prefs);
+  }
+
+  /**
+   * Cached votes are discarded when the fingerprint of the CVRs changes.
+   */
+  @Test
+  void changedFingerprintInvalidates() {
+    testUtils.log(logger, "changedFingerprintInvalidates");
+    final RankingFileCache cache = new RankingFileCache(true, directory.toString(), 1 << 20);
+    cache.write("Contest", fingerprint, candidates, votes);
+
+    assertTrue(cache.read("Contest", new Fingerprint(6, 100, 54321), candidates).isEmpty());
+    assertTrue(cache.read("Contest", fingerprint, candidates).isEmpty());
+  }
+
+  /**
+   * Cached votes naming a candidate who is not in the request are reported as an invalid
+   * candidate name.
+   */
+  @Test
+  void missingCandidateIsReported() {
+    testUtils.log(logger, "missingCandidateIsReported");
+    final RankingFileCache cache = new RankingFileCache(true, directory.toString(), 1 << 20);
+    cache.write("Contest", fingerprint, candidates, votes);
+
+    final IngestedVotes read = cache.read("Contest", fingerprint, List.of("Alice", "Bob"))
+        .orElseThrow();
+    assertNotNull(read.invalidCandidateName());
+    assertEquals(6, read.ballotCount());
+  }
+
+  /**
+   * When the cache is full, the least recently used contest is evicted.
+   */
+  @Test
+  void leastRecentlyUsedIsEvicted() {
+    testUtils.log(logger, "leastRecentlyUsedIsEvicted");
+    final RankingFileCache probe = new RankingFileCache(true, directory.resolve("probe").toString(),
+        1 << 20);
+    probe.write("Probe", fingerprint, candidates, votes);
+    final long fileSize = directory.resolve("probe").toFile().listFiles()[0].length();
+
+    final RankingFileCache cache = new RankingFileCache(true, directory.resolve("lru").toString(),
+        2 * fileSize);
+    cache.write("First", fingerprint, candidates, votes);
+    cache.write("Secnd", fingerprint, candidates, votes);
+    assertTrue(cache.read("First", fingerprint, candidates).isPresent());
+    cache.write("Third", fingerprint, candidates, votes);
+
+    assertTrue(cache.read("First", fingerprint, candidates).isPresent());
+    assertTrue(cache.read("Secnd", fingerprint, candidates).isEmpty());
+    assertTrue(cache.read("Third", fingerprint, candidates).isPresent());
+  }
+
+  /**
+   * Concurrent reads and writes of several contests, with evictions, always read back the votes
+   * written, and leave no more files on disk than the cache has room for, and no temporary files.
+   */
+  @Test
+  void concurrentReadsAndWrites() throws Exception {
+    testUtils.log(logger, "concurrentReadsAndWrites");
+    final RankingFileCache probe = new RankingFileCache(true, directory.resolve("probe").toString(),
+        1 << 20);
+    probe.write("Probe", fingerprint, candidates, votes);
+    final long fileSize = directory.resolve("probe").toFile().listFiles()[0].length();
+
+    final Path cacheDirectory = directory.resolve("concurrent");
+    final RankingFileCache cache = new RankingFileCache(true, cacheDirectory.toString(),
+        4 * fileSize);
+    final ExecutorService executor = Executors.newFixedThreadPool(8);
+    try {
+      final List<Future<?>> results = new ArrayList<>();
+      for (int t = 0; t < 8; t++) {
+        final String contest = "Contest " + t;
+        results.add(executor.submit(() -> {
+          for (int i = 0; i < 200; i++) {
+            cache.write(contest, fingerprint, candidates, votes);
+            cache.read(contest, fingerprint, candidates)
+                .ifPresent(read -> assertEquals(6, read.ballotCount()));
+            cache.read("Contest " + (i % 8), fingerprint, candidates)
+                .ifPresent(read -> assertEquals(3, read.votes().length));
+          }
+          return null;
+        }));
+      }
+      for (Future<?> result : results) {
+        result.get();
+      }
+    } finally {
+      executor.shutdownNow();
+    }
+
+    final File[] remaining = cacheDirectory.toFile().listFiles();
+    assertTrue(remaining.length <= 4);
+    for (File file : remaining) {
+      assertTrue(file.getName().endsWith(".rrc"));
+    }
+  }
+
+  /**
+   * A disabled cache stores nothing.
+   */
+  @Test
+  void disabledCacheIsEmpty() {
+    testUtils.log(logger, "disabledCacheIsEmpty");
+    final RankingFileCache cache = new RankingFileCache(false, directory.toString(), 1 << 20);
+    cache.write("Contest", fingerprint, candidates, votes);
+    final Optional<IngestedVotes> read = cache.read("Contest", fingerprint, candidates);
+    assertFalse(cache.isEnabled());
+    assertTrue(read.isEmpty());
+  }
+}
@@ -0,0 +1,123 @@
+/*
+Copyright 2024 Democracy Developers
+
+The Raire Service is designed to connect colorado-rla and its associated database to
+the raire assertion generation engine (https://github.com/DemocracyDevelopers/raire-java).
+
+This file is part of raire-service.
+
+raire-service is free software: you can redistribute it and/or modify it under the terms
+of the GNU Affero General Public License as published by the Free Software Foundation, either
+version 3 of the License, or (at your option) any later version.
+
+raire-service is distributed in the hope that it will be useful, but WITHOUT ANY WARRANTY;
+without even the implied warranty of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.
+See the GNU Affero General Public License for more details.
+
+You should have received a copy of the GNU Affero General Public License along with
+raire-service. If not, see <https://www.gnu.org/licenses/>.
+*/
+
+package au.org.democracydevelopers.raireservice.service;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import au.org.democracydevelopers.raireservice.persistence.repository.ContestRepository;
+import au.org.democracydevelopers.raireservice.persistence.repository.VoteSnapshotRepository;
+import au.org.democracydevelopers.raireservice.testUtils;
+import java.util.List;
+import org.junit.jupiter.api.Test;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.boot.test.autoconfigure.jdbc.AutoConfigureTestDatabase;
+import org.springframework.boot.test.autoconfigure.jdbc.AutoConfigureTestDatabase.Replace;
+import org.springframework.boot.test.context.SpringBootTest;
+import org.springframework.jdbc.core.JdbcTemplate;
+import org.springframework.test.annotation.DirtiesContext;
+import org.springframework.test.annotation.DirtiesContext.ClassMode;
+import org.springframework.test.context.ActiveProfiles;
+import org.springframework.transaction.annotation.Transactional;
+
+/**
+ * Tests for the background building of vote snapshots by the SnapshotWarmer. Contest, CVR and
+ * CVRContestInfo's are preloaded into the test database from src/test/resources/data.sql.
+ * Snapshots are enabled; the warmer's schedule is not, so the tests run it directly, with no
+ * quiet period or pause, and no limit on the number of contests in practice.
+ */
+@ActiveProfiles("test-containers")
+@SpringBootTest(properties = {"raire.snapshot.enabled=true", "raire.warmer.quiet-millis=0",
+    "raire.warmer.pause-millis=0", "raire.warmer.max-contests=1000"})
+@AutoConfigureTestDatabase(replace = Replace.NONE)
+@DirtiesContext(classMode = ClassMode.AFTER_CLASS)
+public class SnapshotWarmerTests {
+
+  private static final Logger logger = LoggerFactory.getLogger(SnapshotWarmerTests.class);
+
+  @Autowired
+  SnapshotWarmer snapshotWarmer;
+
+  @Autowired
+  InteractiveActivity interactiveActivity;
+
+  @Autowired
+  ContestRepository contestRepository;
+
+  @Autowired
+  VoteSnapshotRepository voteSnapshotRepository;
+
+  @Autowired
+  JdbcTemplate jdbcTemplate;
+
+  /**
+   * Contests that are all IRV and have no summary are found for warming; contests with a non-IRV
+   * county level contest, or with a summary, are not. (The summary is rolled back at the end of
+   * the test.)
+   */
+  @Test
+  @Transactional
+  void contestsWithoutAssertionsAreFound() {
+    testUtils.log(logger, "contestsWithoutAssertionsAreFound");
+    List<String> names = contestRepository.findIRVContestNamesWithoutSummary();
+    assertTrue(names.contains("Multi-County Contest 1"));
+    assertTrue(names.contains("Ballina One Vote Contest"));
+    assertFalse(names.contains("Invalid Mixed Contest"));
+    assertFalse(names.contains("Valid Plurality Contest"));
+
+    jdbcTemplate.update("insert into generate_assertions_summary (contest_name, error, message, " +
+        "version, warning, winner) values ('Ballina One Vote Contest', '', '', 0, '', 'Alice')");
+    names = contestRepository.findIRVContestNamesWithoutSummary();
+    assertTrue(names.contains("Multi-County Contest 1"));
+    assertFalse(names.contains("Ballina One Vote Contest"));
+  }
+
+  /**
+   * Running the warmer builds snapshots for every county level contest having CVRs of contests
+   * without assertions, despite some contests having malformed CVRs. A second run finds nothing
+   * to do.
+   */
+  @Test
+  void warmerBuildsSnapshots() {
+    testUtils.log(logger, "warmerBuildsSnapshots");
+    snapshotWarmer.warm();
+    assertEquals(3, voteSnapshotRepository.findByContestName("Multi-County Contest 1").size());
+    assertEquals(1, voteSnapshotRepository.findByContestName("Ballina One Vote Contest").size());
+
+    assertEquals(0, snapshotWarmer.warm());
+  }
+
+  /**
+   * The warmer does nothing while an assertion generation request is in progress.
+   */
+  @Test
+  void warmerYieldsToRequests() {
+    testUtils.log(logger, "warmerYieldsToRequests");
+    try (InteractiveActivity.Scope ignored = interactiveActivity.begin()) {
+      assertFalse(interactiveActivity.isQuiet(0));
+      assertEquals(0, snapshotWarmer.warm());
+    }
+    assertTrue(interactiveActivity.isQuiet(0));
+  }
+}
@@ -0,0 +1,239 @@
+/*
+Copyright 2024 Democracy Developers
+
+The Raire Service is designed to connect colorado-rla and its associated database to
+the raire assertion generation engine (https://github.com/DemocracyDevelopers/raire-java).
+
+This file is part of raire-service.
+
+raire-service is free software: you can redistribute it and/or modify it under the terms
+of the GNU Affero General Public License as published by the Free Software Foundation, either
+version 3 of the License, or (at your option) any later version.
+
+raire-service is distributed in the hope that it will be useful, but WITHOUT ANY WARRANTY;
+without even the implied warranty of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.
+See the GNU Affero General Public License for more details.
+
+You should have received a copy of the GNU Affero General Public License along with
+raire-service. If not, see <https://www.gnu.org/licenses/>.
+*/
+
+package au.org.democracydevelopers.raireservice.service;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import au.org.democracydevelopers.raireservice.service.RaireServiceException.RaireErrorCode;
+import au.org.democracydevelopers.raireservice.testUtils;
+import io.micrometer.core.instrument.simple.SimpleMeterRegistry;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.TimeUnit;
+import org.junit.jupiter.api.Test;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Tests for admission control of assertion generation: limiting concurrency, bounding the wait
+ * queue, and refusing or cancelling requests.
+ */
+public class SolveAdmissionTests {
+
+  private static final Logger logger = LoggerFactory.getLogger(SolveAdmissionTests.class);
+
+  /**
+   * With one permit and no waiting allowed, a second interactive request is refused with a
+   * positive retry time and counted, until the first is complete.
+   */
+  @Test
+  void excessRequestIsRefused() throws RaireServiceException {
+    testUtils.log(logger, "excessRequestIsRefused");
+    final SimpleMeterRegistry registry = new SimpleMeterRegistry();
+    final SolveAdmission admission = new SolveAdmission(true, 1, 0, registry);
+
+    try (SolveAdmission.Permit ignored = admission.admit("A", new CancellationToken())) {
+      final ServiceBusyException ex = assertThrows(ServiceBusyException.class,
+          () -> admission.admit("B", new CancellationToken()));
+      assertEquals(RaireErrorCode.SERVICE_BUSY, ex.errorCode);
+      assertTrue(ex.retryAfterSeconds >= 1);
+      assertEquals(1.0, registry.get("raire.admission.active").gauge().value());
+    }
+    assertEquals(1.0, registry.get("raire.admission.rejected").counter().count());
+
+    admission.admit("B", new CancellationToken()).close();
+  }
+
+  /**
+   * A waiting request is admitted once a permit is released.
+   */
+  @Test
+  void waitingRequestIsAdmitted() throws Exception {
+    testUtils.log(logger, "waitingRequestIsAdmitted");
+    final SolveAdmission admission = new SolveAdmission(true, 1, 1, new SimpleMeterRegistry());
+
+    final SolveAdmission.Permit first = admission.admit("A", new CancellationToken());
+    final CompletableFuture<SolveAdmission.Permit> second = CompletableFuture.supplyAsync(() -> {
+      try {
+        return admission.admit("B", new CancellationToken());
+      } catch (RaireServiceException e) {
+        throw new RuntimeException(e);
+      }
+    });
+    Thread.sleep(200);
+    assertFalse(second.isDone());
+
+    first.close();
+    second.get(5, TimeUnit.SECONDS).close();
+  }
+
+  /**
+   * A job waiting for a permit stops waiting when cancelled. Jobs are never refused, however many
+   * are waiting.
+   */
+  @Test
+  void waitingJobIsCancelled() throws Exception {
+    testUtils.log(logger, "waitingJobIsCancelled");
+    final SolveAdmission admission = new SolveAdmission(true, 1, 0, new SimpleMeterRegistry());
+    final CancellationToken token = new CancellationToken();
+
+    try (SolveAdmission.Permit ignored = admission.admitJob("A", new CancellationToken())) {
+      final CompletableFuture<SolveAdmission.Permit> waiting = CompletableFuture.supplyAsync(() -> {
+        try {
+          return admission.admitJob("B", token);
+        } catch (RaireServiceException e) {
+          throw new RuntimeException(e);
+        }
+      });
+      Thread.sleep(200);
+      token.cancel("testing");
+
+      final ExecutionException ex = assertThrows(ExecutionException.class,
+          () -> waiting.get(5, TimeUnit.SECONDS));
+      assertTrue(ex.getCause().getCause() instanceof RaireServiceException);
+      assertEquals(RaireErrorCode.CANCELLED,
+          ((RaireServiceException) ex.getCause().getCause()).errorCode);
+    }
+  }
+
+  /**
+   * A reservation is refused at once when every place is taken, without waiting, and a
+   * reservation closed without being used frees its place for another request.
+   */
+  @Test
+  void reservationIsRefusedAtOnceAndFreedWhenClosed() throws Exception {
+    testUtils.log(logger, "reservationIsRefusedAtOnceAndFreedWhenClosed");
+    final SolveAdmission admission = new SolveAdmission(true, 1, 1, new SimpleMeterRegistry());
+
+    final SolveAdmission.Reservation first = admission.reserve("A");
+    final SolveAdmission.Reservation second = admission.reserve("B");
+    assertThrows(ServiceBusyException.class, () -> admission.reserve("C"));
+
+    second.close();
+    try (SolveAdmission.Reservation third = admission.reserve("C");
+        SolveAdmission.Permit ignored = first.permit(new CancellationToken())) {
+      assertThrows(ServiceBusyException.class, () -> admission.reserve("D"));
+      first.close();
+      third.close();
+    }
+    admission.reserve("D").close();
+  }
+
+  /**
+   * A retained permit is released only once every holder has closed it, so a request's permit
+   * stays held until the solve that retained it is over.
+   */
+  @Test
+  void retainedPermitIsReleasedByLastHolder() throws Exception {
+    testUtils.log(logger, "retainedPermitIsReleasedByLastHolder");
+    final SimpleMeterRegistry registry = new SimpleMeterRegistry();
+    final SolveAdmission admission = new SolveAdmission(true, 1, 0, registry);
+
+    final SolveAdmission.Permit permit = admission.admit("A", new CancellationToken());
+    final SolveAdmission.Permit retained = permit.retain();
+    permit.close();
+    assertEquals(1.0, registry.get("raire.admission.active").gauge().value());
+    assertThrows(ServiceBusyException.class, () -> admission.admit("B", new CancellationToken()));
+
+    retained.close();
+    assertEquals(0.0, registry.get("raire.admission.active").gauge().value());
+    admission.admit("B", new CancellationToken()).close();
+  }
+
+  /**
+   * A released permit goes to the request that was waiting for it, not to a new request that
+   * arrives at the same moment, so a waiting request keeps its place.
+   */
+  @Test
+  void waitingRequestKeepsItsPlace() throws Exception {
+    testUtils.log(logger, "waitingRequestKeepsItsPlace");
+    final SimpleMeterRegistry registry = new SimpleMeterRegistry();
+    final SolveAdmission admission = new SolveAdmission(true, 1, 0, registry);
+
+    final SolveAdmission.Permit first = admission.admit("A", new CancellationToken());
+    final CompletableFuture<SolveAdmission.Permit> waiting = CompletableFuture.supplyAsync(() -> {
+      try {
+        return admission.admitJob("B", new CancellationToken());
+      } catch (RaireServiceException e) {
+        throw new RuntimeException(e);
+      }
+    });
+    while (registry.get("raire.admission.waiting").gauge().value() < 1) {
+      Thread.sleep(10);
+    }
+    // Give the waiting job time to block in the semaphore's queue.
+    Thread.sleep(200);
+
+    first.close();
+    assertThrows(ServiceBusyException.class, () -> admission.reserve("C"));
+    waiting.get(5, TimeUnit.SECONDS).close();
+    admission.reserve("C").close();
+  }
+
+  /**
+   * Waiting requests are admitted in the order in which they started waiting.
+   */
+  @Test
+  void waitingRequestsAreAdmittedInOrder() throws Exception {
+    testUtils.log(logger, "waitingRequestsAreAdmittedInOrder");
+    final SimpleMeterRegistry registry = new SimpleMeterRegistry();
+    final SolveAdmission admission = new SolveAdmission(true, 1, 2, registry);
+
+    final SolveAdmission.Permit first = admission.admit("A", new CancellationToken());
+    final CompletableFuture<SolveAdmission.Permit> second = waitFor(admission, "B", registry, 1);
+    final CompletableFuture<SolveAdmission.Permit> third = waitFor(admission, "C", registry, 2);
+
+    first.close();
+    final SolveAdmission.Permit secondPermit = second.get(5, TimeUnit.SECONDS);
+    Thread.sleep(200);
+    assertFalse(third.isDone());
+
+    secondPermit.close();
+    third.get(5, TimeUnit.SECONDS).close();
+  }
+
+  /**
+   * Start an interactive request waiting for a permit, and give it time to block.
+   * @param admission the admission control.
+   * @param contestName the request's contest.
+   * @param registry the admission metrics.
+   * @param waiting the number of requests that will then be waiting.
+   * @return the request's permit, once it is admitted.
+   */
+  private CompletableFuture<SolveAdmission.Permit> waitFor(SolveAdmission admission,
+      String contestName, SimpleMeterRegistry registry, int waiting) throws InterruptedException {
+    final CompletableFuture<SolveAdmission.Permit> permit = CompletableFuture.supplyAsync(() -> {
+      try {
+        return admission.admit(contestName, new CancellationToken());
+      } catch (RaireServiceException e) {
+        throw new RuntimeException(e);
+      }
+    });
+    while (registry.get("raire.admission.waiting").gauge().value() < waiting) {
+      Thread.sleep(10);
+    }
+    Thread.sleep(200);
+    return permit;
+  }
+}
@@ -0,0 +1,147 @@
+/*
+Copyright 2024 Democracy Developers
+
+The Raire Service is designed to connect colorado-rla and its associated database to
+the raire assertion generation engine (https://github.com/DemocracyDevelopers/raire-java).
+
+This file is part of raire-service.
+
+raire-service is free software: you can redistribute it and/or modify it under the terms
+of the GNU Affero General Public License as published by the Free Software Foundation, either
+version 3 of the License, or (at your option) any later version.
+
+raire-service is distributed in the hope that it will be useful, but WITHOUT ANY WARRANTY;
+without even the implied warranty of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.
+See the GNU Affero General Public License for more details.
+
+You should have received a copy of the GNU Affero General Public License along with
+raire-service. If not, see <https://www.gnu.org/licenses/>.
+*/
+
+package au.org.democracydevelopers.raireservice.service;
+
+import static au.org.democracydevelopers.raireservice.NSWValues.expectedSolutionData;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertNull;
+
+import au.org.democracydevelopers.raire.irv.Vote;
+import au.org.democracydevelopers.raireservice.NSWValues.Expected;
+import au.org.democracydevelopers.raireservice.request.GenerateAssertionsRequest;
+import au.org.democracydevelopers.raireservice.service.VoteIngestionService.IngestedVotes;
+import au.org.democracydevelopers.raireservice.service.VoteIngestionService.IngestionMode;
+import au.org.democracydevelopers.raireservice.testUtils;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import org.junit.jupiter.api.Test;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.boot.test.autoconfigure.jdbc.AutoConfigureTestDatabase;
+import org.springframework.boot.test.autoconfigure.jdbc.AutoConfigureTestDatabase.Replace;
+import org.springframework.boot.test.context.SpringBootTest;
+import org.springframework.test.annotation.DirtiesContext;
+import org.springframework.test.annotation.DirtiesContext.ClassMode;
+import org.springframework.test.context.ActiveProfiles;
+import org.springframework.test.context.junit.jupiter.EnabledIf;
+
+/**
+ * Comparison of CVR ingestion modes on the NSW 2021 Mayoral election data, which is loaded in
+ * from src/test/resources/NSW2021Data/. Each mode is checked to produce the same votes as STREAM
+ * (which converts choices with the StringArrayConverter), and the time each mode takes over all
+ * contests is logged, after a warm-up pass. Timings are for information only, and are not
+ * asserted, as they depend on the machine running the tests.
+ */
+@ActiveProfiles("nsw-testcases")
+@SpringBootTest
+@AutoConfigureTestDatabase(replace = Replace.NONE)
+@DirtiesContext(classMode = ClassMode.AFTER_CLASS)
+@EnabledIf(value = "${test-strategy.run-nsw-tests}", loadContext = true)
+public class VoteIngestionNSWBenchmarkTests {
+
+  private static final Logger logger = LoggerFactory.getLogger(
+      VoteIngestionNSWBenchmarkTests.class);
+
+  /**
+   * The number of timed passes over all contests, for each mode.
+   */
+  private static final int PASSES = 5;
+
+  @Autowired
+  private VoteIngestionService voteIngestionService;
+
+  /**
+   * Byte-level decoding produces the same votes as StringArrayConverter-based streaming on every
+   * NSW contest, and the time taken by each is logged.
+   */
+  @Test
+  void byteDecodingMatchesAndIsTimedAgainstConverter() {
+    testUtils.log(logger, "byteDecodingMatchesAndIsTimedAgainstConverter");
+    compareWithStream(IngestionMode.BYTES);
+  }
+
+  /**
+   * Byte-level decoding of COPY output produces the same votes as StringArrayConverter-based
+   * streaming on every NSW contest, and the time taken by each is logged.
+   */
+  @Test
+  void copyMatchesAndIsTimedAgainstConverter() {
+    testUtils.log(logger, "copyMatchesAndIsTimedAgainstConverter");
+    compareWithStream(IngestionMode.COPY);
+  }
+
+  /**
+   * Ingest every NSW contest with STREAM and the given mode, checking that they agree, then log
+   * the time each takes for PASSES passes over all contests.
+   * @param mode the ingestion mode to compare with STREAM.
+   */
+  private void compareWithStream(IngestionMode mode) {
+    final List<GenerateAssertionsRequest> requests = expectedSolutionData.stream()
+        .map(this::request).toList();
+
+    // Check agreement; this also serves as a warm-up pass.
+    for (GenerateAssertionsRequest request : requests) {
+      final IngestedVotes expected = voteIngestionService.ingestVotes(request,
+          IngestionMode.STREAM);
+      final IngestedVotes actual = voteIngestionService.ingestVotes(request, mode);
+      assertNull(actual.invalidCandidateName(), request.contestName);
+      assertEquals(expected.ballotCount(), actual.ballotCount(), request.contestName);
+      assertEquals(tally(expected.votes()), tally(actual.votes()), request.contestName);
+    }
+
+    final long streamMillis = time(requests, IngestionMode.STREAM);
+    final long modeMillis = time(requests, mode);
+    logger.info(String.format("Ingestion of all NSW contests, %d passes: STREAM %d ms, %s %d ms.",
+        PASSES, streamMillis, mode, modeMillis));
+  }
+
+  /**
+   * @return the time, in milliseconds, to ingest all the requests' contests PASSES times.
+   */
+  private long time(List<GenerateAssertionsRequest> requests, IngestionMode mode) {
+    final long start = System.nanoTime();
+    for (int pass = 0; pass < PASSES; pass++) {
+      for (GenerateAssertionsRequest request : requests) {
+        voteIngestionService.ingestVotes(request, mode);
+      }
+    }
+    return (System.nanoTime() - start) / 1_000_000;
+  }
+
+  private GenerateAssertionsRequest request(Expected expected) {
+    return new GenerateAssertionsRequest(expected.contestName(), expected.ballotCount(), 5,
+        expected.choices());
+  }
+
+  /**
+   * Express an array of votes as a map from ranking to count, for order-independent comparison.
+   */
+  private static Map<List<Integer>, Integer> tally(Vote[] votes) {
+    final Map<List<Integer>, Integer> result = new HashMap<>();
+    for (Vote v : votes) {
+      result.merge(Arrays.stream(v.prefs).boxed().toList(), v.n, Integer::sum);
+    }
+    return result;
+  }
+}
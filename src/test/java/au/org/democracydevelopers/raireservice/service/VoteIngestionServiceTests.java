@@ -0,0 +1,360 @@
+/*
+Copyright 2024 Democracy Developers
+
+The Raire Service is designed to connect colorado-rla and its associated database to
+the raire assertion generation engine (https://github.com/DemocracyDevelopers/raire-java).
+
+This file is part of raire-service.
+
+raire-service is free software: you can redistribute it and/or modify it under the terms
+of the GNU Affero General Public License as published by the Free Software Foundation, either
+version 3 of the License, or (at your option) any later version.
+
+raire-service is distributed in the hope that it will be useful, but WITHOUT ANY WARRANTY;
+without even the implied warranty of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.
+See the GNU Affero General Public License for more details.
+
+You should have received a copy of the GNU Affero General Public License along with
+raire-service. If not, see <https://www.gnu.org/licenses/>.
+*/
+
+package au.org.democracydevelopers.raireservice.service;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertNotNull;
+import static org.junit.jupiter.api.Assertions.assertNull;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import au.org.democracydevelopers.raire.irv.Vote;
+import au.org.democracydevelopers.raireservice.request.GenerateAssertionsRequest;
+import au.org.democracydevelopers.raireservice.service.VoteIngestionService.IngestedVotes;
+import au.org.democracydevelopers.raireservice.service.VoteIngestionService.IngestionMode;
+import au.org.democracydevelopers.raireservice.testUtils;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import org.junit.jupiter.api.Test;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.boot.test.autoconfigure.jdbc.AutoConfigureTestDatabase;
+import org.springframework.boot.test.autoconfigure.jdbc.AutoConfigureTestDatabase.Replace;
+import org.springframework.boot.test.context.SpringBootTest;
+import org.springframework.test.annotation.DirtiesContext;
+import org.springframework.test.annotation.DirtiesContext.ClassMode;
+import org.springframework.test.context.ActiveProfiles;
+
+/**
+ * Tests for the collection and consolidation of CVR vote data by the VoteIngestionService.
+ * Contest, CVR and CVRContestInfo's are preloaded into the test database from
+ * src/test/resources/data.sql. Parallel scanning is enabled for all contests, however small, so
+ * that PARALLEL_SCAN mode is exercised on the test data, and requests may set any in-memory
+ * ranking threshold, so that writing rankings to temporary files is exercised too.
+ */
+@ActiveProfiles("test-containers")
+@SpringBootTest(properties = {"raire.ingestion.parallel.min-ballots=0",
+    "raire.ingestion.spill.min-rankings=1"})
+@AutoConfigureTestDatabase(replace = Replace.NONE)
+@DirtiesContext(classMode = ClassMode.AFTER_CLASS)
+public class VoteIngestionServiceTests {
+
+  private static final Logger logger = LoggerFactory.getLogger(VoteIngestionServiceTests.class);
+
+  @Autowired
+  VoteIngestionService voteIngestionService;
+
+  /**
+   * The candidates appearing in the CVRs for Multi-County Contest 1.
+   */
+  private static final List<String> multiCountyCandidates = List.of("Charlie C. Chaplin",
+      "West W. Westerson", "Al (Bob) Jones", "Alice P. Mangrove", "Harold Holt", "Wendy Squires",
+      "(B)(C)(D)");
+
+  /**
+   * A multi-county contest is collected across all of its counties, and every ballot is counted
+   * in the consolidated votes.
+   */
+  @Test
+  void multiCountyContestCollectsAllCounties() {
+    testUtils.log(logger, "multiCountyContestCollectsAllCounties");
+    final GenerateAssertionsRequest request = new GenerateAssertionsRequest(
+        "Multi-County Contest 1", 100, 10, multiCountyCandidates);
+
+    final IngestedVotes ingested = voteIngestionService.ingestVotes(request);
+    assertNull(ingested.invalidCandidateName());
+    assertEquals(7, ingested.ballotCount());
+    assertEquals(7, Arrays.stream(ingested.votes()).mapToInt(v -> v.n).sum());
+    assertEquals(Map.of(8L, 3L, 9L, 3L, 10L, 1L), ingested.countyBallotCounts());
+  }
+
+  /**
+   * The pre-flight count gives the same per-county counts as ingestion, and ingestion given those
+   * counts produces the same result as without them.
+   */
+  @Test
+  void countBallotsMatchesIngestion() {
+    testUtils.log(logger, "countBallotsMatchesIngestion");
+    final GenerateAssertionsRequest request = new GenerateAssertionsRequest(
+        "Multi-County Contest 1", 100, 10, multiCountyCandidates);
+
+    final Map<Long, Long> counts = voteIngestionService.countBallots(request);
+    assertEquals(Map.of(8L, 3L, 9L, 3L, 10L, 1L), counts);
+
+    final IngestedVotes ingested = voteIngestionService.ingestVotes(request, counts);
+    assertEquals(counts, ingested.countyBallotCounts());
+    assertEquals(tally(voteIngestionService.ingestVotes(request).votes()),
+        tally(ingested.votes()));
+    assertTrue(voteIngestionService.countBallots(new GenerateAssertionsRequest("No CVR Mayoral",
+        100, 10, List.of("Alice", "Bob"))).isEmpty());
+  }
+
+  /**
+   * A contest with no CVRs produces no votes.
+   */
+  @Test
+  void contestWithNoCVRsHasNoVotes() {
+    testUtils.log(logger, "contestWithNoCVRsHasNoVotes");
+    final GenerateAssertionsRequest request = new GenerateAssertionsRequest("No CVR Mayoral",
+        100, 10, List.of("Alice", "Bob"));
+
+    final IngestedVotes ingested = voteIngestionService.ingestVotes(request);
+    assertNull(ingested.invalidCandidateName());
+    assertEquals(0, ingested.ballotCount());
+    assertEquals(0, ingested.votes().length);
+    assertTrue(ingested.countyBallotCounts().isEmpty());
+  }
+
+  /**
+   * A ranking naming a candidate who is not in the request is reported, and all ballots are
+   * still counted.
+   */
+  @Test
+  void invalidCandidateNameIsReportedAndAllBallotsCounted() {
+    testUtils.log(logger, "invalidCandidateNameIsReportedAndAllBallotsCounted");
+    final GenerateAssertionsRequest request = new GenerateAssertionsRequest(
+        "Multi-County Contest 1", 100, 10, multiCountyCandidates.subList(0, 4));
+
+    final IngestedVotes ingested = voteIngestionService.ingestVotes(request);
+    assertNotNull(ingested.invalidCandidateName());
+    assertEquals(7, ingested.ballotCount());
+  }
+
+  /**
+   * The names in a contest's CVRs that are not in the request's candidate list are found without
+   * ingestion, each listed once, in order; none are found when the list is complete (whatever its
+   * order), or when the contest has no CVRs.
+   */
+  @Test
+  void nonCandidateNamesAreFound() {
+    testUtils.log(logger, "nonCandidateNamesAreFound");
+    assertEquals(List.of("(B)(C)(D)", "Harold Holt", "Wendy Squires"),
+        voteIngestionService.findNonCandidateNames(new GenerateAssertionsRequest(
+            "Multi-County Contest 1", 100, 10, multiCountyCandidates.subList(0, 4))));
+    assertTrue(voteIngestionService.findNonCandidateNames(new GenerateAssertionsRequest(
+        "Multi-County Contest 1", 100, 10, multiCountyCandidates.reversed())).isEmpty());
+    assertTrue(voteIngestionService.findNonCandidateNames(new GenerateAssertionsRequest(
+        "No CVR Mayoral", 100, 10, List.of("Alice", "Bob"))).isEmpty());
+  }
+
+  /**
+   * Every ingestion mode (streaming, list, grouped, parallel, pipelined, byte-level, COPY and
+   * database-indexed) produces the same consolidated votes and county counts.
+   */
+  @Test
+  void ingestionModesAgree() {
+    testUtils.log(logger, "ingestionModesAgree");
+    final GenerateAssertionsRequest request = new GenerateAssertionsRequest(
+        "Multi-County Contest 1", 100, 10, multiCountyCandidates);
+
+    final IngestedVotes listed = voteIngestionService.ingestVotes(request, IngestionMode.LIST);
+    final IngestedVotes streamed = voteIngestionService.ingestVotes(request, IngestionMode.STREAM);
+    final IngestedVotes grouped = voteIngestionService.ingestVotes(request, IngestionMode.GROUPED);
+    final IngestedVotes parallel = voteIngestionService.ingestVotes(request,
+        IngestionMode.PARALLEL_SCAN);
+    final IngestedVotes pipelined = voteIngestionService.ingestVotes(request,
+        IngestionMode.PIPELINED);
+    final IngestedVotes bytes = voteIngestionService.ingestVotes(request, IngestionMode.BYTES);
+    final IngestedVotes copied = voteIngestionService.ingestVotes(request, IngestionMode.COPY);
+    final IngestedVotes indexed = voteIngestionService.ingestVotes(request,
+        IngestionMode.DB_INDEXED);
+
+    assertEquals(listed.ballotCount(), streamed.ballotCount());
+    assertEquals(tally(listed.votes()), tally(streamed.votes()));
+    assertEquals(listed.ballotCount(), grouped.ballotCount());
+    assertEquals(tally(listed.votes()), tally(grouped.votes()));
+    assertEquals(listed.countyBallotCounts(), streamed.countyBallotCounts());
+    assertEquals(listed.countyBallotCounts(), grouped.countyBallotCounts());
+    assertEquals(listed.ballotCount(), parallel.ballotCount());
+    assertEquals(tally(listed.votes()), tally(parallel.votes()));
+    assertEquals(listed.countyBallotCounts(), parallel.countyBallotCounts());
+    assertEquals(listed.ballotCount(), indexed.ballotCount());
+    assertEquals(tally(listed.votes()), tally(indexed.votes()));
+    assertEquals(listed.countyBallotCounts(), indexed.countyBallotCounts());
+    assertEquals(listed.ballotCount(), pipelined.ballotCount());
+    assertEquals(tally(listed.votes()), tally(pipelined.votes()));
+    assertEquals(listed.countyBallotCounts(), pipelined.countyBallotCounts());
+    assertEquals(listed.ballotCount(), bytes.ballotCount());
+    assertEquals(tally(listed.votes()), tally(bytes.votes()));
+    assertEquals(listed.countyBallotCounts(), bytes.countyBallotCounts());
+    assertEquals(listed.ballotCount(), copied.ballotCount());
+    assertEquals(tally(listed.votes()), tally(copied.votes()));
+    assertEquals(listed.countyBallotCounts(), copied.countyBallotCounts());
+  }
+
+  /**
+   * A request's in-memory ranking threshold, which writes rankings to temporary files and merges
+   * them, gives the same votes as holding them all in memory, including when CVRs are read in
+   * parallel.
+   */
+  @Test
+  void spilledIngestionAgrees() {
+    testUtils.log(logger, "spilledIngestionAgrees");
+    final GenerateAssertionsRequest request = new GenerateAssertionsRequest(
+        "Multi-County Contest 1", 100, 10, multiCountyCandidates);
+    final GenerateAssertionsRequest spilledRequest = new GenerateAssertionsRequest(
+        "Multi-County Contest 1", 100, 10, multiCountyCandidates, 1);
+
+    final IngestedVotes expected = voteIngestionService.ingestVotes(request, IngestionMode.LIST);
+    for (IngestionMode mode : List.of(IngestionMode.STREAM, IngestionMode.PARALLEL_SCAN)) {
+      final IngestedVotes spilled = voteIngestionService.ingestVotes(spilledRequest, mode);
+      assertEquals(expected.ballotCount(), spilled.ballotCount());
+      assertEquals(tally(expected.votes()), tally(spilled.votes()));
+      assertEquals(expected.countyBallotCounts(), spilled.countyBallotCounts());
+    }
+  }
+
+  /**
+   * Express an array of votes as a map from ranking to count, for order-independent comparison.
+   */
+  private static Map<List<Integer>, Integer> tally(Vote[] votes) {
+    final Map<List<Integer>, Integer> result = new HashMap<>();
+    for (Vote v : votes) {
+      result.merge(Arrays.stream(v.prefs).boxed().toList(), v.n, Integer::sum);
+    }
+    return result;
+  }
+
+  /**
+   * Parallel ingestion of a contest with no CVRs produces no votes.
+   */
+  @Test
+  void parallelScanOfContestWithNoCVRsHasNoVotes() {
+    testUtils.log(logger, "parallelScanOfContestWithNoCVRsHasNoVotes");
+    final GenerateAssertionsRequest request = new GenerateAssertionsRequest("No CVR Mayoral",
+        100, 10, List.of("Alice", "Bob"));
+
+    final IngestedVotes ingested = voteIngestionService.ingestVotes(request,
+        IngestionMode.PARALLEL_SCAN);
+    assertEquals(0, ingested.ballotCount());
+    assertEquals(0, ingested.votes().length);
+  }
+
+  /**
+   * Parallel ingestion reports an invalid candidate name, and still counts all ballots.
+   */
+  @Test
+  void parallelScanReportsInvalidCandidateName() {
+    testUtils.log(logger, "parallelScanReportsInvalidCandidateName");
+    final GenerateAssertionsRequest request = new GenerateAssertionsRequest(
+        "Multi-County Contest 1", 100, 10, multiCountyCandidates.subList(0, 4));
+
+    final IngestedVotes ingested = voteIngestionService.ingestVotes(request,
+        IngestionMode.PARALLEL_SCAN);
+    assertNotNull(ingested.invalidCandidateName());
+    assertEquals(7, ingested.ballotCount());
+  }
+
+  /**
+   * Pipelined ingestion of a contest with a malformed or null choices entry fails, rather than
+   * hanging, whichever stage the failure arises in.
+   */
+  @Test
+  void pipelinedIngestionOfMalformedChoicesFails() {
+    testUtils.log(logger, "pipelinedIngestionOfMalformedChoicesFails");
+    for (String contestName : List.of("Malformed Contest 1", "Malformed Contest 4",
+        "Malformed Contest 5")) {
+      final GenerateAssertionsRequest request = new GenerateAssertionsRequest(contestName,
+          100, 10, List.of("Alice", "Bob"));
+      assertThrows(RuntimeException.class, () -> voteIngestionService.ingestVotes(request,
+          IngestionMode.PIPELINED), contestName);
+    }
+  }
+
+  /**
+   * Byte-level ingestion reports an invalid candidate name (decoded by the fallback converter),
+   * and still counts all ballots.
+   */
+  @Test
+  void byteIngestionReportsInvalidCandidateName() {
+    testUtils.log(logger, "byteIngestionReportsInvalidCandidateName");
+    final GenerateAssertionsRequest request = new GenerateAssertionsRequest(
+        "Multi-County Contest 1", 100, 10, multiCountyCandidates.subList(0, 4));
+
+    final IngestedVotes ingested = voteIngestionService.ingestVotes(request, IngestionMode.BYTES);
+    assertNotNull(ingested.invalidCandidateName());
+    assertEquals(7, ingested.ballotCount());
+  }
+
+  /**
+   * Byte-level, COPY and database-indexed ingestion of a contest with a malformed or null choices
+   * entry fails.
+   */
+  @Test
+  void byteIngestionOfMalformedChoicesFails() {
+    testUtils.log(logger, "byteIngestionOfMalformedChoicesFails");
+    for (String contestName : List.of("Malformed Contest 1", "Malformed Contest 4",
+        "Malformed Contest 5")) {
+      final GenerateAssertionsRequest request = new GenerateAssertionsRequest(contestName,
+          100, 10, List.of("Alice", "Bob"));
+      assertThrows(RuntimeException.class, () -> voteIngestionService.ingestVotes(request,
+          IngestionMode.BYTES), contestName);
+      assertThrows(RuntimeException.class, () -> voteIngestionService.ingestVotes(request,
+          IngestionMode.COPY), contestName);
+      assertThrows(RuntimeException.class, () -> voteIngestionService.ingestVotes(request,
+          IngestionMode.DB_INDEXED), contestName);
+    }
+  }
+
+  /**
+   * COPY ingestion of a contest with no CVRs, or that does not exist, produces no votes.
+   */
+  @Test
+  void copyIngestionOfContestWithNoCVRsHasNoVotes() {
+    testUtils.log(logger, "copyIngestionOfContestWithNoCVRsHasNoVotes");
+    for (String contestName : List.of("No CVR Mayoral", "Non-Existent Contest")) {
+      final GenerateAssertionsRequest request = new GenerateAssertionsRequest(contestName,
+          100, 10, List.of("Alice", "Bob"));
+      final IngestedVotes ingested = voteIngestionService.ingestVotes(request, IngestionMode.COPY);
+      assertEquals(0, ingested.ballotCount(), contestName);
+    }
+  }
+
+  /**
+   * Database-indexed ingestion reports an invalid candidate name flagged by the query, and still
+   * counts all ballots. A ranking naming only valid candidates is not flagged when the candidate
+   * list is reordered.
+   */
+  @Test
+  void dbIndexedIngestionReportsInvalidCandidateName() {
+    testUtils.log(logger, "dbIndexedIngestionReportsInvalidCandidateName");
+    final GenerateAssertionsRequest request = new GenerateAssertionsRequest(
+        "Multi-County Contest 1", 100, 10, multiCountyCandidates.subList(0, 4));
+
+    final IngestedVotes ingested = voteIngestionService.ingestVotes(request,
+        IngestionMode.DB_INDEXED);
+    assertNotNull(ingested.invalidCandidateName());
+    assertEquals(7, ingested.ballotCount());
+
+    final List<String> reversed = new ArrayList<>(multiCountyCandidates);
+    Collections.reverse(reversed);
+    final IngestedVotes reordered = voteIngestionService.ingestVotes(
+        new GenerateAssertionsRequest("Multi-County Contest 1", 100, 10, reversed),
+        IngestionMode.DB_INDEXED);
+    assertNull(reordered.invalidCandidateName());
+    assertEquals(7, reordered.ballotCount());
+  }
+}
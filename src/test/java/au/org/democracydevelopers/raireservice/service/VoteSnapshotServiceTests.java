@@ -0,0 +1,368 @@
+/*
+Copyright 2024 Democracy Developers
+
+The Raire Service is designed to connect colorado-rla and its associated database to
+the raire assertion generation engine (https://github.com/DemocracyDevelopers/raire-java).
+
+This file is part of raire-service.
+
+raire-service is free software: you can redistribute it and/or modify it under the terms
+of the GNU Affero General Public License as published by the Free Software Foundation, either
+version 3 of the License, or (at your option) any later version.
+
+raire-service is distributed in the hope that it will be useful, but WITHOUT ANY WARRANTY;
+without even the implied warranty of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.
+See the GNU Affero General Public License for more details.
+
+You should have received a copy of the GNU Affero General Public License along with
+raire-service. If not, see <https://www.gnu.org/licenses/>.
+*/
+
+package au.org.democracydevelopers.raireservice.service;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertNotNull;
+import static org.junit.jupiter.api.Assertions.assertNull;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import au.org.democracydevelopers.raire.irv.Vote;
+import au.org.democracydevelopers.raireservice.persistence.entity.VoteSnapshot;
+import au.org.democracydevelopers.raireservice.persistence.repository.VoteSnapshotRepository;
+import au.org.democracydevelopers.raireservice.request.GenerateAssertionsRequest;
+import au.org.democracydevelopers.raireservice.service.VoteIngestionService.IngestedVotes;
+import au.org.democracydevelopers.raireservice.service.VoteSnapshotService.CvrCheck;
+import au.org.democracydevelopers.raireservice.testUtils;
+import io.micrometer.core.instrument.MeterRegistry;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import org.junit.jupiter.api.Test;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.boot.test.autoconfigure.jdbc.AutoConfigureTestDatabase;
+import org.springframework.boot.test.autoconfigure.jdbc.AutoConfigureTestDatabase.Replace;
+import org.springframework.boot.test.context.SpringBootTest;
+import org.springframework.jdbc.core.JdbcTemplate;
+import org.springframework.test.annotation.DirtiesContext;
+import org.springframework.test.annotation.DirtiesContext.ClassMode;
+import org.springframework.test.context.ActiveProfiles;
+import org.springframework.transaction.annotation.Transactional;
+
+/**
+ * Tests for the reuse of county level contests' rankings through vote snapshots. Contest, CVR and
+ * CVRContestInfo's are preloaded into the test database from src/test/resources/data.sql.
+ * Snapshots are enabled for these tests.
+ */
+@ActiveProfiles("test-containers")
+@SpringBootTest(properties = "raire.snapshot.enabled=true")
+@AutoConfigureTestDatabase(replace = Replace.NONE)
+@DirtiesContext(classMode = ClassMode.AFTER_CLASS)
+public class VoteSnapshotServiceTests {
+
+  private static final Logger logger = LoggerFactory.getLogger(VoteSnapshotServiceTests.class);
+
+  @Autowired
+  VoteSnapshotService voteSnapshotService;
+
+  @Autowired
+  VoteIngestionService voteIngestionService;
+
+  @Autowired
+  VoteSnapshotRepository voteSnapshotRepository;
+
+  @Autowired
+  MeterRegistry meterRegistry;
+
+  @Autowired
+  JdbcTemplate jdbcTemplate;
+
+  /**
+   * No check before reading CVRs, for tests not concerned with it.
+   */
+  private static final CvrCheck noCheck = () -> {};
+
+  /**
+   * The candidates appearing in the CVRs for Multi-County Contest 1.
+   */
+  private static final List<String> multiCountyCandidates = List.of("Charlie C. Chaplin",
+      "West W. Westerson", "Al (Bob) Jones", "Alice P. Mangrove", "Harold Holt", "Wendy Squires",
+      "(B)(C)(D)");
+
+  /**
+   * A snapshot is built for each county when a contest is first ingested, and reused for later
+   * requests, giving the same votes as ingestion. The snapshots are independent of the order of
+   * the candidates in the request.
+   */
+  @Test
+  void snapshotsAreBuiltAndReused() throws RaireServiceException {
+    testUtils.log(logger, "snapshotsAreBuiltAndReused");
+    final GenerateAssertionsRequest request = new GenerateAssertionsRequest(
+        "Multi-County Contest 1", 100, 10, multiCountyCandidates);
+    final Map<Long, Long> countyCounts = voteIngestionService.countBallots(request);
+    final IngestedVotes expected = voteIngestionService.ingestVotes(request, countyCounts);
+
+    voteSnapshotService.ingestVotes(request, countyCounts, noCheck);
+    final List<VoteSnapshot> snapshots =
+        voteSnapshotRepository.findByContestName("Multi-County Contest 1");
+    assertEquals(3, snapshots.size());
+    assertEquals(7, snapshots.stream().mapToLong(VoteSnapshot::getBallotCount).sum());
+
+    final double hits = lookups("hit");
+    final IngestedVotes reused = voteSnapshotService.ingestVotes(request, countyCounts, noCheck);
+    assertEquals(hits + 3, lookups("hit"));
+    assertEquals(expected.ballotCount(), reused.ballotCount());
+    assertEquals(tally(expected.votes(), multiCountyCandidates),
+        tally(reused.votes(), multiCountyCandidates));
+    assertEquals(expected.countyBallotCounts(), reused.countyBallotCounts());
+    assertNull(reused.invalidCandidateName());
+
+    final List<String> reordered = multiCountyCandidates.reversed();
+    final IngestedVotes reusedReordered = voteSnapshotService.ingestVotes(
+        new GenerateAssertionsRequest("Multi-County Contest 1", 100, 10, reordered),
+        countyCounts, noCheck);
+    assertEquals(tally(expected.votes(), multiCountyCandidates),
+        tally(reusedReordered.votes(), reordered));
+  }
+
+  /**
+   * Snapshots reused for a request whose candidate list does not include every name in them
+   * report an invalid candidate name, as ingestion would.
+   */
+  @Test
+  void reusedSnapshotReportsInvalidCandidateName() throws RaireServiceException {
+    testUtils.log(logger, "reusedSnapshotReportsInvalidCandidateName");
+    final GenerateAssertionsRequest request = new GenerateAssertionsRequest(
+        "Multi-County Contest 1", 100, 10, multiCountyCandidates);
+    final Map<Long, Long> countyCounts = voteIngestionService.countBallots(request);
+    voteSnapshotService.ingestVotes(request, countyCounts, noCheck);
+
+    final double hits = lookups("hit");
+    final IngestedVotes ingested = voteSnapshotService.ingestVotes(new GenerateAssertionsRequest(
+        "Multi-County Contest 1", 100, 10, multiCountyCandidates.subList(0, 4)), countyCounts,
+        noCheck);
+    assertEquals(hits + 3, lookups("hit"));
+    assertNotNull(ingested.invalidCandidateName());
+    assertEquals(7, ingested.ballotCount());
+  }
+
+  /**
+   * When one county's CVRs change, only that county's snapshot is refreshed (here, updated with
+   * the changed CVR rather than rebuilt), and its new rankings are merged with the other counties'
+   * snapshots. (The change is rolled back at the end of the test.)
+   */
+  @Test
+  @Transactional
+  void onlyChangedCountyIsRebuilt() throws RaireServiceException {
+    testUtils.log(logger, "onlyChangedCountyIsRebuilt");
+    final GenerateAssertionsRequest request = new GenerateAssertionsRequest(
+        "Multi-County Contest 1", 100, 10, multiCountyCandidates);
+    voteSnapshotService.ingestVotes(request, voteIngestionService.countBallots(request), noCheck);
+
+    jdbcTemplate.update("update cvr_contest_info set choices = '[\"Al (Bob) Jones\"]' " +
+        "where cvr_id = 6 and contest_id = 999991");
+
+    final double hits = lookups("hit");
+    final double stale = lookups("stale");
+    final double builds = meterRegistry.counter("raire.snapshot.builds").count();
+    final double updates = meterRegistry.counter("raire.snapshot.updates").count();
+    final IngestedVotes ingested = voteSnapshotService.ingestVotes(request,
+        voteIngestionService.countBallots(request), noCheck);
+    assertEquals(hits + 2, lookups("hit"));
+    assertEquals(stale + 1, lookups("stale"));
+    assertEquals(builds, meterRegistry.counter("raire.snapshot.builds").count());
+    assertEquals(updates + 1, meterRegistry.counter("raire.snapshot.updates").count());
+    assertEquals(7, ingested.ballotCount());
+
+    final Map<List<String>, Integer> votes = tally(ingested.votes(), multiCountyCandidates);
+    assertEquals(1, votes.get(List.of("Al (Bob) Jones")));
+    assertNull(votes.get(List.of("Charlie C. Chaplin")));
+    assertEquals(1, votes.get(List.of("Harold Holt", "Wendy Squires", "(B)(C)(D)")));
+
+    final double hitsAfter = lookups("hit");
+    voteSnapshotService.ingestVotes(request, voteIngestionService.countBallots(request), noCheck);
+    assertEquals(hitsAfter + 3, lookups("hit"));
+  }
+
+  /**
+   * The check before reading CVRs is made when any county's snapshot must be refreshed from its
+   * CVRs, and not when every snapshot is up to date. (The change is rolled back at the end of the
+   * test.)
+   */
+  @Test
+  @Transactional
+  void checkIsMadeOnlyWhenCVRsAreRead() throws RaireServiceException {
+    testUtils.log(logger, "checkIsMadeOnlyWhenCVRsAreRead");
+    final GenerateAssertionsRequest request = new GenerateAssertionsRequest(
+        "Multi-County Contest 1", 100, 10, multiCountyCandidates);
+    final AtomicInteger checks = new AtomicInteger();
+    final CvrCheck counting = checks::incrementAndGet;
+    voteSnapshotService.ingestVotes(request, voteIngestionService.countBallots(request), noCheck);
+
+    voteSnapshotService.ingestVotes(request, voteIngestionService.countBallots(request), counting);
+    assertEquals(0, checks.get());
+
+    jdbcTemplate.update("update cvr_contest_info set choices = '[\"Al (Bob) Jones\"]' " +
+        "where cvr_id = 6 and contest_id = 999991");
+    voteSnapshotService.ingestVotes(request, voteIngestionService.countBallots(request), counting);
+    assertEquals(1, checks.get());
+
+    voteSnapshotService.ingestVotes(request, voteIngestionService.countBallots(request), counting);
+    assertEquals(1, checks.get());
+  }
+
+  /**
+   * CVRs added to and removed from a county are applied to its snapshot without rebuilding it,
+   * giving the same votes as ingesting all the CVRs afresh. (The changes are rolled back at the
+   * end of the test.)
+   */
+  @Test
+  @Transactional
+  void addedAndRemovedCVRsAreApplied() throws RaireServiceException {
+    testUtils.log(logger, "addedAndRemovedCVRsAreApplied");
+    final GenerateAssertionsRequest request = new GenerateAssertionsRequest(
+        "Multi-County Contest 1", 100, 10, multiCountyCandidates);
+    voteSnapshotService.ingestVotes(request, voteIngestionService.countBallots(request), noCheck);
+
+    jdbcTemplate.update("delete from cvr_contest_info where cvr_id = 4 and contest_id = 999990");
+    jdbcTemplate.update("insert into cvr_contest_info (cvr_id, county_id, choices, contest_id, " +
+        "index) values (1, 8, '[\"Harold Holt\",\"Charlie C. Chaplin\"]', 999990, 90)");
+    jdbcTemplate.update("insert into cvr_contest_info (cvr_id, county_id, choices, contest_id, " +
+        "index) values (2, 8, '[\"Al (Bob) Jones\",\"West W. Westerson\"," +
+        "\"Charlie C. Chaplin\"]', 999990, 90)");
+
+    final double builds = meterRegistry.counter("raire.snapshot.builds").count();
+    final double updates = meterRegistry.counter("raire.snapshot.updates").count();
+    final Map<Long, Long> countyCounts = voteIngestionService.countBallots(request);
+    final IngestedVotes expected = voteIngestionService.ingestVotes(request, countyCounts);
+    final IngestedVotes ingested = voteSnapshotService.ingestVotes(request, countyCounts, noCheck);
+    assertEquals(builds, meterRegistry.counter("raire.snapshot.builds").count());
+    assertEquals(updates + 1, meterRegistry.counter("raire.snapshot.updates").count());
+    assertEquals(8, ingested.ballotCount());
+    assertEquals(expected.countyBallotCounts(), ingested.countyBallotCounts());
+    assertEquals(tally(expected.votes(), multiCountyCandidates),
+        tally(ingested.votes(), multiCountyCandidates));
+
+    final double hits = lookups("hit");
+    voteSnapshotService.ingestVotes(request, voteIngestionService.countBallots(request), noCheck);
+    assertEquals(hits + 3, lookups("hit"));
+  }
+
+  /**
+   * A county whose CVRs have all been replaced has its snapshot rebuilt, rather than updated.
+   * (The change is rolled back at the end of the test.)
+   */
+  @Test
+  @Transactional
+  void replacedCountyIsRebuilt() throws RaireServiceException {
+    testUtils.log(logger, "replacedCountyIsRebuilt");
+    final GenerateAssertionsRequest request = new GenerateAssertionsRequest(
+        "Multi-County Contest 1", 100, 10, multiCountyCandidates);
+    voteSnapshotService.ingestVotes(request, voteIngestionService.countBallots(request), noCheck);
+
+    jdbcTemplate.update("delete from cvr_contest_info where contest_id = 999988");
+    jdbcTemplate.update("insert into cvr_contest_info (cvr_id, county_id, choices, contest_id, " +
+        "index) values (1, 10, '[\"Wendy Squires\"]', 999988, 91)");
+
+    final double builds = meterRegistry.counter("raire.snapshot.builds").count();
+    final double updates = meterRegistry.counter("raire.snapshot.updates").count();
+    final IngestedVotes ingested = voteSnapshotService.ingestVotes(request,
+        voteIngestionService.countBallots(request), noCheck);
+    assertEquals(builds + 1, meterRegistry.counter("raire.snapshot.builds").count());
+    assertEquals(updates, meterRegistry.counter("raire.snapshot.updates").count());
+    assertEquals(7, ingested.ballotCount());
+
+    final Map<List<String>, Integer> votes = tally(ingested.votes(), multiCountyCandidates);
+    assertEquals(1, votes.get(List.of("Wendy Squires")));
+    assertNull(votes.get(List.of("Harold Holt", "Wendy Squires", "(B)(C)(D)")));
+  }
+
+  /**
+   * The snapshot of a county whose CVRs have all been removed is deleted, and the county no
+   * longer contributes to the votes. (The change is rolled back at the end of the test.)
+   */
+  @Test
+  @Transactional
+  void countyWithoutCVRsLosesItsSnapshot() throws RaireServiceException {
+    testUtils.log(logger, "countyWithoutCVRsLosesItsSnapshot");
+    final GenerateAssertionsRequest request = new GenerateAssertionsRequest(
+        "Multi-County Contest 1", 100, 10, multiCountyCandidates);
+    voteSnapshotService.ingestVotes(request, voteIngestionService.countBallots(request), noCheck);
+
+    jdbcTemplate.update("delete from cvr_contest_info where contest_id = 999988");
+
+    final IngestedVotes ingested = voteSnapshotService.ingestVotes(request,
+        voteIngestionService.countBallots(request), noCheck);
+    assertEquals(6, ingested.ballotCount());
+    assertEquals(Map.of(8L, 3L, 9L, 3L), ingested.countyBallotCounts());
+    assertEquals(2, voteSnapshotRepository.findByContestName("Multi-County Contest 1").size());
+  }
+
+  /**
+   * Concurrent requests for a contest without snapshots take turns to refresh them: the snapshot
+   * is built once, by whichever gets there first, and the others use it, rather than colliding
+   * on the snapshot's unique constraint or version. Every request gets the same votes.
+   */
+  @Test
+  void concurrentRefreshesTakeTurns() throws Exception {
+    testUtils.log(logger, "concurrentRefreshesTakeTurns");
+    final List<String> candidates = List.of("A", "B", "CC");
+    final GenerateAssertionsRequest request = new GenerateAssertionsRequest("Larger Contest",
+        100, 10, candidates);
+    voteSnapshotRepository.deleteAll(voteSnapshotRepository.findByContestName("Larger Contest"));
+    final Map<Long, Long> countyCounts = voteIngestionService.countBallots(request);
+    final IngestedVotes expected = voteIngestionService.ingestVotes(request, countyCounts);
+
+    final int threads = 8;
+    final double builds = meterRegistry.counter("raire.snapshot.builds").count();
+    final CountDownLatch start = new CountDownLatch(1);
+    final ExecutorService executor = Executors.newFixedThreadPool(threads);
+    try {
+      final List<Future<IngestedVotes>> results = new ArrayList<>();
+      for (int i = 0; i < threads; i++) {
+        results.add(executor.submit(() -> {
+          start.await();
+          return voteSnapshotService.ingestVotes(request, countyCounts, noCheck);
+        }));
+      }
+      start.countDown();
+      for (Future<IngestedVotes> result : results) {
+        final IngestedVotes ingested = result.get(30, TimeUnit.SECONDS);
+        assertEquals(expected.ballotCount(), ingested.ballotCount());
+        assertEquals(tally(expected.votes(), candidates), tally(ingested.votes(), candidates));
+      }
+    } finally {
+      executor.shutdownNow();
+    }
+    assertEquals(builds + 1, meterRegistry.counter("raire.snapshot.builds").count());
+    assertEquals(1, voteSnapshotRepository.findByContestName("Larger Contest").size());
+  }
+
+  /**
+   * @return the number of snapshot lookups so far with the given outcome.
+   */
+  private double lookups(String outcome) {
+    return meterRegistry.counter("raire.snapshot.lookups", "outcome", outcome).count();
+  }
+
+  /**
+   * Express an array of votes as a map from ranking (by candidate name) to count, for comparison
+   * independent of vote and candidate order.
+   */
+  private static Map<List<String>, Integer> tally(Vote[] votes, List<String> candidates) {
+    final Map<List<String>, Integer> result = new HashMap<>();
+    for (Vote v : votes) {
+      result.merge(Arrays.stream(v.prefs).mapToObj(candidates::get).toList(), v.n,
+          Integer::sum);
+    }
+    return result;
+  }
+}
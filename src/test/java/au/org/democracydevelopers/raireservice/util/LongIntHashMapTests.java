@@ -0,0 +1,81 @@
+/*
+Copyright 2024 Democracy Developers
+
+The Raire Service is designed to connect colorado-rla and its associated database to
+the raire assertion generation engine (https://github.com/DemocracyDevelopers/raire-java).
+
+This file is part of raire-service.
+
+raire-service is free software: you can redistribute it and/or modify it under the terms
+of the GNU Affero General Public License as published by the Free Software Foundation, either
+version 3 of the License, or (at your option) any later version.
+
+raire-service is distributed in the hope that it will be useful, but WITHOUT ANY WARRANTY;
+without even the implied warranty of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.
+See the GNU Affero General Public License for more details.
+
+You should have received a copy of the GNU Affero General Public License along with
+raire-service. If not, see <https://www.gnu.org/licenses/>.
+*/
+
+package au.org.democracydevelopers.raireservice.util;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+
+import au.org.democracydevelopers.raireservice.testUtils;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.Random;
+import org.junit.jupiter.api.Test;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Tests for LongIntHashMap, checked against a java.util.HashMap holding the same entries.
+ */
+public class LongIntHashMapTests {
+
+  private static final Logger logger = LoggerFactory.getLogger(LongIntHashMapTests.class);
+
+  /**
+   * The key 0 (which marks empty slots internally) and negative keys are stored like any other.
+   */
+  @Test
+  void zeroAndNegativeKeys() {
+    testUtils.log(logger, "zeroAndNegativeKeys");
+    final LongIntHashMap map = new LongIntHashMap();
+    map.addTo(0, 3);
+    map.addTo(-1, 1);
+    map.addTo(Long.MIN_VALUE, 2);
+    map.addTo(0, 4);
+
+    assertEquals(3, map.size());
+    assertEquals(7, map.get(0));
+    assertEquals(1, map.get(-1));
+    assertEquals(2, map.get(Long.MIN_VALUE));
+    assertEquals(0, map.get(5));
+  }
+
+  /**
+   * Many entries, forcing the table to grow several times, give the same counts as a HashMap.
+   */
+  @Test
+  void agreesWithHashMapThroughGrowth() {
+    testUtils.log(logger, "agreesWithHashMapThroughGrowth");
+    final LongIntHashMap map = new LongIntHashMap(4);
+    final Map<Long, Integer> expected = new HashMap<>();
+    final Random random = new Random(2024);
+    for (int i = 0; i < 100000; i++) {
+      // Draw from a limited range, so that many keys are repeated.
+      final long key = random.nextInt(20000) * 0x10001L;
+      final int delta = random.nextInt(5) + 1;
+      map.addTo(key, delta);
+      expected.merge(key, delta, Integer::sum);
+    }
+
+    assertEquals(expected.size(), map.size());
+    final Map<Long, Integer> actual = new HashMap<>();
+    map.forEach(actual::put);
+    assertEquals(expected, actual);
+  }
+}
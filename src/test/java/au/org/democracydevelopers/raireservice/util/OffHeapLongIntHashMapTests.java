@@ -0,0 +1,92 @@
+/*
+Copyright 2024 Democracy Developers
+
+The Raire Service is designed to connect colorado-rla and its associated database to
+the raire assertion generation engine (https://github.com/DemocracyDevelopers/raire-java).
+
+This file is part of raire-service.
+
+raire-service is free software: you can redistribute it and/or modify it under the terms
+of the GNU Affero General Public License as published by the Free Software Foundation, either
+version 3 of the License, or (at your option) any later version.
+
+raire-service is distributed in the hope that it will be useful, but WITHOUT ANY WARRANTY;
+without even the implied warranty of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.
+See the GNU Affero General Public License for more details.
+
+You should have received a copy of the GNU Affero General Public License along with
+raire-service. If not, see <https://www.gnu.org/licenses/>.
+*/
+
+package au.org.democracydevelopers.raireservice.util;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import au.org.democracydevelopers.raireservice.testUtils;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.Random;
+import org.junit.jupiter.api.Test;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Tests for OffHeapLongIntHashMap, checked against a java.util.HashMap holding the same entries,
+ * and for its accounting of the storage it allocates.
+ */
+public class OffHeapLongIntHashMapTests {
+
+  private static final Logger logger = LoggerFactory.getLogger(OffHeapLongIntHashMapTests.class);
+
+  /**
+   * Many entries, including 0 and negative keys, forcing the table to grow several times, give
+   * the same counts as a HashMap.
+   */
+  @Test
+  void agreesWithHashMapThroughGrowth() {
+    testUtils.log(logger, "agreesWithHashMapThroughGrowth");
+    final Map<Long, Integer> expected = new HashMap<>();
+    try (OffHeapLongIntHashMap map = new OffHeapLongIntHashMap(4)) {
+      final Random random = new Random(2024);
+      for (int i = 0; i < 100000; i++) {
+        // Draw from a limited range, so that many keys are repeated.
+        final long key = (random.nextInt(20000) - 10000) * 0x10001L;
+        final int delta = random.nextInt(5) + 1;
+        map.addTo(key, delta);
+        expected.merge(key, delta, Integer::sum);
+      }
+
+      assertEquals(expected.size(), map.size());
+      assertEquals(expected.get(0L), map.get(0));
+      assertEquals(0, map.get(1));
+      final Map<Long, Integer> actual = new HashMap<>();
+      map.forEach(actual::put);
+      assertEquals(expected, actual);
+    }
+  }
+
+  /**
+   * Allocated storage is counted while a map is open, including after it grows, and released when
+   * it is closed. A closed map cannot be used.
+   */
+  @Test
+  void allocationIsTracked() {
+    testUtils.log(logger, "allocationIsTracked");
+    final long before = OffHeapLongIntHashMap.allocatedBytes();
+    final OffHeapLongIntHashMap map = new OffHeapLongIntHashMap(1000);
+    final long initial = OffHeapLongIntHashMap.allocatedBytes() - before;
+    assertTrue(initial >= 1000 * (Long.BYTES + Integer.BYTES));
+
+    for (long key = 1; key <= 10000; key++) {
+      map.addTo(key, 1);
+    }
+    assertTrue(OffHeapLongIntHashMap.allocatedBytes() - before > initial);
+
+    map.close();
+    map.close();
+    assertEquals(before, OffHeapLongIntHashMap.allocatedBytes());
+    assertThrows(IllegalStateException.class, () -> map.addTo(1, 1));
+  }
+}
@@ -0,0 +1,307 @@
+/*
+Copyright 2024 Democracy Developers
+
+The Raire Service is designed to connect colorado-rla and its associated database to
+the raire assertion generation engine (https://github.com/DemocracyDevelopers/raire-java).
+
+This file is part of raire-service.
+
+raire-service is free software: you can redistribute it and/or modify it under the terms
+of the GNU Affero General Public License as published by the Free Software Foundation, either
+version 3 of the License, or (at your option) any later version.
+
+raire-service is distributed in the hope that it will be useful, but WITHOUT ANY WARRANTY;
+without even the implied warranty of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.
+See the GNU Affero General Public License for more details.
+
+You should have received a copy of the GNU Affero General Public License along with
+raire-service. If not, see <https://www.gnu.org/licenses/>.
+*/
+
+package au.org.democracydevelopers.raireservice.util;
+
+import static org.junit.jupiter.api.Assertions.assertArrayEquals;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import au.org.democracydevelopers.raire.irv.Vote;
+import au.org.democracydevelopers.raire.util.VoteConsolidator.InvalidCandidateName;
+import au.org.democracydevelopers.raireservice.testUtils;
+import au.org.democracydevelopers.raireservice.util.WeightedVoteConsolidator.Storage;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Arrays;
+import java.util.stream.IntStream;
+import org.apache.commons.lang3.StringUtils;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Tests for the WeightedVoteConsolidator: rankings are consolidated with their multiplicities,
+ * votes are returned in canonical order, and invalid candidate names are rejected as raire-java
+ * would reject them.
+ */
+public class WeightedVoteConsolidatorTests {
+
+  private static final Logger logger = LoggerFactory.getLogger(WeightedVoteConsolidatorTests.class);
+
+  private static final String[] candidates = {"Alice", "Bob", "Chuan"};
+
+  /**
+   * Rankings added more than once, or with multiplicities, are consolidated into one vote.
+   */
+  @Test
+  void rankingsAreConsolidatedWithCounts() {
+    testUtils.log(logger, "rankingsAreConsolidatedWithCounts");
+    final WeightedVoteConsolidator consolidator = new WeightedVoteConsolidator(candidates);
+    consolidator.addVoteNames(new String[]{"Bob", "Alice"}, 1);
+    consolidator.addVoteNames(new String[]{"Chuan"}, 5);
+    consolidator.addVoteNames(new String[]{"Bob", "Alice"}, 3);
+
+    assertEquals(9, consolidator.getBallotCount());
+    assertEquals(2, consolidator.getUniqueRankingCount());
+
+    final Vote[] votes = consolidator.getVotes();
+    assertEquals(2, votes.length);
+    assertArrayEquals(new int[]{1, 0}, votes[0].prefs);
+    assertEquals(4, votes[0].n);
+    assertArrayEquals(new int[]{2}, votes[1].prefs);
+    assertEquals(5, votes[1].n);
+  }
+
+  /**
+   * Votes come out in the same (lexicographic) order regardless of the order rankings were added,
+   * with a ranking that is a prefix of another coming first. The empty ranking is allowed.
+   */
+  @Test
+  void votesAreInCanonicalOrder() {
+    testUtils.log(logger, "votesAreInCanonicalOrder");
+    final WeightedVoteConsolidator consolidator = new WeightedVoteConsolidator(candidates);
+    consolidator.addVote(new int[]{2, 0}, 1);
+    consolidator.addVote(new int[]{0, 1}, 1);
+    consolidator.addVote(new int[]{0}, 1);
+    consolidator.addVote(new int[]{}, 1);
+
+    final Vote[] votes = consolidator.getVotes();
+    assertArrayEquals(new int[]{}, votes[0].prefs);
+    assertArrayEquals(new int[]{0}, votes[1].prefs);
+    assertArrayEquals(new int[]{0, 1}, votes[2].prefs);
+    assertArrayEquals(new int[]{2, 0}, votes[3].prefs);
+  }
+
+  /**
+   * A ranking with a name that is not a candidate is rejected with raire-java's exception, and
+   * nothing is counted.
+   */
+  @Test
+  void invalidCandidateNameIsRejected() {
+    testUtils.log(logger, "invalidCandidateNameIsRejected");
+    final WeightedVoteConsolidator consolidator = new WeightedVoteConsolidator(candidates);
+    final InvalidCandidateName ex = assertThrows(InvalidCandidateName.class, () ->
+        consolidator.addVoteNames(new String[]{"Alice", "Diego"}, 2));
+    assertTrue(StringUtils.containsIgnoreCase(ex.getMessage(), "Diego"));
+    assertEquals(0, consolidator.getBallotCount());
+    assertEquals(0, consolidator.getVotes().length);
+  }
+
+  /**
+   * Rankings too long to be packed into a long are consolidated alongside packed rankings, and
+   * come out in the same canonical order. With 20 candidates (5 bits per preference), at most 12
+   * preferences can be packed.
+   */
+  @Test
+  void longRankingsAreConsolidated() {
+    testUtils.log(logger, "longRankingsAreConsolidated");
+    final String[] many = IntStream.range(0, 20).mapToObj(i -> "C" + i).toArray(String[]::new);
+    final WeightedVoteConsolidator consolidator = new WeightedVoteConsolidator(many);
+
+    final String[] full = many.clone();
+    final String[] packable = Arrays.copyOf(many, 12);
+    final String[] reversed = IntStream.range(0, 20).mapToObj(i -> many[19 - i])
+        .toArray(String[]::new);
+    consolidator.addVoteNames(full, 2);
+    consolidator.addVoteNames(packable, 1);
+    consolidator.addVoteNames(reversed, 1);
+    consolidator.addVoteNames(full.clone(), 3);
+    consolidator.addVote(new int[]{19}, 4);
+
+    assertEquals(11, consolidator.getBallotCount());
+    assertEquals(4, consolidator.getUniqueRankingCount());
+
+    final Vote[] votes = consolidator.getVotes();
+    assertArrayEquals(IntStream.range(0, 12).toArray(), votes[0].prefs);
+    assertEquals(1, votes[0].n);
+    assertArrayEquals(IntStream.range(0, 20).toArray(), votes[1].prefs);
+    assertEquals(5, votes[1].n);
+    assertArrayEquals(new int[]{19}, votes[2].prefs);
+    assertEquals(4, votes[2].n);
+    assertArrayEquals(IntStream.range(0, 20).map(i -> 19 - i).toArray(), votes[3].prefs);
+    assertEquals(1, votes[3].n);
+  }
+
+  /**
+   * Packing uses every candidate index, including the highest, and a ranking listing the highest
+   * index is not confused with a shorter one.
+   */
+  @Test
+  void highestCandidateIndexIsPacked() {
+    testUtils.log(logger, "highestCandidateIndexIsPacked");
+    // Four candidates need three bits per preference, since preference values run from 1 to 4.
+    final String[] four = {"A", "B", "C", "D"};
+    final WeightedVoteConsolidator consolidator = new WeightedVoteConsolidator(four);
+    consolidator.addVoteNames(new String[]{"D"}, 1);
+    consolidator.addVoteNames(new String[]{"D", "A"}, 1);
+    consolidator.addVoteNames(new String[]{"D"}, 1);
+
+    final Vote[] votes = consolidator.getVotes();
+    assertEquals(2, votes.length);
+    assertArrayEquals(new int[]{3}, votes[0].prefs);
+    assertEquals(2, votes[0].n);
+    assertArrayEquals(new int[]{3, 0}, votes[1].prefs);
+    assertEquals(1, votes[1].n);
+  }
+
+  /**
+   * Combining consolidators gives the same votes as adding every ranking to one consolidator,
+   * including rankings too long to pack. Consolidators for different candidates cannot be
+   * combined.
+   */
+  @Test
+  void consolidatorsAreCombined() {
+    testUtils.log(logger, "consolidatorsAreCombined");
+    final String[] many = IntStream.range(0, 20).mapToObj(i -> "C" + i).toArray(String[]::new);
+    final WeightedVoteConsolidator all = new WeightedVoteConsolidator(many);
+    final WeightedVoteConsolidator first = new WeightedVoteConsolidator(many);
+    final WeightedVoteConsolidator second = new WeightedVoteConsolidator(many);
+
+    final String[][] rankings = {{"C1"}, {"C2", "C1"}, many, {"C1"}, many, {"C19", "C0"}};
+    for (int i = 0; i < rankings.length; i++) {
+      all.addVoteNames(rankings[i], i + 1);
+      (i % 2 == 0 ? first : second).addVoteNames(rankings[i], i + 1);
+    }
+    first.addAll(second);
+
+    assertEquals(all.getBallotCount(), first.getBallotCount());
+    assertEquals(all.getUniqueRankingCount(), first.getUniqueRankingCount());
+    final Vote[] expected = all.getVotes();
+    final Vote[] actual = first.getVotes();
+    for (int i = 0; i < expected.length; i++) {
+      assertArrayEquals(expected[i].prefs, actual[i].prefs);
+      assertEquals(expected[i].n, actual[i].n);
+    }
+
+    assertThrows(IllegalArgumentException.class, () ->
+        first.addAll(new WeightedVoteConsolidator(candidates)));
+  }
+
+  /**
+   * Counting packed rankings outside the heap gives the same votes as counting them on the heap.
+   */
+  @Test
+  void offHeapConsolidationAgrees() {
+    testUtils.log(logger, "offHeapConsolidationAgrees");
+    final String[] many = IntStream.range(0, 20).mapToObj(i -> "C" + i).toArray(String[]::new);
+    final WeightedVoteConsolidator onHeap = new WeightedVoteConsolidator(many);
+    try (WeightedVoteConsolidator offHeap = new WeightedVoteConsolidator(many, 0, true)) {
+      final String[][] rankings = {{"C1"}, {"C2", "C1"}, many, {"C1"}, {}, {"C19", "C0"}};
+      for (int i = 0; i < rankings.length; i++) {
+        onHeap.addVoteNames(rankings[i], i + 1);
+        offHeap.addVoteNames(rankings[i], i + 1);
+      }
+
+      assertEquals(onHeap.getBallotCount(), offHeap.getBallotCount());
+      final Vote[] expected = onHeap.getVotes();
+      final Vote[] actual = offHeap.getVotes();
+      assertEquals(expected.length, actual.length);
+      for (int i = 0; i < expected.length; i++) {
+        assertArrayEquals(expected[i].prefs, actual[i].prefs);
+        assertEquals(expected[i].n, actual[i].n);
+      }
+    }
+  }
+
+  /**
+   * Writing rankings to temporary files when the spill threshold is reached, and merging them,
+   * gives the same votes as holding every ranking in memory, including when rankings recur across
+   * files, when files are adopted from a combined consolidator, and when rankings are too long to
+   * pack. The files are deleted on close.
+   */
+  @Test
+  void spilledConsolidationAgrees(@TempDir Path spillDirectory) throws IOException {
+    testUtils.log(logger, "spilledConsolidationAgrees");
+    final String[] many = IntStream.range(0, 20).mapToObj(i -> "C" + i).toArray(String[]::new);
+    final Storage storage = new Storage(false, 3, spillDirectory);
+    final WeightedVoteConsolidator inMemory = new WeightedVoteConsolidator(many);
+    final WeightedVoteConsolidator spilled = new WeightedVoteConsolidator(many, 0, storage);
+    final WeightedVoteConsolidator other = new WeightedVoteConsolidator(many, 0, storage);
+
+    final String[][] rankings = {{"C1"}, {"C2", "C1"}, many, {"C1"}, {}, {"C19", "C0"},
+        {"C3"}, {"C2", "C1"}, {"C4", "C5"}, many, {"C1"}, {"C7"}, {}, {"C8", "C9", "C1"}};
+    for (int i = 0; i < rankings.length; i++) {
+      inMemory.addVoteNames(rankings[i], i + 1);
+      (i % 3 == 0 ? other : spilled).addVoteNames(rankings[i], i + 1);
+    }
+    assertTrue(spilled.getRunCount() > 0);
+    assertTrue(other.getRunCount() > 0);
+    spilled.addAll(other);
+    assertEquals(0, other.getRunCount());
+
+    assertEquals(inMemory.getBallotCount(), spilled.getBallotCount());
+    final Vote[] expected = inMemory.getVotes();
+    final Vote[] actual = spilled.getVotes();
+    assertEquals(expected.length, actual.length);
+    for (int i = 0; i < expected.length; i++) {
+      assertArrayEquals(expected[i].prefs, actual[i].prefs);
+      assertEquals(expected[i].n, actual[i].n);
+    }
+
+    spilled.close();
+    try (var files = Files.list(spillDirectory)) {
+      assertEquals(0, files.count());
+    }
+  }
+
+  /**
+   * With more runs than can be merged at once, the runs are merged in several passes, which gives
+   * the same votes as holding every ranking in memory, and leaves no more runs than can be merged
+   * at once. The files are deleted on close.
+   */
+  @Test
+  void multiPassMergeAgrees(@TempDir Path spillDirectory) throws IOException {
+    testUtils.log(logger, "multiPassMergeAgrees");
+    final String[] many = IntStream.range(0, 20).mapToObj(i -> "C" + i).toArray(String[]::new);
+    final WeightedVoteConsolidator inMemory = new WeightedVoteConsolidator(many);
+    final WeightedVoteConsolidator spilled = new WeightedVoteConsolidator(many, 0,
+        new Storage(false, 2, spillDirectory));
+
+    // Every ranking recurs, so that it appears in more than one run and in more than one pass.
+    final int distinct = WeightedVoteConsolidator.MAX_MERGE_FAN_IN * 3;
+    for (int round = 0; round < 2; round++) {
+      for (int i = 0; i < distinct; i++) {
+        final String[] ranking = {many[i % 20], many[(i / 20) % 20], many[(i / 7) % 20]};
+        inMemory.addVoteNames(ranking, i + 1);
+        spilled.addVoteNames(ranking, i + 1);
+      }
+    }
+    final int runs = spilled.getRunCount();
+    assertTrue(runs > 2 * WeightedVoteConsolidator.MAX_MERGE_FAN_IN);
+
+    final Vote[] expected = inMemory.getVotes();
+    final Vote[] actual = spilled.getVotes();
+    assertEquals(expected.length, actual.length);
+    for (int i = 0; i < expected.length; i++) {
+      assertArrayEquals(expected[i].prefs, actual[i].prefs);
+      assertEquals(expected[i].n, actual[i].n);
+    }
+    assertTrue(spilled.getRunCount() <= WeightedVoteConsolidator.MAX_MERGE_FAN_IN);
+
+    spilled.close();
+    try (var files = Files.list(spillDirectory)) {
+      assertEquals(0, files.count());
+    }
+  }
+}